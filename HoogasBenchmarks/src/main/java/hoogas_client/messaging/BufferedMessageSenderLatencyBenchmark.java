@@ -0,0 +1,141 @@
+package hoogas_client.messaging;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * The end to end latency of a message sent with a {@link BufferedMessageSender}, i.e. from the call to {@link BufferedMessageSender#send(String)}
+ * until a {@link MessageReceiver} on the other end of a loopback connection has passed it to its handler.  Each benchmark thread is a
+ * producer sharing the same sender, and sends one message at a time, waiting for it to arrive before sending the next one.
+ * The percentiles are reported by the sample time mode.  The number of producers is the number of benchmark threads, so it's set
+ * with -t when running the jar, e.g. java -jar benchmarks.jar BufferedMessageSenderLatencyBenchmark -t 4, or the main method can be
+ * run to measure 1, 2, 4 and 8 producers one after the other.  Each is measured with the sender's buffer in one stripe and in several,
+ * see {@link BufferedMessageSenderOptions#withProducerStripes(int)}.
+ * @author Joshua Newman, February 2025
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BufferedMessageSenderLatencyBenchmark {
+
+
+    private static final int PORT = 9000;
+    private static final int MAX_PRODUCERS = 256;
+
+    private MessageReceiver messageReceiver;
+    private BufferedMessageSender bufferedMessageSender;
+    //The last sequence number received from each producer
+    private final AtomicLongArray received = new AtomicLongArray(MAX_PRODUCERS);
+    private final AtomicInteger nextProducerIndex = new AtomicInteger();
+
+    @Param({"1", "4"})
+    private int producerStripes;
+
+
+    @Setup
+    public void setup() throws Exception {
+        messageReceiver = new MessageReceiver(PORT, 64 * 1024);
+        //Connecting the receiver blocks until the sender has connected
+        var connectingThread = Thread.ofPlatform().start(() -> {
+            try {
+                messageReceiver.connect();
+            }
+            catch(IOException e) {
+                throw new IllegalStateException("Could not connect the receiver on port " + PORT, e);
+            }
+        });
+        var connectionListener = new LatchingConnectionListener();
+        var options = new BufferedMessageSenderOptions().withFramingMode(FramingMode.LENGTH_PREFIXED).withQueueFullPolicy(QueueFullPolicy.BLOCK)
+                .withProducerStripes(producerStripes);
+        bufferedMessageSender = new BufferedMessageSender("localhost", PORT, 5000, 1, connectionListener, options);
+        bufferedMessageSender.start();
+        if(!connectionListener.established.await(10, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Could not connect the sender to port " + PORT);
+        }
+        connectingThread.join();
+        //Each message is the producer's index and a sequence number, e.g. 3:1234
+        messageReceiver.startReceiving((connectionId, message) -> {
+            var separator = message.indexOf(':');
+            received.set(Integer.parseInt(message, 0, separator, 10), Long.parseLong(message, separator + 1, message.length(), 10));
+        }, WaitStrategy.BLOCKING, false);
+    }
+
+    @Benchmark
+    public void sendAndReceive(Producer producer) {
+        var sequence = ++producer.sequence;
+        bufferedMessageSender.send(producer.prefix + sequence);
+        while(received.get(producer.index) < sequence) {
+            Thread.onSpinWait();
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        bufferedMessageSender.close();
+        messageReceiver.close();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for(int numProducers : new int[]{1, 2, 4, 8}) {
+            new Runner(new OptionsBuilder().include(BufferedMessageSenderLatencyBenchmark.class.getSimpleName()).threads(numProducers).build()).run();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Producer {
+
+        private int index;
+        private String prefix;
+        private long sequence;
+
+        @Setup
+        public void setup(BufferedMessageSenderLatencyBenchmark benchmark) {
+            index = benchmark.nextProducerIndex.getAndIncrement();
+            if(index >= MAX_PRODUCERS) {
+                throw new IllegalArgumentException("No more than " + MAX_PRODUCERS + " producers are supported");
+            }
+            prefix = index + ":";
+        }
+    }
+
+    private static class LatchingConnectionListener implements ConnectionListener {
+
+        private final CountDownLatch established = new CountDownLatch(1);
+
+        @Override
+        public void onConnectionLost(int connectionId) {
+        }
+
+        @Override
+        public void onConnectionEstablished(int connectionId) {
+            established.countDown();
+        }
+
+        @Override
+        public void onConnectionTimedOut(int connectionId) {
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package hoogas_client.messaging;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * How quickly a {@link HoogasMessageReader} picks messages out of the bytes received, across message sizes, chunk sizes, framing modes
+ * and whether it reads one chunk at a time or drains everything available.
+ * The bytes come from memory rather than a socket, so this measures the reading and parsing alone.  Each invocation reads the same
+ * batch of messages and the score is in messages per second.  Both the String and the {@link MessageView} forms of the messages are measured.
+ * @author Joshua Newman, February 2025
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HoogasMessageReaderBenchmark {
+
+
+    private static final int MESSAGES_PER_BATCH = 1000;
+
+    @Param({"16", "256", "4096"})
+    private int messageSize;
+
+    @Param({"64", "1024", "65536"})
+    private int chunkSize;
+
+    @Param({"SEPARATOR", "LENGTH_PREFIXED"})
+    private FramingMode framingMode;
+
+    @Param({"false", "true"})
+    private boolean drainAvailable;
+
+    private RewindableInputStream inputStream;
+    private HoogasMessageReader messageReader;
+    private final List<String> messages = new ArrayList<>();
+    //Where the batch starts in the stream, i.e. after the preamble for length-prefixed framing
+    private int batchStart;
+    private Blackhole blackhole;
+    private final MessageViewHandler messageViewHandler = (connectionId, message) -> blackhole.consume(message.byteLength());
+
+
+    @Setup
+    public void setup(Blackhole blackhole) throws IOException {
+        this.blackhole = blackhole;
+        var bytes = new ByteArrayOutputStream();
+        var writer = new HoogasMessageWriter(bytes, framingMode);
+        batchStart = bytes.size();
+        var message = "x".repeat(messageSize);
+        for(int i = 0; i < MESSAGES_PER_BATCH; i++) {
+            writer.append(message);
+        }
+        writer.flush();
+        inputStream = new RewindableInputStream(bytes.toByteArray());
+        messageReader = new HoogasMessageReader(inputStream, chunkSize, new HashMap<>(), HoogasFrameParser.NO_MAX_FRAME_SIZE, drainAvailable);
+        //The first pass reads the preamble and grows the reader's buffer to fit the messages
+        readBatch();
+        messages.clear();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES_PER_BATCH)
+    public void readStrings(Blackhole blackhole) throws IOException {
+        inputStream.rewind(batchStart);
+        readBatch();
+        for(String message : messages) {
+            blackhole.consume(message);
+        }
+        messages.clear();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES_PER_BATCH)
+    public void readViews() throws IOException {
+        inputStream.rewind(batchStart);
+        while(inputStream.available() > 0) {
+            messageReader.readMessages(messageViewHandler, 0, false);
+        }
+    }
+
+    private void readBatch() throws IOException {
+        while(inputStream.available() > 0) {
+            messageReader.readMessages(messages, false);
+        }
+    }
+
+    //Lets the same bytes be read again without creating a new stream, and so a new reader
+    private static class RewindableInputStream extends ByteArrayInputStream {
+
+        private RewindableInputStream(byte[] bytes) {
+            super(bytes);
+        }
+
+        private void rewind(int position) {
+            pos = position;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package hoogas_client.messaging;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * The cost of encoding a message with a {@link HoogasMessageWriter}, across message sizes, framing modes and text that is and isn't
+ * all ASCII.  The bytes are written to a stream that throws them away, so this measures the encoding and framing alone.
+ * The score is the average time to encode one message.
+ * @author Joshua Newman, February 2025
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HoogasMessageWriterBenchmark {
+
+
+    @Param({"16", "256", "4096"})
+    private int messageSize;
+
+    @Param({"true", "false"})
+    private boolean ascii;
+
+    private String message;
+
+
+    @Setup
+    public void setup() {
+        message = ascii ? "x".repeat(messageSize) : "x".repeat(messageSize - 2) + "£";
+    }
+
+    @Benchmark
+    public void append(FramedWriter framedWriter) throws IOException {
+        framedWriter.messageWriter.append(message);
+        framedWriter.messageWriter.flush();
+    }
+
+    @Benchmark
+    public void appendSequenced(SequencedWriter sequencedWriter) throws IOException {
+        sequencedWriter.messageWriter.appendSequenced(++sequencedWriter.sequence, message);
+        sequencedWriter.messageWriter.flush();
+    }
+
+
+    /**
+     * A writer for each framing mode
+     */
+    @State(Scope.Thread)
+    public static class FramedWriter {
+
+        @Param({"SEPARATOR", "LENGTH_PREFIXED"})
+        private FramingMode framingMode;
+
+        private HoogasMessageWriter messageWriter;
+
+        @Setup
+        public void setup() throws IOException {
+            messageWriter = new HoogasMessageWriter(OutputStream.nullOutputStream(), framingMode);
+        }
+    }
+
+    /**
+     * Sequenced messages are only sent with {@link FramingMode#LENGTH_PREFIXED}, so they're only measured with that
+     */
+    @State(Scope.Thread)
+    public static class SequencedWriter {
+
+        private HoogasMessageWriter messageWriter;
+        private long sequence;
+
+        @Setup
+        public void setup() throws IOException {
+            messageWriter = new HoogasMessageWriter(OutputStream.nullOutputStream(), FramingMode.LENGTH_PREFIXED);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package hoogas_client.messaging;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * The throughput of a {@link MessageSender} sending to a {@link MessageReceiver} over a loopback connection, across message sizes
+ * and framing modes.  The receiver pushes the messages to a handler on its own thread.  Each invocation sends a batch of messages
+ * and then waits for the receiver to have had all of them, so the score, in messages per second, is end to end.
+ * @author Joshua Newman, February 2025
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoopbackThroughputBenchmark {
+
+
+    private static final int PORT = 9000;
+    private static final int MESSAGES_PER_BATCH = 1000;
+
+    @Param({"16", "256", "4096"})
+    private int messageSize;
+
+    @Param({"SEPARATOR", "LENGTH_PREFIXED"})
+    private FramingMode framingMode;
+
+    private MessageReceiver messageReceiver;
+    private MessageSender messageSender;
+    private final AtomicLong numReceived = new AtomicLong();
+    private long numSent;
+    private String message;
+
+
+    @Setup
+    public void setup() throws Exception {
+        message = "x".repeat(messageSize);
+        messageReceiver = new MessageReceiver(PORT, 64 * 1024);
+        //Connecting the receiver blocks until the sender has connected
+        var connectingThread = Thread.ofPlatform().start(() -> {
+            try {
+                messageReceiver.connect();
+            }
+            catch(IOException e) {
+                throw new IllegalStateException("Could not connect the receiver on port " + PORT, e);
+            }
+        });
+        messageSender = new MessageSender("localhost", PORT, framingMode);
+        connectWhenListening(messageSender);
+        connectingThread.join();
+        messageReceiver.startReceiving((connectionId, message) -> numReceived.incrementAndGet(), WaitStrategy.BLOCKING, false);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES_PER_BATCH)
+    public void sendAndReceive() throws IOException {
+        for(int i = 0; i < MESSAGES_PER_BATCH; i++) {
+            messageSender.send(message);
+        }
+        numSent += MESSAGES_PER_BATCH;
+        while(numReceived.get() < numSent) {
+            Thread.onSpinWait();
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        messageSender.close();
+        messageReceiver.close();
+    }
+
+    //The receiver is bound on another thread, so the first attempts can be refused
+    private static void connectWhenListening(MessageSender messageSender) throws Exception {
+        for(int attempt = 0; ; attempt++) {
+            try {
+                messageSender.connect();
+                return;
+            }
+            catch(IOException e) {
+                if(attempt == 100) {
+                    throw e;
+                }
+                Thread.sleep(20);
+            }
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package hoogas_client.messaging;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Compares {@link ThreadPerConnectionMessageReceiver} on virtual threads with the same receiver on one platform thread per connection.
+ * {@link #acceptIdleConnections(IdleConnections)} measures the cost of holding lots of idle connections open.  Each invocation opens
+ * them all and waits for the receiver to have accepted them, so the score is the time taken per connection, and the number of platform
+ * threads running and the heap in use once they all have been are reported alongside it.  The client side of the connections is in
+ * the same process, so twice the number of idle connections in file descriptors are needed.
+ * {@link #sendFromManyConnections(Senders)} measures the sustained throughput of messages sent from a number of connections at once,
+ * each from its own platform thread.
+ * @author Joshua Newman, February 2025
+ */
+@Fork(1)
+public class ThreadPerConnectionMessageReceiverBenchmark {
+
+
+    private static final int PORT = 9000;
+    private static final int MESSAGES_PER_SENDER_PER_BATCH = 200;
+
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 5)
+    @OperationsPerInvocation(IdleConnections.NUM_CONNECTIONS)
+    public void acceptIdleConnections(IdleConnections idleConnections) throws Exception {
+        idleConnections.openAll();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @Warmup(iterations = 3, time = 2)
+    @Measurement(iterations = 5, time = 2)
+    @OperationsPerInvocation(Senders.NUM_SENDERS * MESSAGES_PER_SENDER_PER_BATCH)
+    public void sendFromManyConnections(Senders senders) throws Exception {
+        senders.sendBatch();
+    }
+
+
+    /**
+     * A receiver that's given a fresh set of idle connections by each invocation, which are closed again afterwards.  The live platform
+     * threads and the heap in use are measured just before they're closed.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class IdleConnections {
+
+        static final int NUM_CONNECTIONS = 5000;
+
+        @Param({"true", "false"})
+        private boolean useVirtualThreads;
+
+        public double livePlatformThreads;
+        public double heapInUseMB;
+        //JMH adds the counters up over the measurement iterations, so each iteration records its share of the average
+        private int numMeasurementIterations;
+
+        private ThreadPerConnectionMessageReceiver messageReceiver;
+        private final CountingConnectionListener connectionListener = new CountingConnectionListener();
+        private final List<SocketChannel> clientChannels = new ArrayList<>(NUM_CONNECTIONS);
+
+
+        @Setup(Level.Trial)
+        public void countIterations(BenchmarkParams benchmarkParams) {
+            numMeasurementIterations = benchmarkParams.getMeasurement().getCount();
+        }
+
+        @Setup(Level.Invocation)
+        public void setup() throws IOException {
+            connectionListener.numEstablished.set(0);
+            messageReceiver = new ThreadPerConnectionMessageReceiver(new InetSocketAddress(PORT), 1000, (connectionId, message) -> {},
+                    connectionListener, useVirtualThreads);
+            messageReceiver.connect();
+        }
+
+        private void openAll() throws Exception {
+            for(int i = 0; i < NUM_CONNECTIONS; i++) {
+                clientChannels.add(SocketChannel.open(new InetSocketAddress("localhost", PORT)));
+            }
+            while(connectionListener.numEstablished.get() < NUM_CONNECTIONS) {
+                Thread.sleep(1);
+            }
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() throws Exception {
+            //Give the receiving threads time to block in their first read before measuring what they're holding on to
+            Thread.sleep(1000);
+            livePlatformThreads = ManagementFactory.getThreadMXBean().getThreadCount() / (double)numMeasurementIterations;
+            System.gc();
+            var runtime = Runtime.getRuntime();
+            heapInUseMB = (runtime.totalMemory() - runtime.freeMemory()) / (1024.0 * 1024 * numMeasurementIterations);
+            closeAll(clientChannels);
+            clientChannels.clear();
+            messageReceiver.close();
+        }
+    }
+
+    /**
+     * A receiver with a number of connections to it, each with a sending thread of its own.
+     */
+    @State(Scope.Benchmark)
+    public static class Senders {
+
+        static final int NUM_SENDERS = 100;
+
+        @Param({"true", "false"})
+        private boolean useVirtualThreads;
+
+        private ThreadPerConnectionMessageReceiver messageReceiver;
+        private final AtomicLong numReceived = new AtomicLong();
+        private long numSent;
+        private final List<MessageSender> messageSenders = new ArrayList<>(NUM_SENDERS);
+        private final List<Callable<Void>> sendingTasks = new ArrayList<>(NUM_SENDERS);
+        private ExecutorService sendingThreads;
+
+
+        @Setup
+        public void setup() throws IOException {
+            messageReceiver = new ThreadPerConnectionMessageReceiver(new InetSocketAddress(PORT), 64 * 1024,
+                    (connectionId, message) -> numReceived.incrementAndGet(), null, useVirtualThreads);
+            messageReceiver.connect();
+            var message = "x".repeat(64);
+            for(int i = 0; i < NUM_SENDERS; i++) {
+                var messageSender = new MessageSender("localhost", PORT, FramingMode.LENGTH_PREFIXED);
+                messageSender.connect();
+                messageSenders.add(messageSender);
+                sendingTasks.add(() -> {
+                    for(int j = 0; j < MESSAGES_PER_SENDER_PER_BATCH; j++) {
+                        messageSender.send(message);
+                    }
+                    return null;
+                });
+            }
+            sendingThreads = Executors.newFixedThreadPool(NUM_SENDERS);
+        }
+
+        private void sendBatch() throws Exception {
+            for(var sent : sendingThreads.invokeAll(sendingTasks)) {
+                sent.get();
+            }
+            numSent += (long)NUM_SENDERS * MESSAGES_PER_SENDER_PER_BATCH;
+            while(numReceived.get() < numSent) {
+                Thread.onSpinWait();
+            }
+        }
+
+        @TearDown
+        public void tearDown() throws Exception {
+            sendingThreads.shutdownNow();
+            closeAll(messageSenders);
+            messageReceiver.close();
+        }
+    }
+
+    private static void closeAll(List<? extends AutoCloseable> closeables) throws Exception {
+        for(AutoCloseable closeable : closeables) {
+            closeable.close();
+        }
+    }
+
+    private static class CountingConnectionListener implements ConnectionListener {
+
+        private final AtomicLong numEstablished = new AtomicLong();
+
+        @Override
+        public void onConnectionLost(int connectionId) {
+        }
+
+        @Override
+        public void onConnectionEstablished(int connectionId) {
+            numEstablished.incrementAndGet();
+        }
+
+        @Override
+        public void onConnectionTimedOut(int connectionId) {
+        }
+    }
+}
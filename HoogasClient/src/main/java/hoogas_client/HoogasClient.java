@@ -3,16 +3,19 @@ package hoogas_client;
 import com.noomtech.hoogas_shared.constants.SharedConstants;
 import com.noomtech.hoogas_shared.internal_messaging.MessageTypeFromApplications;
 import com.noomtech.hoogas_shared.internal_messaging.MessageTypeToApplications;
+import com.noomtech.hoogas_shared.internal_messaging.SharedMemoryMessageQueue;
 
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 public class HoogasClient {
 
@@ -31,6 +34,9 @@ public class HoogasClient {
      * 1 - {@link SharedConstants#INTERNAL_MSGS_TO_HOOGAS_DIR_NAME} for messages from the application to Hoogas e.g. a request for the public config.
      * 2 - {@link SharedConstants#INTERNAL_MSGS_FROM_HOOGAS_DIR_NAME} for messages from Hoogas to the application e.g. a stop message or a message containing the public config
      * When the receiver (Hoogas server or the application using Hoogas client) picks the message up it will delete the file.
+     * If {@link SharedConstants#isSharedMemoryMessaging()} is set then the messages go through a pair of memory-mapped queue files in the
+     * application's root directory instead, see {@link SharedMemoryMessageQueue}.  Anything left in the queue from Hoogas by a previous
+     * run is discarded, as the contents of the directory would be.
      * @param appName The name that the application was deployed to hoogas under
      * @param listener This will be notified of any communications from hoogas after the initialisation i.e. during the running of the application that's using hoogas client
      * @return The current public config
@@ -44,17 +50,33 @@ public class HoogasClient {
             var messagesToHoogasServerDir = new File(appInstallationDir + File.separator + SharedConstants.INTERNAL_MSGS_TO_HOOGAS_DIR_NAME);
             var messagesFromHoogasServerDir = new File(appInstallationDir + File.separator + SharedConstants.INTERNAL_MSGS_FROM_HOOGAS_DIR_NAME);
 
-            //Create the messaging dirs if necessary.  If they already exist delete the contents
-            setUpMessagingDir(messagesToHoogasServerDir);
-            setUpMessagingDir(messagesFromHoogasServerDir);
+            Callable<List<MsgFromHoogas>> msgsFromHoogasChecker;
+            if(SharedConstants.isSharedMemoryMessaging()) {
+                var messagesToHoogasServerQueue = SharedMemoryMessageQueue.open(Paths.get(appInstallationDir,
+                        SharedConstants.INTERNAL_MSGS_TO_HOOGAS_QUEUE_FILE_NAME), SharedMemoryMessageQueue.DEFAULT_CAPACITY);
+                var messagesFromHoogasServerQueue = SharedMemoryMessageQueue.open(Paths.get(appInstallationDir,
+                        SharedConstants.INTERNAL_MSGS_FROM_HOOGAS_QUEUE_FILE_NAME), SharedMemoryMessageQueue.DEFAULT_CAPACITY);
+                messagesFromHoogasServerQueue.clear();
 
-            //Send a config request message to get the public config and wait until it has been received
-            sendToHoogas(messagesToHoogasServerDir.getPath(),"", MessageTypeFromApplications.PUBLIC_CFG_REQUEST);
-            var msgFromHoogasList = waitForPublicConfig(messagesFromHoogasServerDir);
+                //Send a config request message to get the public config
+                sendToHoogas(messagesToHoogasServerQueue, "", MessageTypeFromApplications.PUBLIC_CFG_REQUEST);
+                msgsFromHoogasChecker = () -> checkForMsgsFromHoogas(messagesFromHoogasServerQueue);
+            }
+            else {
+                //Create the messaging dirs if necessary.  If they already exist delete the contents
+                setUpMessagingDir(messagesToHoogasServerDir);
+                setUpMessagingDir(messagesFromHoogasServerDir);
+
+                //Send a config request message to get the public config
+                sendToHoogas(messagesToHoogasServerDir.getPath(),"", MessageTypeFromApplications.PUBLIC_CFG_REQUEST);
+                msgsFromHoogasChecker = () -> checkForMsgsFromHoogas(messagesFromHoogasServerDir);
+            }
+            //Wait until the public config has been received
+            var msgFromHoogasList = waitForPublicConfig(msgsFromHoogasChecker);
             var propertiesMap = buildConfigMap(msgFromHoogasList.getFirst().text());
 
             //Start a thread that intermittently polls for messages from Hoogas
-            Thread messageCheckerThread = new Thread(new CheckerRoutine(messagesFromHoogasServerDir, listener));
+            Thread messageCheckerThread = new Thread(new CheckerRoutine(msgsFromHoogasChecker, listener));
             messageCheckerThread.setName(appName + "_HoogasClient");
             messageCheckerThread.setDaemon(false);
             messageCheckerThread.start();
@@ -92,11 +114,15 @@ public class HoogasClient {
     }
 
     static List<MsgFromHoogas> waitForPublicConfig(File dir) throws Exception {
+        return waitForPublicConfig(() -> checkForMsgsFromHoogas(dir));
+    }
+
+    static List<MsgFromHoogas> waitForPublicConfig(Callable<List<MsgFromHoogas>> msgsFromHoogasChecker) throws Exception {
         var requestMadeTime = System.currentTimeMillis();
         List<MsgFromHoogas> msgFromHoogasList;
         long timeout = 4000;
         do {
-            msgFromHoogasList = checkForMsgsFromHoogas(dir);
+            msgFromHoogasList = msgsFromHoogasChecker.call();
             Thread.sleep(250);
         }
         while(msgFromHoogasList.isEmpty() && (System.currentTimeMillis() - requestMadeTime) < timeout);
@@ -113,15 +139,30 @@ public class HoogasClient {
 
     static void sendToHoogas(String msgToHoogasDir, String text, MessageTypeFromApplications type) throws Exception {
         var msgFile = new File(msgToHoogasDir + File.separator + type.name());
-        if(msgFile.exists() && !msgFile.delete()) {
-            throw new IllegalStateException("Cannot delete existing message file: " + msgFile.getPath());
+        //Written in full somewhere Hoogas ignores and then moved into place, which replaces any existing message of the same type
+        var inProgressMsgFile = new File(msgFile.getPath() + SharedConstants.IN_PROGRESS_MESSAGE_FILE_SUFFIX);
+        if(inProgressMsgFile.exists() && !inProgressMsgFile.delete()) {
+            throw new IllegalStateException("Cannot delete existing message file: " + inProgressMsgFile.getPath());
         }
-        if(!msgFile.createNewFile()) {
-            throw new IllegalStateException("Cannot create message file: " + msgFile.getPath());
+        if(!inProgressMsgFile.createNewFile()) {
+            throw new IllegalStateException("Cannot create message file: " + inProgressMsgFile.getPath());
         }
-        try(BufferedWriter writer = new BufferedWriter(new FileWriter(msgFile))) {
+        try(BufferedWriter writer = new BufferedWriter(new FileWriter(inProgressMsgFile))) {
             writer.write(text);
         }
+        Files.move(inProgressMsgFile.toPath(), msgFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static void sendToHoogas(SharedMemoryMessageQueue msgToHoogasQueue, String text, MessageTypeFromApplications type) {
+        if(!msgToHoogasQueue.offer(type.name(), text)) {
+            throw new IllegalStateException("No room for message in queue: " + msgToHoogasQueue.getFile());
+        }
+    }
+
+    static List<MsgFromHoogas> checkForMsgsFromHoogas(SharedMemoryMessageQueue msgFromHoogasQueue) {
+        var messagesFound = new ArrayList<MsgFromHoogas>();
+        msgFromHoogasQueue.drain((type, text) -> messagesFound.add(new MsgFromHoogas(MessageTypeToApplications.valueOf(type), text)));
+        return messagesFound;
     }
 
     static List<MsgFromHoogas> checkForMsgsFromHoogas(File dir) throws Exception {
@@ -177,11 +218,11 @@ public class HoogasClient {
 
     private static class CheckerRoutine implements Runnable {
 
-        private final File msgsFromHoogasDir;
+        private final Callable<List<MsgFromHoogas>> msgsFromHoogasChecker;
         private final HoogasMessageListener hoogasMessageListener;
 
-        public CheckerRoutine(File msgsFromHoogasDir, HoogasMessageListener listener) {
-            this.msgsFromHoogasDir = msgsFromHoogasDir;
+        public CheckerRoutine(Callable<List<MsgFromHoogas>> msgsFromHoogasChecker, HoogasMessageListener listener) {
+            this.msgsFromHoogasChecker = msgsFromHoogasChecker;
             this.hoogasMessageListener = listener;
         }
 
@@ -189,7 +230,7 @@ public class HoogasClient {
             synchronized (CHECKER_ROUTINE_MUTEX) {
                 while (!shutdown) {
                     try {
-                        var msgFromHoogasList = checkForMsgsFromHoogas(msgsFromHoogasDir);
+                        var msgFromHoogasList = msgsFromHoogasChecker.call();
                         if (!msgFromHoogasList.isEmpty()) {
                             for (MsgFromHoogas msgFromHoogas : msgFromHoogasList) {
                                 switch (msgFromHoogas.type()) {
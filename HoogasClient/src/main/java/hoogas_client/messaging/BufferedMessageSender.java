@@ -1,9 +1,23 @@
 package hoogas_client.messaging;
 
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.net.Socket;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.Channels;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
 
 /**
@@ -14,23 +28,120 @@ import java.util.concurrent.ArrayBlockingQueue;
  * This functionality allows for the toleration of downtime either during normal running or, for example, on application start-up in the case
  * where the application using this class starts up before the receiving application.
  * Classes can use the {@link ConnectionListener} instance they provide when creating this class to receive events on the connection.
+ * The sending thread takes everything that's waiting in the buffer, up to a limit, and writes it to the socket in a single write, so
+ * during bursts the cost of each write is shared between many messages.  See {@link BufferedMessageSenderOptions} for the limits.
+ * When there's nothing to send the sending thread waits according to the {@link WaitStrategy} in the options, which by default blocks.
+ * The buffer is lock-free so threads sending messages never wait on each other or on the sending thread.  What happens when it's
+ * full is decided by the {@link QueueFullPolicy} in the options, which by default makes the caller wait for room.  When many threads
+ * send at once the buffer can be split so they mostly add to different parts of it, see {@link BufferedMessageSenderOptions#withProducerStripes(int)}.
+ * Messages can be given a priority by sending them in one of several lanes, each with its own buffer, with {@link #send(String, int)}.
+ * Higher lanes are sent first but lower ones always get a share of each batch, see {@link BufferedMessageSenderOptions#withPriorityLanes(int, int)}.
+ * Messages that only matter until a newer one replaces them, e.g. periodic stats, can be sent with a key so each one takes the place of
+ * any unsent one with the same key, and any message can be given a time-to-live, see {@link #send(String, String, long)}.  After
+ * an outage only the latest of them are sent rather than everything that built up while the connection was down.
+ * A spill directory can be provided in the options, in which case once the buffer is half full its messages are moved to disk by the
+ * sending thread, and sent from there in the same order once the connection is available, so a long outage doesn't fill the buffer.
+ * With acknowledged delivery turned on in the options, messages are kept in a replay window until the receiver acknowledges them
+ * and any that haven't been acknowledged are re-sent after a reconnect, see {@link BufferedMessageSenderOptions#withAcknowledgedDelivery(boolean)}.
+ * Connecting is done without blocking so each attempt can be given a timeout, and failed attempts are retried with an exponential
+ * backoff and jitter, see {@link BufferedMessageSenderOptions#withReconnectBackoff(long, long, double, double)}.
+ * A connection whose other side has gone without closing it can be noticed quickly using heartbeats, see {@link BufferedMessageSenderOptions#withHeartbeats(long, int)}.
+ * Messages are sent over TCP, or over a Unix domain socket if the sender is created with a {@link java.net.UnixDomainSocketAddress}.
+ * Every message sent can be recorded to disk to be used as test data, see {@link BufferedMessageSenderOptions#withCaptureDirectory(java.nio.file.Path)}.
+ * Metrics such as how long messages wait in the buffer and how long writes take are recorded all the time, see {@link #getSendMetrics()}.
+ * Callers that need to know when a message has gone can use {@link #sendAsync(String, long)}, which returns a future that's completed
+ * once the message has been written to the socket, or acknowledged by the receiver when using acknowledged delivery.
  * @see MessageReceiver
  * @author Joshua Newman, January 2025
  */
 public class BufferedMessageSender implements AutoCloseable, Runnable {
 
 
-    private final ArrayBlockingQueue<String> buffer;
+    //One buffer per priority lane, highest priority first
+    private final StripedRingBuffer<String>[] lanes;
+    //The lowest priority lane, which messages go in by default and which is the only one that's spilled
+    private final StripedRingBuffer<String> buffer;
+    //How many messages each lane can put in the batch in each round of taking from the lanes
+    private final int[] laneQuotas;
+    private final QueueFullPolicy queueFullPolicy;
+    private final long queueFullTimeoutNanos;
+    private final LongAdder numMessagesDropped = new LongAdder();
+    private final LongAdder numMessagesRejected = new LongAdder();
+    private final LongAdder numMessagesReplaced = new LongAdder();
+    private final LongAdder numMessagesExpired = new LongAdder();
+    //The messages sent with a key that are waiting in the lanes and can still be replaced, by key
+    private final ConcurrentHashMap<String, KeyedMessage> keyedMessages = new ConcurrentHashMap<>();
+    private final SpillJournal spillJournal;
+    private final int spillThreshold;
+    //Messages taken from the buffer to be spilled that couldn't be written to the journal.  They go after the journal and before the buffer.
+    private final List<String> unspilled = new ArrayList<>();
+    //The futures of the messages sent with sendAsync, if any, kept in the same way as the timestamps for the batch.  Until they've been
+    //taken by the sending thread, messages sent with a key or time-to-live have their KeyedMessage here instead.
+    private final Object[] unspilledCompletions;
+    //The futures of the messages sent with sendAsync that have been spilled, with their position in the journal counting from the start of this run
+    private final ArrayDeque<PendingCompletion> spilledCompletions = new ArrayDeque<>();
+    private long numTakenFromJournal;
+    private final CaptureLog captureLog;
+    private final boolean acknowledgedDelivery;
+    private final int replayWindowSize;
+    //Identifies this sender to the receiver across reconnects, so the receiver knows which messages it has already delivered
+    private final long sessionId = ThreadLocalRandom.current().nextLong();
+    //Messages that have been sent but not acknowledged, oldest first.  The first one has the sequence number below.  Only used by the sending thread.
+    private final ArrayDeque<String> replayWindow = new ArrayDeque<>();
+    //The futures of the messages in the replay window that were sent with sendAsync, with their sequence numbers
+    private final ArrayDeque<PendingCompletion> replayCompletions = new ArrayDeque<>();
+    private long firstUnacknowledgedSequence = 1;
+    //Messages in the replay window from this one on have never been written, so haven't been captured yet
+    private long firstUnwrittenSequence = 1;
+    private volatile long lastAcknowledgedSequence;
+    private HoogasMessageReader acknowledgementReader;
+    //Anything other than acknowledgements read by the acknowledgement reader, which this class doesn't use
+    private final List<String> ignoredMessages = new ArrayList<>();
     private volatile boolean shutdown;
+    //Set once the sending thread has finished sending, just before it fails the futures of anything that hasn't been sent
+    private volatile boolean stopped;
     private final Thread sendingRoutineThread;
     private final ConnectionListener connectionListener;
-    private final int connectionId;
-    private final String host;
-    private final int port;
+    protected final int connectionId;
+    private final SocketAddress address;
     private final long timeout;
-    protected Socket socket;
+    private final FramingMode framingMode;
+    private final int maxBatchMessages;
+    private final int maxBatchBytes;
+    private final SendMetricsListener sendMetricsListener;
+    private final SendMetricsRecorder sendMetrics = new SendMetricsRecorder();
+    //When each message in the batch was passed to send, at the same index as the message, or NOT_TIMESTAMPED.  Only used by the sending thread.
+    private final long[] batchTimestamps;
+    //The same as the unspilled completions
+    private final Object[] batchCompletions;
+    private static final long NOT_TIMESTAMPED = Long.MIN_VALUE;
+    //Whether the connection has ever been established, so later connections are counted as reconnects
+    private boolean connectedBefore;
+    private final WaitStrategy waitStrategy;
+    private final long connectTimeoutNanos;
+    private final long initialReconnectDelayMillis;
+    private final long maxReconnectDelayMillis;
+    private final double reconnectBackoffMultiplier;
+    private final double reconnectJitter;
+    private final long heartbeatIntervalNanos;
+    private final long heartbeatTimeoutNanos;
+    //When the last heartbeat was sent.  Only used by the sending thread.
+    private long lastHeartbeatSentAt;
+    //Closes the connection if nothing is received for the heartbeat timeout.  Null if heartbeats aren't being used.
+    private final Thread heartbeatWatchdogThread;
+    //The connection the watchdog is watching, or null when there isn't one
+    private volatile WatchedConnection watchedConnection;
+    //How long the sending thread blocks for at a time, so it notices when it's been shut-down and sends heartbeats on time
+    private final long blockingWaitNanos;
+    //Used to wait for connections to complete.  Only used by the sending thread.
+    private Selector connectSelector;
+    private SocketChannel socketChannel;
     private HoogasMessageWriter hoogasMessageWriter;
-    private static final int DEFAULT_QUEUE_SIZE = 1000;
+    //How long the sending thread blocks for at a time when using the blocking wait strategy, so it notices when it's been shut-down
+    private static final long BLOCKING_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    //How often the buffer is checked to see if it needs spilling while waiting to reconnect
+    private static final long SPILL_CHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final int ACKNOWLEDGEMENT_READ_CHUNK_SIZE = 1024;
 
 
     /**
@@ -41,15 +152,130 @@ public class BufferedMessageSender implements AutoCloseable, Runnable {
      * @param connectionListener Receives connection events
      */
     BufferedMessageSender(String host, int port, long timeout, int connectionId, ConnectionListener connectionListener) {
-        buffer = new ArrayBlockingQueue<>(DEFAULT_QUEUE_SIZE);
+        this(host, port, timeout, connectionId, connectionListener, FramingMode.SEPARATOR);
+    }
+
+    /**
+     * @param host The address of the receiving application
+     * @param port The port that the receiving application will be listening for connections on
+     * @param timeout How long the connection can be down before a timeout event is published on the provided listener
+     * @param connectionId Unique id for this connection
+     * @param connectionListener Receives connection events
+     * @param framingMode How the messages are marked out from each other on the wire
+     */
+    BufferedMessageSender(String host, int port, long timeout, int connectionId, ConnectionListener connectionListener, FramingMode framingMode) {
+        this(host, port, timeout, connectionId, connectionListener, new BufferedMessageSenderOptions().withFramingMode(framingMode));
+    }
+
+    /**
+     * @param host The address of the receiving application
+     * @param port The port that the receiving application will be listening for connections on
+     * @param timeout How long the connection can be down before a timeout event is published on the provided listener
+     * @param connectionId Unique id for this connection
+     * @param connectionListener Receives connection events
+     * @param options The optional settings
+     */
+    BufferedMessageSender(String host, int port, long timeout, int connectionId, ConnectionListener connectionListener, BufferedMessageSenderOptions options) {
+        this(InetSocketAddress.createUnresolved(host, port), timeout, connectionId, connectionListener, options);
+    }
+
+    /**
+     * @param address The address the receiving application will be listening for connections on.  This is either an {@link InetSocketAddress}
+     *                or a {@link java.net.UnixDomainSocketAddress}.  Host names are looked up again on each attempt to connect.
+     * @param timeout How long the connection can be down before a timeout event is published on the provided listener
+     * @param connectionId Unique id for this connection
+     * @param connectionListener Receives connection events
+     * @param options The optional settings
+     */
+    BufferedMessageSender(SocketAddress address, long timeout, int connectionId, ConnectionListener connectionListener, BufferedMessageSenderOptions options) {
+        lanes = createLanes(options);
+        buffer = lanes[lanes.length - 1];
+        queueFullPolicy = options.getQueueFullPolicy();
+        queueFullTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(options.getQueueFullTimeoutMillis());
+        if(options.getSpillDirectory() != null) {
+            try {
+                spillJournal = new SpillJournal(options.getSpillDirectory(), connectionId, options.getSpillSegmentBytes());
+            }
+            catch(IOException e) {
+                throw new IllegalStateException("Could not open spill journal in: " + options.getSpillDirectory(), e);
+            }
+        }
+        else {
+            spillJournal = null;
+        }
+        if(options.getCaptureDirectory() != null) {
+            try {
+                captureLog = new CaptureLog(options.getCaptureDirectory(), "sender_" + connectionId, CaptureLog.DEFAULT_SEGMENT_BYTES);
+            }
+            catch(IOException e) {
+                throw new IllegalStateException("Could not open capture in: " + options.getCaptureDirectory(), e);
+            }
+        }
+        else {
+            captureLog = null;
+        }
+        spillThreshold = Math.max(1, buffer.capacity() / 2);
+        unspilledCompletions = spillJournal != null ? new Object[buffer.capacity()] : null;
+        acknowledgedDelivery = options.isAcknowledgedDelivery();
+        replayWindowSize = options.getReplayWindowSize();
+        if(acknowledgedDelivery && options.getFramingMode() != FramingMode.LENGTH_PREFIXED) {
+            throw new IllegalArgumentException("Acknowledged delivery requires " + FramingMode.LENGTH_PREFIXED + " framing");
+        }
         sendingRoutineThread = new Thread(this);
         sendingRoutineThread.setDaemon(false);
         sendingRoutineThread.setName("SendingRoutine_" + BufferedMessageSender.class.getName() + " " + connectionId);
         this.connectionListener = connectionListener;
         this.connectionId = connectionId;
-        this.host = host;
-        this.port = port;
+        this.address = address;
         this.timeout = timeout;
+        this.framingMode = options.getFramingMode();
+        this.maxBatchMessages = options.getMaxBatchMessages();
+        this.batchTimestamps = new long[maxBatchMessages];
+        this.batchCompletions = new Object[maxBatchMessages];
+        this.laneQuotas = laneQuotas(lanes.length, options.getFairnessRatio(), maxBatchMessages);
+        this.maxBatchBytes = options.getMaxBatchBytes();
+        this.sendMetricsListener = options.getSendMetricsListener();
+        this.waitStrategy = options.getWaitStrategy();
+        this.connectTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(options.getConnectTimeoutMillis());
+        this.initialReconnectDelayMillis = options.getInitialReconnectDelayMillis();
+        this.maxReconnectDelayMillis = options.getMaxReconnectDelayMillis();
+        this.reconnectBackoffMultiplier = options.getReconnectBackoffMultiplier();
+        this.reconnectJitter = options.getReconnectJitter();
+        this.heartbeatIntervalNanos = TimeUnit.MILLISECONDS.toNanos(options.getHeartbeatIntervalMillis());
+        this.heartbeatTimeoutNanos = heartbeatIntervalNanos * options.getMaxMissedHeartbeats();
+        if(heartbeatIntervalNanos > 0) {
+            if(framingMode != FramingMode.LENGTH_PREFIXED) {
+                throw new IllegalArgumentException("Heartbeats require " + FramingMode.LENGTH_PREFIXED + " framing");
+            }
+            heartbeatWatchdogThread = new Thread(this::watchHeartbeats);
+            heartbeatWatchdogThread.setDaemon(true);
+            heartbeatWatchdogThread.setName("HeartbeatWatchdog_" + BufferedMessageSender.class.getName() + " " + connectionId);
+            blockingWaitNanos = Math.max(1, Math.min(BLOCKING_WAIT_NANOS, heartbeatIntervalNanos / 2));
+        }
+        else {
+            heartbeatWatchdogThread = null;
+            blockingWaitNanos = BLOCKING_WAIT_NANOS;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static StripedRingBuffer<String>[] createLanes(BufferedMessageSenderOptions options) {
+        var lanes = (StripedRingBuffer<String>[]) new StripedRingBuffer<?>[options.getNumPriorityLanes()];
+        for(int i = 0; i < lanes.length; i++) {
+            lanes[i] = new StripedRingBuffer<String>(options.getBufferCapacity(), options.getProducerStripes());
+        }
+        return lanes;
+    }
+
+    //Each lane gets the fairness ratio times as many messages per round as the lane below it, so the lowest lane gets 1
+    private static int[] laneQuotas(int numLanes, int fairnessRatio, int maxBatchMessages) {
+        var laneQuotas = new int[numLanes];
+        long quota = 1;
+        for(int i = numLanes - 1; i >= 0; i--) {
+            laneQuotas[i] = (int)Math.min(quota, maxBatchMessages);
+            quota = Math.min(quota * fairnessRatio, maxBatchMessages);
+        }
+        return laneQuotas;
     }
 
 
@@ -69,26 +295,287 @@ public class BufferedMessageSender implements AutoCloseable, Runnable {
             throw new IllegalArgumentException(this.getClass().getName() + " has been shut-down");
         }
         sendingRoutineThread.start();
+        if(heartbeatWatchdogThread != null) {
+            heartbeatWatchdogThread.start();
+        }
     }
 
     /**
-     * Sends the given message.  Messages are appended with {@link hoogas_client.Constants#MSG_SEPARATOR_CHAR} so as they
-     * can be read by a {@link MessageReceiver} for example.
+     * Sends the given message.  Messages are appended with {@link hoogas_client.Constants#MSG_SEPARATOR_CHAR}, or framed according
+     * to the {@link FramingMode} provided in the constructor, so as they can be read by a {@link MessageReceiver} for example.
+     * If the buffer is full then the {@link QueueFullPolicy} provided in the options is applied.
+     * @throws IllegalStateException If the buffer is full and the policy is {@link QueueFullPolicy#FAIL_FAST}
      * @see MessageReceiver
      */
     public void send(String message) {
+        checkSendable();
+        if(!buffer.offer(message, System.nanoTime())) {
+            onBufferFull(buffer, message, null);
+        }
+    }
+
+    /**
+     * The same as {@link #send(String)} except the message goes in the given priority lane, see {@link BufferedMessageSenderOptions#withPriorityLanes(int, int)}.
+     * Messages in the same lane are sent in the order they were passed in, but a message can overtake ones in lower lanes.
+     * @param lane The lane, from 0 for the highest priority
+     * @throws IllegalArgumentException If there's no such lane
+     */
+    public void send(String message, int lane) {
+        checkSendable();
+        var laneBuffer = lane(lane);
+        if(!laneBuffer.offer(message, System.nanoTime())) {
+            onBufferFull(laneBuffer, message, null);
+        }
+    }
+
+    /**
+     * The same as {@link #send(String)} except a future is returned that's completed once the message has been written to the socket,
+     * or once the receiver has acknowledged it when using acknowledged delivery.  This lets many messages be in flight at once
+     * with the caller reacting to each one going, rather than waiting or polling.  The future is completed on the sending thread so
+     * anything chained to it without an executor should be quick.
+     * The future fails with a {@link java.util.concurrent.TimeoutException} if the message hasn't gone by the timeout, although the
+     * message is still sent if it can be.  It fails with an {@link IllegalStateException} if the message is dropped or rejected because
+     * the buffer is full, in which case nothing is thrown whatever the {@link QueueFullPolicy}, or if this instance is shut-down or its
+     * connection times out before the message has gone.  A message that's spilled to disk only completes its future if it's sent
+     * by this instance.
+     * @param timeoutMillis How long to wait for the message to go before failing the future.  0 means no timeout.
+     */
+    public CompletableFuture<Void> sendAsync(String message, long timeoutMillis) {
+        return sendAsync(message, lanes.length - 1, timeoutMillis);
+    }
+
+    /**
+     * The same as {@link #sendAsync(String, long)} except the message goes in the given priority lane, see {@link #send(String, int)}
+     * @throws IllegalArgumentException If there's no such lane
+     */
+    public CompletableFuture<Void> sendAsync(String message, int lane, long timeoutMillis) {
+        checkSendable();
+        var laneBuffer = lane(lane);
+        var future = new CompletableFuture<Void>();
+        if(timeoutMillis > 0) {
+            future.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        if(!laneBuffer.offer(message, System.nanoTime(), future)) {
+            onBufferFull(laneBuffer, message, future);
+        }
+        //The sending thread may have already failed everything that was waiting, in which case this message was too late to be included
+        if(stopped) {
+            future.completeExceptionally(new IllegalStateException(getClass().getName() + " stopped before the message was sent"));
+        }
+        return future;
+    }
+
+    /**
+     * The same as {@link #send(String, int, String, long)} for the lowest priority lane
+     */
+    public void send(String message, String key, long timeToLiveMillis) {
+        send(message, lanes.length - 1, key, timeToLiveMillis);
+    }
+
+    /**
+     * The same as {@link #sendAsync(String, int, String, long, long)} for the lowest priority lane
+     */
+    public CompletableFuture<Void> sendAsync(String message, String key, long timeToLiveMillis, long timeoutMillis) {
+        return sendAsync(message, lanes.length - 1, key, timeToLiveMillis, timeoutMillis);
+    }
+
+    /**
+     * The same as {@link #send(String, int)} except the message can be given a key and a time-to-live.  A message sent with a key replaces
+     * the one before it with the same key if that one hasn't been sent yet, taking its place in the lane, so only the latest message for
+     * each key is sent.  If the one before it is in another lane then that one is thrown away instead, and this one goes at the back of
+     * the lane it's sent in, so it's never held up behind a lower lane.  A message with a time-to-live is thrown away rather than sent if it's still waiting when that runs out, see
+     * {@link #getNumMessagesExpired()}.  Messages are no longer replaced or expired once they've been spilled to disk.
+     * @param key The key, or null if the message shouldn't replace any others
+     * @param timeToLiveMillis How long the message can wait to be sent.  0 means it never expires.
+     * @throws IllegalArgumentException If there's no such lane
+     */
+    public void send(String message, int lane, String key, long timeToLiveMillis) {
+        checkSendable();
+        enqueue(lane, message, key, timeToLiveMillis, null);
+    }
+
+    /**
+     * The same as {@link #sendAsync(String, int, long)} except the message can be given a key and a time-to-live, see {@link #send(String, int, String, long)}.
+     * The future fails with an {@link IllegalStateException} if the message is replaced or expires.
+     * @throws IllegalArgumentException If there's no such lane
+     */
+    public CompletableFuture<Void> sendAsync(String message, int lane, String key, long timeToLiveMillis, long timeoutMillis) {
+        checkSendable();
+        var future = new CompletableFuture<Void>();
+        if(timeoutMillis > 0) {
+            future.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        enqueue(lane, message, key, timeToLiveMillis, future);
+        if(stopped) {
+            future.completeExceptionally(new IllegalStateException(getClass().getName() + " stopped before the message was sent"));
+        }
+        return future;
+    }
+
+    //Replaces the unsent message with the same key if there is one in the same lane, otherwise adds the message to the lane
+    private void enqueue(int lane, String message, String key, long timeToLiveMillis, CompletableFuture<Void> future) {
+        var laneBuffer = lane(lane);
+        long now = System.nanoTime();
+        long expiresAt = timeToLiveMillis > 0 ? now + TimeUnit.MILLISECONDS.toNanos(timeToLiveMillis) : KeyedMessage.NEVER_EXPIRES;
+        var keyedMessage = new KeyedMessage(key, lane, message, expiresAt, future);
+        if(key != null) {
+            KeyedMessage existing;
+            while((existing = keyedMessages.putIfAbsent(key, keyedMessage)) != null) {
+                if(existing.getLane() == lane) {
+                    if(existing.replace(message, expiresAt, future)) {
+                        numMessagesReplaced.increment();
+                        return;
+                    }
+                }
+                //Entries can't be moved between lanes, so the one waiting in the other lane is given up
+                else if(existing.supersede()) {
+                    numMessagesReplaced.increment();
+                }
+                //It's been taken by the sending thread or given up, so this message needs an entry of its own
+                keyedMessages.remove(key, existing);
+            }
+        }
+        //The key is only there so the entry isn't empty, the message is taken from the attachment
+        var element = key != null ? key : message;
+        if(!laneBuffer.offer(element, now, keyedMessage)) {
+            onBufferFull(laneBuffer, element, keyedMessage);
+        }
+    }
+
+    private void checkSendable() {
         if(shutdown) {
             throw new IllegalArgumentException(this.getClass().getName() + " has been shut-down");
         }
         if(!sendingRoutineThread.isAlive()) {
             throw new IllegalArgumentException("Start the " + this.getClass().getName() + " first!");
         }
-        try {
-            buffer.put(message);
+    }
+
+    private StripedRingBuffer<String> lane(int lane) {
+        if(lane < 0 || lane >= lanes.length) {
+            throw new IllegalArgumentException("Invalid lane: " + lane + ".  There are " + lanes.length + " lanes.");
         }
-        catch(InterruptedException e) {
-            //¬log properly!
-            System.out.println("Thread putting message in queue interrupted.  Message was: " + message);
+        return lanes[lane];
+    }
+
+    /**
+     * @return The metrics recorded on the messages sent and on the connection
+     */
+    public SendMetrics getSendMetrics() {
+        return sendMetrics;
+    }
+
+    /**
+     * @return How many messages have been dropped because the buffer was full
+     */
+    public long getNumMessagesDropped() {
+        return numMessagesDropped.sum();
+    }
+
+    /**
+     * @return How many messages have been rejected with an exception because the buffer was full
+     */
+    public long getNumMessagesRejected() {
+        return numMessagesRejected.sum();
+    }
+
+    /**
+     * @return How many messages sent with a key have been replaced by a newer one with the same key before they were sent
+     */
+    public long getNumMessagesReplaced() {
+        return numMessagesReplaced.sum();
+    }
+
+    /**
+     * @return How many messages sent with a time-to-live have been thrown away because it ran out before they were sent
+     */
+    public long getNumMessagesExpired() {
+        return numMessagesExpired.sum();
+    }
+
+    /**
+     * @return The sequence number of the last message acknowledged by the receiver when using acknowledged delivery.  Messages are
+     * numbered from 1 in the order they are sent, so this is also the number of messages acknowledged.
+     */
+    public long getLastAcknowledgedSequence() {
+        return lastAcknowledgedSequence;
+    }
+
+    //Applies the queue full policy to a message that didn't fit in the lane's buffer.  If the message has a future then that's failed rather than throwing.
+    //The completion is the message's future or KeyedMessage, if it has either.
+    private void onBufferFull(StripedRingBuffer<String> buffer, String message, Object completion) {
+        switch(queueFullPolicy) {
+            case BLOCK -> waitForRoom(buffer, message, completion, Long.MAX_VALUE);
+            case BLOCK_WITH_TIMEOUT -> waitForRoom(buffer, message, completion, queueFullTimeoutNanos);
+            case DROP_NEWEST -> dropped(completion);
+            case DROP_OLDEST -> {
+                var droppedCompletion = new Object[1];
+                do {
+                    if(buffer.poll(droppedCompletion) != null) {
+                        complete(droppedCompletion[0], droppedException());
+                        numMessagesDropped.increment();
+                    }
+                } while(!buffer.offer(message, System.nanoTime(), completion));
+            }
+            case FAIL_FAST -> {
+                numMessagesRejected.increment();
+                var rejected = new IllegalStateException("The buffer is full so the message was rejected");
+                complete(completion, rejected);
+                if(futureOf(completion) == null) {
+                    throw rejected;
+                }
+            }
+        }
+    }
+
+    //Keeps trying to add the message until there's room, backing off so a full buffer doesn't use up a core.  The message is dropped if the timeout passes or this instance is shut-down.
+    private void waitForRoom(StripedRingBuffer<String> buffer, String message, Object completion, long timeoutNanos) {
+        long startedAt = System.nanoTime();
+        int idleCount = 0;
+        long enqueuedAt = System.nanoTime();
+        while(!buffer.offer(message, enqueuedAt, completion)) {
+            if(shutdown || System.nanoTime() - startedAt >= timeoutNanos) {
+                dropped(completion);
+                return;
+            }
+            WaitStrategy.PARKING.idle(idleCount++);
+        }
+    }
+
+    private void dropped(Object completion) {
+        numMessagesDropped.increment();
+        complete(completion, droppedException());
+    }
+
+    //The buffer holds the futures as plain objects
+    @SuppressWarnings("unchecked")
+    private static CompletableFuture<Void> asFuture(Object completion) {
+        return (CompletableFuture<Void>)completion;
+    }
+
+    private static CompletableFuture<Void> futureOf(Object completion) {
+        return completion instanceof KeyedMessage keyedMessage ? keyedMessage.getFuture() : asFuture(completion);
+    }
+
+    private static IllegalStateException droppedException() {
+        return new IllegalStateException("The buffer is full so the message was dropped");
+    }
+
+    //Completes the future that a message was sent with, if it was sent with sendAsync, failing it if a reason is given.  A message
+    //sent with a key or time-to-live that hasn't been taken can only be failed, and can no longer be replaced.
+    private void complete(Object completion, Throwable failure) {
+        if(completion instanceof KeyedMessage keyedMessage) {
+            keyedMessage.drop(failure);
+            forget(keyedMessage);
+        }
+        else if(completion != null) {
+            var future = asFuture(completion);
+            if(failure == null) {
+                future.complete(null);
+            }
+            else {
+                future.completeExceptionally(failure);
+            }
         }
     }
 
@@ -96,37 +583,406 @@ public class BufferedMessageSender implements AutoCloseable, Runnable {
     public void run() {
 
         var connected = tryConnect();
+        var batch = new ArrayList<String>(maxBatchMessages);
+        int idleCount = 0;
 
         while(connected && !shutdown) {
             if(socketConnected()) {
                 try {
-                    var msg = buffer.peek();
-                    if (msg != null) {
-                        hoogasMessageWriter.doSend(msg);
-                        buffer.remove();
+                    var roomInReplayWindow = acknowledgedDelivery ? replayWindowSize - replayWindow.size() : maxBatchMessages;
+                    //Anything left in the batch didn't make it out before the connection was lost, so it goes first
+                    if(batch.isEmpty() && roomInReplayWindow > 0) {
+                        takeBatch(batch, Math.min(maxBatchMessages, roomInReplayWindow));
+                    }
+                    if(!batch.isEmpty()) {
+                        sendBatch(batch);
+                        idleCount = 0;
+                    }
+                    else if(roomInReplayWindow <= 0) {
+                        //Nothing more can be sent until some acknowledgements come in
+                        WaitStrategy.PARKING.idle(idleCount++);
+                    }
+                    else if(waitStrategy != WaitStrategy.BLOCKING) {
+                        waitStrategy.idle(idleCount++);
+                    }
+                    if(acknowledgedDelivery || heartbeatIntervalNanos > 0) {
+                        processAcknowledgements();
+                    }
+                    if(heartbeatIntervalNanos > 0) {
+                        sendHeartbeatIfNeeded();
                     }
                 }
                 catch(IOException e) {
+                        closeSocket();
                         connectionListener.onConnectionLost(connectionId);
                         connected = tryConnect();
                     }
             }
             else {
+                closeSocket();
                 connectionListener.onConnectionLost(connectionId);
                 connected = tryConnect();
             }
         }
-        if(socket != null) {
+        closeSocket();
+        failPendingCompletions(batch);
+    }
+
+    //Fails the future of every message sent with sendAsync that hasn't gone, as nothing more will be sent
+    private void failPendingCompletions(List<String> batch) {
+        stopped = true;
+        var failure = new IllegalStateException(getClass().getName() + " stopped before the message was sent");
+        for(int i = 0; i < batch.size(); i++) {
+            complete(batchCompletions[i], failure);
+        }
+        for(int i = 0; i < unspilled.size() && unspilledCompletions != null; i++) {
+            complete(unspilledCompletions[i], failure);
+        }
+        for(PendingCompletion pendingCompletion : spilledCompletions) {
+            pendingCompletion.future().completeExceptionally(failure);
+        }
+        for(PendingCompletion pendingCompletion : replayCompletions) {
+            pendingCompletion.future().completeExceptionally(failure);
+        }
+        var remaining = new ArrayList<String>();
+        var remainingCompletions = new Object[maxBatchMessages];
+        for(StripedRingBuffer<String> lane : lanes) {
+            int numTaken;
+            while((numTaken = lane.drainTo(remaining, null, remainingCompletions, maxBatchMessages)) > 0) {
+                for(int i = 0; i < numTaken; i++) {
+                    complete(remainingCompletions[i], failure);
+                }
+                remaining.clear();
+            }
+        }
+    }
+
+    private void closeSocket() {
+        watchedConnection = null;
+        if(socketChannel != null) {
             try {
-                socket.close();
+                socketChannel.close();
             } catch(IOException e) {
                 //¬log the exception
             }
         }
     }
 
+    //Moves the messages waiting in the lanes into the batch.  With the blocking wait strategy this waits for a while for a message if there are none.
+    private void takeBatch(List<String> batch, int maxMessages) {
+        sendMetrics.recordQueueDepth(queueDepth());
+        if(spillJournal != null) {
+            spillIfNeeded();
+        }
+        if(takeFromLanes(batch, maxMessages) == 0 && waitStrategy == WaitStrategy.BLOCKING) {
+            if(lanes.length == 1) {
+                buffer.awaitNotEmpty(blockingWaitNanos);
+            }
+            else {
+                StripedRingBuffer.awaitNotEmpty(lanes, blockingWaitNanos);
+            }
+            takeFromLanes(batch, maxMessages);
+        }
+        resolveKeyedMessages(batch, batchTimestamps, batchCompletions);
+    }
+
+    //Swaps each message sent with a key or time-to-live for the latest message, and its future, taking it so it can no longer be replaced.
+    //Any that have expired are removed, along with their timestamps and completions.
+    private void resolveKeyedMessages(List<String> messages, long[] timestamps, Object[] completions) {
+        long now = System.nanoTime();
+        int numKept = 0;
+        int numMessages = messages.size();
+        for(int i = 0; i < numMessages; i++) {
+            var message = messages.get(i);
+            var completion = completions[i];
+            if(completion instanceof KeyedMessage keyedMessage) {
+                message = keyedMessage.take(now);
+                completion = keyedMessage.getFuture();
+                forget(keyedMessage);
+                if(message == null) {
+                    //A superseded message has already been counted as replaced
+                    if(!keyedMessage.isSuperseded()) {
+                        numMessagesExpired.increment();
+                    }
+                    continue;
+                }
+            }
+            messages.set(numKept, message);
+            completions[numKept] = completion;
+            if(timestamps != null) {
+                timestamps[numKept] = timestamps[i];
+            }
+            numKept++;
+        }
+        messages.subList(numKept, numMessages).clear();
+        Arrays.fill(completions, numKept, numMessages, null);
+    }
+
+    //Stops newer messages with the same key trying to replace one that's been taken
+    private void forget(KeyedMessage keyedMessage) {
+        if(keyedMessage.getKey() != null) {
+            keyedMessages.remove(keyedMessage.getKey(), keyedMessage);
+        }
+    }
+
+    //Takes from the lanes in rounds, highest first, each lane taking up to its quota in each round so the lower lanes always get some
+    //of the batch.  If nothing above the lowest lane is waiting then it can take the rest of the batch in one go.
+    private int takeFromLanes(List<String> batch, int maxMessages) {
+        int numTaken = 0;
+        int numTakenInRound;
+        do {
+            numTakenInRound = 0;
+            for(int i = 0; i < lanes.length && numTaken < maxMessages; i++) {
+                int numTakenFromLane;
+                if(i == lanes.length - 1) {
+                    numTakenFromLane = takeFromLowestLane(batch, numTakenInRound == 0 ? maxMessages - numTaken : Math.min(laneQuotas[i], maxMessages - numTaken));
+                }
+                else {
+                    numTakenFromLane = lanes[i].drainTo(batch, batchTimestamps, batchCompletions, batch.size(), Math.min(laneQuotas[i], maxMessages - numTaken));
+                }
+                numTakenInRound += numTakenFromLane;
+                numTaken += numTakenFromLane;
+            }
+        } while(numTakenInRound > 0 && numTaken < maxMessages);
+        return numTaken;
+    }
+
+    //Anything that's been spilled is older than what's in the buffer so that goes first
+    private int takeFromLowestLane(List<String> batch, int maxMessages) {
+        int offset = batch.size();
+        if(spillJournal != null) {
+            //How long these have waited isn't known, as they may have been written to disk by an earlier run
+            int numTaken = spillJournal.drainTo(batch, maxMessages);
+            if(numTaken > 0) {
+                Arrays.fill(batchTimestamps, offset, offset + numTaken, NOT_TIMESTAMPED);
+                Arrays.fill(batchCompletions, offset, offset + numTaken, null);
+                numTakenFromJournal += numTaken;
+                while(!spilledCompletions.isEmpty() && spilledCompletions.peekFirst().position() < numTakenFromJournal) {
+                    var pendingCompletion = spilledCompletions.removeFirst();
+                    batchCompletions[offset + (int)(pendingCompletion.position() - (numTakenFromJournal - numTaken))] = pendingCompletion.future();
+                }
+                return numTaken;
+            }
+            if(!unspilled.isEmpty()) {
+                var toTake = unspilled.subList(0, Math.min(maxMessages, unspilled.size()));
+                int numToTake = toTake.size();
+                batch.addAll(toTake);
+                Arrays.fill(batchTimestamps, offset, offset + numToTake, NOT_TIMESTAMPED);
+                System.arraycopy(unspilledCompletions, 0, batchCompletions, offset, numToTake);
+                toTake.clear();
+                removeUnspilledCompletions(numToTake);
+                return numToTake;
+            }
+        }
+        return buffer.drainTo(batch, batchTimestamps, batchCompletions, offset, maxMessages);
+    }
+
+    private int queueDepth() {
+        int queueDepth = 0;
+        for(StripedRingBuffer<String> lane : lanes) {
+            queueDepth += lane.size();
+        }
+        return queueDepth;
+    }
+
+    //Moves everything in the buffer to the spill journal once it's half full
+    private void spillIfNeeded() {
+        if(unspilled.isEmpty() && buffer.size() >= spillThreshold) {
+            buffer.drainTo(unspilled, null, unspilledCompletions, buffer.capacity());
+            //The journal only holds the messages themselves
+            resolveKeyedMessages(unspilled, null, unspilledCompletions);
+        }
+        int numSpilled = 0;
+        try {
+            for(; numSpilled < unspilled.size(); numSpilled++) {
+                long position = numTakenFromJournal + spillJournal.size();
+                spillJournal.append(unspilled.get(numSpilled));
+                if(unspilledCompletions[numSpilled] != null) {
+                    spilledCompletions.addLast(new PendingCompletion(position, asFuture(unspilledCompletions[numSpilled])));
+                }
+            }
+        }
+        catch(IOException e) {
+            //¬log properly!
+            System.out.println("Could not spill messages to disk for connection " + connectionId + ".  Will try again.  " + e);
+        }
+        finally {
+            unspilled.subList(0, numSpilled).clear();
+            removeUnspilledCompletions(numSpilled);
+        }
+    }
+
+    //Removes the futures for the given number of messages from the start of the unspilled ones, once they've been taken from the list
+    private void removeUnspilledCompletions(int numMessages) {
+        System.arraycopy(unspilledCompletions, numMessages, unspilledCompletions, 0, unspilled.size());
+        Arrays.fill(unspilledCompletions, unspilled.size(), unspilled.size() + numMessages, null);
+    }
+
+    //Waits before the next connection attempt.  When spilling, the buffer is kept from filling up in the meantime.
+    private void waitBeforeRetry(long millis) {
+        if(spillJournal == null) {
+            try {Thread.sleep(millis);} catch(InterruptedException e) {}
+            return;
+        }
+        long waitUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        while(!shutdown && System.nanoTime() - waitUntil < 0) {
+            spillIfNeeded();
+            LockSupport.parkNanos(SPILL_CHECK_NANOS);
+        }
+    }
+
+    //Writes the messages to the socket in as few writes as the max batch bytes allows, removing them from the batch as they go out
+    private void sendBatch(List<String> batch) throws IOException {
+        int numAppended = 0;
+        try {
+            while(numAppended < batch.size()) {
+                var message = batch.get(numAppended++);
+                if(acknowledgedDelivery) {
+                    var sequence = firstUnacknowledgedSequence + replayWindow.size();
+                    hoogasMessageWriter.appendSequenced(sequence, message);
+                    replayWindow.addLast(message);
+                    if(batchCompletions[numAppended - 1] != null) {
+                        replayCompletions.addLast(new PendingCompletion(sequence, asFuture(batchCompletions[numAppended - 1])));
+                    }
+                }
+                else {
+                    hoogasMessageWriter.append(message);
+                }
+                if(numAppended == batch.size() || hoogasMessageWriter.getNumPendingBytes() >= maxBatchBytes) {
+                    long writeStartedAt = System.nanoTime();
+                    var numBytes = hoogasMessageWriter.flush();
+                    long writtenAt = System.nanoTime();
+                    firstUnwrittenSequence = firstUnacknowledgedSequence + replayWindow.size();
+                    sendMetrics.recordBatchSent(numAppended, numBytes, writtenAt - writeStartedAt);
+                    for(int i = 0; i < numAppended; i++) {
+                        if(batchTimestamps[i] != NOT_TIMESTAMPED) {
+                            sendMetrics.recordQueueTime(writtenAt - batchTimestamps[i]);
+                        }
+                        //With acknowledged delivery these are completed once they've been acknowledged instead
+                        if(!acknowledgedDelivery) {
+                            complete(batchCompletions[i], null);
+                        }
+                    }
+                    removeFromBatch(batch, numAppended);
+                    if(sendMetricsListener != null) {
+                        sendMetricsListener.onBatchSent(connectionId, numAppended, numBytes);
+                    }
+                    numAppended = 0;
+                }
+            }
+        }
+        catch(IOException e) {
+            //These are already in the replay window so will be re-sent from there
+            if(acknowledgedDelivery) {
+                removeFromBatch(batch, numAppended);
+            }
+            throw e;
+        }
+    }
+
+    //Removes the given number of messages from the start of the batch, along with their timestamps and futures
+    private void removeFromBatch(List<String> batch, int numMessages) {
+        batch.subList(0, numMessages).clear();
+        System.arraycopy(batchTimestamps, numMessages, batchTimestamps, 0, batch.size());
+        System.arraycopy(batchCompletions, numMessages, batchCompletions, 0, batch.size());
+        Arrays.fill(batchCompletions, batch.size(), batch.size() + numMessages, null);
+    }
+
+    //Picks up any acknowledgements that have come in and removes the messages they cover from the replay window
+    private void processAcknowledgements() throws IOException {
+        if(acknowledgementReader != null) {
+            acknowledgementReader.readMessages(ignoredMessages, false);
+            ignoredMessages.clear();
+            acknowledged(acknowledgementReader.getLastAcknowledgementReceived());
+        }
+        var acknowledgedSequence = lastAcknowledgedSequence;
+        while(firstUnacknowledgedSequence <= acknowledgedSequence && !replayWindow.isEmpty()) {
+            replayWindow.removeFirst();
+            firstUnacknowledgedSequence++;
+        }
+        while(!replayCompletions.isEmpty() && replayCompletions.peekFirst().position() <= acknowledgedSequence) {
+            replayCompletions.removeFirst().future().complete(null);
+        }
+    }
+
+    //Sends a heartbeat if nothing has been received for a heartbeat interval, and there hasn't been one sent in that time, so the receiver replies
+    private void sendHeartbeatIfNeeded() throws IOException {
+        long now = System.nanoTime();
+        if(now - inboundReader().getLastReadNanos() >= heartbeatIntervalNanos && now - lastHeartbeatSentAt >= heartbeatIntervalNanos) {
+            hoogasMessageWriter.appendHeartbeat();
+            hoogasMessageWriter.flush();
+            lastHeartbeatSentAt = now;
+        }
+    }
+
+    //Run by the watchdog thread.  Closing the socket makes the sending thread's next write fail, or a write it's stuck in fail, so it's
+    //the sending thread that reports the connection as lost and reconnects.
+    private void watchHeartbeats() {
+        while(!shutdown) {
+            LockSupport.parkNanos(blockingWaitNanos);
+            var watched = watchedConnection;
+            if(watched != null && System.nanoTime() - watched.reader().getLastReadNanos() >= heartbeatTimeoutNanos) {
+                //¬log properly!
+                System.out.println("Nothing received on connection " + connectionId + " for " + TimeUnit.NANOSECONDS.toMillis(heartbeatTimeoutNanos) + "ms so closing it");
+                watchedConnection = null;
+                try {
+                    watched.socketChannel().close();
+                }
+                catch(IOException e) {
+                    //¬log the exception
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The reader that everything sent by the other side is read with, so it shows whether the other side is still there
+     */
+    HoogasMessageReader inboundReader() {
+        return acknowledgementReader;
+    }
+
+    /**
+     * Records that the receiver has acknowledged every message up to and including the given sequence number.  Called by whichever
+     * thread reads from the connection.
+     */
+    void acknowledged(long sequence) {
+        if(sequence > lastAcknowledgedSequence) {
+            lastAcknowledgedSequence = sequence;
+        }
+    }
+
+    /**
+     * @return The reader that the sending thread should use to pick up acknowledgements, or null if they're read elsewhere
+     */
+    HoogasMessageReader createAcknowledgementReader() throws IOException {
+        return new HoogasMessageReader(Channels.newInputStream(socketChannel), ACKNOWLEDGEMENT_READ_CHUNK_SIZE);
+    }
+
+    //Starts an acknowledged session on the new connection and re-sends everything that hasn't been acknowledged, ahead of any new messages.
+    //The receiver drops any of them it has already delivered.
+    private void resendReplayWindow() throws IOException {
+        hoogasMessageWriter.appendHello(sessionId);
+        var sequence = firstUnacknowledgedSequence;
+        for(String message : replayWindow) {
+            //Only the ones whose write failed last time are captured
+            if(sequence < firstUnwrittenSequence) {
+                hoogasMessageWriter.appendResent(sequence++, message);
+            }
+            else {
+                hoogasMessageWriter.appendSequenced(sequence++, message);
+            }
+            if(hoogasMessageWriter.getNumPendingBytes() >= maxBatchBytes) {
+                hoogasMessageWriter.flush();
+                firstUnwrittenSequence = Math.max(firstUnwrittenSequence, sequence);
+            }
+        }
+        hoogasMessageWriter.flush();
+        firstUnwrittenSequence = Math.max(firstUnwrittenSequence, sequence);
+    }
+
     boolean socketConnected() {
-        return socket.isConnected();
+        return socketChannel.isOpen() && socketChannel.isConnected();
     }
 
     //Attempts to get the connection
@@ -134,18 +990,38 @@ public class BufferedMessageSender implements AutoCloseable, Runnable {
 
         boolean timedout = false;
         long startedAt = System.currentTimeMillis();
-        while (!shutdown && !timedout && (socket == null || !socketConnected())) {
+        int numAttempts = 0;
+        long reconnectDelayMillis = initialReconnectDelayMillis;
+        while (!shutdown && !timedout && (socketChannel == null || !socketConnected())) {
+            numAttempts++;
             try {
                 createConnectionObjects();
             } catch (Exception e) {}
-            if(socket == null || !socketConnected()) {
-                try {Thread.sleep(200);} catch(InterruptedException e) {}
+            if(socketChannel == null || !socketConnected()) {
+                var waitMillis = withJitter(reconnectDelayMillis);
+                sendMetrics.recordConnectAttemptFailed();
+                if(sendMetricsListener != null) {
+                    sendMetricsListener.onConnectAttemptFailed(connectionId, numAttempts, waitMillis);
+                }
+                waitBeforeRetry(waitMillis);
+                reconnectDelayMillis = Math.min(maxReconnectDelayMillis, (long)(reconnectDelayMillis * reconnectBackoffMultiplier));
                 timedout = (System.currentTimeMillis() - startedAt) >= timeout;
             }
         }
         if(!shutdown) {
             if(!timedout) {
+                if(heartbeatIntervalNanos > 0) {
+                    watchedConnection = new WatchedConnection(socketChannel, inboundReader());
+                }
+                //Counted first so the metrics are up to date by the time the listener hears about it
+                if(connectedBefore) {
+                    sendMetrics.recordReconnect();
+                }
+                connectedBefore = true;
                 connectionListener.onConnectionEstablished(connectionId);
+                if(sendMetricsListener != null) {
+                    sendMetricsListener.onConnected(connectionId, numAttempts, System.currentTimeMillis() - startedAt);
+                }
             }
             else {
                 connectionListener.onConnectionTimedOut(connectionId);
@@ -155,9 +1031,79 @@ public class BufferedMessageSender implements AutoCloseable, Runnable {
         return false;
     }
 
+    //Takes a random amount of up to the jitter fraction off the delay
+    private long withJitter(long delayMillis) {
+        return delayMillis - (long)(delayMillis * reconnectJitter * ThreadLocalRandom.current().nextDouble());
+    }
+
+    //Connects without blocking the thread indefinitely, giving up after the connect timeout.  The socket is put back into blocking mode for use.
+    private SocketChannel connectSocket() throws IOException {
+        var socketChannel = Transport.openChannel(address);
+        try {
+            socketChannel.configureBlocking(false);
+            if(!socketChannel.connect(Transport.resolve(address))) {
+                if(connectSelector == null) {
+                    connectSelector = Selector.open();
+                }
+                var key = socketChannel.register(connectSelector, SelectionKey.OP_CONNECT);
+                try {
+                    long giveUpAt = System.nanoTime() + connectTimeoutNanos;
+                    while(!socketChannel.finishConnect()) {
+                        long remainingNanos = giveUpAt - System.nanoTime();
+                        if(remainingNanos <= 0 || shutdown) {
+                            throw new SocketTimeoutException("Timed out connecting to " + address);
+                        }
+                        connectSelector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(remainingNanos)));
+                        connectSelector.selectedKeys().clear();
+                    }
+                }
+                finally {
+                    //The channel can't go back into blocking mode until the selector has dropped it
+                    key.cancel();
+                    connectSelector.selectNow();
+                }
+            }
+            socketChannel.configureBlocking(true);
+            return socketChannel;
+        }
+        catch(IOException e) {
+            socketChannel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return The channel to the receiver, or null if it isn't connected.  For use by subclasses and tests in this package, so the type
+     * of the channel isn't part of the public API.
+     */
+    SocketChannel getSocketChannel() {
+        return socketChannel;
+    }
+
     protected void createConnectionObjects() throws IOException {
-        socket = new Socket(host, port);
-        hoogasMessageWriter = new HoogasMessageWriter(new OutputStreamWriter(socket.getOutputStream()));
+        socketChannel = connectSocket();
+        try {
+            hoogasMessageWriter = new HoogasMessageWriter(Channels.newOutputStream(socketChannel), framingMode);
+            if(captureLog != null) {
+                hoogasMessageWriter.captureTo(captureLog, connectionId);
+            }
+            if(acknowledgedDelivery || heartbeatIntervalNanos > 0) {
+                acknowledgementReader = createAcknowledgementReader();
+            }
+            if(acknowledgedDelivery) {
+                resendReplayWindow();
+            }
+            if(heartbeatIntervalNanos > 0) {
+                //Sent straight away so the receiver starts replying with frames before it sends anything else back
+                hoogasMessageWriter.appendHeartbeat();
+                hoogasMessageWriter.flush();
+                lastHeartbeatSentAt = System.nanoTime();
+            }
+        }
+        catch(IOException e) {
+            closeSocket();
+            throw e;
+        }
     }
 
     /**
@@ -166,5 +1112,21 @@ public class BufferedMessageSender implements AutoCloseable, Runnable {
     public void close() throws Exception {
         shutdown = true;
         sendingRoutineThread.join(2000);
+        if(spillJournal != null) {
+            spillJournal.close();
+        }
+        if(connectSelector != null) {
+            connectSelector.close();
+        }
+        if(captureLog != null) {
+            captureLog.close();
+        }
+    }
+
+    //The future of a message sent with sendAsync that's waiting for the message to reach the given position, in the spill journal or in the sequence of acknowledged messages
+    private record PendingCompletion(long position, CompletableFuture<Void> future) {
+    }
+
+    private record WatchedConnection(SocketChannel socketChannel, HoogasMessageReader reader) {
     }
 }
@@ -0,0 +1,388 @@
+package hoogas_client.messaging;
+
+import java.nio.file.Path;
+
+/**
+ * The optional settings for a {@link BufferedMessageSender}.  Each setting has a default, so only the ones that need to be
+ * changed have to be set e.g.
+ * <pre>new BufferedMessageSenderOptions().withFramingMode(FramingMode.LENGTH_PREFIXED).withMaxBatchMessages(100)</pre>
+ * The settings are read when the sender is created, so changing an instance afterwards has no effect on senders already created with it.
+ * @author Joshua Newman, February 2025
+ */
+public class BufferedMessageSenderOptions {
+
+
+    static final int DEFAULT_MAX_BATCH_MESSAGES = 1000;
+    static final int DEFAULT_MAX_BATCH_BYTES = 64 * 1024;
+    static final int DEFAULT_BUFFER_CAPACITY = 1000;
+    static final long DEFAULT_QUEUE_FULL_TIMEOUT_MILLIS = 100;
+    static final int DEFAULT_SPILL_SEGMENT_BYTES = 8 * 1024 * 1024;
+    static final int DEFAULT_REPLAY_WINDOW_SIZE = 10_000;
+    static final long DEFAULT_CONNECT_TIMEOUT_MILLIS = 1000;
+    static final long DEFAULT_INITIAL_RECONNECT_DELAY_MILLIS = 100;
+    static final long DEFAULT_MAX_RECONNECT_DELAY_MILLIS = 1000;
+    static final double DEFAULT_RECONNECT_BACKOFF_MULTIPLIER = 2;
+    static final double DEFAULT_RECONNECT_JITTER = 0.5;
+    static final int DEFAULT_FAIRNESS_RATIO = 10;
+
+    private FramingMode framingMode = FramingMode.SEPARATOR;
+    private int maxBatchMessages = DEFAULT_MAX_BATCH_MESSAGES;
+    private int maxBatchBytes = DEFAULT_MAX_BATCH_BYTES;
+    private SendMetricsListener sendMetricsListener;
+    private WaitStrategy waitStrategy = WaitStrategy.BLOCKING;
+    private int bufferCapacity = DEFAULT_BUFFER_CAPACITY;
+    private int producerStripes = 1;
+    private int numPriorityLanes = 1;
+    private int fairnessRatio = DEFAULT_FAIRNESS_RATIO;
+    private QueueFullPolicy queueFullPolicy = QueueFullPolicy.BLOCK;
+    private long queueFullTimeoutMillis = DEFAULT_QUEUE_FULL_TIMEOUT_MILLIS;
+    private Path spillDirectory;
+    private int spillSegmentBytes = DEFAULT_SPILL_SEGMENT_BYTES;
+    private Path captureDirectory;
+    private boolean acknowledgedDelivery;
+    private int replayWindowSize = DEFAULT_REPLAY_WINDOW_SIZE;
+    private long connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+    private long initialReconnectDelayMillis = DEFAULT_INITIAL_RECONNECT_DELAY_MILLIS;
+    private long maxReconnectDelayMillis = DEFAULT_MAX_RECONNECT_DELAY_MILLIS;
+    private double reconnectBackoffMultiplier = DEFAULT_RECONNECT_BACKOFF_MULTIPLIER;
+    private double reconnectJitter = DEFAULT_RECONNECT_JITTER;
+    private long heartbeatIntervalMillis;
+    private int maxMissedHeartbeats;
+
+
+    /**
+     * @param framingMode How the messages are marked out from each other on the wire.  Default is {@link FramingMode#SEPARATOR}.
+     */
+    public BufferedMessageSenderOptions withFramingMode(FramingMode framingMode) {
+        this.framingMode = framingMode;
+        return this;
+    }
+
+    /**
+     * @param maxBatchMessages The most messages that are taken off the buffer to be sent in one go.  Default is {@link #DEFAULT_MAX_BATCH_MESSAGES}.
+     */
+    public BufferedMessageSenderOptions withMaxBatchMessages(int maxBatchMessages) {
+        if(maxBatchMessages < 1) {
+            throw new IllegalArgumentException("Max batch messages must be at least 1 but was " + maxBatchMessages);
+        }
+        this.maxBatchMessages = maxBatchMessages;
+        return this;
+    }
+
+    /**
+     * @param maxBatchBytes Once a batch of messages being written to the socket reaches this many bytes it is written out, and
+     *                      the rest of the batch goes in the next write.  Default is {@link #DEFAULT_MAX_BATCH_BYTES}.
+     */
+    public BufferedMessageSenderOptions withMaxBatchBytes(int maxBatchBytes) {
+        if(maxBatchBytes < 1) {
+            throw new IllegalArgumentException("Max batch bytes must be at least 1 but was " + maxBatchBytes);
+        }
+        this.maxBatchBytes = maxBatchBytes;
+        return this;
+    }
+
+    /**
+     * @param sendMetricsListener Receives metrics on the messages being sent.  Default is none.
+     */
+    public BufferedMessageSenderOptions withSendMetricsListener(SendMetricsListener sendMetricsListener) {
+        this.sendMetricsListener = sendMetricsListener;
+        return this;
+    }
+
+    /**
+     * @param waitStrategy How the sending thread waits for messages when there's nothing in the buffer.  Default is {@link WaitStrategy#BLOCKING}.
+     */
+    public BufferedMessageSenderOptions withWaitStrategy(WaitStrategy waitStrategy) {
+        this.waitStrategy = waitStrategy;
+        return this;
+    }
+
+    /**
+     * @param bufferCapacity The most messages that can be waiting to be sent.  This is rounded up to the next power of 2.
+     *                       Default is {@link #DEFAULT_BUFFER_CAPACITY}.
+     */
+    public BufferedMessageSenderOptions withBufferCapacity(int bufferCapacity) {
+        if(bufferCapacity < 1) {
+            throw new IllegalArgumentException("Buffer capacity must be at least 1 but was " + bufferCapacity);
+        }
+        this.bufferCapacity = bufferCapacity;
+        return this;
+    }
+
+    /**
+     * @param producerStripes How many parts the buffer is split into, see {@link StripedRingBuffer}.  Each thread sending messages
+     *                        always adds them to the same part, so with many threads sending at once they mostly don't compete with
+     *                        each other.  The messages sent by any one thread are always sent in the order that thread sent them,
+     *                        but with more than one part those sent by different threads may be interleaved differently to the order
+     *                        they were sent in.  The buffer capacity is shared between the parts.  This is rounded up to the next
+     *                        power of 2.  Default is 1, which keeps the order across all threads.
+     */
+    public BufferedMessageSenderOptions withProducerStripes(int producerStripes) {
+        if(producerStripes < 1) {
+            throw new IllegalArgumentException("Producer stripes must be at least 1 but was " + producerStripes);
+        }
+        this.producerStripes = producerStripes;
+        return this;
+    }
+
+    /**
+     * Gives the sender several buffers, called lanes, so urgent messages don't have to wait behind a backlog of less urgent ones.
+     * The lane is chosen each time a message is sent, see {@link BufferedMessageSender#send(String, int)}.  Lane 0 has the highest
+     * priority, and messages sent without a lane go in the lowest.  The sending thread takes messages from the lanes in rounds,
+     * highest first, taking up to the fairness ratio times as many messages from each lane as from the one below it in each round, so
+     * a busy lane can't stop the lanes below it being sent.  Each lane has a buffer of the capacity given in the options.  When spilling,
+     * only the lowest lane is spilled to disk.  Messages in different lanes may be sent in a different order to the one they were sent in.
+     * @param numPriorityLanes How many lanes there are.  Default is 1.
+     * @param fairnessRatio How many more messages each lane can send than the one below it in each round.  Default is {@link #DEFAULT_FAIRNESS_RATIO}.
+     */
+    public BufferedMessageSenderOptions withPriorityLanes(int numPriorityLanes, int fairnessRatio) {
+        if(numPriorityLanes < 1 || numPriorityLanes > 16) {
+            throw new IllegalArgumentException("Number of priority lanes must be from 1 to 16 but was " + numPriorityLanes);
+        }
+        if(fairnessRatio < 1) {
+            throw new IllegalArgumentException("Fairness ratio must be at least 1 but was " + fairnessRatio);
+        }
+        this.numPriorityLanes = numPriorityLanes;
+        this.fairnessRatio = fairnessRatio;
+        return this;
+    }
+
+    /**
+     * @param queueFullPolicy What happens to a message that's sent when the buffer is full.  Default is {@link QueueFullPolicy#BLOCK}.
+     */
+    public BufferedMessageSenderOptions withQueueFullPolicy(QueueFullPolicy queueFullPolicy) {
+        this.queueFullPolicy = queueFullPolicy;
+        return this;
+    }
+
+    /**
+     * @param queueFullTimeoutMillis How long a caller waits for room in the buffer before the message is dropped when using
+     *                               {@link QueueFullPolicy#BLOCK_WITH_TIMEOUT}.  Default is {@link #DEFAULT_QUEUE_FULL_TIMEOUT_MILLIS}.
+     */
+    public BufferedMessageSenderOptions withQueueFullTimeoutMillis(long queueFullTimeoutMillis) {
+        if(queueFullTimeoutMillis < 0) {
+            throw new IllegalArgumentException("Queue full timeout can't be negative but was " + queueFullTimeoutMillis);
+        }
+        this.queueFullTimeoutMillis = queueFullTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * @param spillDirectory If set, then once the buffer is half full the sending thread moves the messages in it to memory-mapped
+     *                       files in this directory, and sends them from there once it can, so a long outage neither fills the buffer
+     *                       nor uses up the heap.  The files are deleted once the messages in them have been sent, and any left in the
+     *                       directory for the same connection id when the sender is created are sent first.  Default is none, in which
+     *                       case messages are only held in memory.
+     */
+    public BufferedMessageSenderOptions withSpillDirectory(Path spillDirectory) {
+        this.spillDirectory = spillDirectory;
+        return this;
+    }
+
+    /**
+     * @param spillSegmentBytes The size of each of the files that messages are spilled to.  Default is {@link #DEFAULT_SPILL_SEGMENT_BYTES}.
+     * @see #withSpillDirectory(Path)
+     */
+    public BufferedMessageSenderOptions withSpillSegmentBytes(int spillSegmentBytes) {
+        if(spillSegmentBytes < 1) {
+            throw new IllegalArgumentException("Spill segment bytes must be at least 1 but was " + spillSegmentBytes);
+        }
+        this.spillSegmentBytes = spillSegmentBytes;
+        return this;
+    }
+
+    /**
+     * @param captureDirectory If set, then every message is recorded to memory-mapped files in this directory as it's written to the
+     *                         socket, with the time and the connection id, so it can be used as test data, see {@link CaptureReplayer}.
+     *                         The files are named after the connection id.  Messages are recorded once they've been written, and
+     *                         aren't recorded again if they're re-sent after a reconnect.
+     *                         Default is none.
+     */
+    public BufferedMessageSenderOptions withCaptureDirectory(Path captureDirectory) {
+        this.captureDirectory = captureDirectory;
+        return this;
+    }
+
+    /**
+     * @param acknowledgedDelivery If true then each message is given a sequence number and kept until the receiver acknowledges it.
+     *                             Messages that haven't been acknowledged when the connection is lost are re-sent once it's re-established,
+     *                             and the receiver drops any it has already delivered, so each message is delivered at least once even if
+     *                             the connection dies without the sender noticing straight away.  The receiver sends one acknowledgement
+     *                             for all the messages it delivers in each read, so this costs very little throughput.  Requires
+     *                             {@link FramingMode#LENGTH_PREFIXED}.  With a {@link BufferedMessageSenderReceiver} the acknowledgements
+     *                             are picked up along with the received messages, so those need to be read regularly.  Default is false.
+     */
+    public BufferedMessageSenderOptions withAcknowledgedDelivery(boolean acknowledgedDelivery) {
+        this.acknowledgedDelivery = acknowledgedDelivery;
+        return this;
+    }
+
+    /**
+     * @param replayWindowSize The most messages that can be waiting to be acknowledged when using acknowledged delivery.  Once it's
+     *                         reached no more are sent until some are acknowledged.  Default is {@link #DEFAULT_REPLAY_WINDOW_SIZE}.
+     * @see #withAcknowledgedDelivery(boolean)
+     */
+    public BufferedMessageSenderOptions withReplayWindowSize(int replayWindowSize) {
+        if(replayWindowSize < 1) {
+            throw new IllegalArgumentException("Replay window size must be at least 1 but was " + replayWindowSize);
+        }
+        this.replayWindowSize = replayWindowSize;
+        return this;
+    }
+
+    /**
+     * @param connectTimeoutMillis How long each attempt to connect is given before it's abandoned and the next one is scheduled.
+     *                             Default is {@link #DEFAULT_CONNECT_TIMEOUT_MILLIS}.
+     */
+    public BufferedMessageSenderOptions withConnectTimeoutMillis(long connectTimeoutMillis) {
+        if(connectTimeoutMillis < 1) {
+            throw new IllegalArgumentException("Connect timeout must be at least 1ms but was " + connectTimeoutMillis);
+        }
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * Sets how long the sender waits between failed attempts to connect.  The first attempt is made straight away, the wait after
+     * the first failure is the initial delay, and each wait after that is the previous one times the multiplier, up to the max delay.
+     * Each wait is then reduced by a random amount of up to the jitter fraction of it, so that when a receiver restarts the senders
+     * that were connected to it don't all try to reconnect at the same moment.
+     * Defaults are {@link #DEFAULT_INITIAL_RECONNECT_DELAY_MILLIS}, {@link #DEFAULT_MAX_RECONNECT_DELAY_MILLIS},
+     * {@link #DEFAULT_RECONNECT_BACKOFF_MULTIPLIER} and {@link #DEFAULT_RECONNECT_JITTER}.
+     * @param initialDelayMillis The wait after the first failed attempt
+     * @param maxDelayMillis The longest wait between attempts
+     * @param multiplier What each wait is multiplied by to get the next one.  1 gives a fixed delay.
+     * @param jitter The fraction, from 0 to 1, of each wait that can be randomly taken off it.  0 turns jitter off.
+     */
+    public BufferedMessageSenderOptions withReconnectBackoff(long initialDelayMillis, long maxDelayMillis, double multiplier, double jitter) {
+        if(initialDelayMillis < 1 || maxDelayMillis < initialDelayMillis) {
+            throw new IllegalArgumentException("Invalid reconnect delays.  Initial: " + initialDelayMillis + ", max: " + maxDelayMillis);
+        }
+        if(multiplier < 1) {
+            throw new IllegalArgumentException("Reconnect backoff multiplier must be at least 1 but was " + multiplier);
+        }
+        if(jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("Reconnect jitter must be between 0 and 1 but was " + jitter);
+        }
+        this.initialReconnectDelayMillis = initialDelayMillis;
+        this.maxReconnectDelayMillis = maxDelayMillis;
+        this.reconnectBackoffMultiplier = multiplier;
+        this.reconnectJitter = jitter;
+        return this;
+    }
+
+    /**
+     * Turns on heartbeats so a connection whose other side has gone without closing it, e.g. because its machine died, is noticed
+     * quickly rather than only once writes start failing, which can take minutes.  If nothing has been received from the other side for
+     * the heartbeat interval then a heartbeat is sent, which the receiver replies to, so nothing extra is sent while there's traffic
+     * coming back e.g. acknowledgements.  If nothing at all is received for the interval times the max missed heartbeats then the
+     * connection is closed and reported as lost, and the sender reconnects.  A receiver that stops reading for that long, so the sender
+     * can't write, is treated as lost too.  Requires {@link FramingMode#LENGTH_PREFIXED}, and a receiver from this version or later.
+     * With a {@link BufferedMessageSenderReceiver} that's polled for messages, they need to be read more often than the timeout.
+     * @param intervalMillis How long to wait for something from the other side before sending a heartbeat.  Default is 0, which means no heartbeats.
+     * @param maxMissedHeartbeats How many heartbeat intervals can go by without anything being received before the connection is lost
+     */
+    public BufferedMessageSenderOptions withHeartbeats(long intervalMillis, int maxMissedHeartbeats) {
+        if(intervalMillis < 0) {
+            throw new IllegalArgumentException("Heartbeat interval can't be negative but was " + intervalMillis);
+        }
+        if(intervalMillis > 0 && maxMissedHeartbeats < 1) {
+            throw new IllegalArgumentException("Max missed heartbeats must be at least 1 but was " + maxMissedHeartbeats);
+        }
+        this.heartbeatIntervalMillis = intervalMillis;
+        this.maxMissedHeartbeats = maxMissedHeartbeats;
+        return this;
+    }
+
+    FramingMode getFramingMode() {
+        return framingMode;
+    }
+
+    int getMaxBatchMessages() {
+        return maxBatchMessages;
+    }
+
+    int getMaxBatchBytes() {
+        return maxBatchBytes;
+    }
+
+    SendMetricsListener getSendMetricsListener() {
+        return sendMetricsListener;
+    }
+
+    WaitStrategy getWaitStrategy() {
+        return waitStrategy;
+    }
+
+    int getBufferCapacity() {
+        return bufferCapacity;
+    }
+
+    int getProducerStripes() {
+        return producerStripes;
+    }
+
+    int getNumPriorityLanes() {
+        return numPriorityLanes;
+    }
+
+    int getFairnessRatio() {
+        return fairnessRatio;
+    }
+
+    QueueFullPolicy getQueueFullPolicy() {
+        return queueFullPolicy;
+    }
+
+    long getQueueFullTimeoutMillis() {
+        return queueFullTimeoutMillis;
+    }
+
+    Path getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    int getSpillSegmentBytes() {
+        return spillSegmentBytes;
+    }
+
+    Path getCaptureDirectory() {
+        return captureDirectory;
+    }
+
+    long getHeartbeatIntervalMillis() {
+        return heartbeatIntervalMillis;
+    }
+
+    int getMaxMissedHeartbeats() {
+        return maxMissedHeartbeats;
+    }
+
+    boolean isAcknowledgedDelivery() {
+        return acknowledgedDelivery;
+    }
+
+    int getReplayWindowSize() {
+        return replayWindowSize;
+    }
+
+    long getConnectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+
+    long getInitialReconnectDelayMillis() {
+        return initialReconnectDelayMillis;
+    }
+
+    long getMaxReconnectDelayMillis() {
+        return maxReconnectDelayMillis;
+    }
+
+    double getReconnectBackoffMultiplier() {
+        return reconnectBackoffMultiplier;
+    }
+
+    double getReconnectJitter() {
+        return reconnectJitter;
+    }
+}
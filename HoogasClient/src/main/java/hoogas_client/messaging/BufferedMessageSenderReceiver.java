@@ -1,11 +1,18 @@
 package hoogas_client.messaging;
 
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
  * Extension of {@link BufferedMessageSender} that adds the ability to receive messages from the other side of the connection.
+ * Messages can either be polled for using {@link #getLatestMessagesReceived()} or, if a {@link MessageHandler} is provided
+ * in the constructor, they are pushed to it by a receiving thread as soon as they arrive.  A new receiving thread is started
+ * each time the connection is established.
  * @author Joshua Newman, January 2025
  */
 public class BufferedMessageSenderReceiver extends BufferedMessageSender {
@@ -13,6 +20,10 @@ public class BufferedMessageSenderReceiver extends BufferedMessageSender {
 
     private HoogasMessageReader messageReader;
     private final int inputStreamReadingChunkSize;
+    private final MessageHandler messageHandler;
+    private final WaitStrategy waitStrategy;
+    private final boolean useVirtualThread;
+    private volatile ReceivingRoutine receivingRoutine;
 
     /***
      * @param host see {@link BufferedMessageSender}
@@ -20,23 +31,105 @@ public class BufferedMessageSenderReceiver extends BufferedMessageSender {
      * @param timeout see {@link BufferedMessageSender}
      * @param connectionId see {@link BufferedMessageSender}
      * @param connectionListener see {@link BufferedMessageSender}
-     * @param inputStreamReadingChunkSize see {@link HoogasMessageReader#HoogasMessageReader(InputStreamReader, int)}
+     * @param inputStreamReadingChunkSize see {@link HoogasMessageReader#HoogasMessageReader(InputStream, int)}
      */
     public BufferedMessageSenderReceiver(String host, int port, long timeout, int connectionId, ConnectionListener connectionListener, int inputStreamReadingChunkSize) {
-        super(host, port, timeout, connectionId, connectionListener);
+        this(host, port, timeout, connectionId, connectionListener, new BufferedMessageSenderOptions(), inputStreamReadingChunkSize, null, WaitStrategy.BLOCKING, false);
+    }
+
+    /***
+     * @param host see {@link BufferedMessageSender}
+     * @param port see {@link BufferedMessageSender}
+     * @param timeout see {@link BufferedMessageSender}
+     * @param connectionId see {@link BufferedMessageSender}
+     * @param connectionListener see {@link BufferedMessageSender}
+     * @param options see {@link BufferedMessageSender}.  The framing mode only applies to the messages sent, the framing of the messages received is detected.
+     * @param inputStreamReadingChunkSize see {@link HoogasMessageReader#HoogasMessageReader(InputStream, int)}
+     * @param messageHandler Receives the messages as soon as they arrive.  If this is null then the messages have to be polled for instead.
+     * @param waitStrategy How the receiving thread waits for messages to arrive
+     * @param useVirtualThread Whether to receive on a virtual thread rather than a platform thread
+     */
+    public BufferedMessageSenderReceiver(String host, int port, long timeout, int connectionId, ConnectionListener connectionListener, BufferedMessageSenderOptions options,
+                                         int inputStreamReadingChunkSize, MessageHandler messageHandler, WaitStrategy waitStrategy, boolean useVirtualThread) {
+        this(InetSocketAddress.createUnresolved(host, port), timeout, connectionId, connectionListener, options, inputStreamReadingChunkSize, messageHandler, waitStrategy, useVirtualThread);
+    }
+
+    /***
+     * @param address see {@link BufferedMessageSender}
+     * @param timeout see {@link BufferedMessageSender}
+     * @param connectionId see {@link BufferedMessageSender}
+     * @param connectionListener see {@link BufferedMessageSender}
+     * @param options see {@link BufferedMessageSender}.  The framing mode only applies to the messages sent, the framing of the messages received is detected.
+     * @param inputStreamReadingChunkSize see {@link HoogasMessageReader#HoogasMessageReader(InputStream, int)}
+     * @param messageHandler Receives the messages as soon as they arrive.  If this is null then the messages have to be polled for instead.
+     * @param waitStrategy How the receiving thread waits for messages to arrive
+     * @param useVirtualThread Whether to receive on a virtual thread rather than a platform thread
+     */
+    public BufferedMessageSenderReceiver(SocketAddress address, long timeout, int connectionId, ConnectionListener connectionListener, BufferedMessageSenderOptions options,
+                                         int inputStreamReadingChunkSize, MessageHandler messageHandler, WaitStrategy waitStrategy, boolean useVirtualThread) {
+        super(address, timeout, connectionId, connectionListener, options);
         this.inputStreamReadingChunkSize = inputStreamReadingChunkSize;
+        this.messageHandler = messageHandler;
+        this.waitStrategy = waitStrategy;
+        this.useVirtualThread = useVirtualThread;
     }
 
     @Override
     protected void createConnectionObjects() throws IOException {
         super.createConnectionObjects();
-        messageReader = new HoogasMessageReader(new InputStreamReader(socket.getInputStream()), inputStreamReadingChunkSize);
+        var reader = new HoogasMessageReader(Channels.newInputStream(getSocketChannel()), inputStreamReadingChunkSize);
+        messageReader = reader;
+        if(messageHandler != null) {
+            //The routine for the previous connection, if there was one, will be blocked on or polling a socket that's no longer used
+            if(receivingRoutine != null) {
+                receivingRoutine.stop();
+            }
+            var receivedMessages = new ArrayList<String>();
+            receivingRoutine = new ReceivingRoutine(messageHandler, waitStrategy) {
+                @Override
+                int receive(boolean block) throws IOException {
+                    var numMessages = reader.readMessages(receivedMessages, block);
+                    acknowledged(reader.getLastAcknowledgementReceived());
+                    for(String receivedMessage : receivedMessages) {
+                        dispatch(connectionId, receivedMessage);
+                    }
+                    receivedMessages.clear();
+                    return numMessages;
+                }
+            };
+            receivingRoutine.start("ReceivingRoutine_" + BufferedMessageSenderReceiver.class.getName() + " " + connectionId, useVirtualThread);
+        }
     }
 
     /**
      * @see HoogasMessageReader#getReceivedMessages()
+     * @throws IllegalStateException If a {@link MessageHandler} was provided in the constructor
      */
     public List<String> getLatestMessagesReceived() throws IOException {
-        return messageReader.getReceivedMessages();
+        if(messageHandler != null) {
+            throw new IllegalStateException("Messages are being pushed to a " + MessageHandler.class.getSimpleName());
+        }
+        var receivedMessages = messageReader.getReceivedMessages();
+        acknowledged(messageReader.getLastAcknowledgementReceived());
+        return receivedMessages;
+    }
+
+    //The acknowledgements come in with the received messages, so they're picked up by this class's reader
+    @Override
+    HoogasMessageReader createAcknowledgementReader() {
+        return null;
+    }
+
+    @Override
+    HoogasMessageReader inboundReader() {
+        return messageReader;
+    }
+
+    @Override
+    public void close() throws Exception {
+        super.close();
+        if(receivingRoutine != null) {
+            receivingRoutine.stop();
+        }
     }
 }
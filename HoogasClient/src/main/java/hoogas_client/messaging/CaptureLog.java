@@ -0,0 +1,139 @@
+package hoogas_client.messaging;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+
+/**
+ * Records the messages going through a connection so they can be used as test data, see {@link CaptureReplayer}.  Each message is
+ * appended to memory-mapped segment files along with the time it was captured, in nanoseconds since the epoch, and the id of the
+ * connection it went through.  Appending is a copy into the mapped file, so it doesn't allocate anything or make a system call except
+ * when a segment fills up and the next one has to be created.
+ * Each record is a 4 byte header holding the length of the message plus 1, followed by the 8 byte timestamp, the 4 byte connection id
+ * and then the UTF-8 bytes of the message.  As with the {@link SpillJournal} the header is written last, so a header of 0 always
+ * marks the end of what's been written, even if the application stops part way through a record.
+ * Segment files are named after the capture and numbered in the order they were written.  A new capture with the same name and
+ * directory carries on after the existing segments rather than overwriting them.  Nothing is ever deleted.
+ * This is not thread-safe and should only be appended to by the thread reading from or writing to the connection.
+ * @see CaptureReader
+ * @author Joshua Newman, February 2025
+ */
+class CaptureLog implements AutoCloseable {
+
+
+    static final int DEFAULT_SEGMENT_BYTES = 64 * 1024 * 1024;
+    static final int RECORD_HEADER_LENGTH = 4 + Long.BYTES + Integer.BYTES;
+    static final String SEGMENT_FILE_SUFFIX = ".capture";
+    //Segment numbers are padded to the number of digits in Long.MAX_VALUE so the files sort in the order they were written
+    private static final int SEGMENT_INDEX_DIGITS = 19;
+
+    private final Path directory;
+    private final String segmentFilePrefix;
+    private final int segmentBytes;
+    private MappedByteBuffer segment;
+    private int writePosition;
+    private long nextSegmentIndex;
+    //Timestamps are taken from the nano time so they're cheap, and moved onto the epoch using the time the capture started
+    private final long startEpochNanos;
+    private final long startNanoTime;
+
+
+    /**
+     * @param directory Where the segment files go.  It's created if it doesn't exist.
+     * @param name Used to name the segment files, so several captures can share a directory
+     * @param segmentBytes The size of each segment file.  A message too big to fit in one gets a segment to itself.
+     */
+    CaptureLog(Path directory, String name, int segmentBytes) throws IOException {
+        this.directory = directory;
+        this.segmentFilePrefix = name + "_";
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(directory);
+        var existingSegments = listSegments(directory, name);
+        nextSegmentIndex = existingSegments.isEmpty() ? 0 : getSegmentIndex(existingSegments.getLast(), segmentFilePrefix) + 1;
+        var now = Instant.now();
+        startNanoTime = System.nanoTime();
+        startEpochNanos = TimeUnit.SECONDS.toNanos(now.getEpochSecond()) + now.getNano();
+    }
+
+
+    /**
+     * Adds the message in the given bytes to the end of the capture
+     */
+    void append(int connectionId, byte[] bytes, int offset, int length) throws IOException {
+        var position = startRecord(length);
+        segment.put(position + RECORD_HEADER_LENGTH, bytes, offset, length);
+        endRecord(position, connectionId, length);
+    }
+
+    /**
+     * The same as {@link #append(int, byte[], int, int)} for a message in a buffer, which can be direct.  The buffer's position isn't changed.
+     */
+    void append(int connectionId, ByteBuffer bytes, int offset, int length) throws IOException {
+        var position = startRecord(length);
+        segment.put(position + RECORD_HEADER_LENGTH, bytes, offset, length);
+        endRecord(position, connectionId, length);
+    }
+
+    @Override
+    public void close() {
+        if(segment != null) {
+            segment.force();
+        }
+    }
+
+    //Makes sure the current segment has room for the record, returning where it goes
+    private int startRecord(int length) throws IOException {
+        var recordLength = RECORD_HEADER_LENGTH + length;
+        //Room is always left for a header after the last record so the reader can see where the segment ends
+        if(segment == null || segment.capacity() - writePosition < recordLength + Integer.BYTES) {
+            if(segment != null) {
+                segment.force();
+            }
+            var segmentFile = directory.resolve(segmentFilePrefix + String.format("%0" + SEGMENT_INDEX_DIGITS + "d", nextSegmentIndex++) + SEGMENT_FILE_SUFFIX);
+            try(var fileChannel = FileChannel.open(segmentFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                //The mapping stays valid after the channel is closed
+                segment = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(segmentBytes, recordLength + Integer.BYTES));
+            }
+            writePosition = 0;
+        }
+        return writePosition;
+    }
+
+    private void endRecord(int position, int connectionId, int length) {
+        segment.putLong(position + Integer.BYTES, startEpochNanos + (System.nanoTime() - startNanoTime));
+        segment.putInt(position + Integer.BYTES + Long.BYTES, connectionId);
+        segment.putInt(position, length + 1);
+        writePosition += RECORD_HEADER_LENGTH + length;
+    }
+
+    /**
+     * @return The segment files of the capture with the given name, in the order they were written.  Only files named exactly as the
+     * capture would name them are included, so the segments of a capture whose name starts with this one's, e.g. "a_b" for "a", aren't.
+     */
+    static List<Path> listSegments(Path directory, String name) throws IOException {
+        var segmentFilePrefix = name + "_";
+        var segmentFileNamePattern = Pattern.compile(Pattern.quote(segmentFilePrefix) + "\\d{" + SEGMENT_INDEX_DIGITS + "}" +
+                Pattern.quote(SEGMENT_FILE_SUFFIX));
+        var segmentFiles = new ArrayList<Path>();
+        try(var files = Files.list(directory)) {
+            files.filter(f -> segmentFileNamePattern.matcher(f.getFileName().toString()).matches()).forEach(segmentFiles::add);
+        }
+        segmentFiles.sort((a, b) -> Long.compare(getSegmentIndex(a, segmentFilePrefix), getSegmentIndex(b, segmentFilePrefix)));
+        return segmentFiles;
+    }
+
+    private static long getSegmentIndex(Path segmentFile, String segmentFilePrefix) {
+        var name = segmentFile.getFileName().toString();
+        return Long.parseLong(name.substring(segmentFilePrefix.length(), name.length() - SEGMENT_FILE_SUFFIX.length()));
+    }
+}
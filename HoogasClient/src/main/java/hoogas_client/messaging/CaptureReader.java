@@ -0,0 +1,79 @@
+package hoogas_client.messaging;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+
+
+/**
+ * Reads back the messages recorded by a {@link CaptureLog}, in the order they were captured, one segment file at a time.
+ * This is not thread-safe.
+ * @author Joshua Newman, February 2025
+ */
+class CaptureReader implements AutoCloseable {
+
+
+    private final ArrayDeque<Path> segmentFiles;
+    private MappedByteBuffer segment;
+    private int readPosition;
+
+
+    /**
+     * @param directory The directory the capture was written to
+     * @param name The name the capture was given
+     */
+    CaptureReader(Path directory, String name) throws IOException {
+        segmentFiles = new ArrayDeque<>(CaptureLog.listSegments(directory, name));
+    }
+
+
+    /**
+     * @return The next message, or null if there are no more
+     */
+    CapturedMessage next() throws IOException {
+        while(true) {
+            if(segment == null) {
+                if(segmentFiles.isEmpty()) {
+                    return null;
+                }
+                segment = map(segmentFiles.removeFirst());
+                readPosition = 0;
+            }
+            var header = readPosition + Integer.BYTES <= segment.capacity() ? segment.getInt(readPosition) : 0;
+            //Anything that doesn't look like a complete record is treated as the end of the segment
+            if(header <= 0 || readPosition + CaptureLog.RECORD_HEADER_LENGTH + header - 1 > segment.capacity()) {
+                segment = null;
+                continue;
+            }
+            var timestampNanos = segment.getLong(readPosition + Integer.BYTES);
+            var connectionId = segment.getInt(readPosition + Integer.BYTES + Long.BYTES);
+            var payload = new byte[header - 1];
+            segment.get(readPosition + CaptureLog.RECORD_HEADER_LENGTH, payload);
+            readPosition += CaptureLog.RECORD_HEADER_LENGTH + payload.length;
+            return new CapturedMessage(timestampNanos, connectionId, new String(payload, StandardCharsets.UTF_8));
+        }
+    }
+
+    @Override
+    public void close() {
+        segment = null;
+        segmentFiles.clear();
+    }
+
+    private static MappedByteBuffer map(Path segmentFile) throws IOException {
+        try(var fileChannel = FileChannel.open(segmentFile, StandardOpenOption.READ)) {
+            return fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size());
+        }
+    }
+
+    /**
+     * @param timestampNanos When the message was captured, in nanoseconds since the epoch
+     * @param connectionId The id of the connection the message went through
+     */
+    record CapturedMessage(long timestampNanos, int connectionId, String message) {
+    }
+}
@@ -0,0 +1,93 @@
+package hoogas_client.messaging;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * Sends the messages recorded by a {@link CaptureLog} through a {@link MessageSender}, in the order they were captured, e.g. to feed
+ * production data captured by a {@link MessageReceiver} or {@link BufferedMessageSender} into a test environment.
+ * They can be sent as fast as possible, or with the same gaps between them as when they were captured, optionally sped up or slowed down.
+ * It can be run from the command line with the arguments: capture directory, capture name, host, port and, optionally, the speed
+ * e.g. "/tmp/captures sender_1 localhost 9000 2" sends the capture twice as fast as it was recorded.  The default speed is 0, which is
+ * as fast as possible.
+ * @author Joshua Newman, February 2025
+ */
+public class CaptureReplayer {
+
+
+    /**
+     * Sends as fast as possible rather than with the captured timing
+     */
+    public static final double AS_FAST_AS_POSSIBLE = 0;
+
+    private final Path directory;
+    private final String name;
+    private final double speed;
+
+
+    /**
+     * @param directory The directory the capture was written to
+     * @param name The name the capture was given
+     * @param speed How much faster than it was captured to send it, e.g. 1 for the original timing, 2 for twice as fast or 0.5 for half
+     *              as fast, or {@link #AS_FAST_AS_POSSIBLE}
+     */
+    CaptureReplayer(Path directory, String name, double speed) {
+        if(speed < 0 || Double.isNaN(speed) || Double.isInfinite(speed)) {
+            throw new IllegalArgumentException("Invalid speed: " + speed);
+        }
+        this.directory = directory;
+        this.name = name;
+        this.speed = speed;
+    }
+
+
+    /**
+     * Sends the whole capture.  Returns once the last message has been sent.
+     * @param messageSender Must be connected
+     * @return The number of messages sent
+     * @throws IOException If the capture can't be read or a message can't be sent
+     */
+    long replay(MessageSender messageSender) throws IOException {
+        long numSent = 0;
+        long firstTimestampNanos = 0;
+        long startedAt = System.nanoTime();
+        try(var captureReader = new CaptureReader(directory, name)) {
+            CaptureReader.CapturedMessage capturedMessage;
+            while((capturedMessage = captureReader.next()) != null) {
+                if(numSent == 0) {
+                    firstTimestampNanos = capturedMessage.timestampNanos();
+                }
+                else if(speed != AS_FAST_AS_POSSIBLE) {
+                    waitUntil(startedAt + (long)((capturedMessage.timestampNanos() - firstTimestampNanos) / speed));
+                }
+                messageSender.send(capturedMessage.message());
+                numSent++;
+            }
+        }
+        return numSent;
+    }
+
+    private static void waitUntil(long nanoTime) {
+        long remainingNanos;
+        while((remainingNanos = nanoTime - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remainingNanos);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if(args.length < 4 || args.length > 5) {
+            throw new IllegalArgumentException("Usage: " + CaptureReplayer.class.getName() + " <capture directory> <capture name> <host> <port> [speed]");
+        }
+        var speed = args.length == 5 ? Double.parseDouble(args[4]) : AS_FAST_AS_POSSIBLE;
+        var captureReplayer = new CaptureReplayer(Path.of(args[0]), args[1], speed);
+        try(var messageSender = new MessageSender(args[2], Integer.parseInt(args[3]))) {
+            messageSender.connect();
+            long startedAt = System.currentTimeMillis();
+            var numSent = captureReplayer.replay(messageSender);
+            //¬log properly!
+            System.out.println("Replayed " + numSent + " messages in " + (System.currentTimeMillis() - startedAt) + "ms");
+        }
+    }
+}
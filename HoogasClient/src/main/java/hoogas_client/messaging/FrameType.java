@@ -0,0 +1,51 @@
+package hoogas_client.messaging;
+
+
+/**
+ * The type byte of a frame sent using {@link FramingMode#LENGTH_PREFIXED}.  Frames of a type the receiver doesn't know about
+ * are skipped, so new types can be added without breaking older receivers.
+ * @author Joshua Newman, February 2025
+ */
+enum FrameType {
+
+    /**
+     * A message that's passed on to the receiver's caller
+     */
+    MESSAGE((byte)1),
+    /**
+     * Sent first on each connection by a sender using acknowledged delivery.  The payload is the 8 byte id of the sender's session,
+     * which stays the same when the sender reconnects, so the receiver can recognise messages it has already delivered.
+     */
+    HELLO((byte)2),
+    /**
+     * A message sent using acknowledged delivery.  The payload is the 8 byte sequence number of the message followed by the message.
+     */
+    SEQUENCED_MESSAGE((byte)3),
+    /**
+     * Sent back by the receiver.  The payload is the 8 byte sequence number of the last message delivered, which acknowledges that
+     * message and all the ones before it.
+     */
+    ACKNOWLEDGEMENT((byte)4),
+    /**
+     * Sent by a sender using heartbeats when it hasn't heard from the receiver for a while, and sent back by the receiver in reply
+     * if it has nothing else to send, so both sides know the connection is still there.  It has no payload.
+     */
+    HEARTBEAT((byte)5);
+
+
+    /**
+     * The length of the sequence number or session id that starts the payload of the frames used for acknowledged delivery
+     */
+    static final int SEQUENCE_LENGTH = Long.BYTES;
+
+
+    private final byte code;
+
+    FrameType(byte code) {
+        this.code = code;
+    }
+
+    byte getCode() {
+        return code;
+    }
+}
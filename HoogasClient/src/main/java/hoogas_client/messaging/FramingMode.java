@@ -0,0 +1,36 @@
+package hoogas_client.messaging;
+
+import hoogas_client.Constants;
+
+
+/**
+ * The ways in which the messages sent over a connection can be marked out from each other.  The mode is chosen by the sending
+ * side of the connection, and the receiving side detects which one is being used from the first bytes it receives, so a
+ * receiver can serve senders using either mode at the same time.
+ * @author Joshua Newman, February 2025
+ */
+public enum FramingMode {
+
+    /**
+     * Each message is followed by {@link Constants#MSG_SEPARATOR_CHAR}.  This is the original protocol.  Messages can't contain the
+     * separator character, and the first message sent on a connection can't start with the NUL character, as that's what
+     * identifies the {@link #LENGTH_PREFIXED} mode.
+     */
+    SEPARATOR,
+    /**
+     * The sender starts the connection with {@link #LENGTH_PREFIXED_PREAMBLE}, and then sends each message as a frame consisting
+     * of a 4 byte big-endian length, a 1 byte {@link FrameType} and then that many bytes of payload.  Messages can contain any
+     * character, and the receiver knows how big each message is before it has read it so doesn't have to scan for the end of it.
+     */
+    LENGTH_PREFIXED;
+
+
+    /**
+     * Sent at the start of a {@link #LENGTH_PREFIXED} connection.  A NUL byte, "HL" and the version of the frame format.
+     */
+    static final byte[] LENGTH_PREFIXED_PREAMBLE = {0, 'H', 'L', 1};
+    /**
+     * The length and type that come before the payload of each {@link #LENGTH_PREFIXED} frame
+     */
+    static final int FRAME_HEADER_LENGTH = Integer.BYTES + 1;
+}
@@ -0,0 +1,79 @@
+package hoogas_client.messaging;
+
+
+/**
+ * The values recorded in one of the histograms in {@link SendMetricsSnapshot} as they were when the snapshot was taken.  Percentiles
+ * are accurate to within 1/16th of the recorded value, see {@link LogHistogram}.  This doesn't change once it's been taken.
+ * @author Joshua Newman, February 2025
+ */
+public final class HistogramSnapshot {
+
+
+    private final long[] bucketCounts;
+    private final long count;
+    private final long sum;
+    private final long max;
+
+
+    HistogramSnapshot(long[] bucketCounts, long sum, long max) {
+        this.bucketCounts = bucketCounts;
+        long count = 0;
+        for(long bucketCount : bucketCounts) {
+            count += bucketCount;
+        }
+        this.count = count;
+        this.sum = sum;
+        this.max = max;
+    }
+
+    /**
+     * @return How many values were recorded
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return The highest value recorded, or 0 if none were
+     */
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * @return The mean of the values recorded, or 0 if none were
+     */
+    public double getMean() {
+        return count == 0 ? 0 : (double)sum / count;
+    }
+
+    /**
+     * @param percentile From 0 to 100 e.g. 99.9
+     * @return The value that the given percentage of the recorded values are at or below, or 0 if no values were recorded.  This is
+     * the highest value that falls in the same bucket as the actual value, but is never more than {@link #getMax()}.
+     * @throws IllegalArgumentException If the percentile is not from 0 to 100
+     */
+    public long getValueAtPercentile(double percentile) {
+        if(percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Invalid percentile: " + percentile);
+        }
+        if(count == 0) {
+            return 0;
+        }
+        var countAtPercentile = Math.max(1, (long)Math.ceil(percentile / 100 * count));
+        long countSoFar = 0;
+        for(int i = 0; i < bucketCounts.length; i++) {
+            countSoFar += bucketCounts[i];
+            if(countSoFar >= countAtPercentile) {
+                return Math.min(LogHistogram.bucketUpperBound(i), max);
+            }
+        }
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + count + " mean=" + Math.round(getMean()) + " p50=" + getValueAtPercentile(50) + " p99=" + getValueAtPercentile(99) +
+                " p99.9=" + getValueAtPercentile(99.9) + " max=" + max;
+    }
+}
@@ -0,0 +1,476 @@
+package hoogas_client.messaging;
+
+import hoogas_client.Constants;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Splits the raw bytes received on a connection into messages.  Bytes are read straight into the buffer returned by
+ * {@link #getWritableBuffer(int)} and {@link #parse(List)} then picks the messages out of them without decoding them to characters first.
+ * The buffer is reused for the life of the connection, and each message is turned into a String directly from the bytes it occupies
+ * in the buffer, so apart from the message itself nothing is allocated per message.  Alternatively {@link #parse(MessageViewHandler, int)}
+ * passes each message to a handler as a {@link MessageView} over the bytes in the buffer, so nothing is allocated per message at all.
+ * The bytes of a message that has only been partly received are kept at the start of the buffer until the rest of it arrives.
+ * If a message doesn't fit in the buffer then the buffer is grown, up to the maximum frame size given in the constructor.  A message
+ * bigger than that is rejected: its bytes are thrown away as they arrive, without being kept in the buffer, and parsing carries on
+ * with the message after it, so the connection can still be used.  See {@link #getNumFramesRejected()}.
+ * The {@link FramingMode} is detected from the first bytes received.  With {@link FramingMode#SEPARATOR} the bytes are scanned for
+ * the encoded form of {@link Constants#MSG_SEPARATOR_CHAR}, and with {@link FramingMode#LENGTH_PREFIXED} each frame is picked out
+ * whole using its length.
+ * Messages are encoded using UTF-8, which guarantees that the bytes of the separator can't appear inside any other character.
+ * The parser also handles the frames used for acknowledged delivery, see {@link BufferedMessageSenderOptions#withAcknowledgedDelivery(boolean)}.
+ * On the receiving side a sequenced message is only returned if its sequence number is higher than the last one delivered for the
+ * sender's session, so messages re-sent after a reconnect aren't delivered twice, and {@link #takePendingAcknowledgement()} says what
+ * should be acknowledged.  Only so many sessions are remembered, see {@link #newDeliveredSequences(int)}.  On the sending side the acknowledgements received are recorded, see {@link #getLastAcknowledgementReceived()}.
+ * Heartbeats are never delivered, the receiving side is told it should reply to one by {@link #takePendingHeartbeat()}.
+ * THIS CLASS IS NOT THREAD-SAFE.
+ * @author Joshua Newman, February 2025
+ */
+class HoogasFrameParser {
+
+
+    static final byte[] SEPARATOR_BYTES = String.valueOf(Constants.MSG_SEPARATOR_CHAR).getBytes(StandardCharsets.UTF_8);
+    //The biggest payload a buffer could hold along with its frame header, as the JVM can't allocate an array of quite Integer.MAX_VALUE bytes
+    static final int NO_MAX_FRAME_SIZE = Integer.MAX_VALUE - 8 - FramingMode.FRAME_HEADER_LENGTH;
+    static final int DEFAULT_MAX_SESSIONS = 10000;
+
+    private final boolean direct;
+    //Always in "write mode" i.e. the bytes that have been received but not parsed yet are from 0 to the position
+    private ByteBuffer buffer;
+    //Only used for direct buffers, which don't have an array that a String can be created from
+    private byte[] messageBytes;
+    //Where to continue scanning for the separator from, so bytes that have already been checked aren't checked again
+    private int scanFrom;
+    //Null until enough bytes have been received to tell.  Volatile as the receivers check it from whichever thread is sending back.
+    private volatile FramingMode framingMode;
+    //The last sequence number delivered for each session.  Shared by all the connections to a receiver, as a sender can reconnect.
+    private final Map<Long, AtomicLong> deliveredSequences;
+    //The entry in the above for the session on this connection, or null if the sender isn't using acknowledged delivery
+    private AtomicLong deliveredSequence;
+    private boolean acknowledgementPending;
+    private boolean heartbeatPending;
+    private long lastAcknowledgementReceived;
+    //Where the messages found by the current call to parse go.  Only one of the list and the handler is set.
+    private List<String> messageList;
+    private MessageViewHandler messageViewHandler;
+    private int connectionId;
+    private final MessageView messageView = new MessageView();
+    private final int maxFrameSize;
+    //How much more of a rejected length-prefixed frame is still to arrive, and whether a rejected separated message is still arriving
+    private long numBytesToSkip;
+    private boolean skippingToSeparator;
+    private long numFramesRejected;
+    //Where each message delivered is recorded, if anywhere
+    private CaptureLog captureLog;
+
+
+    /**
+     * @param initialCapacity The initial size of the buffer in bytes
+     * @param direct Whether the buffer should be allocated outside the heap.  This is best when it's being filled straight from
+     *               a channel, as the channel would otherwise copy the bytes into a direct buffer of its own first.
+     */
+    HoogasFrameParser(int initialCapacity, boolean direct) {
+        this(initialCapacity, direct, newDeliveredSequences(DEFAULT_MAX_SESSIONS));
+    }
+
+    /**
+     * @param initialCapacity The initial size of the buffer in bytes
+     * @param direct see {@link #HoogasFrameParser(int, boolean)}
+     * @param deliveredSequences The last sequence number delivered for each sender session.  Should be shared by all the parsers
+     *                           for a receiver, see {@link #newDeliveredSequences(int)}.
+     */
+    HoogasFrameParser(int initialCapacity, boolean direct, Map<Long, AtomicLong> deliveredSequences) {
+        this(initialCapacity, direct, deliveredSequences, NO_MAX_FRAME_SIZE);
+    }
+
+    /**
+     * @param initialCapacity The initial size of the buffer in bytes
+     * @param direct see {@link #HoogasFrameParser(int, boolean)}
+     * @param deliveredSequences see {@link #HoogasFrameParser(int, boolean, Map)}
+     * @param maxFrameSize The most bytes a message, or the payload of a frame, can take up.  Anything bigger is rejected.
+     * @throws IllegalArgumentException If the maximum frame size is too small to hold the frames used for acknowledged delivery
+     */
+    HoogasFrameParser(int initialCapacity, boolean direct, Map<Long, AtomicLong> deliveredSequences, int maxFrameSize) {
+        if(maxFrameSize < FrameType.SEQUENCE_LENGTH) {
+            throw new IllegalArgumentException("Invalid max frame size: " + maxFrameSize);
+        }
+        this.maxFrameSize = maxFrameSize;
+        this.direct = direct;
+        this.deliveredSequences = deliveredSequences;
+        this.buffer = allocate(Math.max(initialCapacity, FramingMode.LENGTH_PREFIXED_PREAMBLE.length));
+        this.messageBytes = direct ? new byte[buffer.capacity()] : null;
+    }
+
+    /**
+     * @return Somewhere to keep the last sequence number delivered for each sender session, to be shared by all the parsers for a receiver.
+     * It can be used by any thread.  Only the given number of sessions are remembered, so it doesn't keep growing as senders come and go.
+     * Once there are that many, the one that connected least recently is forgotten to make room, and if it does reconnect then the messages
+     * it re-sends are delivered again.
+     */
+    static Map<Long, AtomicLong> newDeliveredSequences(int maxSessions) {
+        return Collections.synchronizedMap(new DeliveredSequences(maxSessions));
+    }
+
+    /**
+     * @param minimumSpace How many bytes the caller wants to be able to write into the returned buffer
+     * @return The buffer that the received bytes should be written into.  Bytes should be written from its current position,
+     * and it should not be flipped or compacted by the caller.  It is grown if it has less room than requested.
+     */
+    ByteBuffer getWritableBuffer(int minimumSpace) {
+        if(buffer.remaining() < minimumSpace) {
+            grow(Math.max(buffer.capacity() * 2, buffer.position() + minimumSpace));
+        }
+        return buffer;
+    }
+
+    /**
+     * Adds every complete message that has been written into the buffer to the given list, in the order in which they were received.
+     * The separator is not included in the messages.
+     * @return The number of messages added
+     * @throws IOException If the bytes received don't follow the protocol e.g. a frame has a negative length
+     */
+    int parse(List<String> messageList) throws IOException {
+        this.messageList = messageList;
+        try {
+            return parse();
+        }
+        finally {
+            this.messageList = null;
+        }
+    }
+
+    /**
+     * The same as {@link #parse(List)} except that each complete message is passed to the given handler as a {@link MessageView}
+     * over its bytes in the buffer, which is only valid until the handler returns.  Nothing is allocated per message.
+     * @param connectionId Passed to the handler with each message
+     * @return The number of messages passed to the handler
+     * @throws IOException see {@link #parse(List)}
+     */
+    int parse(MessageViewHandler messageViewHandler, int connectionId) throws IOException {
+        this.messageViewHandler = messageViewHandler;
+        this.connectionId = connectionId;
+        try {
+            return parse();
+        }
+        finally {
+            this.messageViewHandler = null;
+        }
+    }
+
+    private int parse() throws IOException {
+        if(framingMode == null && !detectFramingMode()) {
+            return 0;
+        }
+        return framingMode == FramingMode.SEPARATOR ? parseSeparated() : parseLengthPrefixed();
+    }
+
+    /**
+     * @return The sequence number that should be acknowledged to the sender, which is the last one delivered, or -1 if nothing has
+     * been received that needs acknowledging since this was last called
+     */
+    long takePendingAcknowledgement() {
+        if(!acknowledgementPending) {
+            return -1;
+        }
+        acknowledgementPending = false;
+        return deliveredSequence.get();
+    }
+
+    /**
+     * @return Whether a heartbeat has been received since this was last called
+     */
+    boolean takePendingHeartbeat() {
+        var pending = heartbeatPending;
+        heartbeatPending = false;
+        return pending;
+    }
+
+    /**
+     * @return The highest sequence number that the other side has acknowledged, or 0 if none has been
+     */
+    long getLastAcknowledgementReceived() {
+        return lastAcknowledgementReceived;
+    }
+
+    /**
+     * @return How many messages have been thrown away for being bigger than the maximum frame size
+     */
+    long getNumFramesRejected() {
+        return numFramesRejected;
+    }
+
+    /**
+     * @return The framing mode used by the other side, or null if not enough has been received yet to tell.  Can be called by any thread.
+     */
+    FramingMode getFramingMode() {
+        return framingMode;
+    }
+
+    /**
+     * @return Whether the other side is using {@link FramingMode#SEPARATOR}, which is known as soon as the first byte has been
+     * received if it doesn't start the preamble of {@link FramingMode#LENGTH_PREFIXED}
+     */
+    boolean isSeparated() {
+        return framingMode == FramingMode.SEPARATOR ||
+                (framingMode == null && buffer.position() > 0 && buffer.get(0) != FramingMode.LENGTH_PREFIXED_PREAMBLE[0]);
+    }
+
+    private boolean detectFramingMode() throws IOException {
+        var preamble = FramingMode.LENGTH_PREFIXED_PREAMBLE;
+        if(buffer.position() == 0) {
+            return false;
+        }
+        if(buffer.get(0) != preamble[0]) {
+            framingMode = FramingMode.SEPARATOR;
+            return true;
+        }
+        if(buffer.position() < preamble.length) {
+            return false;
+        }
+        for(int i = 1; i < preamble.length; i++) {
+            if(buffer.get(i) != preamble[i]) {
+                throw new IOException("Unsupported framing preamble received: " + Arrays.toString(readBytes(0, preamble.length)));
+            }
+        }
+        framingMode = FramingMode.LENGTH_PREFIXED;
+        discard(preamble.length);
+        return true;
+    }
+
+    private int parseSeparated() {
+        int end = buffer.position();
+        int messageStart = 0;
+        int numMessages = 0;
+        int i = scanFrom;
+        while(i <= end - SEPARATOR_BYTES.length) {
+            if(isSeparatorAt(i)) {
+                if(skippingToSeparator) {
+                    skippingToSeparator = false;
+                }
+                else if(i - messageStart > maxFrameSize) {
+                    reject(i - messageStart);
+                }
+                else {
+                    deliver(messageStart, i - messageStart);
+                    numMessages++;
+                }
+                i += SEPARATOR_BYTES.length;
+                messageStart = i;
+            }
+            else {
+                i++;
+            }
+        }
+
+        //Move what's left of any partly read message to the start of the buffer
+        discard(messageStart);
+        scanFrom = i - messageStart;
+        //None of the bytes scanned so far start a separator so they're all part of the message.  If there are already too many of
+        //them then the message is rejected and they're thrown away, keeping just the ones that might be the start of a separator.
+        if(skippingToSeparator || scanFrom > maxFrameSize) {
+            if(!skippingToSeparator) {
+                reject(scanFrom);
+                skippingToSeparator = true;
+            }
+            discard(scanFrom);
+            scanFrom = 0;
+        }
+        return numMessages;
+    }
+
+    private int parseLengthPrefixed() throws IOException {
+        if(numBytesToSkip > 0) {
+            int numBytes = (int)Math.min(numBytesToSkip, buffer.position());
+            discard(numBytes);
+            numBytesToSkip -= numBytes;
+            if(numBytesToSkip > 0) {
+                return 0;
+            }
+        }
+        int end = buffer.position();
+        int frameStart = 0;
+        int numMessages = 0;
+        while(end - frameStart >= FramingMode.FRAME_HEADER_LENGTH) {
+            int payloadLength = buffer.getInt(frameStart);
+            if(payloadLength < 0) {
+                throw new IOException("Invalid frame length received: " + payloadLength);
+            }
+            //A long so that a payload near Integer.MAX_VALUE doesn't overflow
+            long frameLength = FramingMode.FRAME_HEADER_LENGTH + (long)payloadLength;
+            if(payloadLength > maxFrameSize) {
+                reject(payloadLength);
+                if(end - frameStart < frameLength) {
+                    numBytesToSkip = frameLength - (end - frameStart);
+                    frameStart = end;
+                    break;
+                }
+                frameStart += (int)frameLength;
+                continue;
+            }
+            if(end - frameStart < frameLength) {
+                //Make sure the rest of the frame will fit, so it can be read in one go rather than by growing the buffer a bit at a time
+                if(frameLength > buffer.capacity()) {
+                    discard(frameStart);
+                    grow((int)frameLength);
+                    return numMessages;
+                }
+                break;
+            }
+            int payloadStart = frameStart + FramingMode.FRAME_HEADER_LENGTH;
+            byte frameType = buffer.get(frameStart + Integer.BYTES);
+            if(frameType == FrameType.MESSAGE.getCode()) {
+                deliver(payloadStart, payloadLength);
+                numMessages++;
+            }
+            else if(frameType == FrameType.SEQUENCED_MESSAGE.getCode()) {
+                if(deliveredSequence == null) {
+                    throw new IOException("Sequenced message received before " + FrameType.HELLO);
+                }
+                long sequence = readSequence(payloadStart, payloadLength);
+                //Anything at or below the last sequence delivered is being re-sent after a reconnect, so it's only acknowledged again
+                if(sequence > deliveredSequence.get()) {
+                    deliver(payloadStart + FrameType.SEQUENCE_LENGTH, payloadLength - FrameType.SEQUENCE_LENGTH);
+                    numMessages++;
+                    deliveredSequence.set(sequence);
+                }
+                acknowledgementPending = true;
+            }
+            else if(frameType == FrameType.HELLO.getCode()) {
+                deliveredSequence = deliveredSequences.computeIfAbsent(readSequence(payloadStart, payloadLength), k -> new AtomicLong());
+                //Lets the sender know straight away which of the messages it's about to re-send it can forget about
+                acknowledgementPending = true;
+            }
+            else if(frameType == FrameType.ACKNOWLEDGEMENT.getCode()) {
+                lastAcknowledgementReceived = Math.max(lastAcknowledgementReceived, readSequence(payloadStart, payloadLength));
+            }
+            else if(frameType == FrameType.HEARTBEAT.getCode()) {
+                heartbeatPending = true;
+            }
+            frameStart += (int)frameLength;
+        }
+        discard(frameStart);
+        return numMessages;
+    }
+
+    private long readSequence(int payloadStart, int payloadLength) throws IOException {
+        if(payloadLength < FrameType.SEQUENCE_LENGTH) {
+            throw new IOException("Frame too short to hold a sequence number: " + payloadLength);
+        }
+        return buffer.getLong(payloadStart);
+    }
+
+    private boolean isSeparatorAt(int index) {
+        for(int j = 0; j < SEPARATOR_BYTES.length; j++) {
+            if(buffer.get(index + j) != SEPARATOR_BYTES[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void reject(int length) {
+        numFramesRejected++;
+        //¬log properly!
+        System.out.println("Rejected a message of at least " + length + " bytes as the maximum is " + maxFrameSize);
+    }
+
+    private void deliver(int offset, int length) {
+        if(captureLog != null) {
+            capture(offset, length);
+        }
+        if(messageList != null) {
+            messageList.add(toString(offset, length));
+        }
+        else {
+            messageView.wrap(buffer, offset, length);
+            try {
+                messageViewHandler.onMessage(connectionId, messageView);
+            }
+            finally {
+                messageView.release();
+            }
+        }
+    }
+
+    private String toString(int offset, int length) {
+        if(buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + offset, length, StandardCharsets.UTF_8);
+        }
+        return new String(readBytes(offset, length), 0, length, StandardCharsets.UTF_8);
+    }
+
+    //Copies the bytes into the reusable array for direct buffers
+    private byte[] readBytes(int offset, int length) {
+        if(messageBytes == null || messageBytes.length < length) {
+            messageBytes = new byte[Math.max(length, buffer.capacity())];
+        }
+        buffer.get(offset, messageBytes, 0, length);
+        return messageBytes;
+    }
+
+    //Removes the given number of bytes from the start of the buffer
+    private void discard(int numBytes) {
+        if(numBytes > 0) {
+            buffer.flip();
+            buffer.position(numBytes);
+            buffer.compact();
+        }
+    }
+
+    private void grow(int newCapacity) {
+        var newBuffer = allocate(newCapacity);
+        buffer.flip();
+        newBuffer.put(buffer);
+        buffer = newBuffer;
+    }
+
+    //A capture that can't be written to is given up on rather than stopping messages being received
+    private void capture(int offset, int length) {
+        try {
+            captureLog.append(connectionId, buffer, offset, length);
+        }
+        catch(IOException | RuntimeException e) {
+            //¬log properly!
+            System.out.println("Could not capture a received message so the capture has been stopped.  " + e);
+            captureLog = null;
+        }
+    }
+
+    /**
+     * Records each message in the given capture as it's delivered, along with the connection id passed to {@link #parse(MessageViewHandler, int)}
+     */
+    void captureTo(CaptureLog captureLog) {
+        this.captureLog = captureLog;
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    //In the order the sessions last connected in, as looking a session up when its HELLO arrives moves it to the end
+    private static class DeliveredSequences extends LinkedHashMap<Long, AtomicLong> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int maxSessions;
+
+        private DeliveredSequences(int maxSessions) {
+            super(16, 0.75f, true);
+            this.maxSessions = maxSessions;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, AtomicLong> eldest) {
+            return size() > maxSessions;
+        }
+    }
+}
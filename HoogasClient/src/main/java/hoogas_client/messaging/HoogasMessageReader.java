@@ -2,25 +2,58 @@ package hoogas_client.messaging;
 
 import hoogas_client.Constants;
 
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 class HoogasMessageReader {
 
 
-    private String partlyReadMessage = "";
-    private final InputStreamReader reader;
-    private final char[] receivedMsgBuffer;
+    private final InputStream inputStream;
+    private final int chunkSize;
+    private final HoogasFrameParser frameParser;
+    private final boolean drainAvailable;
+    //When bytes were last read from the stream.  Read by other threads to tell whether the other side is still there.
+    private volatile long lastReadNanos = System.nanoTime();
 
     /**
-     * @param reader Used to read the character stream
-     * @param chunkSize The size of the chunks to be read from the stream in characters.
+     * @param inputStream Used to read the bytes from the connection
+     * @param chunkSize The size of the chunks to be read from the stream, see {@link #getReceivedMessages()}
      */
-    HoogasMessageReader(InputStreamReader reader, int chunkSize) {
-        this.reader = reader;
-        this.receivedMsgBuffer = new char[chunkSize];
+    HoogasMessageReader(InputStream inputStream, int chunkSize) {
+        this(inputStream, chunkSize, new HashMap<>());
+    }
+
+    /**
+     * @param inputStream Used to read the bytes from the connection
+     * @param chunkSize The size of the chunks to be read from the stream, see {@link #getReceivedMessages()}
+     * @param deliveredSequences see {@link HoogasFrameParser#HoogasFrameParser(int, boolean, Map)}
+     */
+    HoogasMessageReader(InputStream inputStream, int chunkSize, Map<Long, AtomicLong> deliveredSequences) {
+        this(inputStream, chunkSize, deliveredSequences, HoogasFrameParser.NO_MAX_FRAME_SIZE, false);
+    }
+
+    /**
+     * @param inputStream Used to read the bytes from the connection
+     * @param chunkSize The size of the chunks to be read from the stream, see {@link #getReceivedMessages()}.  If the reader is draining then
+     *                  it's the minimum number of bytes to read in one go.
+     * @param deliveredSequences see {@link HoogasFrameParser#HoogasFrameParser(int, boolean, Map)}
+     * @param maxFrameSize The most bytes a message can take up.  Bigger ones are thrown away, see {@link HoogasFrameParser#HoogasFrameParser(int, boolean, Map, int)}.
+     * @param drainAvailable Whether each read should keep going until there's nothing left to read rather than stopping after one chunk.
+     *                       Everything that's available is read in one go, so a burst of messages, or a message bigger than the chunk size,
+     *                       is picked up by one call rather than one chunk per call.
+     */
+    HoogasMessageReader(InputStream inputStream, int chunkSize, Map<Long, AtomicLong> deliveredSequences, int maxFrameSize, boolean drainAvailable) {
+        this.inputStream = inputStream;
+        this.chunkSize = chunkSize;
+        this.drainAvailable = drainAvailable;
+        this.frameParser = new HoogasFrameParser(chunkSize, false, deliveredSequences, maxFrameSize);
     }
 
 
@@ -32,39 +65,193 @@ class HoogasMessageReader {
      * to this method, the second and third call would return an empty list, and the fourth call would return the third message:
      * ab¬cd¬efghijklmnoprstuvwxyz¬
      * If less than the specified chunk size is available to read then only the characters that are available are processed.
+     * If the other side is using {@link FramingMode#LENGTH_PREFIXED} then the chunk size is in bytes instead.
+     * If the reader was created to drain what's available then it keeps reading until there's nothing left, so in the example above
+     * the first call would return all 3 messages.
      * THIS METHOD IS NOT THREAD-SAFE.
      * The message {@link Constants#MSG_SEPARATOR_CHAR} character is not included in the returned messages.
+     * @see HoogasFrameParser
      * @throws IOException If the socket can't be read e.g. it's been closed unexpectedly
      */
     List<String> getReceivedMessages() throws IOException {
 
         var messageList = new ArrayList<String>();
-        if(reader.ready()) {
-            int numCharsRead = reader.read(receivedMsgBuffer, 0, receivedMsgBuffer.length);
-            var messageStringBuilder = new StringBuilder(partlyReadMessage);
-
-
-            for (int i = 0; i < numCharsRead; i++) {
-                char c1 = receivedMsgBuffer[i];
-                if (i == numCharsRead - 1) {
-                    if (c1 != Constants.MSG_SEPARATOR_CHAR) {
-                        //There's no termination character, so we've got a partly read message
-                        messageStringBuilder.append(c1);
-                        partlyReadMessage = messageStringBuilder.toString();
-                    } else {
-                        partlyReadMessage = "";
-                        messageList.add(messageStringBuilder.toString());
-                    }
-                } else if (c1 == Constants.MSG_SEPARATOR_CHAR) {
-                    messageList.add(messageStringBuilder.toString());
-                    messageStringBuilder = new StringBuilder();
-                } else {
-                    messageStringBuilder.append(c1);
-                }
-
-                receivedMsgBuffer[i] = '\u0000';
+        readMessages(messageList, false);
+        return messageList;
+    }
+
+    /**
+     * The same as {@link #getReceivedMessages()} except the messages are added to the given list, and it can be told to block
+     * until there's something to read rather than returning straight away if there isn't.
+     * THIS METHOD IS NOT THREAD-SAFE.
+     * @return The number of messages added to the list
+     * @throws EOFException If it blocks and the other side closes the connection
+     * @throws IOException If the socket can't be read e.g. it's been closed unexpectedly
+     */
+    int readMessages(List<String> messageList, boolean block) throws IOException {
+
+        int numMessages = 0;
+        //Parsed after each read so the buffer only has to hold what's arrived since the last complete message
+        while(readChunk(block)) {
+            numMessages += frameParser.parse(messageList);
+            if(!drainAvailable) {
+                break;
             }
+            block = false;
         }
-        return messageList;
+        return numMessages;
+    }
+
+    /**
+     * The same as {@link #readMessages(List, boolean)} except that the messages are passed to the given handler as a {@link MessageView}
+     * which is only valid until the handler returns, so nothing is allocated per message.
+     * THIS METHOD IS NOT THREAD-SAFE.
+     * @param connectionId Passed to the handler with each message
+     * @return The number of messages passed to the handler
+     * @throws EOFException If it blocks and the other side closes the connection
+     * @throws IOException If the socket can't be read e.g. it's been closed unexpectedly
+     */
+    int readMessages(MessageViewHandler messageViewHandler, int connectionId, boolean block) throws IOException {
+
+        int numMessages = 0;
+        while(readChunk(block)) {
+            numMessages += frameParser.parse(messageViewHandler, connectionId);
+            if(!drainAvailable) {
+                break;
+            }
+            block = false;
+        }
+        return numMessages;
+    }
+
+    //Reads the next chunk into the parser's buffer, returning false if it shouldn't block and there was nothing to read.  When draining
+    //the chunk is made big enough to take everything that's available, which is only checked when it isn't going to block anyway.
+    private boolean readChunk(boolean block) throws IOException {
+        int available = block ? 0 : inputStream.available();
+        if(block || available > 0) {
+            int numBytesRead = read(drainAvailable ? Math.max(chunkSize, available) : chunkSize);
+            if(numBytesRead < 0) {
+                throw new EOFException("The connection has been closed by the other side");
+            }
+            if(!drainAvailable && frameParser.isSeparated()) {
+                readRestOfCharacters(numBytesRead);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    //Separated messages are read in chunks of characters rather than bytes, and a character can take up to 4 bytes.  So after the
+    //bytes for the chunk have been read this keeps reading whatever's available until the chunk holds that many whole characters.
+    private void readRestOfCharacters(int numBytesRead) throws IOException {
+        int chunkStart = frameParser.getWritableBuffer(0).position() - numBytesRead;
+        int from = chunkStart;
+        int numChars = 0;
+        while(true) {
+            var buffer = frameParser.getWritableBuffer(0);
+            int end = buffer.position();
+            numChars += countCharacters(buffer, from, end);
+            //Each byte after the ones owed adds at most one character, so this never reads more characters than the chunk size
+            int numBytesWanted = numBytesOwed(buffer, chunkStart, end) + chunkSize - numChars;
+            if(numBytesWanted <= 0) {
+                return;
+            }
+            int numBytesToRead = Math.min(numBytesWanted, inputStream.available());
+            if(numBytesToRead <= 0) {
+                return;
+            }
+            from = end;
+            if(read(numBytesToRead) <= 0) {
+                return;
+            }
+        }
+    }
+
+    //The number of characters started in the given range, i.e. the bytes that aren't UTF-8 continuation bytes (10xxxxxx).  It's run
+    //over every byte read so they're counted 8 at a time: a continuation byte has its top bit set and the bit below it clear.
+    private static int countCharacters(ByteBuffer buffer, int from, int to) {
+        int numContinuationBytes = 0;
+        int i = from;
+        for(; i <= to - Long.BYTES; i += Long.BYTES) {
+            long word = buffer.getLong(i);
+            numContinuationBytes += Long.bitCount(word & ~(word << 1) & 0x8080808080808080L);
+        }
+        for(; i < to; i++) {
+            numContinuationBytes += (buffer.get(i) & 0xC0) == 0x80 ? 1 : 0;
+        }
+        return to - from - numContinuationBytes;
+    }
+
+    //How many more bytes are needed to complete the last character in the given range
+    private static int numBytesOwed(ByteBuffer buffer, int from, int to) {
+        for(int i = to - 1; i >= Math.max(from, to - 4); i--) {
+            int b = buffer.get(i) & 0xFF;
+            if((b & 0xC0) != 0x80) {
+                int length = b >= 0xF0 ? 4 : b >= 0xE0 ? 3 : b >= 0xC0 ? 2 : 1;
+                return Math.max(0, length - (to - i));
+            }
+        }
+        return 0;
+    }
+
+    //Reads up to the given number of bytes into the parser's buffer, returning how many were read or -1 at the end of the stream
+    private int read(int numBytesToRead) throws IOException {
+        var buffer = frameParser.getWritableBuffer(numBytesToRead);
+        int numBytesRead = inputStream.read(buffer.array(), buffer.arrayOffset() + buffer.position(), numBytesToRead);
+        if(numBytesRead > 0) {
+            buffer.position(buffer.position() + numBytesRead);
+            lastReadNanos = System.nanoTime();
+        }
+        return numBytesRead;
+    }
+
+    /**
+     * @see HoogasFrameParser#captureTo(CaptureLog)
+     */
+    void captureTo(CaptureLog captureLog) {
+        frameParser.captureTo(captureLog);
+    }
+
+    /**
+     * @see HoogasFrameParser#getNumFramesRejected()
+     */
+    long getNumFramesRejected() {
+        return frameParser.getNumFramesRejected();
+    }
+
+    /**
+     * @return The {@link System#nanoTime()} when bytes were last read, or when this reader was created if none have been.  Can be
+     * called by any thread.
+     */
+    long getLastReadNanos() {
+        return lastReadNanos;
+    }
+
+    /**
+     * @see HoogasFrameParser#getFramingMode()
+     */
+    FramingMode getFramingMode() {
+        return frameParser.getFramingMode();
+    }
+
+    /**
+     * @see HoogasFrameParser#takePendingHeartbeat()
+     */
+    boolean takePendingHeartbeat() {
+        return frameParser.takePendingHeartbeat();
+    }
+
+    /**
+     * @see HoogasFrameParser#takePendingAcknowledgement()
+     */
+    long takePendingAcknowledgement() {
+        return frameParser.takePendingAcknowledgement();
+    }
+
+    /**
+     * @see HoogasFrameParser#getLastAcknowledgementReceived()
+     */
+    long getLastAcknowledgementReceived() {
+        return frameParser.getLastAcknowledgementReceived();
     }
 }
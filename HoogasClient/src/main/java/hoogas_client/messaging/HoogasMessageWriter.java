@@ -3,21 +3,298 @@ package hoogas_client.messaging;
 import hoogas_client.Constants;
 
 import java.io.IOException;
-import java.io.OutputStreamWriter;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 class HoogasMessageWriter {
 
 
-    private final OutputStreamWriter outputStreamWriter;
+    static final int INITIAL_CAPACITY = 256;
+    //If the pending bytes have had to grow beyond this to fit a large message or batch then they're shrunk back once it's been written
+    static final int MAX_RETAINED_CAPACITY = 256 * 1024;
 
+    private final OutputStream outputStream;
+    private final FramingMode framingMode;
+    //Frames are put together here so any number of them can go to the socket in one write
+    private byte[] pendingBytes = new byte[INITIAL_CAPACITY];
+    private int numPendingBytes;
+    //Wraps pendingBytes so the encoder can write straight into it
+    private ByteBuffer pendingBytesBuffer = ByteBuffer.wrap(pendingBytes);
+    //Kept for the life of the writer so messages that aren't all ASCII can be encoded without creating a new one each time.  Invalid
+    //characters are replaced with '?', the same as String.getBytes() does.
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+    //Where each message written is recorded, if anywhere
+    private CaptureLog captureLog;
+    private int captureConnectionId;
+    //The index and length of the payload of each pending message that's to be recorded once it's been written
+    private int[] pendingCaptures = new int[16];
+    private int numPendingCaptures;
 
-    HoogasMessageWriter(OutputStreamWriter outputStreamWriter) {
-        this.outputStreamWriter = outputStreamWriter;
+
+    /**
+     * @param outputStream The stream to write the messages to
+     * @param framingMode How the messages are marked out from each other.  If it's {@link FramingMode#LENGTH_PREFIXED} then the
+     *                    preamble announcing it is written straight away.
+     */
+    HoogasMessageWriter(OutputStream outputStream, FramingMode framingMode) throws IOException {
+        this.outputStream = outputStream;
+        this.framingMode = framingMode;
+        if(framingMode == FramingMode.LENGTH_PREFIXED) {
+            outputStream.write(FramingMode.LENGTH_PREFIXED_PREAMBLE);
+            outputStream.flush();
+        }
     }
 
 
+    /**
+     * Writes the message to the stream straight away
+     */
     void doSend(String message) throws IOException {
-        outputStreamWriter.write(message + Constants.MSG_SEPARATOR_CHAR);
-        outputStreamWriter.flush();
+        append(message);
+        flush();
+    }
+
+    /**
+     * Frames the message and adds it to the bytes waiting to be written, which happens when {@link #flush()} is called.
+     */
+    void append(String message) {
+        if(framingMode == FramingMode.SEPARATOR) {
+            var payloadIndex = numPendingBytes;
+            addPendingCapture(payloadIndex, putString(message));
+            ensureCapacity(HoogasFrameParser.SEPARATOR_BYTES.length);
+            putBytes(HoogasFrameParser.SEPARATOR_BYTES);
+        }
+        else {
+            //The length isn't known until the message has been encoded so it's filled in afterwards
+            ensureCapacity(FramingMode.FRAME_HEADER_LENGTH);
+            var lengthIndex = numPendingBytes;
+            numPendingBytes += Integer.BYTES;
+            pendingBytes[numPendingBytes++] = FrameType.MESSAGE.getCode();
+            var payloadIndex = numPendingBytes;
+            var payloadLength = putString(message);
+            putIntAt(lengthIndex, payloadLength);
+            addPendingCapture(payloadIndex, payloadLength);
+        }
+    }
+
+    /**
+     * The same as {@link #append(String)} except the message is given a sequence number, for acknowledged delivery.
+     * Can only be used with {@link FramingMode#LENGTH_PREFIXED}.
+     */
+    void appendSequenced(long sequence, String message) {
+        appendSequenced(sequence, message, true);
+    }
+
+    /**
+     * The same as {@link #appendSequenced(long, String)} for a message that's already been written once and is being sent again, so it
+     * isn't captured a second time
+     */
+    void appendResent(long sequence, String message) {
+        appendSequenced(sequence, message, false);
+    }
+
+    private void appendSequenced(long sequence, String message, boolean capture) {
+        ensureCapacity(FramingMode.FRAME_HEADER_LENGTH + FrameType.SEQUENCE_LENGTH);
+        var lengthIndex = numPendingBytes;
+        numPendingBytes += Integer.BYTES;
+        pendingBytes[numPendingBytes++] = FrameType.SEQUENCED_MESSAGE.getCode();
+        putLong(sequence);
+        var payloadIndex = numPendingBytes;
+        var payloadLength = putString(message);
+        putIntAt(lengthIndex, FrameType.SEQUENCE_LENGTH + payloadLength);
+        if(capture) {
+            addPendingCapture(payloadIndex, payloadLength);
+        }
+    }
+
+    /**
+     * Adds the frame that starts a connection using acknowledged delivery.  Can only be used with {@link FramingMode#LENGTH_PREFIXED}.
+     */
+    void appendHello(long sessionId) {
+        appendControlFrame(FrameType.HELLO, sessionId);
+    }
+
+    /**
+     * Adds a frame acknowledging every message up to and including the given sequence number.  Can only be used with {@link FramingMode#LENGTH_PREFIXED}.
+     */
+    void appendAcknowledgement(long sequence) {
+        appendControlFrame(FrameType.ACKNOWLEDGEMENT, sequence);
+    }
+
+    /**
+     * Adds a heartbeat frame.  Can only be used with {@link FramingMode#LENGTH_PREFIXED}.
+     */
+    void appendHeartbeat() {
+        ensureCapacity(FramingMode.FRAME_HEADER_LENGTH);
+        putInt(0);
+        pendingBytes[numPendingBytes++] = FrameType.HEARTBEAT.getCode();
+    }
+
+    /**
+     * Writes all the bytes added by {@link #append(String)} since the last flush to the stream in one write.  If more than
+     * {@link #MAX_RETAINED_CAPACITY} bytes had to be made room for then the room is given up afterwards, so one large message doesn't
+     * hold on to that much memory for the life of the connection.
+     * Messages are only captured once they've been written, so nothing in a write that fails is recorded.
+     * @return The number of bytes written
+     */
+    int flush() throws IOException {
+        var numBytes = numPendingBytes;
+        var numCaptures = numPendingCaptures;
+        //Cleared first so a failed write doesn't leave the bytes to be written again in front of the messages that are re-sent
+        numPendingBytes = 0;
+        numPendingCaptures = 0;
+        try {
+            outputStream.write(pendingBytes, 0, numBytes);
+            outputStream.flush();
+            //Done before the pending bytes are shrunk as that doesn't keep what's been written
+            for(int i = 0; i < numCaptures; i += 2) {
+                capture(pendingCaptures[i], pendingCaptures[i + 1]);
+            }
+        }
+        finally {
+            if(pendingBytes.length > MAX_RETAINED_CAPACITY) {
+                resize(INITIAL_CAPACITY);
+            }
+        }
+        return numBytes;
+    }
+
+    /**
+     * @return How many bytes can be appended before more room has to be made for them
+     */
+    int getCapacity() {
+        return pendingBytes.length;
+    }
+
+    /**
+     * Records each message in the given capture once it's been written.  Messages appended with {@link #appendResent(long, String)}
+     * aren't recorded, as they were when they were first written.
+     * @param connectionId Recorded with each message
+     */
+    void captureTo(CaptureLog captureLog, int connectionId) {
+        this.captureLog = captureLog;
+        this.captureConnectionId = connectionId;
+    }
+
+    /**
+     * @return How many bytes will be written by the next call to {@link #flush()}
+     */
+    int getNumPendingBytes() {
+        return numPendingBytes;
+    }
+
+    private void addPendingCapture(int payloadIndex, int payloadLength) {
+        if(captureLog != null) {
+            if(numPendingCaptures + 2 > pendingCaptures.length) {
+                pendingCaptures = Arrays.copyOf(pendingCaptures, pendingCaptures.length * 2);
+            }
+            pendingCaptures[numPendingCaptures++] = payloadIndex;
+            pendingCaptures[numPendingCaptures++] = payloadLength;
+        }
+    }
+
+    //A capture that can't be written to is given up on rather than stopping messages being sent
+    private void capture(int payloadIndex, int payloadLength) {
+        if(captureLog != null) {
+            try {
+                captureLog.append(captureConnectionId, pendingBytes, payloadIndex, payloadLength);
+            }
+            catch(IOException | RuntimeException e) {
+                //¬log properly!
+                System.out.println("Could not capture a sent message so the capture has been stopped.  " + e);
+                captureLog = null;
+            }
+        }
+    }
+
+    private void putBytes(byte[] bytes) {
+        System.arraycopy(bytes, 0, pendingBytes, numPendingBytes, bytes.length);
+        numPendingBytes += bytes.length;
+    }
+
+    /**
+     * Encodes the message as UTF-8 straight into the pending bytes, so no byte[] is created for it.  Messages are usually all ASCII,
+     * which is one byte per char, so the chars are copied across until one that isn't ASCII is found and the encoder does the rest.
+     * @return The number of bytes the message took up
+     */
+    private int putString(String message) {
+        var start = numPendingBytes;
+        var length = message.length();
+        ensureCapacity(length);
+        int i = 0;
+        for(; i < length; i++) {
+            var c = message.charAt(i);
+            if(c >= 0x80) {
+                break;
+            }
+            pendingBytes[numPendingBytes++] = (byte)c;
+        }
+        if(i < length) {
+            encode(message, i);
+        }
+        return numPendingBytes - start;
+    }
+
+    private void encode(String message, int from) {
+        //Enough room for the worst case so the encoder never runs out of space
+        ensureCapacity((int)Math.min(Integer.MAX_VALUE - numPendingBytes, (long)(message.length() - from) * (long)encoder.maxBytesPerChar()));
+        pendingBytesBuffer.clear().position(numPendingBytes);
+        encoder.reset();
+        encoder.encode(CharBuffer.wrap(message, from, message.length()), pendingBytesBuffer, true);
+        encoder.flush(pendingBytesBuffer);
+        numPendingBytes = pendingBytesBuffer.position();
+    }
+
+    /**
+     * @return The message without the {@link Constants#MSG_SEPARATOR_CHAR} at the end of it, if it has one.  Used where
+     * a caller has added the separator for the original protocol but the message is being framed instead.
+     */
+    static String stripTrailingSeparator(String message) {
+        var last = message.length() - 1;
+        return last >= 0 && message.charAt(last) == Constants.MSG_SEPARATOR_CHAR ? message.substring(0, last) : message;
+    }
+
+    private void appendControlFrame(FrameType frameType, long value) {
+        ensureCapacity(FramingMode.FRAME_HEADER_LENGTH + FrameType.SEQUENCE_LENGTH);
+        putInt(FrameType.SEQUENCE_LENGTH);
+        pendingBytes[numPendingBytes++] = frameType.getCode();
+        putLong(value);
+    }
+
+    private void putLong(long value) {
+        putInt((int)(value >>> 32));
+        putInt((int)value);
+    }
+
+    private void putInt(int value) {
+        putIntAt(numPendingBytes, value);
+        numPendingBytes += Integer.BYTES;
+    }
+
+    private void putIntAt(int index, int value) {
+        pendingBytes[index] = (byte)(value >>> 24);
+        pendingBytes[index + 1] = (byte)(value >>> 16);
+        pendingBytes[index + 2] = (byte)(value >>> 8);
+        pendingBytes[index + 3] = (byte)value;
+    }
+
+    private void ensureCapacity(int numBytesToAdd) {
+        var required = numPendingBytes + numBytesToAdd;
+        if(pendingBytes.length < required) {
+            resize(Math.max(required, pendingBytes.length * 2));
+        }
+    }
+
+    private void resize(int capacity) {
+        var newPendingBytes = new byte[capacity];
+        System.arraycopy(pendingBytes, 0, newPendingBytes, 0, numPendingBytes);
+        pendingBytes = newPendingBytes;
+        pendingBytesBuffer = ByteBuffer.wrap(pendingBytes);
     }
 }
@@ -0,0 +1,141 @@
+package hoogas_client.messaging;
+
+import java.util.concurrent.CompletableFuture;
+
+
+/**
+ * A message waiting in a {@link BufferedMessageSender}'s buffer that was sent with a key, a time-to-live or both.  It's held in the
+ * buffer as the attachment of its entry so the message itself can be swapped for a newer one with the same key while it waits, without
+ * taking up another place in the buffer.  Once it's been taken by the sending thread it can't be replaced any more, and a newer message
+ * with the same key needs an entry of its own.  A message can only be swapped for one that's going in the same lane.  A newer message for
+ * another lane supersedes it instead, so it's skipped when it's taken and the newer one gets an entry of its own in its lane.
+ * A message whose time-to-live has passed by the time it's taken is thrown away rather than sent.
+ * @author Joshua Newman, February 2025
+ */
+final class KeyedMessage {
+
+
+    static final long NEVER_EXPIRES = Long.MAX_VALUE;
+
+    private final String key;
+    private final int lane;
+    private String message;
+    private long expiresAt;
+    private CompletableFuture<Void> future;
+    private boolean taken;
+    private boolean superseded;
+
+
+    /**
+     * @param key The key that newer messages replace this one by, or null if it's only being given a time-to-live
+     * @param lane The priority lane the message is waiting in
+     * @param expiresAt The {@link System#nanoTime()} after which the message shouldn't be sent, or {@link #NEVER_EXPIRES}
+     * @param future Completed once the message has gone, or null if it was sent without one
+     */
+    KeyedMessage(String key, int lane, String message, long expiresAt, CompletableFuture<Void> future) {
+        this.key = key;
+        this.lane = lane;
+        this.message = message;
+        this.expiresAt = expiresAt;
+        this.future = future;
+    }
+
+    /**
+     * Swaps the message for a newer one with the same key, failing the future of the one that's replaced.
+     * @return false if the message has already been taken, in which case nothing is changed
+     */
+    boolean replace(String message, long expiresAt, CompletableFuture<Void> future) {
+        CompletableFuture<Void> replacedFuture;
+        synchronized(this) {
+            if(taken) {
+                return false;
+            }
+            replacedFuture = this.future;
+            this.message = message;
+            this.expiresAt = expiresAt;
+            this.future = future;
+        }
+        if(replacedFuture != null) {
+            replacedFuture.completeExceptionally(replacedException());
+        }
+        return true;
+    }
+
+    /**
+     * Gives the message up for a newer one with the same key that's going in another lane, failing its future.  It's skipped when it's taken.
+     * @return false if the message has already been taken, in which case nothing is changed
+     */
+    boolean supersede() {
+        CompletableFuture<Void> replacedFuture;
+        synchronized(this) {
+            if(taken) {
+                return false;
+            }
+            taken = true;
+            superseded = true;
+            replacedFuture = future;
+            message = null;
+            future = null;
+        }
+        if(replacedFuture != null) {
+            replacedFuture.completeExceptionally(replacedException());
+        }
+        return true;
+    }
+
+    /**
+     * Takes the message so it can be sent.  Its future, if it has one, is then available from {@link #getFuture()}.
+     * @param now The current {@link System#nanoTime()}
+     * @return null if the message has expired, in which case its future is failed, or if it's been superseded
+     */
+    String take(long now) {
+        synchronized(this) {
+            if(superseded) {
+                return null;
+            }
+            taken = true;
+            if(expiresAt == NEVER_EXPIRES || now - expiresAt <= 0) {
+                return message;
+            }
+        }
+        if(future != null) {
+            future.completeExceptionally(new IllegalStateException("The message expired before it was sent"));
+        }
+        return null;
+    }
+
+    /**
+     * Takes the message without sending it, failing its future with the given reason
+     */
+    void drop(Throwable failure) {
+        synchronized(this) {
+            taken = true;
+        }
+        if(future != null) {
+            future.completeExceptionally(failure);
+        }
+    }
+
+    String getKey() {
+        return key;
+    }
+
+    int getLane() {
+        return lane;
+    }
+
+    synchronized boolean isSuperseded() {
+        return superseded;
+    }
+
+    private IllegalStateException replacedException() {
+        return new IllegalStateException("The message was replaced by a newer one with the key " + key);
+    }
+
+    /**
+     * Only valid once the message has been taken or dropped
+     */
+    synchronized CompletableFuture<Void> getFuture() {
+        return future;
+    }
+}
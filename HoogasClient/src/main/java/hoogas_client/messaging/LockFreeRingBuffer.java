@@ -0,0 +1,221 @@
+package hoogas_client.messaging;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * A bounded buffer that any number of threads can add to at the same time without taking a lock, so a thread adding to it never
+ * has to wait for a monitor held by another thread.  It's designed to be emptied by a single thread, but taking from it is also
+ * lock-free, so other threads can safely take the oldest element e.g. to make room for a new one.
+ * Each slot in the ring has a sequence number that says whether it's ready to be written to or read from.  Threads claim a slot by
+ * moving the head or tail on with a compare-and-set, and publish what they've done by updating the slot's sequence.
+ * The capacity is rounded up to the next power of 2 so positions can be turned into slots with a mask rather than a division.
+ * The thread emptying the buffer can wait for it to become non-empty with {@link #awaitNotEmpty(long)}, in which case it's woken
+ * up by the next thread to add an element.
+ * Each element can be given a timestamp when it's added, e.g. so the time it spent in the buffer can be measured, which is kept in
+ * its slot alongside it and handed back by {@link #drainTo(List, long[], int)}.  An element can also be given an attachment in the
+ * same way, e.g. something to be told once the element has been dealt with, see {@link #offer(Object, long, Object)}.
+ * @author Joshua Newman, February 2025
+ */
+class LockFreeRingBuffer<E> {
+
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<E> elements;
+    private final AtomicLongArray sequences;
+    //Written before a slot's sequence is published and read after it's been seen, like the elements
+    private final long[] timestamps;
+    private final Object[] attachments;
+    //The next position to be written to and read from respectively.  They only ever go up.
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+    private volatile Thread waitingConsumer;
+
+
+    /**
+     * @param requestedCapacity The minimum number of elements the buffer should be able to hold
+     */
+    LockFreeRingBuffer(int requestedCapacity) {
+        if(requestedCapacity < 1 || requestedCapacity > 1 << 30) {
+            throw new IllegalArgumentException("Invalid capacity: " + requestedCapacity);
+        }
+        capacity = requestedCapacity == 1 ? 1 : Integer.highestOneBit(requestedCapacity - 1) << 1;
+        mask = capacity - 1;
+        elements = new AtomicReferenceArray<>(capacity);
+        sequences = new AtomicLongArray(capacity);
+        timestamps = new long[capacity];
+        attachments = new Object[capacity];
+        for(int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Adds the element if there's room for it.  Never blocks.
+     * @return false if the buffer is full
+     */
+    boolean offer(E element) {
+        return offer(element, 0);
+    }
+
+    /**
+     * The same as {@link #offer(Object)} except the element is given a timestamp
+     */
+    boolean offer(E element, long timestamp) {
+        return offer(element, timestamp, null);
+    }
+
+    /**
+     * The same as {@link #offer(Object, long)} except the element is given an attachment too, which is handed back with it
+     */
+    boolean offer(E element, long timestamp, Object attachment) {
+        long position = tail.get();
+        while(true) {
+            int index = (int)(position & mask);
+            long difference = sequences.getAcquire(index) - position;
+            if(difference == 0) {
+                if(tail.compareAndSet(position, position + 1)) {
+                    elements.setPlain(index, element);
+                    timestamps[index] = timestamp;
+                    attachments[index] = attachment;
+                    sequences.setRelease(index, position + 1);
+                    var consumer = waitingConsumer;
+                    if(consumer != null) {
+                        LockSupport.unpark(consumer);
+                    }
+                    return true;
+                }
+                position = tail.get();
+            }
+            else if(difference < 0) {
+                //The slot still holds an element that hasn't been taken, so the buffer is full
+                return false;
+            }
+            else {
+                //Another thread has claimed this position since it was read
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Takes the oldest element.  Never blocks.
+     * @return null if the buffer is empty
+     */
+    E poll() {
+        return poll(null, null, 0);
+    }
+
+    /**
+     * The same as {@link #poll()} except the element's attachment is put in the first slot of the given array
+     */
+    E poll(Object[] attachmentTaken) {
+        return poll(null, attachmentTaken, 0);
+    }
+
+    //Takes the oldest element, putting its timestamp and attachment in the given arrays at the given index if there are arrays
+    private E poll(long[] timestampsTaken, Object[] attachmentsTaken, int takenIndex) {
+        long position = head.get();
+        while(true) {
+            int index = (int)(position & mask);
+            long difference = sequences.getAcquire(index) - (position + 1);
+            if(difference == 0) {
+                if(head.compareAndSet(position, position + 1)) {
+                    var element = elements.getPlain(index);
+                    elements.setPlain(index, null);
+                    if(timestampsTaken != null) {
+                        timestampsTaken[takenIndex] = timestamps[index];
+                    }
+                    if(attachmentsTaken != null) {
+                        attachmentsTaken[takenIndex] = attachments[index];
+                    }
+                    attachments[index] = null;
+                    sequences.setRelease(index, position + capacity);
+                    return element;
+                }
+                position = head.get();
+            }
+            else if(difference < 0) {
+                //Nothing has been published in this slot yet, so the buffer is empty
+                return null;
+            }
+            else {
+                position = head.get();
+            }
+        }
+    }
+
+    /**
+     * Takes up to the given number of the oldest elements and adds them to the list in the order in which they were added.
+     * @return The number of elements taken
+     */
+    int drainTo(List<? super E> list, int maxElements) {
+        return drainTo(list, null, maxElements);
+    }
+
+    /**
+     * The same as {@link #drainTo(List, int)} except the timestamps the elements were added with are put in the given array, from the
+     * start, in the same order.  The array must have room for the max number of elements.
+     */
+    int drainTo(List<? super E> list, long[] timestampsTaken, int maxElements) {
+        return drainTo(list, timestampsTaken, 0, maxElements);
+    }
+
+    /**
+     * The same as {@link #drainTo(List, long[], int)} except the timestamps are put in the array from the given index, e.g. when
+     * the list already holds elements taken from another buffer
+     */
+    int drainTo(List<? super E> list, long[] timestampsTaken, int timestampsOffset, int maxElements) {
+        return drainTo(list, timestampsTaken, null, timestampsOffset, maxElements);
+    }
+
+    /**
+     * The same as {@link #drainTo(List, long[], int, int)} except the attachments are put in the second array in the same way as the
+     * timestamps.  Either array can be null if it's not wanted.
+     */
+    int drainTo(List<? super E> list, long[] timestampsTaken, Object[] attachmentsTaken, int takenOffset, int maxElements) {
+        int numTaken = 0;
+        E element;
+        while(numTaken < maxElements && (element = poll(timestampsTaken, attachmentsTaken, takenOffset + numTaken)) != null) {
+            list.add(element);
+            numTaken++;
+        }
+        return numTaken;
+    }
+
+    /**
+     * Waits until an element is added or the timeout passes, whichever is first.  Should only be called by the thread emptying the buffer.
+     */
+    void awaitNotEmpty(long timeoutNanos) {
+        waitingConsumer = Thread.currentThread();
+        try {
+            if(isEmpty()) {
+                LockSupport.parkNanos(this, timeoutNanos);
+            }
+        }
+        finally {
+            waitingConsumer = null;
+        }
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * @return The number of elements in the buffer.  This is only a snapshot, as other threads may be adding or taking elements.
+     */
+    int size() {
+        long size = tail.get() - head.get();
+        return (int)Math.max(0, Math.min(size, capacity));
+    }
+
+    int capacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,79 @@
+package hoogas_client.messaging;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Counts how many values have been recorded in each of a fixed set of buckets, so it takes up the same amount of memory however many
+ * values are recorded, and recording a value doesn't allocate anything.  The buckets get wider as the values get bigger: each power
+ * of 2 is split into {@link #SUB_BUCKETS} buckets of equal width, so any value can be reported to within 1/{@link #SUB_BUCKETS} of
+ * what was recorded, all the way up to {@link Long#MAX_VALUE}.  Values below {@link #SUB_BUCKETS} have a bucket each, so are exact.
+ * Values are recorded with one atomic increment, so it can be recorded to by one thread while other threads take snapshots or reset
+ * it.  A snapshot taken with a reset doesn't lose any values recorded at the same time, they go into either that snapshot or the next.
+ * The count, sum and max are kept separately to the buckets, so a snapshot taken while values are being recorded may not quite
+ * add up.
+ * @author Joshua Newman, February 2025
+ */
+class LogHistogram {
+
+
+    static final int SUB_BUCKET_BITS = 4;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    //Values below SUB_BUCKETS go in the first SUB_BUCKETS buckets, then each power of 2 from SUB_BUCKETS to 2^62 has SUB_BUCKETS of its own
+    static final int NUM_BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+
+    /**
+     * @param value The value to record.  Negative values, e.g. from a clock going backwards, are recorded as 0.
+     */
+    void record(long value) {
+        if(value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(bucketIndex(value));
+        sum.addAndGet(value);
+        if(value > max.get()) {
+            max.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    /**
+     * @param reset Whether to clear the histogram as the snapshot is taken
+     */
+    HistogramSnapshot snapshot(boolean reset) {
+        var bucketCounts = new long[NUM_BUCKETS];
+        for(int i = 0; i < NUM_BUCKETS; i++) {
+            bucketCounts[i] = reset ? counts.getAndSet(i, 0) : counts.get(i);
+        }
+        return new HistogramSnapshot(bucketCounts, reset ? sum.getAndSet(0) : sum.get(), reset ? max.getAndSet(0) : max.get());
+    }
+
+    static int bucketIndex(long value) {
+        if(value < SUB_BUCKETS) {
+            return (int)value;
+        }
+        //The position of the highest bit says which power of 2 it's in, and the bits below that say which bucket within it
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int)(value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return The highest value that would go in the bucket with the given index
+     */
+    static long bucketUpperBound(int index) {
+        if(index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int subBucket = index % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        long lowerBound = (long)(SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+        return lowerBound + (width - 1);
+    }
+}
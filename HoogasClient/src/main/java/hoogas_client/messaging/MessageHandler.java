@@ -0,0 +1,22 @@
+package hoogas_client.messaging;
+
+
+/**
+ * Implemented by anything that wants messages pushed to it as soon as they are received, rather than having to poll for them.
+ * It is called on the receiving thread so it should return quickly, as no more messages are read until it does.
+ * @see MessageReceiver#startReceiving(MessageHandler, WaitStrategy, boolean)
+ * @see SelectorMessageReceiver#startReceiving(MessageHandler, WaitStrategy, boolean)
+ * @see BufferedMessageSenderReceiver
+ * @author Joshua Newman, February 2025
+ */
+@FunctionalInterface
+public interface MessageHandler {
+
+    /**
+     * @param connectionId The id of the connection the message came in on.  For {@link SelectorMessageReceiver} this is the id it gave the
+     *                     connection, for {@link BufferedMessageSenderReceiver} it's the id provided in its constructor and for
+     *                     {@link MessageReceiver}, which only ever has one connection, it's always 0.
+     * @param message The message without its separator character
+     */
+    void onMessage(int connectionId, String message);
+}
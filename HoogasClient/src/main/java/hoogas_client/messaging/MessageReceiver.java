@@ -3,17 +3,34 @@ package hoogas_client.messaging;
 import hoogas_client.Constants;
 
 import java.io.*;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
- * Receives messages over a TCP connection.  Messages can also be sent back to the other side of the connection using this class e.g. message acks.
+ * Receives messages over a TCP connection, or over a Unix domain socket if the receiver is created with a
+ * {@link java.net.UnixDomainSocketAddress}, in which case the socket file is created when connecting and deleted when closed.  Messages can also be sent back to the other side of the connection using this class e.g. message acks.
  * In order to be read each message sent to this connection needs to be terminated by a {@link Constants#MSG_SEPARATOR_CHAR} character.
  * For example, if the terminating character is '¬' then in order to provide 3 messages the receiver should read the following string from the socket's input stream:
  * \"msg1_characters¬msg2_characters¬msg3_characters¬\".
- * Messages are read from the stream into a fixed-size character buffer, the size of which can be provided in the constructor or else the default of {@link MessageReceiver#DEFAULT_RECEIVED_MSG_BUFFER_SIZE} is used.
+ * Messages are read from the stream in fixed-size chunks of characters, the size of which can be provided in the constructor or else the default of {@link MessageReceiver#DEFAULT_RECEIVED_MSG_BUFFER_SIZE} is used.
+ * Alternatively the receiver can be created to drain everything that's available on each read, see {@link #MessageReceiver(SocketAddress, int, int, boolean)},
+ * which is better when the messages are large or arrive in bursts.  Messages bigger than the maximum frame size given there are thrown away.
+ * If the sender is using acknowledged delivery then messages it re-sends that have already been delivered are dropped, and an
+ * acknowledgement of the messages delivered is sent back after each read, so one acknowledgement covers everything in that read.
+ * Messages sent back using {@link #sendMessage(String)} are framed in the same way as the sender frames what it sends, which is fixed by
+ * the first message sent back and never changes, see {@link #setReplyFramingMode(FramingMode)}.
+ * Heartbeats from a sender using them are replied to after each read in the same way, see {@link BufferedMessageSenderOptions#withHeartbeats(long, int)}.
+ * The messages received can be recorded to disk to be used as test data, see {@link #captureTo(Path, String)}.
  * @see #getReceivedMessages()
  * @author Joshua Newman, January 2025
  */
@@ -22,12 +39,18 @@ public class MessageReceiver implements AutoCloseable {
 
     private static final int DEFAULT_RECEIVED_MSG_BUFFER_SIZE = 1000;
 
-    private final int port;
-    protected volatile ServerSocket serverSocket;
-    protected volatile Socket socket;
-    private volatile OutputStreamWriter writer;
-    private HoogasMessageReader messageReader;
+    private final SocketAddress address;
+    private volatile ServerSocketChannel serverSocketChannel;
+    private volatile SocketChannel socketChannel;
+    private volatile ReplyWriter replyWriter;
+    private volatile HoogasMessageReader messageReader;
     private final int inputStreamReadingChunkSize;
+    private final int maxFrameSize;
+    private final boolean drainAvailable;
+    private volatile ReceivingRoutine receivingRoutine;
+    private final Map<Long, AtomicLong> deliveredSequences = HoogasFrameParser.newDeliveredSequences(HoogasFrameParser.DEFAULT_MAX_SESSIONS);
+    private FramingMode replyFramingMode = FramingMode.SEPARATOR;
+    private CaptureLog captureLog;
 
 
     MessageReceiver(int port) {
@@ -35,8 +58,28 @@ public class MessageReceiver implements AutoCloseable {
     }
 
     MessageReceiver(int port, int inputStreamReadingChunkSize) {
-        this.port = port;
+        this(new InetSocketAddress(port), inputStreamReadingChunkSize);
+    }
+
+    /**
+     * @param address The address to listen for a connection on.  This is either an {@link InetSocketAddress} or a {@link java.net.UnixDomainSocketAddress}.
+     * @param inputStreamReadingChunkSize The number of characters to read from the connection at a time, see {@link HoogasMessageReader#getReceivedMessages()}
+     */
+    MessageReceiver(SocketAddress address, int inputStreamReadingChunkSize) {
+        this(address, inputStreamReadingChunkSize, HoogasFrameParser.NO_MAX_FRAME_SIZE, false);
+    }
+
+    /**
+     * @param address see {@link #MessageReceiver(SocketAddress, int)}
+     * @param inputStreamReadingChunkSize see {@link HoogasMessageReader#HoogasMessageReader(InputStream, int, Map, int, boolean)}
+     * @param maxFrameSize The most bytes a message can take up.  Bigger ones are thrown away and counted, see {@link #getNumFramesRejected()}.
+     * @param drainAvailable Whether each read keeps going until there's nothing left to read, see {@link HoogasMessageReader#HoogasMessageReader(InputStream, int, Map, int, boolean)}
+     */
+    MessageReceiver(SocketAddress address, int inputStreamReadingChunkSize, int maxFrameSize, boolean drainAvailable) {
+        this.address = address;
         this.inputStreamReadingChunkSize = inputStreamReadingChunkSize;
+        this.maxFrameSize = maxFrameSize;
+        this.drainAvailable = drainAvailable;
     }
 
     /**
@@ -45,35 +88,150 @@ public class MessageReceiver implements AutoCloseable {
      * successfully beforehand.
      */
     public void connect() throws IOException {
-        serverSocket = new ServerSocket(port);
-        socket = serverSocket.accept();
-        messageReader = new HoogasMessageReader(new InputStreamReader(socket.getInputStream()), inputStreamReadingChunkSize);
-        writer = new OutputStreamWriter(socket.getOutputStream());
+        serverSocketChannel = Transport.bind(address, 0);
+        socketChannel = serverSocketChannel.accept();
+        messageReader = new HoogasMessageReader(Channels.newInputStream(socketChannel), inputStreamReadingChunkSize, deliveredSequences, maxFrameSize, drainAvailable);
+        replyWriter = new ReplyWriter(Channels.newOutputStream(socketChannel), replyFramingMode);
+        if(captureLog != null) {
+            messageReader.captureTo(captureLog);
+        }
+    }
+
+    /**
+     * Records every message received to memory-mapped files in the given directory, with the time it arrived and the connection id,
+     * which is always 0.  They can be sent on again with a {@link CaptureReplayer}.  Should be called before {@link #connect()}.
+     * @param name The name of the capture, which the files are named after
+     * @throws IllegalArgumentException If this has already been called or the receiver is already connected
+     * @throws IllegalStateException If the capture files can't be created
+     */
+    public void captureTo(Path directory, String name) {
+        if(captureLog != null || messageReader != null) {
+            throw new IllegalArgumentException("The capture has to be set once, before connecting");
+        }
+        try {
+            captureLog = new CaptureLog(directory, name, CaptureLog.DEFAULT_SEGMENT_BYTES);
+        }
+        catch(IOException e) {
+            throw new IllegalStateException("Could not open capture in: " + directory, e);
+        }
+    }
+
+    /**
+     * Sets how the messages sent back by {@link #sendMessage(String)} are framed if any are sent before anything has been received,
+     * as the framing can't be changed once something has been sent.  Otherwise they're framed the same way as what's been received.
+     * Should be {@link FramingMode#LENGTH_PREFIXED} if the sender uses acknowledged delivery or heartbeats and may be sent a message
+     * before it has sent anything.  The default is {@link FramingMode#SEPARATOR}.  Should be called before {@link #connect()}.
+     * @throws IllegalArgumentException If the receiver is already connected
+     */
+    public void setReplyFramingMode(FramingMode replyFramingMode) {
+        if(messageReader != null) {
+            throw new IllegalArgumentException("The reply framing has to be set before connecting");
+        }
+        this.replyFramingMode = Objects.requireNonNull(replyFramingMode);
     }
 
     /**
      * @see HoogasMessageReader#getReceivedMessages()
+     * @throws IllegalStateException If messages are being pushed to a handler, see {@link #startReceiving(MessageHandler, WaitStrategy, boolean)}
      */
     public List<String> getReceivedMessages() throws IOException {
-        return messageReader.getReceivedMessages();
+        if(receivingRoutine != null) {
+            throw new IllegalStateException("Messages are being pushed to a " + MessageHandler.class.getSimpleName());
+        }
+        var receivedMessages = messageReader.getReceivedMessages();
+        acknowledge(messageReader);
+        return receivedMessages;
+    }
+
+    /**
+     * An alternative to polling {@link #getReceivedMessages()}.  Starts a thread that reads messages as soon as they arrive and
+     * passes them to the given handler.  Should be called after {@link #connect()}.  {@link #getReceivedMessages()} can't be
+     * used once this has been called.  The thread stops when this instance is closed or the connection is lost.
+     * @param messageHandler Receives the messages.  The connection id passed to it is always 0.
+     * @param waitStrategy How the thread waits for messages to arrive
+     * @param useVirtualThread Whether to receive on a virtual thread rather than a platform thread
+     * @throws IllegalArgumentException If this method has already been called
+     */
+    public void startReceiving(MessageHandler messageHandler, WaitStrategy waitStrategy, boolean useVirtualThread) {
+        if(receivingRoutine != null) {
+            throw new IllegalArgumentException("Already receiving");
+        }
+        var reader = Objects.requireNonNull(messageReader, "Not connected");
+        var receivedMessages = new ArrayList<String>();
+        receivingRoutine = new ReceivingRoutine(messageHandler, waitStrategy) {
+            @Override
+            int receive(boolean block) throws IOException {
+                var numMessages = reader.readMessages(receivedMessages, block);
+                for(String receivedMessage : receivedMessages) {
+                    dispatch(0, receivedMessage);
+                }
+                receivedMessages.clear();
+                acknowledge(reader);
+                return numMessages;
+            }
+        };
+        receivingRoutine.start("ReceivingRoutine_" + MessageReceiver.class.getName() + " " + address, useVirtualThread);
+    }
+
+    /**
+     * The same as {@link #startReceiving(MessageHandler, WaitStrategy, boolean)} except that each message is passed to the handler as a
+     * {@link MessageView} over the bytes in the receive buffer rather than as a String, so once the buffer has grown to fit the messages
+     * nothing is allocated per message.  The view is only valid until the handler returns.
+     * @throws IllegalArgumentException If this method or {@link #startReceiving(MessageHandler, WaitStrategy, boolean)} has already been called
+     */
+    public void startReceivingViews(MessageViewHandler messageViewHandler, WaitStrategy waitStrategy, boolean useVirtualThread) {
+        if(receivingRoutine != null) {
+            throw new IllegalArgumentException("Already receiving");
+        }
+        var reader = Objects.requireNonNull(messageReader, "Not connected");
+        receivingRoutine = new ReceivingRoutine(messageViewHandler, waitStrategy) {
+            @Override
+            int receive(boolean block) throws IOException {
+                var numMessages = reader.readMessages(viewDispatcher, 0, block);
+                acknowledge(reader);
+                return numMessages;
+            }
+        };
+        receivingRoutine.start("ReceivingRoutine_" + MessageReceiver.class.getName() + " " + address, useVirtualThread);
     }
 
     /**
-     * Sends the given message to the other side of this connection.
+     * Sends the given message to the other side of this connection.  If the replies are {@link FramingMode#LENGTH_PREFIXED} then the
+     * message is sent as a frame, and a {@link Constants#MSG_SEPARATOR_CHAR} at the end of it is dropped as it's not needed.
      * @throws IOException If the message cannot be sent e.g. if the connection on the other side has been lost.
+     * @see #setReplyFramingMode(FramingMode)
      */
     public void sendMessage(String msg) throws IOException {
-        writer.write(msg);
-        writer.flush();
+        replyWriter.sendMessage(msg, messageReader.getFramingMode());
+    }
+
+    /**
+     * @return How many messages have been thrown away for being bigger than the maximum frame size given in the constructor, or 0 if not connected
+     */
+    public long getNumFramesRejected() {
+        var reader = messageReader;
+        return reader == null ? 0 : reader.getNumFramesRejected();
+    }
+
+    //Acknowledges the messages delivered by the last read if the sender is using acknowledged delivery, otherwise replies to a heartbeat if one was received
+    private void acknowledge(HoogasMessageReader reader) throws IOException {
+        replyWriter.acknowledge(reader.takePendingAcknowledgement(), reader.takePendingHeartbeat(), reader.getFramingMode());
     }
 
     @Override
     public void close() throws IOException {
-        if(socket != null) {
-            socket.close();
+        if(receivingRoutine != null) {
+            receivingRoutine.stop();
+        }
+        if(socketChannel != null) {
+            socketChannel.close();
+        }
+        if(serverSocketChannel != null) {
+            serverSocketChannel.close();
+            Transport.unbind(address);
         }
-        if(serverSocket != null) {
-            serverSocket.close();
+        if(captureLog != null) {
+            captureLog.close();
         }
     }
 }
\ No newline at end of file
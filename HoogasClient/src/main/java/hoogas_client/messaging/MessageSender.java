@@ -3,33 +3,63 @@ package hoogas_client.messaging;
 import hoogas_client.Constants;
 
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
 
 
 /**
  * Can be used to send messages, either locally or across the network.
- * Each message is appended with the message separator character {@link Constants#MSG_SEPARATOR_CHAR}.
+ * By default each message is appended with the message separator character {@link Constants#MSG_SEPARATOR_CHAR}, but a
+ * different {@link FramingMode} can be chosen in the constructor.
+ * Messages are sent over TCP, or over a Unix domain socket if the sender is created with a {@link java.net.UnixDomainSocketAddress},
+ * which is quicker when the receiver is on the same machine.
  * @see MessageReceiver
  * @author Joshua Newman, January 2025
  */
 public class MessageSender implements AutoCloseable {
 
 
-    private final String host;
-    private final int port;
-    protected volatile Socket socket;
+    private final SocketAddress address;
+    private final FramingMode framingMode;
+    private volatile SocketChannel socketChannel;
     private HoogasMessageWriter hoogasMessageWriter;
 
     MessageSender(String host, int port) {
-        this.host = host;
-        this.port = port;
+        this(host, port, FramingMode.SEPARATOR);
+    }
+
+    /**
+     * @param host The address of the receiving application
+     * @param port The port that the receiving application is listening for connections on
+     * @param framingMode How the messages are marked out from each other on the wire
+     */
+    MessageSender(String host, int port, FramingMode framingMode) {
+        this(InetSocketAddress.createUnresolved(host, port), framingMode);
+    }
+
+    /**
+     * @param address The address the receiving application is listening for connections on.  This is either an {@link InetSocketAddress}
+     *                or a {@link java.net.UnixDomainSocketAddress}.
+     * @param framingMode How the messages are marked out from each other on the wire
+     */
+    MessageSender(SocketAddress address, FramingMode framingMode) {
+        this.address = address;
+        this.framingMode = framingMode;
     }
 
 
     public void connect() throws IOException {
-        socket = new Socket(host, port);
-        hoogasMessageWriter = new HoogasMessageWriter(new OutputStreamWriter(socket.getOutputStream()));
+        socketChannel = Transport.openChannel(address);
+        try {
+            socketChannel.connect(Transport.resolve(address));
+        }
+        catch(IOException e) {
+            socketChannel.close();
+            throw e;
+        }
+        hoogasMessageWriter = new HoogasMessageWriter(Channels.newOutputStream(socketChannel), framingMode);
     }
 
     public void send(String message) throws IOException {
@@ -40,10 +70,18 @@ public class MessageSender implements AutoCloseable {
         hoogasMessageWriter.doSend(msg);
     }
 
+    /**
+     * @return The channel to the receiver, or null if it isn't connected.  For use by subclasses and tests in this package, so the type
+     * of the channel isn't part of the public API.
+     */
+    SocketChannel getSocketChannel() {
+        return socketChannel;
+    }
+
     @Override
     public void close() throws IOException {
-        if(socket != null) {
-            socket.close();
+        if(socketChannel != null) {
+            socketChannel.close();
         }
     }
 }
@@ -0,0 +1,181 @@
+package hoogas_client.messaging;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+
+/**
+ * A view of a received message that reads it straight out of the receive buffer, so nothing needs to be allocated for it.  The same
+ * instance is reused for every message received on a connection, so it's only valid during the call to
+ * {@link MessageViewHandler#onMessage(int, MessageView)} it was passed to, after which using it throws an {@link IllegalStateException}.
+ * A message that needs to be kept has to be copied, either with {@link #toString()} or {@link #toByteArray()}.
+ * The message can be read as raw UTF-8 bytes, or as characters through {@link CharSequence}.  The characters are decoded into an
+ * array that's reused from message to message the first time they're asked for, with a fast path for messages that are all ASCII.
+ * THIS CLASS IS NOT THREAD-SAFE.
+ * @author Joshua Newman, February 2025
+ */
+public final class MessageView implements CharSequence {
+
+
+    private ByteBuffer buffer;
+    private int offset;
+    private int byteLength;
+    //Only used to decode messages that aren't all ASCII.  A duplicate of the receive buffer, so its position and limit can be changed.
+    private ByteBuffer decodingBuffer;
+    private ByteBuffer decodingBufferSource;
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private CharBuffer chars = CharBuffer.allocate(64);
+    //-1 until the characters have been decoded
+    private int charLength = -1;
+
+
+    MessageView() {}
+
+
+    //Points the view at a message in the receive buffer
+    void wrap(ByteBuffer buffer, int offset, int byteLength) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.byteLength = byteLength;
+        this.charLength = -1;
+    }
+
+    //Called once the handler has finished with the message
+    void release() {
+        buffer = null;
+    }
+
+    /**
+     * @return The number of bytes in the message once it's been encoded as UTF-8
+     */
+    public int byteLength() {
+        checkValid();
+        return byteLength;
+    }
+
+    /**
+     * @return The byte of the UTF-8 encoded message at the given index
+     */
+    public byte byteAt(int index) {
+        checkValid();
+        if(index < 0 || index >= byteLength) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        return buffer.get(offset + index);
+    }
+
+    /**
+     * Copies the UTF-8 bytes of the message into the given array
+     * @throws IndexOutOfBoundsException If there isn't room in the array from the given offset
+     */
+    public void copyBytes(byte[] destination, int destinationOffset) {
+        checkValid();
+        buffer.get(offset, destination, destinationOffset, byteLength);
+    }
+
+    /**
+     * @return A copy of the UTF-8 bytes of the message
+     */
+    public byte[] toByteArray() {
+        var bytes = new byte[byteLength()];
+        copyBytes(bytes, 0);
+        return bytes;
+    }
+
+    @Override
+    public int length() {
+        decode();
+        return charLength;
+    }
+
+    @Override
+    public char charAt(int index) {
+        decode();
+        if(index < 0 || index >= charLength) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        return chars.get(index);
+    }
+
+    /**
+     * @return A copy of the characters in the given range
+     */
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        decode();
+        return new String(chars.array(), start, end - start);
+    }
+
+    /**
+     * @return Whether the message has the same characters as the given sequence.  Doesn't allocate anything.
+     */
+    public boolean contentEquals(CharSequence other) {
+        decode();
+        if(other.length() != charLength) {
+            return false;
+        }
+        for(int i = 0; i < charLength; i++) {
+            if(chars.get(i) != other.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return A copy of the message, which can be kept after the callback has returned
+     */
+    @Override
+    public String toString() {
+        checkValid();
+        if(buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + offset, byteLength, StandardCharsets.UTF_8);
+        }
+        return new String(toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private void decode() {
+        checkValid();
+        if(charLength >= 0) {
+            return;
+        }
+        //A UTF-8 message never has more characters than bytes
+        if(chars.capacity() < byteLength) {
+            chars = CharBuffer.allocate(Math.max(byteLength, chars.capacity() * 2));
+        }
+        var charArray = chars.array();
+        int i = 0;
+        for(; i < byteLength; i++) {
+            var b = buffer.get(offset + i);
+            if(b < 0) {
+                break;
+            }
+            charArray[i] = (char)b;
+        }
+        if(i == byteLength) {
+            charLength = byteLength;
+            return;
+        }
+        //The receive buffer is replaced when it grows
+        if(decodingBufferSource != buffer) {
+            decodingBufferSource = buffer;
+            decodingBuffer = buffer.duplicate();
+        }
+        decodingBuffer.limit(offset + byteLength).position(offset + i);
+        chars.clear().position(i);
+        decoder.reset();
+        decoder.decode(decodingBuffer, chars, true);
+        decoder.flush(chars);
+        charLength = chars.position();
+    }
+
+    private void checkValid() {
+        if(buffer == null) {
+            throw new IllegalStateException("A " + MessageView.class.getSimpleName() + " can't be used after the handler it was passed to has returned");
+        }
+    }
+}
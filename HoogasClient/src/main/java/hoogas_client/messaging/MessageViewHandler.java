@@ -0,0 +1,21 @@
+package hoogas_client.messaging;
+
+
+/**
+ * The same as {@link MessageHandler} except that the messages are passed as a {@link MessageView} over the receive buffer rather than
+ * as Strings, so nothing has to be allocated per message.  The view is only valid until this returns, so anything that needs to be
+ * kept has to be copied out of it.
+ * It is called on the receiving thread so it should return quickly, as no more messages are read until it does.
+ * @see MessageReceiver#startReceivingViews(MessageViewHandler, WaitStrategy, boolean)
+ * @see SelectorMessageReceiver#startReceivingViews(MessageViewHandler, WaitStrategy, boolean)
+ * @author Joshua Newman, February 2025
+ */
+@FunctionalInterface
+public interface MessageViewHandler {
+
+    /**
+     * @param connectionId see {@link MessageHandler#onMessage(int, String)}
+     * @param message The message without its separator character.  Only valid during this call.
+     */
+    void onMessage(int connectionId, MessageView message);
+}
@@ -0,0 +1,37 @@
+package hoogas_client.messaging;
+
+
+/**
+ * What {@link BufferedMessageSender#send(String)} does when the buffer of messages waiting to be sent is full, which happens when
+ * messages are being submitted faster than they can be sent or the connection is down.  If the buffer is split into stripes then
+ * it's the calling thread's stripe that's full, see {@link BufferedMessageSenderOptions#withProducerStripes(int)}.
+ * Messages that are dropped or rejected are counted, see {@link BufferedMessageSender#getNumMessagesDropped()} and
+ * {@link BufferedMessageSender#getNumMessagesRejected()}.
+ * @see BufferedMessageSenderOptions#withQueueFullPolicy(QueueFullPolicy)
+ * @author Joshua Newman, February 2025
+ */
+public enum QueueFullPolicy {
+
+    /**
+     * The caller waits until there's room in the buffer.  It spins, yields and then parks while waiting rather than blocking on a lock.
+     */
+    BLOCK,
+    /**
+     * As {@link #BLOCK} except that the caller only waits for as long as the timeout in the options, after which the message is dropped.
+     * @see BufferedMessageSenderOptions#withQueueFullTimeoutMillis(long)
+     */
+    BLOCK_WITH_TIMEOUT,
+    /**
+     * The message being sent is dropped and the caller returns straight away.
+     */
+    DROP_NEWEST,
+    /**
+     * The oldest message in the buffer, or in the calling thread's stripe of it, is dropped to make room for the one being sent, and
+     * the caller returns straight away.
+     */
+    DROP_OLDEST,
+    /**
+     * The message is rejected with an {@link IllegalStateException} so the caller can decide what to do with it.
+     */
+    FAIL_FAST
+}
@@ -0,0 +1,10 @@
+package hoogas_client.messaging;
+
+
+/**
+ * A message read by a receiver that serves more than one connection, along with the id of the connection it came in on.
+ * @see SelectorMessageReceiver
+ * @author Joshua Newman, January 2025
+ */
+public record ReceivedMessage(int connectionId, String text) {
+}
@@ -0,0 +1,127 @@
+package hoogas_client.messaging;
+
+import java.io.IOException;
+
+
+/**
+ * Runs on its own thread, reading messages from a connection and pushing them to a {@link MessageHandler}, or a {@link MessageViewHandler}, as soon as they
+ * arrive.  Subclasses do the reading, this class decides when to read, which is determined by the {@link WaitStrategy}.
+ * The routine runs until it is stopped or until reading fails e.g. because the connection has been closed.
+ * @author Joshua Newman, February 2025
+ */
+abstract class ReceivingRoutine implements Runnable {
+
+
+    private final WaitStrategy waitStrategy;
+    private final MessageHandler messageHandler;
+    private final MessageViewHandler messageViewHandler;
+    //Passed to the readers so that exceptions thrown by a view handler are dealt with in the same way as in dispatch(int, String)
+    final MessageViewHandler viewDispatcher = this::dispatch;
+    private volatile boolean stopped;
+    private volatile Thread thread;
+
+
+    ReceivingRoutine(MessageHandler messageHandler, WaitStrategy waitStrategy) {
+        this.messageHandler = messageHandler;
+        this.messageViewHandler = null;
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * For routines that pass the messages on as {@link MessageView}s, through {@link #viewDispatcher}, rather than as Strings
+     */
+    ReceivingRoutine(MessageViewHandler messageViewHandler, WaitStrategy waitStrategy) {
+        this.messageHandler = null;
+        this.messageViewHandler = messageViewHandler;
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * Reads whatever is available and passes any complete messages to {@link #dispatch(int, String)}, or to {@link #viewDispatcher}
+     * if the routine was created with a {@link MessageViewHandler}.
+     * @param block If true then this should block until something can be read
+     * @return The number of messages dispatched
+     * @throws IOException If the connection can't be read from any more.  This stops the routine.
+     */
+    abstract int receive(boolean block) throws IOException;
+
+    /**
+     * @param name The name of the thread the routine is started on
+     * @param useVirtualThread Whether to run on a virtual thread, which is cheap to create and to keep blocked.  This shouldn't be
+     *                         used with {@link WaitStrategy#BUSY_SPIN}, as a virtual thread that never blocks holds onto its carrier thread.
+     */
+    void start(String name, boolean useVirtualThread) {
+        if(thread != null) {
+            throw new IllegalArgumentException(name + " has already been started");
+        }
+        thread = useVirtualThread ? Thread.ofVirtual().name(name).start(this) :
+                Thread.ofPlatform().name(name).daemon(false).start(this);
+    }
+
+    /**
+     * Stops the routine.  If the routine is blocked in a read then it will only stop once the read returns, so the connection
+     * should be closed as well.
+     */
+    void stop() {
+        stopped = true;
+        var t = thread;
+        if(t != null && t != Thread.currentThread()) {
+            t.interrupt();
+        }
+    }
+
+    boolean isRunning() {
+        var t = thread;
+        return t != null && t.isAlive();
+    }
+
+    /**
+     * Called on the routine's thread once it has stopped, whether it was stopped or reading failed.  Does nothing by default.
+     */
+    void onStopped() {}
+
+    void dispatch(int connectionId, String message) {
+        try {
+            messageHandler.onMessage(connectionId, message);
+        }
+        catch(RuntimeException e) {
+            //¬log properly!
+            System.out.println("Message handler threw an exception for message: " + message + "  " + e);
+        }
+    }
+
+    private void dispatch(int connectionId, MessageView message) {
+        try {
+            messageViewHandler.onMessage(connectionId, message);
+        }
+        catch(RuntimeException e) {
+            //¬log properly!
+            System.out.println("Message handler threw an exception for message: " + message + "  " + e);
+        }
+    }
+
+    @Override
+    public void run() {
+        int idleCount = 0;
+        var blocking = waitStrategy == WaitStrategy.BLOCKING;
+        try {
+            while(!stopped) {
+                if(receive(blocking) > 0 || blocking) {
+                    idleCount = 0;
+                }
+                else {
+                    waitStrategy.idle(idleCount++);
+                }
+            }
+        }
+        catch(Exception e) {
+            if(!stopped) {
+                //¬log properly!
+                System.out.println("Stopped receiving on " + Thread.currentThread().getName() + ": " + e);
+            }
+        }
+        finally {
+            onStopped();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package hoogas_client.messaging;
+
+import hoogas_client.Constants;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+
+
+/**
+ * Writes what a receiver sends back over one connection: the messages passed to its sendMessage method, and the acknowledgements and
+ * heartbeat replies for a sender using acknowledged delivery or heartbeats.
+ * The sender's parser picks the framing of what it receives from the first bytes it sees, so the framing of the replies is fixed by
+ * the first one and never changes after that.  It's the framing the sender is using, if anything has been received from it by then,
+ * and otherwise the receiver's configured framing.  Acknowledgements and heartbeats can only be sent using {@link FramingMode#LENGTH_PREFIXED},
+ * so if messages may be sent back to a sender using acknowledged delivery or heartbeats before it has sent anything then the receiver
+ * should be configured with that framing.
+ * @author Joshua Newman, February 2025
+ */
+final class ReplyWriter {
+
+
+    private final OutputStream outputStream;
+    private final FramingMode configuredFramingMode;
+    //Null until the first reply
+    private FramingMode framingMode;
+    //Only one of these is created, depending on the framing
+    private OutputStreamWriter writer;
+    private HoogasMessageWriter frameWriter;
+
+
+    /**
+     * @param outputStream Where the replies are written
+     * @param configuredFramingMode The framing used if nothing has been received from the sender by the time of the first reply
+     */
+    ReplyWriter(OutputStream outputStream, FramingMode configuredFramingMode) {
+        this.outputStream = outputStream;
+        this.configuredFramingMode = configuredFramingMode;
+    }
+
+
+    /**
+     * Sends the message to the other side.  If it's sent as a frame then a {@link Constants#MSG_SEPARATOR_CHAR} at the end of it is
+     * dropped as it's not needed, otherwise it's written as it is.
+     * @param senderFramingMode The framing the sender is using, or null if nothing has been received from it yet
+     */
+    synchronized void sendMessage(String msg, FramingMode senderFramingMode) throws IOException {
+        if(getFramingMode(senderFramingMode) == FramingMode.LENGTH_PREFIXED) {
+            frameWriter.doSend(HoogasMessageWriter.stripTrailingSeparator(msg));
+        }
+        else {
+            writer.write(msg);
+            writer.flush();
+        }
+    }
+
+    /**
+     * Acknowledges the given sequence number if there is one, otherwise replies to a heartbeat if one was received, as the acknowledgement
+     * does just as well.  Does nothing if there's neither.
+     * @param sequence The last sequence number delivered, or -1 if there's nothing to acknowledge
+     * @param heartbeat Whether a heartbeat has been received
+     * @param senderFramingMode see {@link #sendMessage(String, FramingMode)}
+     * @throws IOException If the replies to this connection have already been fixed to {@link FramingMode#SEPARATOR}
+     */
+    synchronized void acknowledge(long sequence, boolean heartbeat, FramingMode senderFramingMode) throws IOException {
+        if(sequence < 0 && !heartbeat) {
+            return;
+        }
+        if(getFramingMode(senderFramingMode) != FramingMode.LENGTH_PREFIXED) {
+            throw new IOException("Cannot acknowledge, as messages have already been sent back using " + framingMode +
+                    " framing before anything was received.  The receiver should be configured with " + FramingMode.LENGTH_PREFIXED);
+        }
+        if(sequence >= 0) {
+            frameWriter.appendAcknowledgement(sequence);
+        }
+        else {
+            frameWriter.appendHeartbeat();
+        }
+        frameWriter.flush();
+    }
+
+    private FramingMode getFramingMode(FramingMode senderFramingMode) throws IOException {
+        if(framingMode == null) {
+            framingMode = senderFramingMode != null ? senderFramingMode : configuredFramingMode;
+            if(framingMode == FramingMode.LENGTH_PREFIXED) {
+                frameWriter = new HoogasMessageWriter(outputStream, framingMode);
+            }
+            else {
+                writer = new OutputStreamWriter(outputStream, StandardCharsets.UTF_8);
+            }
+        }
+        return framingMode;
+    }
+}
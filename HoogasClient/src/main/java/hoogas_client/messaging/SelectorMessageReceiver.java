@@ -0,0 +1,384 @@
+package hoogas_client.messaging;
+
+import hoogas_client.Constants;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Receives messages from any number of connections on a single port, or a single Unix domain socket, using a single thread.  This is the multi-client
+ * counterpart to {@link MessageReceiver}, which serves exactly one connection, and uses the same protocol i.e. each message
+ * needs to be terminated by a {@link Constants#MSG_SEPARATOR_CHAR} character, so any number of {@link MessageSender}
+ * and {@link BufferedMessageSender} instances can send to the same instance of this class.
+ * Each connection is given an id when it is accepted and keeps its own framing state, so a message that is only partly
+ * received on one connection doesn't affect the messages received on any of the others.  The id is returned along with
+ * each message so callers can see which connection it came from and can use it to send messages back to that connection.
+ * If a {@link ConnectionListener} is provided then it will receive a {@link ConnectionListener#onConnectionEstablished(int)}
+ * event when a connection is accepted and a {@link ConnectionListener#onConnectionLost(int)} event when one is closed by the other side.
+ * Messages can either be polled for using {@link #getReceivedMessages()} or pushed to a {@link MessageHandler} by a receiving
+ * thread, see {@link #startReceiving(MessageHandler, WaitStrategy, boolean)}, or, so that nothing is allocated per message, pushed to a
+ * {@link MessageViewHandler}, see {@link #startReceivingViews(MessageViewHandler, WaitStrategy, boolean)}.
+ * Connections from senders using acknowledged delivery are handled as described in {@link MessageReceiver}.  What's been delivered is
+ * tracked across all the connections, so messages re-sent by a sender that has reconnected aren't delivered again.
+ * THIS CLASS IS NOT THREAD-SAFE.  All calls apart from {@link #close()} should be made from the same thread.
+ * @see #getReceivedMessages()
+ * @author Joshua Newman, January 2025
+ */
+public class SelectorMessageReceiver implements AutoCloseable {
+
+
+    private static final int DEFAULT_RECEIVED_MSG_BUFFER_SIZE = 1000;
+    //Large enough that a burst of connections doesn't get refused before they can be accepted
+    private static final int CONNECTION_BACKLOG = 1024;
+    //A connection with more than this waiting to be sent to it isn't reading what it's sent, so it's closed rather than using up more memory
+    private static final int MAX_PENDING_WRITE_BYTES = 16 * 1024 * 1024;
+
+    private final SocketAddress address;
+    private final int inputStreamReadingChunkSize;
+    private final ConnectionListener connectionListener;
+    private final Map<Integer, ClientConnection> connections = new ConcurrentHashMap<>();
+    private volatile Selector selector;
+    private volatile ServerSocketChannel serverSocketChannel;
+    //Reused for every read, as the reads all happen on the same thread
+    private final List<String> parsedMessages = new ArrayList<>();
+    private int nextConnectionId;
+    private final Map<Long, AtomicLong> deliveredSequences = HoogasFrameParser.newDeliveredSequences(HoogasFrameParser.DEFAULT_MAX_SESSIONS);
+    private FramingMode replyFramingMode = FramingMode.SEPARATOR;
+    private volatile ReceivingRoutine receivingRoutine;
+
+
+    SelectorMessageReceiver(int port) {
+        this(port, DEFAULT_RECEIVED_MSG_BUFFER_SIZE, null);
+    }
+
+    /**
+     * @param port The port to listen for connections on
+     * @param inputStreamReadingChunkSize The maximum number of bytes read from a connection in one go
+     * @param connectionListener Receives events when connections are accepted or lost.  Can be null.
+     */
+    SelectorMessageReceiver(int port, int inputStreamReadingChunkSize, ConnectionListener connectionListener) {
+        this(new InetSocketAddress(port), inputStreamReadingChunkSize, connectionListener);
+    }
+
+    /**
+     * @param address The address to listen for connections on.  This is either an {@link InetSocketAddress} or a
+     *                {@link java.net.UnixDomainSocketAddress}, in which case the socket file is created when connecting and deleted when closed.
+     * @param inputStreamReadingChunkSize The maximum number of bytes read from a connection in one go
+     * @param connectionListener Receives events when connections are accepted or lost.  Can be null.
+     */
+    SelectorMessageReceiver(SocketAddress address, int inputStreamReadingChunkSize, ConnectionListener connectionListener) {
+        this.address = address;
+        this.inputStreamReadingChunkSize = inputStreamReadingChunkSize;
+        this.connectionListener = connectionListener;
+    }
+
+    /**
+     * @see MessageReceiver#setReplyFramingMode(FramingMode)
+     * @throws IllegalArgumentException If the receiver is already connected
+     */
+    public void setReplyFramingMode(FramingMode replyFramingMode) {
+        if(selector != null) {
+            throw new IllegalArgumentException("The reply framing has to be set before connecting");
+        }
+        this.replyFramingMode = Objects.requireNonNull(replyFramingMode);
+    }
+
+    /**
+     * Should be called in order to start listening for connections.  Unlike {@link MessageReceiver#connect()} this
+     * does not block.  Connections are accepted during the calls to {@link #getReceivedMessages()}.
+     */
+    public void connect() throws IOException {
+        selector = Selector.open();
+        serverSocketChannel = Transport.bind(address, CONNECTION_BACKLOG);
+        serverSocketChannel.configureBlocking(false);
+        serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Accepts any pending connections and reads the latest bytes available from each connection that has any, up to the chunk
+     * size provided in the constructor per connection.  This does not block.
+     * It will return all the complete messages read in the order in which they were received on each connection.  Messages
+     * from different connections may be interleaved.
+     * The message {@link Constants#MSG_SEPARATOR_CHAR} character is not included in the returned messages.
+     * @throws IOException If the listening socket can't be used e.g. if this instance hasn't been connected.  Problems
+     * with individual connections result in those connections being closed, not an exception.
+     */
+    public List<ReceivedMessage> getReceivedMessages() throws IOException {
+        if(receivingRoutine != null) {
+            throw new IllegalStateException("Messages are being pushed to a " + MessageHandler.class.getSimpleName());
+        }
+        var messageList = new ArrayList<ReceivedMessage>();
+        if(selector.selectNow() > 0) {
+            processSelectedKeys((connectionId, message) -> messageList.add(new ReceivedMessage(connectionId, message)), null);
+        }
+        return messageList;
+    }
+
+    /**
+     * An alternative to polling {@link #getReceivedMessages()}.  Starts a thread that accepts connections and reads messages as soon
+     * as they arrive, passing them to the given handler.  Should be called after {@link #connect()}.  {@link #getReceivedMessages()}
+     * can't be used once this has been called.  The thread stops when this instance is closed.
+     * @param messageHandler Receives the messages along with the id of the connection they came in on
+     * @param waitStrategy How the thread waits for connections and messages to arrive.  {@link WaitStrategy#BLOCKING} blocks in the selector.
+     * @param useVirtualThread Whether to receive on a virtual thread rather than a platform thread
+     * @throws IllegalArgumentException If this method has already been called
+     */
+    public void startReceiving(MessageHandler messageHandler, WaitStrategy waitStrategy, boolean useVirtualThread) {
+        if(receivingRoutine != null) {
+            throw new IllegalArgumentException("Already receiving");
+        }
+        Objects.requireNonNull(selector, "Not connected");
+        receivingRoutine = new ReceivingRoutine(messageHandler, waitStrategy) {
+            @Override
+            int receive(boolean block) throws IOException {
+                var numKeysSelected = block ? selector.select() : selector.selectNow();
+                return numKeysSelected > 0 ? processSelectedKeys(this::dispatch, null) : 0;
+            }
+        };
+        receivingRoutine.start("ReceivingRoutine_" + SelectorMessageReceiver.class.getName() + " " + address, useVirtualThread);
+    }
+
+    /**
+     * The same as {@link #startReceiving(MessageHandler, WaitStrategy, boolean)} except that each message is passed to the handler as a
+     * {@link MessageView} over the bytes in the connection's receive buffer rather than as a String, so once the buffers have grown to fit
+     * the messages nothing is allocated per message.  The view is only valid until the handler returns.
+     * @throws IllegalArgumentException If this method or {@link #startReceiving(MessageHandler, WaitStrategy, boolean)} has already been called
+     */
+    public void startReceivingViews(MessageViewHandler messageViewHandler, WaitStrategy waitStrategy, boolean useVirtualThread) {
+        if(receivingRoutine != null) {
+            throw new IllegalArgumentException("Already receiving");
+        }
+        Objects.requireNonNull(selector, "Not connected");
+        receivingRoutine = new ReceivingRoutine(messageViewHandler, waitStrategy) {
+            @Override
+            int receive(boolean block) throws IOException {
+                var numKeysSelected = block ? selector.select() : selector.selectNow();
+                return numKeysSelected > 0 ? processSelectedKeys(null, viewDispatcher) : 0;
+            }
+        };
+        receivingRoutine.start("ReceivingRoutine_" + SelectorMessageReceiver.class.getName() + " " + address, useVirtualThread);
+    }
+
+    //Accepts any pending connections and reads from the connections that are ready, passing the messages to whichever of the handlers isn't null
+    private int processSelectedKeys(MessageHandler messageHandler, MessageViewHandler messageViewHandler) throws IOException {
+        int numMessages = 0;
+        var selectedKeys = selector.selectedKeys();
+        for(SelectionKey key : selectedKeys) {
+            if(!key.isValid()) {
+                continue;
+            }
+            if(key.isAcceptable()) {
+                accept();
+            }
+            else {
+                var connection = (ClientConnection)key.attachment();
+                try {
+                    if(key.isWritable()) {
+                        connection.flushPendingWrites();
+                    }
+                    if(!key.isReadable()) {
+                        continue;
+                    }
+                    var numRead = connection.read(parsedMessages, messageViewHandler);
+                    if(numRead < 0) {
+                        closeConnection(connection);
+                    }
+                    else {
+                        numMessages += numRead;
+                    }
+                    for(String parsedMessage : parsedMessages) {
+                        messageHandler.onMessage(connection.connectionId, parsedMessage);
+                    }
+                    connection.acknowledge();
+                }
+                catch(IOException e) {
+                    closeConnection(connection);
+                }
+                finally {
+                    parsedMessages.clear();
+                }
+            }
+        }
+        selectedKeys.clear();
+        return numMessages;
+    }
+
+    /**
+     * Sends the given message to the connection with the given id.
+     * @throws IOException If the message cannot be sent e.g. if there is no such connection or it has been lost
+     */
+    public void sendMessage(int connectionId, String msg) throws IOException {
+        var connection = connections.get(connectionId);
+        if(connection == null) {
+            throw new IOException("No connection with id " + connectionId);
+        }
+        connection.write(msg);
+    }
+
+    /**
+     * @return The ids of the connections that are currently open
+     */
+    public Set<Integer> getConnectionIds() {
+        return connections.keySet();
+    }
+
+    private void accept() throws IOException {
+        SocketChannel socketChannel;
+        while((socketChannel = serverSocketChannel.accept()) != null) {
+            socketChannel.configureBlocking(false);
+            var connection = new ClientConnection(nextConnectionId++, socketChannel, inputStreamReadingChunkSize, deliveredSequences, replyFramingMode);
+            connection.selectionKey = socketChannel.register(selector, SelectionKey.OP_READ, connection);
+            connections.put(connection.connectionId, connection);
+            if(connectionListener != null) {
+                connectionListener.onConnectionEstablished(connection.connectionId);
+            }
+        }
+    }
+
+    private void closeConnection(ClientConnection connection) {
+        connections.remove(connection.connectionId);
+        try {
+            connection.socketChannel.close();
+        }
+        catch(IOException e) {
+            //¬log the exception
+        }
+        if(connectionListener != null) {
+            connectionListener.onConnectionLost(connection.connectionId);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(receivingRoutine != null) {
+            receivingRoutine.stop();
+        }
+        for(ClientConnection connection : connections.values()) {
+            connection.socketChannel.close();
+        }
+        connections.clear();
+        if(serverSocketChannel != null) {
+            serverSocketChannel.close();
+            Transport.unbind(address);
+        }
+        if(selector != null) {
+            selector.close();
+        }
+    }
+
+    //Holds the channel for an accepted connection along with the framing state for the messages read from it and the bytes waiting to be written to it
+    private static class ClientConnection {
+
+        private final int connectionId;
+        private final SocketChannel socketChannel;
+        private final int chunkSize;
+        private final HoogasFrameParser frameParser;
+        private final ReplyWriter replyWriter;
+        private SelectionKey selectionKey;
+        //What's been sent back but not taken by the socket yet, in "write mode".  It's written when the socket has room, see flushPendingWrites().
+        private ByteBuffer pendingWrites = ByteBuffer.allocate(0);
+
+        private ClientConnection(int connectionId, SocketChannel socketChannel, int chunkSize, Map<Long, AtomicLong> deliveredSequences,
+                                 FramingMode replyFramingMode) {
+            this.connectionId = connectionId;
+            this.socketChannel = socketChannel;
+            this.chunkSize = chunkSize;
+            this.frameParser = new HoogasFrameParser(chunkSize, true, deliveredSequences);
+            this.replyWriter = new ReplyWriter(new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    queue(ByteBuffer.wrap(new byte[]{(byte)b}));
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    queue(ByteBuffer.wrap(b, off, len));
+                }
+            }, replyFramingMode);
+        }
+
+        //Reads what's available and adds any complete messages to the list, or passes them to the handler if there is one.
+        //Returns the number of messages, or -1 if the other side has closed the connection.
+        private int read(List<String> parsedMessages, MessageViewHandler messageViewHandler) throws IOException {
+            var buffer = frameParser.getWritableBuffer(chunkSize);
+            buffer.limit(buffer.position() + chunkSize);
+            int numBytesRead;
+            try {
+                numBytesRead = socketChannel.read(buffer);
+            }
+            finally {
+                buffer.limit(buffer.capacity());
+            }
+            if(numBytesRead <= 0) {
+                return numBytesRead;
+            }
+            return messageViewHandler != null ? frameParser.parse(messageViewHandler, connectionId) : frameParser.parse(parsedMessages);
+        }
+
+        //Acknowledges the messages delivered by the last read if the sender is using acknowledged delivery, otherwise replies to a heartbeat if one was received
+        private void acknowledge() throws IOException {
+            replyWriter.acknowledge(frameParser.takePendingAcknowledgement(), frameParser.takePendingHeartbeat(), frameParser.getFramingMode());
+        }
+
+        private void write(String msg) throws IOException {
+            replyWriter.sendMessage(msg, frameParser.getFramingMode());
+        }
+
+        //Writes as much as the socket will take straight away.  The rest is kept until the selector says the socket has room for it, so
+        //a connection that isn't being read from on the other side doesn't hold up the others.
+        private synchronized void queue(ByteBuffer bytes) throws IOException {
+            if(pendingWrites.position() == 0) {
+                socketChannel.write(bytes);
+                if(!bytes.hasRemaining()) {
+                    return;
+                }
+            }
+            if(pendingWrites.position() + bytes.remaining() > MAX_PENDING_WRITE_BYTES) {
+                throw new IOException("More than " + MAX_PENDING_WRITE_BYTES + " bytes are waiting to be sent to connection " + connectionId);
+            }
+            if(pendingWrites.remaining() < bytes.remaining()) {
+                var grown = ByteBuffer.allocate(Math.max(pendingWrites.capacity() * 2, pendingWrites.position() + bytes.remaining()));
+                pendingWrites.flip();
+                pendingWrites = grown.put(pendingWrites);
+            }
+            var wasEmpty = pendingWrites.position() == 0;
+            pendingWrites.put(bytes);
+            if(wasEmpty) {
+                selectionKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                //In case this isn't the selector's thread and it's blocked waiting for something to read
+                selectionKey.selector().wakeup();
+            }
+        }
+
+        //Called when the selector says the socket has room.  Once everything's gone the buffer is let go of, so a burst of replies doesn't
+        //keep it at its biggest for the life of the connection.
+        private synchronized void flushPendingWrites() throws IOException {
+            pendingWrites.flip();
+            try {
+                socketChannel.write(pendingWrites);
+            }
+            finally {
+                pendingWrites.compact();
+            }
+            if(pendingWrites.position() == 0) {
+                pendingWrites = ByteBuffer.allocate(0);
+                selectionKey.interestOps(SelectionKey.OP_READ);
+            }
+        }
+    }
+}
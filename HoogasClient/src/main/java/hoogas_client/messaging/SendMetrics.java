@@ -0,0 +1,30 @@
+package hoogas_client.messaging;
+
+
+/**
+ * The metrics a {@link BufferedMessageSender} keeps on the messages it sends and on its connection, see {@link BufferedMessageSender#getSendMetrics()}.
+ * They're recorded all the time, in histograms and counters that take up a fixed amount of memory, so taking a snapshot every so often
+ * shows e.g. whether messages are having to wait in the buffer for longer than usual, which happens before the buffer fills up and
+ * the threads sending messages start to block.  Unlike a {@link SendMetricsListener} nothing is called on the sending thread.
+ * The methods can be called from any thread.
+ * @see SendMetricsSnapshot
+ * @author Joshua Newman, February 2025
+ */
+public interface SendMetrics {
+
+    /**
+     * @return The metrics recorded since the sender was created or since they were last reset
+     */
+    SendMetricsSnapshot snapshot();
+
+    /**
+     * Takes a snapshot and resets the metrics at the same time, so anything recorded while it's happening goes into either this
+     * snapshot or the next one.  Calling this at regular intervals gives the metrics for each interval.
+     */
+    SendMetricsSnapshot snapshotAndReset();
+
+    /**
+     * Clears the metrics
+     */
+    void reset();
+}
@@ -0,0 +1,35 @@
+package hoogas_client.messaging;
+
+
+/**
+ * Receives metrics on the messages sent by a {@link BufferedMessageSender} and on its connection.  The methods are called on the
+ * sending thread so they should return quickly.  Only {@link #onBatchSent(int, int, int)} has to be implemented.
+ * @see BufferedMessageSenderOptions#withSendMetricsListener(SendMetricsListener)
+ * @author Joshua Newman, February 2025
+ */
+public interface SendMetricsListener {
+
+    /**
+     * Called each time a batch of messages has been written to the socket in a single write.
+     * @param connectionId The id of the sender's connection
+     * @param numMessages How many messages were in the batch
+     * @param numBytes How many bytes were written
+     */
+    void onBatchSent(int connectionId, int numMessages, int numBytes);
+
+    /**
+     * Called each time an attempt to connect fails.
+     * @param connectionId The id of the sender's connection
+     * @param attempt How many attempts have failed in a row, starting from 1
+     * @param nextAttemptInMillis How long the sender will wait before the next attempt, including the jitter
+     */
+    default void onConnectAttemptFailed(int connectionId, int attempt, long nextAttemptInMillis) {}
+
+    /**
+     * Called each time the connection is established, including the first time.
+     * @param connectionId The id of the sender's connection
+     * @param numAttempts How many attempts it took
+     * @param millisToConnect How long it took from the first attempt, which after a lost connection is when the loss was noticed
+     */
+    default void onConnected(int connectionId, int numAttempts, long millisToConnect) {}
+}
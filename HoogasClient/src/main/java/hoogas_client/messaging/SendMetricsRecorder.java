@@ -0,0 +1,70 @@
+package hoogas_client.messaging;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Records the metrics for a {@link BufferedMessageSender}.  The recording methods are only called by the sending thread.
+ * @author Joshua Newman, February 2025
+ */
+class SendMetricsRecorder implements SendMetrics {
+
+
+    private final LogHistogram queueTimeNanos = new LogHistogram();
+    private final LogHistogram writeTimeNanos = new LogHistogram();
+    private final LogHistogram queueDepth = new LogHistogram();
+    private final AtomicLong numMessagesSent = new AtomicLong();
+    private final AtomicLong numBytesSent = new AtomicLong();
+    private final AtomicLong numBatchesSent = new AtomicLong();
+    private final AtomicLong numReconnects = new AtomicLong();
+    private final AtomicLong numConnectAttemptsFailed = new AtomicLong();
+
+
+    void recordQueueTime(long nanos) {
+        queueTimeNanos.record(nanos);
+    }
+
+    void recordQueueDepth(int depth) {
+        queueDepth.record(depth);
+    }
+
+    void recordBatchSent(int numMessages, int numBytes, long writeNanos) {
+        writeTimeNanos.record(writeNanos);
+        numMessagesSent.addAndGet(numMessages);
+        numBytesSent.addAndGet(numBytes);
+        numBatchesSent.incrementAndGet();
+    }
+
+    void recordReconnect() {
+        numReconnects.incrementAndGet();
+    }
+
+    void recordConnectAttemptFailed() {
+        numConnectAttemptsFailed.incrementAndGet();
+    }
+
+    @Override
+    public SendMetricsSnapshot snapshot() {
+        return snapshot(false);
+    }
+
+    @Override
+    public SendMetricsSnapshot snapshotAndReset() {
+        return snapshot(true);
+    }
+
+    @Override
+    public void reset() {
+        snapshot(true);
+    }
+
+    private SendMetricsSnapshot snapshot(boolean reset) {
+        return new SendMetricsSnapshot(queueTimeNanos.snapshot(reset), writeTimeNanos.snapshot(reset), queueDepth.snapshot(reset),
+                get(numMessagesSent, reset), get(numBytesSent, reset), get(numBatchesSent, reset), get(numReconnects, reset),
+                get(numConnectAttemptsFailed, reset));
+    }
+
+    private static long get(AtomicLong counter, boolean reset) {
+        return reset ? counter.getAndSet(0) : counter.get();
+    }
+}
@@ -0,0 +1,20 @@
+package hoogas_client.messaging;
+
+
+/**
+ * The metrics recorded by a {@link BufferedMessageSender}, as they were when the snapshot was taken, see {@link SendMetrics}.
+ * Times are in nanoseconds.
+ * @param queueTimeNanos How long each message waited between being passed to {@link BufferedMessageSender#send(String)} and being
+ *                       written to the socket.  Messages that were spilled to disk aren't included.
+ * @param writeTimeNanos How long each write of a batch of messages to the socket took
+ * @param queueDepth How many messages were waiting in the buffer each time the sending thread went to take a batch from it
+ * @param numMessagesSent How many messages have been written to the socket, including any re-sent after a reconnect
+ * @param numBytesSent How many bytes have been written to the socket
+ * @param numBatchesSent How many writes to the socket there have been
+ * @param numReconnects How many times the connection has been re-established after being lost
+ * @param numConnectAttemptsFailed How many attempts to connect have failed
+ * @author Joshua Newman, February 2025
+ */
+public record SendMetricsSnapshot(HistogramSnapshot queueTimeNanos, HistogramSnapshot writeTimeNanos, HistogramSnapshot queueDepth,
+                                  long numMessagesSent, long numBytesSent, long numBatchesSent, long numReconnects, long numConnectAttemptsFailed) {
+}
@@ -0,0 +1,195 @@
+package hoogas_client.messaging;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+
+/**
+ * Holds messages on disk when there are too many waiting to be sent to keep in memory e.g. during a long outage.  Messages are
+ * appended to memory-mapped segment files and read back in the order they were appended.  Each segment file is deleted once everything
+ * in it has been read.
+ * Each message is stored as a 4 byte header holding the length of the message plus 1, followed by the UTF-8 bytes of the message.  The
+ * header is written after the message so a header of 0, which is what the rest of a new segment is filled with, always marks the end of
+ * what's been written.
+ * Segments left behind by a previous instance with the same directory and connection id e.g. because the application was restarted
+ * during an outage, are picked up and read first.  The writes are only forced to disk when the journal is closed, so the messages survive
+ * the application crashing but not necessarily the machine crashing.  Messages read from a segment before a restart will be read again.
+ * This is not thread-safe and is only used by the sending thread.
+ * @see BufferedMessageSenderOptions#withSpillDirectory(Path)
+ * @author Joshua Newman, February 2025
+ */
+class SpillJournal implements AutoCloseable {
+
+
+    private static final int RECORD_HEADER_LENGTH = 4;
+    private static final String SEGMENT_FILE_SUFFIX = ".spill";
+
+    private final Path directory;
+    private final String segmentFilePrefix;
+    private final int segmentBytes;
+    //Oldest first.  The last one is the one being written to.
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private long nextSegmentIndex;
+    private long numMessages;
+
+
+    /**
+     * @param directory Where the segment files go.  It's created if it doesn't exist.
+     * @param connectionId The id of the sender's connection, which is used to name the segment files
+     * @param segmentBytes The size of each segment file.  A message too big to fit in one gets a segment to itself.
+     */
+    SpillJournal(Path directory, int connectionId, int segmentBytes) throws IOException {
+        this.directory = directory;
+        this.segmentFilePrefix = "hoogas_" + connectionId + "_";
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(directory);
+        recoverSegments();
+    }
+
+
+    /**
+     * Adds the message to the end of the journal
+     */
+    void append(String message) throws IOException {
+        var payload = message.getBytes(StandardCharsets.UTF_8);
+        var recordLength = RECORD_HEADER_LENGTH + payload.length;
+        var segment = segments.peekLast();
+        //Room is always left for a header after the last record so the reader can see where the segment ends
+        if(segment == null || segment.buffer.capacity() - segment.writePosition < recordLength + RECORD_HEADER_LENGTH) {
+            segment = createSegment(Math.max(segmentBytes, recordLength + RECORD_HEADER_LENGTH));
+        }
+        segment.buffer.put(segment.writePosition + RECORD_HEADER_LENGTH, payload);
+        segment.buffer.putInt(segment.writePosition, payload.length + 1);
+        segment.writePosition += recordLength;
+        numMessages++;
+    }
+
+    /**
+     * Takes up to the given number of the oldest messages and adds them to the list in the order they were appended.  Segments
+     * are deleted as they are finished with.
+     * @return The number of messages taken
+     */
+    int drainTo(List<String> list, int maxMessages) {
+        int numTaken = 0;
+        while(numTaken < maxMessages && numMessages > 0) {
+            var segment = segments.peekFirst();
+            var header = segment.readPosition + RECORD_HEADER_LENGTH <= segment.buffer.capacity() ? segment.buffer.getInt(segment.readPosition) : 0;
+            if(header <= 0) {
+                segments.removeFirst();
+                segment.delete();
+                continue;
+            }
+            var payload = new byte[header - 1];
+            segment.buffer.get(segment.readPosition + RECORD_HEADER_LENGTH, payload);
+            segment.readPosition += RECORD_HEADER_LENGTH + payload.length;
+            list.add(new String(payload, StandardCharsets.UTF_8));
+            numMessages--;
+            numTaken++;
+        }
+        if(numMessages == 0) {
+            //Everything has been read so the files aren't needed any more, including the one being written to
+            while(!segments.isEmpty()) {
+                segments.removeFirst().delete();
+            }
+        }
+        return numTaken;
+    }
+
+    boolean isEmpty() {
+        return numMessages == 0;
+    }
+
+    /**
+     * @return The number of messages in the journal that haven't been read yet
+     */
+    long size() {
+        return numMessages;
+    }
+
+    @Override
+    public void close() {
+        for(Segment segment : segments) {
+            segment.buffer.force();
+        }
+    }
+
+    //Maps the segment files left by a previous instance, oldest first, and counts the messages in them
+    private void recoverSegments() throws IOException {
+        var segmentFiles = new ArrayList<Path>();
+        try(var files = Files.list(directory)) {
+            files.filter(f -> {
+                var name = f.getFileName().toString();
+                return name.startsWith(segmentFilePrefix) && name.endsWith(SEGMENT_FILE_SUFFIX);
+            }).forEach(segmentFiles::add);
+        }
+        segmentFiles.sort(Comparator.comparingLong(this::getSegmentIndex));
+        for(Path segmentFile : segmentFiles) {
+            var segment = new Segment(segmentFile, map(segmentFile, Files.size(segmentFile)));
+            while(segment.writePosition + RECORD_HEADER_LENGTH <= segment.buffer.capacity()) {
+                var header = segment.buffer.getInt(segment.writePosition);
+                //Anything that doesn't look like a complete record is treated as the end of the segment
+                if(header <= 0 || segment.writePosition + RECORD_HEADER_LENGTH + header - 1 > segment.buffer.capacity()) {
+                    segment.buffer.putInt(segment.writePosition, 0);
+                    break;
+                }
+                segment.writePosition += RECORD_HEADER_LENGTH + header - 1;
+                numMessages++;
+            }
+            segments.addLast(segment);
+            nextSegmentIndex = getSegmentIndex(segmentFile) + 1;
+        }
+    }
+
+    private Segment createSegment(int size) throws IOException {
+        var segmentFile = directory.resolve(segmentFilePrefix + String.format("%019d", nextSegmentIndex++) + SEGMENT_FILE_SUFFIX);
+        var segment = new Segment(segmentFile, map(segmentFile, size));
+        segments.addLast(segment);
+        return segment;
+    }
+
+    private static MappedByteBuffer map(Path segmentFile, long size) throws IOException {
+        try(var fileChannel = FileChannel.open(segmentFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            //The mapping stays valid after the channel is closed
+            return fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private long getSegmentIndex(Path segmentFile) {
+        var name = segmentFile.getFileName().toString();
+        return Long.parseLong(name.substring(segmentFilePrefix.length(), name.length() - SEGMENT_FILE_SUFFIX.length()));
+    }
+
+    private static class Segment {
+
+
+        private final Path path;
+        private final MappedByteBuffer buffer;
+        private int writePosition;
+        private int readPosition;
+
+
+        private Segment(Path path, MappedByteBuffer buffer) {
+            this.path = path;
+            this.buffer = buffer;
+        }
+
+        private void delete() {
+            try {
+                Files.deleteIfExists(path);
+            }
+            catch(IOException e) {
+                //¬log properly!
+                System.out.println("Could not delete spill segment file: " + path + ".  " + e);
+            }
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package hoogas_client.messaging;
+
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * A bounded buffer made up of several {@link LockFreeRingBuffer}s, called stripes, so that threads adding to it at the same time
+ * mostly update different stripes rather than all competing to move the same tail on.  Each thread always adds to the same stripe,
+ * chosen from its id, so the elements added by any one thread are taken out in the order it added them.  Elements added by different
+ * threads may be taken out in a different order to the one they were added in, as the stripes are emptied in turn.  With one stripe
+ * this is the same as a single {@link LockFreeRingBuffer} and the elements come out in the order they went in across all threads.
+ * The number of stripes is rounded up to the next power of 2 and the capacity is shared between them, so a thread can find its
+ * stripe full while others have room.
+ * It's designed to be emptied by a single thread, which takes from each stripe in turn, starting from a different one each time so
+ * none of them is favoured.  That thread can wait for any of the stripes to become non-empty with {@link #awaitNotEmpty(long)}.
+ * @author Joshua Newman, February 2025
+ */
+class StripedRingBuffer<E> {
+
+
+    private final LockFreeRingBuffer<E>[] stripes;
+    private final int mask;
+    //Which stripe the next drain starts from
+    private int nextStripe;
+    private volatile Thread waitingConsumer;
+
+
+    /**
+     * @param requestedCapacity The minimum number of elements the buffer should be able to hold in total
+     * @param requestedStripes The minimum number of stripes
+     */
+    @SuppressWarnings("unchecked")
+    StripedRingBuffer(int requestedCapacity, int requestedStripes) {
+        if(requestedStripes < 1 || requestedStripes > 1 << 16) {
+            throw new IllegalArgumentException("Invalid number of stripes: " + requestedStripes);
+        }
+        int numStripes = requestedStripes == 1 ? 1 : Integer.highestOneBit(requestedStripes - 1) << 1;
+        mask = numStripes - 1;
+        stripes = (LockFreeRingBuffer<E>[]) new LockFreeRingBuffer<?>[numStripes];
+        int stripeCapacity = Math.max(1, (requestedCapacity + numStripes - 1) / numStripes);
+        for(int i = 0; i < numStripes; i++) {
+            stripes[i] = new LockFreeRingBuffer<>(stripeCapacity);
+        }
+    }
+
+    /**
+     * Adds the element to the calling thread's stripe if there's room for it.  Never blocks.
+     * @return false if the calling thread's stripe is full
+     */
+    boolean offer(E element, long timestamp) {
+        return offer(element, timestamp, null);
+    }
+
+    /**
+     * The same as {@link #offer(Object, long)} except the element is given an attachment, see {@link LockFreeRingBuffer#offer(Object, long, Object)}
+     */
+    boolean offer(E element, long timestamp, Object attachment) {
+        if(!stripeForCurrentThread().offer(element, timestamp, attachment)) {
+            return false;
+        }
+        var consumer = waitingConsumer;
+        if(consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+        return true;
+    }
+
+    /**
+     * Takes the oldest element from the calling thread's stripe, e.g. to make room for the element it's trying to add.  Never blocks.
+     * @return null if the calling thread's stripe is empty
+     */
+    E poll() {
+        return stripeForCurrentThread().poll();
+    }
+
+    /**
+     * The same as {@link #poll()} except the element's attachment is put in the first slot of the given array
+     */
+    E poll(Object[] attachmentTaken) {
+        return stripeForCurrentThread().poll(attachmentTaken);
+    }
+
+    /**
+     * Takes up to the given number of elements, from each stripe in turn, and adds them to the list.  The elements from each stripe
+     * are in the order in which they were added.
+     * @see LockFreeRingBuffer#drainTo(List, int)
+     */
+    int drainTo(List<? super E> list, int maxElements) {
+        return drainTo(list, null, maxElements);
+    }
+
+    /**
+     * The same as {@link #drainTo(List, int)} except the timestamps the elements were added with are put in the given array, from the
+     * start, in the same order.  The array must have room for the max number of elements.
+     */
+    int drainTo(List<? super E> list, long[] timestampsTaken, int maxElements) {
+        return drainTo(list, timestampsTaken, null, maxElements);
+    }
+
+    /**
+     * The same as {@link #drainTo(List, long[], int)} except the attachments are put in the second array in the same way as the
+     * timestamps.  Either array can be null if it's not wanted.
+     */
+    int drainTo(List<? super E> list, long[] timestampsTaken, Object[] attachmentsTaken, int maxElements) {
+        return drainTo(list, timestampsTaken, attachmentsTaken, 0, maxElements);
+    }
+
+    /**
+     * The same as {@link #drainTo(List, long[], Object[], int)} except the timestamps and attachments are put in the arrays from the
+     * given index, e.g. when the list already holds elements taken from another buffer
+     */
+    int drainTo(List<? super E> list, long[] timestampsTaken, Object[] attachmentsTaken, int takenOffset, int maxElements) {
+        int numTaken = 0;
+        int firstStripe = nextStripe;
+        nextStripe = (nextStripe + 1) & mask;
+        for(int i = 0; i <= mask && numTaken < maxElements; i++) {
+            numTaken += stripes[(firstStripe + i) & mask].drainTo(list, timestampsTaken, attachmentsTaken, takenOffset + numTaken, maxElements - numTaken);
+        }
+        return numTaken;
+    }
+
+    /**
+     * Waits until an element is added to any of the stripes or the timeout passes, whichever is first.  Should only be called by
+     * the thread emptying the buffer.
+     */
+    void awaitNotEmpty(long timeoutNanos) {
+        if(stripes.length == 1) {
+            stripes[0].awaitNotEmpty(timeoutNanos);
+            return;
+        }
+        waitingConsumer = Thread.currentThread();
+        try {
+            if(isEmpty()) {
+                LockSupport.parkNanos(this, timeoutNanos);
+            }
+        }
+        finally {
+            waitingConsumer = null;
+        }
+    }
+
+    /**
+     * Waits until an element is added to any of the given buffers or the timeout passes, whichever is first.  Should only be called by
+     * the thread emptying the buffers.
+     */
+    static void awaitNotEmpty(StripedRingBuffer<?>[] buffers, long timeoutNanos) {
+        var consumer = Thread.currentThread();
+        for(StripedRingBuffer<?> buffer : buffers) {
+            buffer.waitingConsumer = consumer;
+        }
+        try {
+            for(StripedRingBuffer<?> buffer : buffers) {
+                if(!buffer.isEmpty()) {
+                    return;
+                }
+            }
+            LockSupport.parkNanos(buffers, timeoutNanos);
+        }
+        finally {
+            for(StripedRingBuffer<?> buffer : buffers) {
+                buffer.waitingConsumer = null;
+            }
+        }
+    }
+
+    boolean isEmpty() {
+        for(LockFreeRingBuffer<E> stripe : stripes) {
+            if(!stripe.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The number of elements in all the stripes.  This is only a snapshot, as other threads may be adding or taking elements.
+     */
+    int size() {
+        int size = 0;
+        for(LockFreeRingBuffer<E> stripe : stripes) {
+            size += stripe.size();
+        }
+        return size;
+    }
+
+    int capacity() {
+        int capacity = 0;
+        for(LockFreeRingBuffer<E> stripe : stripes) {
+            capacity += stripe.capacity();
+        }
+        return capacity;
+    }
+
+    int getNumStripes() {
+        return stripes.length;
+    }
+
+    private LockFreeRingBuffer<E> stripeForCurrentThread() {
+        //Thread ids are handed out in sequence so consecutive threads get different stripes
+        return stripes[(int)Thread.currentThread().threadId() & mask];
+    }
+}
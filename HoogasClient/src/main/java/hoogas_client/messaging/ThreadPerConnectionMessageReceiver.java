@@ -0,0 +1,221 @@
+package hoogas_client.messaging;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Receives messages from any number of connections, giving each accepted connection its own thread which blocks reading from it
+ * and pushes the messages to a {@link MessageHandler} as soon as they arrive.  By default the threads are virtual threads, which
+ * are cheap to create and don't tie up a platform thread while they're blocked, so thousands of mostly idle connections can be
+ * served without a platform thread for each one.  Platform threads can be chosen in the constructor instead.
+ * This is the simpler counterpart to {@link SelectorMessageReceiver}.  Each connection is read in the same way as in {@link MessageReceiver},
+ * i.e. with a {@link HoogasMessageReader}, and uses the same protocol, so any of the senders can send to it.  Messages sent back to a
+ * connection are written in the same way as in {@link MessageReceiver#sendMessage(String)}, and connections from senders using
+ * acknowledged delivery are handled as described there.  What's been delivered is tracked across all the connections.
+ * Each connection is given an id when it is accepted, which is passed to the handler with each message and can be used to send
+ * messages back to that connection.  If a {@link ConnectionListener} is provided then it will receive a
+ * {@link ConnectionListener#onConnectionEstablished(int)} event when a connection is accepted and a {@link ConnectionListener#onConnectionLost(int)}
+ * event when one is closed by the other side.
+ * The handler and the listener are called from the connections' threads, so they must be thread-safe.  The messages from each connection
+ * are passed to the handler in the order they were received, but messages from different connections can be passed at the same time.
+ * @author Joshua Newman, February 2025
+ */
+public class ThreadPerConnectionMessageReceiver implements AutoCloseable {
+
+
+    private static final int DEFAULT_RECEIVED_MSG_BUFFER_SIZE = 1000;
+    //Large enough that a burst of connections doesn't get refused before they can be accepted
+    private static final int CONNECTION_BACKLOG = 1024;
+
+    private final SocketAddress address;
+    private final int inputStreamReadingChunkSize;
+    private final MessageHandler messageHandler;
+    private final ConnectionListener connectionListener;
+    private final boolean useVirtualThreads;
+    private final Map<Integer, ClientConnection> connections = new ConcurrentHashMap<>();
+    private final Map<Long, AtomicLong> deliveredSequences = HoogasFrameParser.newDeliveredSequences(HoogasFrameParser.DEFAULT_MAX_SESSIONS);
+    private volatile ServerSocketChannel serverSocketChannel;
+    private volatile Thread acceptingThread;
+    private volatile boolean closed;
+    private FramingMode replyFramingMode = FramingMode.SEPARATOR;
+    //Only used by the accepting thread
+    private int nextConnectionId;
+
+
+    ThreadPerConnectionMessageReceiver(int port, MessageHandler messageHandler) {
+        this(new InetSocketAddress(port), DEFAULT_RECEIVED_MSG_BUFFER_SIZE, messageHandler, null, true);
+    }
+
+    /**
+     * @param address The address to listen for connections on.  This is either an {@link InetSocketAddress} or a {@link java.net.UnixDomainSocketAddress}.
+     * @param inputStreamReadingChunkSize The maximum number of characters read from a connection in one go, see {@link HoogasMessageReader#getReceivedMessages()}
+     * @param messageHandler Receives the messages along with the id of the connection they came in on
+     * @param connectionListener Receives events when connections are accepted or lost.  Can be null.
+     * @param useVirtualThreads Whether each connection, and the accepting of connections, runs on a virtual thread rather than a platform thread
+     */
+    ThreadPerConnectionMessageReceiver(SocketAddress address, int inputStreamReadingChunkSize, MessageHandler messageHandler,
+                                       ConnectionListener connectionListener, boolean useVirtualThreads) {
+        this.address = address;
+        this.inputStreamReadingChunkSize = inputStreamReadingChunkSize;
+        this.messageHandler = messageHandler;
+        this.connectionListener = connectionListener;
+        this.useVirtualThreads = useVirtualThreads;
+    }
+
+    /**
+     * @see MessageReceiver#setReplyFramingMode(FramingMode)
+     * @throws IllegalArgumentException If the receiver is already connected
+     */
+    public void setReplyFramingMode(FramingMode replyFramingMode) {
+        if(serverSocketChannel != null) {
+            throw new IllegalArgumentException("The reply framing has to be set before connecting");
+        }
+        this.replyFramingMode = Objects.requireNonNull(replyFramingMode);
+    }
+
+    /**
+     * Starts listening for connections.  This does not block.  Connections are accepted on a thread started by this method.
+     * @throws IllegalArgumentException If this method has already been called
+     */
+    public void connect() throws IOException {
+        if(serverSocketChannel != null) {
+            throw new IllegalArgumentException("Already connected");
+        }
+        serverSocketChannel = Transport.bind(address, CONNECTION_BACKLOG);
+        var threadName = "AcceptingRoutine_" + ThreadPerConnectionMessageReceiver.class.getName() + " " + address;
+        acceptingThread = useVirtualThreads ? Thread.ofVirtual().name(threadName).start(this::acceptConnections) :
+                Thread.ofPlatform().name(threadName).daemon(false).start(this::acceptConnections);
+    }
+
+    /**
+     * Sends the given message to the connection with the given id.
+     * @throws IOException If the message cannot be sent e.g. if there is no such connection or it has been lost
+     */
+    public void sendMessage(int connectionId, String msg) throws IOException {
+        var connection = connections.get(connectionId);
+        if(connection == null) {
+            throw new IOException("No connection with id " + connectionId);
+        }
+        connection.write(msg);
+    }
+
+    /**
+     * @return The ids of the connections that are currently open
+     */
+    public Set<Integer> getConnectionIds() {
+        return connections.keySet();
+    }
+
+    private void acceptConnections() {
+        try {
+            while(!closed) {
+                var socketChannel = serverSocketChannel.accept();
+                try {
+                    var connection = new ClientConnection(nextConnectionId++, socketChannel);
+                    connections.put(connection.connectionId, connection);
+                    if(connectionListener != null) {
+                        connectionListener.onConnectionEstablished(connection.connectionId);
+                    }
+                    connection.receivingRoutine.start("ReceivingRoutine_" + ThreadPerConnectionMessageReceiver.class.getName() + " " +
+                            address + " " + connection.connectionId, useVirtualThreads);
+                }
+                catch(IOException e) {
+                    socketChannel.close();
+                }
+            }
+        }
+        catch(IOException e) {
+            if(!closed) {
+                //¬log properly!
+                System.out.println("Stopped accepting connections on " + address + ": " + e);
+            }
+        }
+    }
+
+    //Called from the connection's own thread once it has stopped reading from the connection
+    private void closeConnection(ClientConnection connection) {
+        if(connections.remove(connection.connectionId) == null) {
+            return;
+        }
+        try {
+            connection.socketChannel.close();
+        }
+        catch(IOException e) {
+            //¬log the exception
+        }
+        if(connectionListener != null && !closed) {
+            connectionListener.onConnectionLost(connection.connectionId);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        if(serverSocketChannel != null) {
+            serverSocketChannel.close();
+            //The socket is only released once the accepting thread has come out of accept, so wait for it so the address can be reused straight away
+            try {
+                acceptingThread.join(2000);
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            Transport.unbind(address);
+        }
+        for(ClientConnection connection : connections.values()) {
+            connection.receivingRoutine.stop();
+            connection.socketChannel.close();
+        }
+        connections.clear();
+    }
+
+    //Holds the channel for an accepted connection along with the routine reading from it and the means of writing back to it
+    private class ClientConnection {
+
+        private final int connectionId;
+        private final SocketChannel socketChannel;
+        private final HoogasMessageReader reader;
+        private final ReplyWriter replyWriter;
+        private final ReceivingRoutine receivingRoutine;
+
+        private ClientConnection(int connectionId, SocketChannel socketChannel) throws IOException {
+            this.connectionId = connectionId;
+            this.socketChannel = socketChannel;
+            this.replyWriter = new ReplyWriter(Channels.newOutputStream(socketChannel), replyFramingMode);
+            this.reader = new HoogasMessageReader(Channels.newInputStream(socketChannel), inputStreamReadingChunkSize, deliveredSequences);
+            var receivedMessages = new ArrayList<String>();
+            receivingRoutine = new ReceivingRoutine(messageHandler, WaitStrategy.BLOCKING) {
+                @Override
+                int receive(boolean block) throws IOException {
+                    var numMessages = reader.readMessages(receivedMessages, block);
+                    for(String receivedMessage : receivedMessages) {
+                        dispatch(connectionId, receivedMessage);
+                    }
+                    receivedMessages.clear();
+                    replyWriter.acknowledge(reader.takePendingAcknowledgement(), reader.takePendingHeartbeat(), reader.getFramingMode());
+                    return numMessages;
+                }
+
+                @Override
+                void onStopped() {
+                    closeConnection(ClientConnection.this);
+                }
+            };
+        }
+
+        private void write(String msg) throws IOException {
+            replyWriter.sendMessage(msg, reader.getFramingMode());
+        }
+    }
+}
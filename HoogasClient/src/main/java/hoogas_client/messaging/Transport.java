@@ -0,0 +1,87 @@
+package hoogas_client.messaging;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+
+
+/**
+ * Opens the channels for the transport that an address belongs to, so the senders and receivers can be pointed at either
+ * without anything else changing.  An {@link InetSocketAddress} means TCP, and a {@link UnixDomainSocketAddress} means a Unix
+ * domain socket, which avoids the TCP/IP stack altogether so costs less latency and CPU per message when both sides are on the
+ * same machine.  The same framing is used over both.
+ * @author Joshua Newman, February 2025
+ */
+final class Transport {
+
+
+    private Transport() {}
+
+
+    /**
+     * @return An unconnected channel of the right type for the address
+     */
+    static SocketChannel openChannel(SocketAddress address) throws IOException {
+        return address instanceof UnixDomainSocketAddress ? SocketChannel.open(StandardProtocolFamily.UNIX) : SocketChannel.open();
+    }
+
+    /**
+     * Opens a channel of the right type for the address and binds it.  A Unix domain socket file left behind at the address
+     * e.g. by a receiver that didn't shut-down cleanly, is deleted first, as otherwise the bind would fail.
+     */
+    static ServerSocketChannel bind(SocketAddress address, int backlog) throws IOException {
+        ServerSocketChannel serverSocketChannel;
+        if(address instanceof UnixDomainSocketAddress unixDomainSocketAddress) {
+            Files.deleteIfExists(unixDomainSocketAddress.getPath());
+            serverSocketChannel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        }
+        else {
+            serverSocketChannel = ServerSocketChannel.open();
+        }
+        try {
+            serverSocketChannel.bind(address, backlog);
+        }
+        catch(IOException e) {
+            serverSocketChannel.close();
+            throw e;
+        }
+        return serverSocketChannel;
+    }
+
+    /**
+     * Deletes the socket file of a Unix domain socket address once the receiver bound to it has been closed.  Does nothing for TCP.
+     */
+    static void unbind(SocketAddress address) {
+        if(address instanceof UnixDomainSocketAddress unixDomainSocketAddress) {
+            try {
+                Files.deleteIfExists(unixDomainSocketAddress.getPath());
+            }
+            catch(IOException e) {
+                //¬log properly!
+                System.out.println("Could not delete socket file: " + unixDomainSocketAddress.getPath() + ".  " + e);
+            }
+        }
+    }
+
+    /**
+     * @return The address to connect to.  Addresses created from a host name without being resolved are resolved each time this is
+     * called, so a change to the address of the host is picked up when reconnecting.
+     * @throws UnknownHostException If the host name can't be resolved
+     */
+    static SocketAddress resolve(SocketAddress address) throws UnknownHostException {
+        if(address instanceof InetSocketAddress inetSocketAddress && inetSocketAddress.isUnresolved()) {
+            var resolved = new InetSocketAddress(inetSocketAddress.getHostString(), inetSocketAddress.getPort());
+            if(resolved.isUnresolved()) {
+                throw new UnknownHostException(inetSocketAddress.getHostString());
+            }
+            return resolved;
+        }
+        return address;
+    }
+}
@@ -0,0 +1,67 @@
+package hoogas_client.messaging;
+
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * How a thread that services a connection waits when there's nothing for it to do e.g. a receiving thread waiting for messages to
+ * arrive or a sending thread waiting for messages to send.  This is a trade-off between the CPU used while the connection is idle
+ * and how quickly the thread reacts when something arrives.
+ * @author Joshua Newman, February 2025
+ */
+public enum WaitStrategy {
+
+    /**
+     * The thread blocks in the I/O call itself, or on the buffer of messages waiting to be sent, and is woken up as soon as there's
+     * something to do.  Uses no CPU while idle and adds the least latency of the strategies that don't use a core, so is the best
+     * choice in most cases.
+     */
+    BLOCKING,
+    /**
+     * The thread polls, spinning at first, then yielding, and then parking for increasingly long periods up to {@link #MAX_PARK_NANOS}.
+     * Uses very little CPU while idle, but a message that arrives during a park can be delayed by up to that long.
+     */
+    PARKING,
+    /**
+     * The thread polls, giving up the CPU between each poll to any other thread that's ready to run.  When nothing else is
+     * waiting to run this behaves like {@link #BUSY_SPIN}, so still uses a core, but it's more friendly to other threads.
+     */
+    YIELDING,
+    /**
+     * The thread polls continuously without ever giving up the CPU.  This gives the lowest latency but uses a whole core
+     * all the time, so should only be used for latency-critical connections on machines with cores to spare.
+     */
+    BUSY_SPIN;
+
+
+    static final long MAX_PARK_NANOS = 1_000_000;
+    private static final long MIN_PARK_NANOS = 1_000;
+    private static final int SPIN_TRIES = 100;
+    private static final int YIELD_TRIES = 100;
+
+
+    /**
+     * Waits for a period determined by this strategy.  Called by a polling thread each time it finds nothing to do.
+     * {@link #BLOCKING} should block in the I/O call or on the buffer instead but parks for {@link #MAX_PARK_NANOS} if it is called.
+     * @param idleCount How many times in a row the caller has found nothing to do, which is used to back off
+     */
+    void idle(int idleCount) {
+        switch(this) {
+            case BLOCKING -> LockSupport.parkNanos(MAX_PARK_NANOS);
+            case BUSY_SPIN -> Thread.onSpinWait();
+            case YIELDING -> Thread.yield();
+            case PARKING -> {
+                if(idleCount < SPIN_TRIES) {
+                    Thread.onSpinWait();
+                }
+                else if(idleCount < SPIN_TRIES + YIELD_TRIES) {
+                    Thread.yield();
+                }
+                else {
+                    var shift = Math.min(idleCount - SPIN_TRIES - YIELD_TRIES, 10);
+                    LockSupport.parkNanos(Math.min(MIN_PARK_NANOS << shift, MAX_PARK_NANOS));
+                }
+            }
+        }
+    }
+}
@@ -3,12 +3,16 @@ package hoogas_client;
 import com.noomtech.hoogas_shared.constants.SharedConstants;
 import com.noomtech.hoogas_shared.internal_messaging.MessageTypeFromApplications;
 import com.noomtech.hoogas_shared.internal_messaging.MessageTypeToApplications;
+import com.noomtech.hoogas_shared.internal_messaging.SharedMemoryMessageQueue;
 import org.apache.commons.io.FileUtils;
 import org.junit.jupiter.api.*;
 
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
@@ -174,6 +178,50 @@ public class HoogasClientTest {
         assertEquals(0, new File(messageFromHoogasDir).listFiles().length);
     }
 
+    //Check the shared memory messaging used instead of the messaging directories when it's turned on.  Send a config request through the queue
+    //to Hoogas and have a simulated Hoogas server answer it through the queue from Hoogas, and check that the wait for the public config gets the
+    //response.  Then check that the messages from Hoogas after that are all received, in order.
+    @Test
+    public void test5() throws Exception {
+        var appDir = SharedConstants.INSTALLATION_DIR + File.separator + SharedConstants.APPLICATIONS_DIR_NAME + File.separator + "TestApp1";
+        var messagesToHoogasQueue = SharedMemoryMessageQueue.open(Paths.get(appDir, SharedConstants.INTERNAL_MSGS_TO_HOOGAS_QUEUE_FILE_NAME),
+                SharedMemoryMessageQueue.DEFAULT_CAPACITY);
+        var messagesFromHoogasQueue = SharedMemoryMessageQueue.open(Paths.get(appDir, SharedConstants.INTERNAL_MSGS_FROM_HOOGAS_QUEUE_FILE_NAME),
+                SharedMemoryMessageQueue.DEFAULT_CAPACITY);
+        //Hoogas's side of the queues, mapped separately as it would be in the server's process
+        var hoogasIn = SharedMemoryMessageQueue.open(Paths.get(appDir, SharedConstants.INTERNAL_MSGS_TO_HOOGAS_QUEUE_FILE_NAME), SharedMemoryMessageQueue.DEFAULT_CAPACITY);
+        var hoogasOut = SharedMemoryMessageQueue.open(Paths.get(appDir, SharedConstants.INTERNAL_MSGS_FROM_HOOGAS_QUEUE_FILE_NAME), SharedMemoryMessageQueue.DEFAULT_CAPACITY);
+
+        HoogasClient.sendToHoogas(messagesToHoogasQueue, "", MessageTypeFromApplications.PUBLIC_CFG_REQUEST);
+        var hoogasThread = new Thread(() -> {
+            var requests = new ArrayList<String>();
+            var giveUpAt = System.currentTimeMillis() + 3000;
+            while(requests.isEmpty() && System.currentTimeMillis() < giveUpAt) {
+                hoogasIn.drain((type, text) -> requests.add(type));
+                Thread.onSpinWait();
+            }
+            if(requests.equals(List.of(MessageTypeFromApplications.PUBLIC_CFG_REQUEST.name()))) {
+                hoogasOut.offer(MessageTypeToApplications.PUBLIC_CFG_RESPONSE.name(), "testing1=1234" + SharedConstants.NEWLINE + "testing2=5678");
+            }
+        });
+        hoogasThread.setDaemon(true);
+        hoogasThread.start();
+
+        var publicConfig = HoogasClient.waitForPublicConfig(() -> HoogasClient.checkForMsgsFromHoogas(messagesFromHoogasQueue));
+        assertEquals("testing1=1234" + SharedConstants.NEWLINE + "testing2=5678", publicConfig.getFirst().text());
+        hoogasThread.join();
+        assertTrue(hoogasIn.isEmpty());
+
+        assertTrue(hoogasOut.offer(MessageTypeToApplications.PUBLIC_CFG_RESPONSE.name(), "testing1=1"));
+        assertTrue(hoogasOut.offer(MessageTypeToApplications.PUBLIC_CFG_RESPONSE.name(), "testing1=2"));
+        assertTrue(hoogasOut.offer(MessageTypeToApplications.STOP.name(), null));
+        var received = HoogasClient.checkForMsgsFromHoogas(messagesFromHoogasQueue);
+        assertEquals(List.of(new MsgFromHoogas(MessageTypeToApplications.PUBLIC_CFG_RESPONSE, "testing1=1"),
+                new MsgFromHoogas(MessageTypeToApplications.PUBLIC_CFG_RESPONSE, "testing1=2"),
+                new MsgFromHoogas(MessageTypeToApplications.STOP, "")), received);
+        assertTrue(HoogasClient.checkForMsgsFromHoogas(messagesFromHoogasQueue).isEmpty());
+    }
+
     //This can simulate the Hoogas server responding to public config requests from the application, and it can also send messages
     //to the application on command
     private class MessageSender implements Runnable {
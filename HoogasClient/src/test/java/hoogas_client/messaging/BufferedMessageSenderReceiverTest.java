@@ -9,6 +9,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -62,6 +63,45 @@ public class BufferedMessageSenderReceiverTest {
         }
     }
 
+    /**
+     * Provide a message handler and make sure the messages are pushed to it, and that polling isn't allowed at the same time.
+     */
+    @Test
+    public void test2() throws Exception {
+
+        var testConnectionListener = new TestConnectionListener();
+        var received = new LinkedBlockingQueue<String>();
+        try(BufferedMessageSenderReceiver bufferedMessageSenderReceiver = new BufferedMessageSenderReceiver("localhost", 9000, 10000, 1234, testConnectionListener, new BufferedMessageSenderOptions(), 2000,
+                (connectionId, message) -> received.add(connectionId + ":" + message), WaitStrategy.BLOCKING, true)) {
+
+            var connectionEstablishedLatch = new CountDownLatch(1);
+            testConnectionListener.connectionEstablishedLatches.add(connectionEstablishedLatch);
+            bufferedMessageSenderReceiver.start();
+
+            try(var executorService = Executors.newSingleThreadExecutor();
+                TestMessageSender testMessageSender = new TestMessageSender(9000)) {
+
+                executorService.submit(() -> {
+                    testMessageSender.connect();
+                    return null;
+                });
+                assertTrue(connectionEstablishedLatch.await(1000, TimeUnit.MILLISECONDS), "Connection to the other side failed");
+
+                testMessageSender.send("Hello World¬");
+                assertEquals("1234:Hello World", received.poll(1000, TimeUnit.MILLISECONDS));
+
+                boolean exceptionCaught = false;
+                try {
+                    bufferedMessageSenderReceiver.getLatestMessagesReceived();
+                }
+                catch(IllegalStateException e) {
+                    exceptionCaught = true;
+                }
+                assertTrue(exceptionCaught);
+            }
+        }
+    }
+
     private static class TestMessageSender implements AutoCloseable {
 
         private final int port;
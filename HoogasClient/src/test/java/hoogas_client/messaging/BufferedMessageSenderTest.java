@@ -7,12 +7,20 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -119,7 +127,7 @@ public class BufferedMessageSenderTest {
                 //shut it down
                 bufferedMessageSender.close();
 
-                assertTrue(bufferedMessageSender.socket.isClosed());
+                assertFalse(bufferedMessageSender.getSocketChannel().isOpen());
 
                 exceptionCaught = false;
                 try {
@@ -142,6 +150,812 @@ public class BufferedMessageSenderTest {
         }
     }
 
+    /**
+     * Send messages using the length-prefixed framing mode to a {@link MessageReceiver} and make sure they come out the other end intact.
+     */
+    @Test
+    public void test4() throws Exception {
+        var testMessageSenderListener = new TestConnectionListener();
+        try(BufferedMessageSender bufferedMessageSender = new BufferedMessageSender("localhost", 9000, 1000, 1234, testMessageSenderListener, FramingMode.LENGTH_PREFIXED);
+            MessageReceiver messageReceiver = new MessageReceiver(9000, 7)) {
+
+            var connectionEstablishedCountDownLatch = new CountDownLatch(1);
+            testMessageSenderListener.connectionEstablishedLatches.add(connectionEstablishedCountDownLatch);
+
+            bufferedMessageSender.start();
+
+            try(var singleThreadExecutor = Executors.newSingleThreadExecutor()) {
+                singleThreadExecutor.submit(() -> {
+                    messageReceiver.connect();
+                    return null;
+                });
+
+                assertTrue(connectionEstablishedCountDownLatch.await(1000, TimeUnit.MILLISECONDS), "Message sender didn't connect to the other side");
+
+                var messages = new String[]{"abc", Constants.MSG_SEPARATOR_CHAR + "def" + Constants.MSG_SEPARATOR_CHAR, "", "ghijklmnopqrstuvwxyz"};
+                for(String message : messages) {
+                    bufferedMessageSender.send(message);
+                }
+                Thread.sleep(200);
+
+                var received = new ArrayList<String>();
+                for(int i = 0; i < 20 && received.size() < messages.length; i++) {
+                    received.addAll(messageReceiver.getReceivedMessages());
+                }
+                assertEquals(List.of(messages), received);
+            }
+        }
+    }
+
+    /**
+     * Queue up messages before the connection is established and make sure that once it is they are sent in batches that
+     * respect the limits provided, and that they come out the other end intact.
+     */
+    @Test
+    public void test5() throws Exception {
+        var testMessageSenderListener = new TestConnectionListener();
+        var batchSizes = new ConcurrentLinkedQueue<Integer>();
+        var options = new BufferedMessageSenderOptions().withMaxBatchMessages(30).withSendMetricsListener(
+                (connectionId, numMessages, numBytes) -> batchSizes.add(numMessages));
+        try(BufferedMessageSender bufferedMessageSender = new BufferedMessageSender("localhost", 9000, 10000, 1234, testMessageSenderListener, options);
+            TestMessageReceiver testMessageReceiver = new TestMessageReceiver(9000)) {
+
+            var connectionEstablishedCountDownLatch = new CountDownLatch(1);
+            testMessageSenderListener.connectionEstablishedLatches.add(connectionEstablishedCountDownLatch);
+
+            bufferedMessageSender.start();
+            sendTestMessages(bufferedMessageSender, 100, 0, 0);
+
+            try(var singleThreadExecutor = Executors.newSingleThreadExecutor()) {
+                singleThreadExecutor.submit(() -> {testMessageReceiver.connect();});
+
+                assertTrue(connectionEstablishedCountDownLatch.await(2000, TimeUnit.MILLISECONDS), "Message sender didn't connect to the other side");
+                Thread.sleep(200);
+
+                var received = testMessageReceiver.getReceived(2000);
+                checkTestMessages(received, 100);
+
+                //All the messages were waiting when the connection was made so they should have gone out in full batches
+                assertEquals(List.of(30, 30, 30, 10), new ArrayList<>(batchSizes));
+            }
+        }
+    }
+
+    /**
+     * Use each of the wait strategies, leaving the sender idle for a while before each burst, and make sure the messages still
+     * come out the other end intact.
+     */
+    @Test
+    public void test6() throws Exception {
+        for(WaitStrategy waitStrategy : WaitStrategy.values()) {
+            var testMessageSenderListener = new TestConnectionListener();
+            var options = new BufferedMessageSenderOptions().withWaitStrategy(waitStrategy);
+            try(BufferedMessageSender bufferedMessageSender = new BufferedMessageSender("localhost", 9000, 1000, 1234, testMessageSenderListener, options);
+                TestMessageReceiver testMessageReceiver = new TestMessageReceiver(9000)) {
+
+                var connectionEstablishedCountDownLatch = new CountDownLatch(1);
+                testMessageSenderListener.connectionEstablishedLatches.add(connectionEstablishedCountDownLatch);
+
+                bufferedMessageSender.start();
+
+                try(var singleThreadExecutor = Executors.newSingleThreadExecutor()) {
+                    singleThreadExecutor.submit(() -> {testMessageReceiver.connect();});
+
+                    assertTrue(connectionEstablishedCountDownLatch.await(1000, TimeUnit.MILLISECONDS), "Message sender didn't connect to the other side");
+                    Thread.sleep(200);
+
+                    sendTestMessages(bufferedMessageSender, 100, 25, 50);
+                    Thread.sleep(100);
+
+                    var received = testMessageReceiver.getReceived(2000);
+                    checkTestMessages(received, 100);
+                }
+            }
+        }
+    }
+
+    /**
+     * Fill the buffer before the connection is established using each of the policies that don't wait indefinitely, and make sure
+     * the right messages are dropped or rejected and counted, and that the ones kept are sent once the connection is made.
+     */
+    @Test
+    public void test7() throws Exception {
+        for(QueueFullPolicy queueFullPolicy : List.of(QueueFullPolicy.DROP_NEWEST, QueueFullPolicy.DROP_OLDEST,
+                QueueFullPolicy.FAIL_FAST, QueueFullPolicy.BLOCK_WITH_TIMEOUT)) {
+            var testMessageSenderListener = new TestConnectionListener();
+            var options = new BufferedMessageSenderOptions().withBufferCapacity(8).withQueueFullPolicy(queueFullPolicy).withQueueFullTimeoutMillis(10);
+            try(BufferedMessageSender bufferedMessageSender = new BufferedMessageSender("localhost", 9000, 10000, 1234, testMessageSenderListener, options);
+                TestMessageReceiver testMessageReceiver = new TestMessageReceiver(9000)) {
+
+                var connectionEstablishedCountDownLatch = new CountDownLatch(1);
+                testMessageSenderListener.connectionEstablishedLatches.add(connectionEstablishedCountDownLatch);
+
+                bufferedMessageSender.start();
+                int numExceptions = 0;
+                for(int i = 0; i < 20; i++) {
+                    try {
+                        bufferedMessageSender.send("message_" + i);
+                    }
+                    catch(IllegalStateException e) {
+                        numExceptions++;
+                    }
+                }
+
+                if(queueFullPolicy == QueueFullPolicy.FAIL_FAST) {
+                    assertEquals(12, numExceptions);
+                    assertEquals(12, bufferedMessageSender.getNumMessagesRejected());
+                    assertEquals(0, bufferedMessageSender.getNumMessagesDropped());
+                }
+                else {
+                    assertEquals(0, numExceptions);
+                    assertEquals(0, bufferedMessageSender.getNumMessagesRejected());
+                    assertEquals(12, bufferedMessageSender.getNumMessagesDropped());
+                }
+
+                try(var singleThreadExecutor = Executors.newSingleThreadExecutor()) {
+                    singleThreadExecutor.submit(() -> {testMessageReceiver.connect();});
+
+                    assertTrue(connectionEstablishedCountDownLatch.await(2000, TimeUnit.MILLISECONDS), "Message sender didn't connect to the other side");
+                    Thread.sleep(200);
+
+                    var firstKept = queueFullPolicy == QueueFullPolicy.DROP_OLDEST ? 12 : 0;
+                    var expected = new StringBuilder();
+                    for(int i = firstKept; i < firstKept + 8; i++) {
+                        expected.append("message_").append(i).append(Constants.MSG_SEPARATOR_CHAR);
+                    }
+                    assertEquals(expected.toString(), testMessageReceiver.getReceived(2000), "Wrong messages kept for " + queueFullPolicy);
+                }
+            }
+        }
+    }
+
+    /**
+     * Send more messages than the buffer can hold before the connection is established using {@link QueueFullPolicy#BLOCK}, and
+     * make sure the sending thread waits for room rather than dropping anything, and that it carries on once the connection is made.
+     */
+    @Test
+    public void test8() throws Exception {
+        var testMessageSenderListener = new TestConnectionListener();
+        var options = new BufferedMessageSenderOptions().withBufferCapacity(8);
+        try(BufferedMessageSender bufferedMessageSender = new BufferedMessageSender("localhost", 9000, 10000, 1234, testMessageSenderListener, options);
+            TestMessageReceiver testMessageReceiver = new TestMessageReceiver(9000)) {
+
+            var connectionEstablishedCountDownLatch = new CountDownLatch(1);
+            testMessageSenderListener.connectionEstablishedLatches.add(connectionEstablishedCountDownLatch);
+
+            bufferedMessageSender.start();
+
+            try(var executor = Executors.newFixedThreadPool(2)) {
+                var sent = executor.submit(() -> {sendTestMessages(bufferedMessageSender, 20, 0, 0); return true;});
+                Thread.sleep(200);
+                assertFalse(sent.isDone(), "The sending thread should be waiting for room in the buffer");
+
+                executor.submit(() -> {testMessageReceiver.connect();});
+                assertTrue(connectionEstablishedCountDownLatch.await(2000, TimeUnit.MILLISECONDS), "Message sender didn't connect to the other side");
+                assertTrue(sent.get(2000, TimeUnit.MILLISECONDS));
+                Thread.sleep(200);
+
+                var received = testMessageReceiver.getReceived(2000);
+                checkTestMessages(received, 20);
+                assertEquals(0, bufferedMessageSender.getNumMessagesDropped());
+            }
+        }
+    }
+
+    /**
+     * Send many more messages than the buffer can hold before the connection is established, with a spill directory provided,
+     * and make sure the sending thread isn't held up for long, that nothing is dropped, and that once the connection is made
+     * the messages all come out the other end in order and the spill files are deleted.
+     */
+    @Test
+    public void test9() throws Exception {
+        var spillDirectory = Files.createTempDirectory("hoogas_spill_test");
+        var testMessageSenderListener = new TestConnectionListener();
+        var options = new BufferedMessageSenderOptions().withBufferCapacity(64).withSpillDirectory(spillDirectory).withSpillSegmentBytes(4096);
+        try(BufferedMessageSender bufferedMessageSender = new BufferedMessageSender("localhost", 9000, 10000, 1234, testMessageSenderListener, options);
+            TestMessageReceiver testMessageReceiver = new TestMessageReceiver(9000)) {
+
+            var connectionEstablishedCountDownLatch = new CountDownLatch(1);
+            testMessageSenderListener.connectionEstablishedLatches.add(connectionEstablishedCountDownLatch);
+
+            bufferedMessageSender.start();
+            long startedAt = System.currentTimeMillis();
+            sendTestMessages(bufferedMessageSender, 2000, 0, 0);
+            assertTrue(System.currentTimeMillis() - startedAt < 2000, "Sending took too long");
+            assertEquals(0, bufferedMessageSender.getNumMessagesDropped());
+            Thread.sleep(100);
+            try(var files = Files.list(spillDirectory)) {
+                assertTrue(files.findAny().isPresent(), "Messages should have been spilled to disk");
+            }
+
+            try(var singleThreadExecutor = Executors.newSingleThreadExecutor()) {
+                var connected = singleThreadExecutor.submit(() -> {testMessageReceiver.connect();});
+
+                assertTrue(connectionEstablishedCountDownLatch.await(2000, TimeUnit.MILLISECONDS), "Message sender didn't connect to the other side");
+                connected.get(2000, TimeUnit.MILLISECONDS);
+
+                var received = testMessageReceiver.getReceived(2000, 5000);
+                checkTestMessages(received, 2000);
+                try(var files = Files.list(spillDirectory)) {
+                    assertFalse(files.findAny().isPresent(), "The spill files should have been deleted");
+                }
+            }
+        }
+        finally {
+            try(var files = Files.list(spillDirectory)) {
+                for(Path file : files.toList()) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(spillDirectory);
+        }
+    }
+
+    /**
+     * Send messages using acknowledged delivery and make sure they are delivered and acknowledged.  Then close the receiver and
+     * carry on sending, so some of the messages are written to a connection that's gone.  Start a new receiver and make sure that
+     * once the sender has reconnected the messages that weren't acknowledged have been re-sent and nothing has been lost.
+     */
+    @Test
+    public void test10() throws Exception {
+        var testMessageSenderListener = new TestConnectionListener();
+        var options = new BufferedMessageSenderOptions().withFramingMode(FramingMode.LENGTH_PREFIXED).withAcknowledgedDelivery(true);
+        try(BufferedMessageSender bufferedMessageSender = new BufferedMessageSender("localhost", 9000, 10000, 1234, testMessageSenderListener, options);
+            var executor = Executors.newSingleThreadExecutor()) {
+
+            var connectionEstablishedCountDownLatch = new CountDownLatch(1);
+            testMessageSenderListener.connectionEstablishedLatches.add(connectionEstablishedCountDownLatch);
+            bufferedMessageSender.start();
+
+            try(MessageReceiver messageReceiver = new MessageReceiver(9000)) {
+                var connected = executor.submit(() -> {
+                    messageReceiver.connect();
+                    return null;
+                });
+                assertTrue(connectionEstablishedCountDownLatch.await(1000, TimeUnit.MILLISECONDS), "Message sender didn't connect to the other side");
+                connected.get(1000, TimeUnit.MILLISECONDS);
+
+                sendTestMessages(bufferedMessageSender, 50, 0, 0);
+                var received = receive(messageReceiver, 50, 2000);
+                for(int i = 0; i < 50; i++) {
+                    assertEquals("message_" + i, received.get(i));
+                }
+                waitForAcknowledgement(bufferedMessageSender, 50, 2000);
+            }
+
+            var connectionLostCountDownLatch = new CountDownLatch(1);
+            testMessageSenderListener.connectionLostLatches.add(connectionLostCountDownLatch);
+            for(int i = 50; i < 100; i++) {
+                bufferedMessageSender.send("message_" + i);
+                if(i % 5 == 0) {
+                    Thread.sleep(20);
+                }
+            }
+            assertTrue(connectionLostCountDownLatch.await(2000, TimeUnit.MILLISECONDS), "Message sender didn't notice the connection had gone");
+
+            try(MessageReceiver messageReceiver = new MessageReceiver(9000)) {
+                executor.submit(() -> {
+                    messageReceiver.connect();
+                    return null;
+                }).get(2000, TimeUnit.MILLISECONDS);
+                var received = receive(messageReceiver, 50, 5000);
+                var expected = new ArrayList<String>();
+                for(int i = 50; i < 100; i++) {
+                    expected.add("message_" + i);
+                }
+                assertEquals(expected, received);
+                waitForAcknowledgement(bufferedMessageSender, 100, 2000);
+            }
+        }
+    }
+
+    /**
+     * Start the sender before there's anything to connect to and make sure the attempts to connect are spaced out according to the
+     * backoff, with the jitter within its bounds, and that once a receiver is started the connection is made and reported.
+     */
+    @Test
+    public void test11() throws Exception {
+        var testMessageSenderListener = new TestConnectionListener();
+        var failedAttempts = new ConcurrentLinkedQueue<long[]>();
+        var connected = new ConcurrentLinkedQueue<long[]>();
+        var options = new BufferedMessageSenderOptions().withReconnectBackoff(20, 160, 2, 0.5).withConnectTimeoutMillis(500)
+                .withSendMetricsListener(new SendMetricsListener() {
+                    @Override
+                    public void onBatchSent(int connectionId, int numMessages, int numBytes) {}
+
+                    @Override
+                    public void onConnectAttemptFailed(int connectionId, int attempt, long nextAttemptInMillis) {
+                        failedAttempts.add(new long[]{attempt, nextAttemptInMillis});
+                    }
+
+                    @Override
+                    public void onConnected(int connectionId, int numAttempts, long millisToConnect) {
+                        connected.add(new long[]{numAttempts, millisToConnect});
+                    }
+                });
+        try(BufferedMessageSender bufferedMessageSender = new BufferedMessageSender("localhost", 9000, 10000, 1234, testMessageSenderListener, options);
+            TestMessageReceiver testMessageReceiver = new TestMessageReceiver(9000)) {
+
+            var connectionEstablishedCountDownLatch = new CountDownLatch(1);
+            testMessageSenderListener.connectionEstablishedLatches.add(connectionEstablishedCountDownLatch);
+
+            bufferedMessageSender.start();
+            Thread.sleep(1000);
+
+            try(var singleThreadExecutor = Executors.newSingleThreadExecutor()) {
+                singleThreadExecutor.submit(() -> {testMessageReceiver.connect();});
+                assertTrue(connectionEstablishedCountDownLatch.await(1000, TimeUnit.MILLISECONDS), "Message sender didn't connect to the other side");
+            }
+
+            var attempts = new ArrayList<>(failedAttempts);
+            assertTrue(attempts.size() >= 5, "Expected at least 5 failed attempts but there were " + attempts.size());
+            for(int i = 0; i < attempts.size(); i++) {
+                assertEquals(i + 1, attempts.get(i)[0]);
+                var delay = Math.min(160, 20L << i);
+                var wait = attempts.get(i)[1];
+                assertTrue(wait >= delay / 2 && wait <= delay, "Wait of " + wait + " for attempt " + (i + 1) + " outside the jitter bounds for a delay of " + delay);
+            }
+            assertEquals(1, connected.size());
+            assertEquals(attempts.size() + 1, connected.peek()[0]);
+            assertTrue(connected.peek()[1] >= 1000);
+        }
+    }
+
+    /**
+     * Queue up messages before there's anything to connect to, then start a receiver and make sure the metrics show how long the
+     * messages waited, what was sent and the failed attempts to connect.  Make sure resetting clears them, and that losing the
+     * connection and getting it back is counted as a reconnect.
+     */
+    @Test
+    public void test12() throws Exception {
+        var testMessageSenderListener = new TestConnectionListener();
+        var options = new BufferedMessageSenderOptions().withReconnectBackoff(20, 20, 1, 0);
+        try(BufferedMessageSender bufferedMessageSender = new BufferedMessageSender("localhost", 9000, 10000, 1234, testMessageSenderListener, options);
+            var executor = Executors.newSingleThreadExecutor()) {
+
+            var connectionEstablishedCountDownLatch = new CountDownLatch(1);
+            testMessageSenderListener.connectionEstablishedLatches.add(connectionEstablishedCountDownLatch);
+            bufferedMessageSender.start();
+            sendTestMessages(bufferedMessageSender, 100, 0, 0);
+            Thread.sleep(300);
+
+            try(MessageReceiver messageReceiver = new MessageReceiver(9000)) {
+                var connected = executor.submit(() -> {
+                    messageReceiver.connect();
+                    return null;
+                });
+                assertTrue(connectionEstablishedCountDownLatch.await(1000, TimeUnit.MILLISECONDS), "Message sender didn't connect to the other side");
+                connected.get(1000, TimeUnit.MILLISECONDS);
+                assertEquals(100, receive(messageReceiver, 100, 2000).size());
+
+                var metrics = bufferedMessageSender.getSendMetrics().snapshotAndReset();
+                assertEquals(100, metrics.numMessagesSent());
+                int expectedBytes = 0;
+                for(int i = 0; i < 100; i++) {
+                    expectedBytes += ("message_" + i + Constants.MSG_SEPARATOR_CHAR).getBytes(StandardCharsets.UTF_8).length;
+                }
+                assertEquals(expectedBytes, metrics.numBytesSent());
+                assertEquals(metrics.numBatchesSent(), metrics.writeTimeNanos().getCount());
+                assertEquals(100, metrics.queueTimeNanos().getCount());
+                assertTrue(metrics.queueTimeNanos().getValueAtPercentile(0) >= TimeUnit.MILLISECONDS.toNanos(300));
+                assertEquals(100, metrics.queueDepth().getMax());
+                assertTrue(metrics.numConnectAttemptsFailed() >= 5, "Expected at least 5 failed attempts but there were " + metrics.numConnectAttemptsFailed());
+                assertEquals(0, metrics.numReconnects());
+
+                metrics = bufferedMessageSender.getSendMetrics().snapshot();
+                assertEquals(0, metrics.numMessagesSent());
+                assertEquals(0, metrics.queueTimeNanos().getCount());
+                assertEquals(0, metrics.queueTimeNanos().getValueAtPercentile(99));
+            }
+
+            //Keep sending until the sender notices the receiver has gone
+            var connectionLostCountDownLatch = new CountDownLatch(1);
+            testMessageSenderListener.connectionLostLatches.add(connectionLostCountDownLatch);
+            for(int i = 0; i < 50 && connectionLostCountDownLatch.getCount() > 0; i++) {
+                bufferedMessageSender.send("message_" + i);
+                Thread.sleep(20);
+            }
+            assertTrue(connectionLostCountDownLatch.await(2000, TimeUnit.MILLISECONDS), "Message sender didn't notice the connection had gone");
+            var connectionReestablishedCountDownLatch = new CountDownLatch(1);
+            testMessageSenderListener.connectionEstablishedLatches.add(connectionReestablishedCountDownLatch);
+            try(MessageReceiver messageReceiver = new MessageReceiver(9000)) {
+                executor.submit(() -> {
+                    messageReceiver.connect();
+                    return null;
+                }).get(2000, TimeUnit.MILLISECONDS);
+                assertTrue(connectionReestablishedCountDownLatch.await(1000, TimeUnit.MILLISECONDS), "Message sender didn't reconnect");
+                assertEquals(1, bufferedMessageSender.getSendMetrics().snapshot().numReconnects());
+            }
+        }
+    }
+
+    /**
+     * Have several threads send at once through a sender whose buffer is split into stripes, with a buffer small enough that they
+     * have to wait for room, and make sure every message arrives and each thread's messages arrive in the order that thread sent them.
+     */
+    @Test
+    public void test13() throws Exception {
+        var testMessageSenderListener = new TestConnectionListener();
+        var options = new BufferedMessageSenderOptions().withBufferCapacity(64).withProducerStripes(4);
+        int numProducers = 6;
+        int numPerProducer = 2000;
+        try(BufferedMessageSender bufferedMessageSender = new BufferedMessageSender("localhost", 9000, 10000, 1234, testMessageSenderListener, options);
+            MessageReceiver messageReceiver = new MessageReceiver(9000);
+            var executor = Executors.newFixedThreadPool(numProducers + 1)) {
+
+            var connectionEstablishedCountDownLatch = new CountDownLatch(1);
+            testMessageSenderListener.connectionEstablishedLatches.add(connectionEstablishedCountDownLatch);
+            var connected = executor.submit(() -> {
+                messageReceiver.connect();
+                return null;
+            });
+            bufferedMessageSender.start();
+            assertTrue(connectionEstablishedCountDownLatch.await(2000, TimeUnit.MILLISECONDS), "Message sender didn't connect to the other side");
+            connected.get(1000, TimeUnit.MILLISECONDS);
+
+            for(int p = 0; p < numProducers; p++) {
+                var producer = p;
+                executor.submit(() -> {
+                    for(int i = 0; i < numPerProducer; i++) {
+                        bufferedMessageSender.send(producer + "_" + i);
+                    }
+                });
+            }
+
+            var received = receive(messageReceiver, numProducers * numPerProducer, 10000);
+            assertEquals(numProducers * numPerProducer, received.size());
+            var nextExpected = new int[numProducers];
+            for(String message : received) {
+                var parts = message.split("_");
+                var producer = Integer.parseInt(parts[0]);
+                assertEquals(nextExpected[producer]++, Integer.parseInt(parts[1]), "Out of order for producer " + producer);
+            }
+            assertEquals(0, bufferedMessageSender.getNumMessagesDropped());
+        }
+    }
+
+    /**
+     * Send messages with {@link BufferedMessageSender#sendAsync(String, long)} before there's anything to connect to and make sure
+     * their futures aren't completed, apart from one with a short timeout which fails, and that they're all completed once a receiver
+     * has been started.  Make sure a message rejected because the buffer is full fails its future rather than throwing, and that
+     * shutting down fails the futures of anything that hasn't been sent.
+     */
+    @Test
+    public void test14() throws Exception {
+        var testMessageSenderListener = new TestConnectionListener();
+        var options = new BufferedMessageSenderOptions().withBufferCapacity(16).withQueueFullPolicy(QueueFullPolicy.FAIL_FAST);
+        var bufferedMessageSender = new BufferedMessageSender("localhost", 9000, 10000, 1234, testMessageSenderListener, options);
+        try(var executor = Executors.newSingleThreadExecutor()) {
+            var connectionEstablishedCountDownLatch = new CountDownLatch(1);
+            testMessageSenderListener.connectionEstablishedLatches.add(connectionEstablishedCountDownLatch);
+            bufferedMessageSender.start();
+
+            var futures = new ArrayList<CompletableFuture<Void>>();
+            for(int i = 0; i < 10; i++) {
+                futures.add(bufferedMessageSender.sendAsync("message_" + i, 0));
+            }
+            var timingOut = bufferedMessageSender.sendAsync("message_10", 50);
+            var timedOut = assertThrows(ExecutionException.class, () -> timingOut.get(1000, TimeUnit.MILLISECONDS));
+            assertInstanceOf(TimeoutException.class, timedOut.getCause());
+            for(CompletableFuture<Void> future : futures) {
+                assertFalse(future.isDone());
+            }
+            for(int i = 11; i < 16; i++) {
+                bufferedMessageSender.send("message_" + i);
+            }
+            var rejected = bufferedMessageSender.sendAsync("message_16", 0);
+            assertTrue(rejected.isCompletedExceptionally());
+            assertEquals(1, bufferedMessageSender.getNumMessagesRejected());
+
+            try(MessageReceiver messageReceiver = new MessageReceiver(9000)) {
+                var connected = executor.submit(() -> {
+                    messageReceiver.connect();
+                    return null;
+                });
+                assertTrue(connectionEstablishedCountDownLatch.await(2000, TimeUnit.MILLISECONDS), "Message sender didn't connect to the other side");
+                connected.get(1000, TimeUnit.MILLISECONDS);
+                CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(2000, TimeUnit.MILLISECONDS);
+                //The message whose future timed out is still sent
+                assertEquals(16, receive(messageReceiver, 16, 2000).size());
+            }
+
+            var connectionLostCountDownLatch = new CountDownLatch(1);
+            testMessageSenderListener.connectionLostLatches.add(connectionLostCountDownLatch);
+            while(connectionLostCountDownLatch.getCount() > 0) {
+                bufferedMessageSender.sendAsync("probe", 0);
+                Thread.sleep(20);
+            }
+            var unsent = bufferedMessageSender.sendAsync("unsent", 0);
+            Thread.sleep(100);
+            assertFalse(unsent.isDone());
+            bufferedMessageSender.close();
+            var failed = assertThrows(ExecutionException.class, () -> unsent.get(1000, TimeUnit.MILLISECONDS));
+            assertInstanceOf(IllegalStateException.class, failed.getCause());
+            assertThrows(IllegalArgumentException.class, () -> bufferedMessageSender.sendAsync("closed", 0));
+        }
+        finally {
+            bufferedMessageSender.close();
+        }
+    }
+
+    /**
+     * Send messages with {@link BufferedMessageSender#sendAsync(String, long)} using acknowledged delivery and a spill directory, with
+     * enough of them before the connection is made that some are spilled to disk, and make sure every future is completed once the
+     * receiver has acknowledged the messages, and not before they've been received.
+     */
+    @Test
+    public void test15() throws Exception {
+        var spillDirectory = Files.createTempDirectory("hoogas_spill_test");
+        var testMessageSenderListener = new TestConnectionListener();
+        var options = new BufferedMessageSenderOptions().withFramingMode(FramingMode.LENGTH_PREFIXED).withAcknowledgedDelivery(true)
+                .withBufferCapacity(64).withSpillDirectory(spillDirectory);
+        try(BufferedMessageSender bufferedMessageSender = new BufferedMessageSender("localhost", 9000, 10000, 1234, testMessageSenderListener, options);
+            var executor = Executors.newSingleThreadExecutor()) {
+
+            var connectionEstablishedCountDownLatch = new CountDownLatch(1);
+            testMessageSenderListener.connectionEstablishedLatches.add(connectionEstablishedCountDownLatch);
+            bufferedMessageSender.start();
+            var futures = new ArrayList<CompletableFuture<Void>>();
+            for(int i = 0; i < 500; i++) {
+                futures.add(bufferedMessageSender.sendAsync("message_" + i, 0));
+                if(i % 50 == 0) {
+                    Thread.sleep(5);
+                }
+            }
+            Thread.sleep(100);
+            try(var files = Files.list(spillDirectory)) {
+                assertFalse(files.toList().isEmpty(), "Some of the messages should have been spilled");
+            }
+
+            try(MessageReceiver messageReceiver = new MessageReceiver(9000)) {
+                var connected = executor.submit(() -> {
+                    messageReceiver.connect();
+                    return null;
+                });
+                assertTrue(connectionEstablishedCountDownLatch.await(2000, TimeUnit.MILLISECONDS), "Message sender didn't connect to the other side");
+                connected.get(1000, TimeUnit.MILLISECONDS);
+                Thread.sleep(200);
+                //Nothing has been read so nothing has been acknowledged
+                for(CompletableFuture<Void> future : futures) {
+                    assertFalse(future.isDone());
+                }
+                var received = receive(messageReceiver, 500, 5000);
+                for(int i = 0; i < 500; i++) {
+                    assertEquals("message_" + i, received.get(i));
+                }
+                CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(2000, TimeUnit.MILLISECONDS);
+            }
+        }
+        finally {
+            try(var files = Files.list(spillDirectory)) {
+                for(Path file : files.toList()) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(spillDirectory);
+        }
+    }
+
+    /**
+     * Test priority lanes.  Queue up messages in 3 lanes before the receiver is there, then make sure that once connected the higher lanes
+     * go first, that each round of taking from the lanes still gives the lower lanes their share, that the lowest lane takes the rest of
+     * the batch once there's nothing above it, and that each lane keeps its own order.
+     */
+    @Test
+    public void test16() throws Exception {
+        var testMessageSenderListener = new TestConnectionListener();
+        var options = new BufferedMessageSenderOptions().withMaxBatchMessages(10).withPriorityLanes(3, 4);
+        assertThrows(IllegalArgumentException.class, () -> new BufferedMessageSenderOptions().withPriorityLanes(0, 4));
+        assertThrows(IllegalArgumentException.class, () -> new BufferedMessageSenderOptions().withPriorityLanes(2, 0));
+        try(BufferedMessageSender bufferedMessageSender = new BufferedMessageSender("localhost", 9000, 10000, 1234, testMessageSenderListener, options);
+            var executor = Executors.newSingleThreadExecutor()) {
+
+            var connectionEstablishedCountDownLatch = new CountDownLatch(1);
+            testMessageSenderListener.connectionEstablishedLatches.add(connectionEstablishedCountDownLatch);
+            bufferedMessageSender.start();
+            assertThrows(IllegalArgumentException.class, () -> bufferedMessageSender.send("bad", 3));
+            assertThrows(IllegalArgumentException.class, () -> bufferedMessageSender.sendAsync("bad", -1, 0));
+
+            for(int i = 0; i < 30; i++) {
+                bufferedMessageSender.send("bulk_" + i);
+            }
+            for(int i = 0; i < 10; i++) {
+                bufferedMessageSender.send("high_" + i, 1);
+            }
+            bufferedMessageSender.send("control_0", 0);
+            var controlFuture = bufferedMessageSender.sendAsync("control_1", 0, 0);
+
+            try(MessageReceiver messageReceiver = new MessageReceiver(9000)) {
+                var connected = executor.submit(() -> {
+                    messageReceiver.connect();
+                    return null;
+                });
+                assertTrue(connectionEstablishedCountDownLatch.await(2000, TimeUnit.MILLISECONDS), "Message sender didn't connect to the other side");
+                connected.get(1000, TimeUnit.MILLISECONDS);
+                controlFuture.get(2000, TimeUnit.MILLISECONDS);
+
+                var received = receive(messageReceiver, 42, 2000);
+                assertEquals(42, received.size());
+                //Lane 0 takes up to 10 a round, lane 1 up to 4 and lane 2 just 1, until lanes 0 and 1 are empty
+                assertEquals(List.of("control_0", "control_1", "high_0", "high_1", "high_2", "high_3", "bulk_0", "high_4", "high_5", "high_6",
+                        "high_7", "high_8", "high_9", "bulk_1", "bulk_2", "bulk_3", "bulk_4", "bulk_5", "bulk_6", "bulk_7"), received.subList(0, 20));
+                for(int i = 20; i < 42; i++) {
+                    assertEquals("bulk_" + (i - 12), received.get(i));
+                }
+                assertEquals(0, bufferedMessageSender.getNumMessagesDropped());
+            }
+        }
+    }
+
+    /**
+     * Test sending with keys and time-to-lives.  While the receiver isn't there, send several messages with the same key and make sure
+     * only the last is sent, in the place of the first, and that the futures of the others fail.  Make sure a message whose time-to-live
+     * runs out isn't sent, while one whose time-to-live hasn't run out is, and that a message with a key sent after the last one with
+     * that key has gone is sent as well.
+     */
+    @Test
+    public void test17() throws Exception {
+        var testMessageSenderListener = new TestConnectionListener();
+        try(BufferedMessageSender bufferedMessageSender = new BufferedMessageSender("localhost", 9000, 10000, 1234, testMessageSenderListener, new BufferedMessageSenderOptions());
+            var executor = Executors.newSingleThreadExecutor()) {
+
+            var connectionEstablishedCountDownLatch = new CountDownLatch(1);
+            testMessageSenderListener.connectionEstablishedLatches.add(connectionEstablishedCountDownLatch);
+            bufferedMessageSender.start();
+
+            bufferedMessageSender.send("first");
+            var replacedFuture = bufferedMessageSender.sendAsync("stats_1", "stats", 0, 0);
+            bufferedMessageSender.send("second");
+            for(int i = 2; i <= 5; i++) {
+                bufferedMessageSender.send("stats_" + i, "stats", 0);
+            }
+            var expiringFuture = bufferedMessageSender.sendAsync("expiring", null, 50, 0);
+            bufferedMessageSender.send("lasting", null, 60000);
+            var replaced = assertThrows(ExecutionException.class, () -> replacedFuture.get(1000, TimeUnit.MILLISECONDS));
+            assertInstanceOf(IllegalStateException.class, replaced.getCause());
+            assertEquals(4, bufferedMessageSender.getNumMessagesReplaced());
+            Thread.sleep(100);
+
+            try(MessageReceiver messageReceiver = new MessageReceiver(9000)) {
+                var connected = executor.submit(() -> {
+                    messageReceiver.connect();
+                    return null;
+                });
+                assertTrue(connectionEstablishedCountDownLatch.await(2000, TimeUnit.MILLISECONDS), "Message sender didn't connect to the other side");
+                connected.get(1000, TimeUnit.MILLISECONDS);
+
+                assertEquals(List.of("first", "stats_5", "second", "lasting"), receive(messageReceiver, 4, 2000));
+                var expired = assertThrows(ExecutionException.class, () -> expiringFuture.get(1000, TimeUnit.MILLISECONDS));
+                assertInstanceOf(IllegalStateException.class, expired.getCause());
+                assertEquals(1, bufferedMessageSender.getNumMessagesExpired());
+
+                bufferedMessageSender.sendAsync("stats_6", "stats", 0, 0).get(2000, TimeUnit.MILLISECONDS);
+                assertEquals(List.of("stats_6"), receive(messageReceiver, 1, 2000));
+            }
+        }
+    }
+
+    /**
+     * Test heartbeats.  Leave a connection to a receiver idle for several heartbeat timeouts and make sure it isn't reported as lost,
+     * as the receiver replies to the heartbeats, and that it still works afterwards.  Then connect to a receiver that accepts the
+     * connection but never reads or replies, as if it had died without closing it, and make sure the connection is reported as lost
+     * soon after the heartbeat timeout.
+     */
+    @Test
+    public void test18() throws Exception {
+        var options = new BufferedMessageSenderOptions().withFramingMode(FramingMode.LENGTH_PREFIXED).withHeartbeats(50, 3);
+        assertThrows(IllegalArgumentException.class, () -> new BufferedMessageSenderOptions().withHeartbeats(50, 0));
+        assertThrows(IllegalArgumentException.class, () -> new BufferedMessageSender("localhost", 9000, 10000, 1234, new TestConnectionListener(),
+                new BufferedMessageSenderOptions().withHeartbeats(50, 3)));
+        try(var executor = Executors.newSingleThreadExecutor()) {
+            var testMessageSenderListener = new TestConnectionListener();
+            try(BufferedMessageSender bufferedMessageSender = new BufferedMessageSender("localhost", 9000, 10000, 1234, testMessageSenderListener, options);
+                MessageReceiver messageReceiver = new MessageReceiver(9000)) {
+
+                var connectionEstablishedCountDownLatch = new CountDownLatch(1);
+                testMessageSenderListener.connectionEstablishedLatches.add(connectionEstablishedCountDownLatch);
+                var connectionLostCountDownLatch = new CountDownLatch(1);
+                testMessageSenderListener.connectionLostLatches.add(connectionLostCountDownLatch);
+                var connected = executor.submit(() -> {
+                    messageReceiver.connect();
+                    return null;
+                });
+                bufferedMessageSender.start();
+                assertTrue(connectionEstablishedCountDownLatch.await(2000, TimeUnit.MILLISECONDS), "Message sender didn't connect to the other side");
+                connected.get(1000, TimeUnit.MILLISECONDS);
+                var received = new CopyOnWriteArrayList<String>();
+                messageReceiver.startReceiving((connectionId, message) -> received.add(message), WaitStrategy.BLOCKING, false);
+
+                assertFalse(connectionLostCountDownLatch.await(600, TimeUnit.MILLISECONDS), "The idle connection shouldn't have been lost");
+                bufferedMessageSender.send("after_idle");
+                long giveUpAt = System.currentTimeMillis() + 2000;
+                while(received.isEmpty() && System.currentTimeMillis() < giveUpAt) {
+                    Thread.sleep(10);
+                }
+                assertEquals(List.of("after_idle"), received);
+            }
+
+            testMessageSenderListener = new TestConnectionListener();
+            try(BufferedMessageSender bufferedMessageSender = new BufferedMessageSender("localhost", 9000, 10000, 1234, testMessageSenderListener, options);
+                TestMessageReceiver testMessageReceiver = new TestMessageReceiver(9000)) {
+
+                var connectionEstablishedCountDownLatch = new CountDownLatch(1);
+                testMessageSenderListener.connectionEstablishedLatches.add(connectionEstablishedCountDownLatch);
+                var connectionLostCountDownLatch = new CountDownLatch(1);
+                testMessageSenderListener.connectionLostLatches.add(connectionLostCountDownLatch);
+                executor.submit(testMessageReceiver::connect);
+                Thread.sleep(100);
+                bufferedMessageSender.start();
+                assertTrue(connectionEstablishedCountDownLatch.await(2000, TimeUnit.MILLISECONDS), "Message sender didn't connect to the other side");
+                long connectedAt = System.nanoTime();
+                assertTrue(connectionLostCountDownLatch.await(2000, TimeUnit.MILLISECONDS), "The dead connection wasn't noticed");
+                assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - connectedAt) >= 100, "The connection was lost before the heartbeat timeout");
+            }
+        }
+    }
+
+    /**
+     * Test sending with a key in different lanes.  While the receiver isn't there, send a message with a key in the lowest lane behind
+     * other messages, then one with the same key in the highest lane.  Make sure the first is thrown away with its future failed, rather
+     * than the second taking its place behind the lowest lane, and that a further one with the key in the highest lane replaces the
+     * second in place.  Once connected the latest one must be sent first.
+     */
+    @Test
+    public void test19() throws Exception {
+        var testMessageSenderListener = new TestConnectionListener();
+        var options = new BufferedMessageSenderOptions().withPriorityLanes(2, 4);
+        try(BufferedMessageSender bufferedMessageSender = new BufferedMessageSender("localhost", 9000, 10000, 1234, testMessageSenderListener, options);
+            var executor = Executors.newSingleThreadExecutor()) {
+
+            var connectionEstablishedCountDownLatch = new CountDownLatch(1);
+            testMessageSenderListener.connectionEstablishedLatches.add(connectionEstablishedCountDownLatch);
+            bufferedMessageSender.start();
+
+            for(int i = 0; i < 5; i++) {
+                bufferedMessageSender.send("bulk_" + i);
+            }
+            var supersededFuture = bufferedMessageSender.sendAsync("state_1", 1, "state", 0, 0);
+            bufferedMessageSender.send("bulk_5");
+            bufferedMessageSender.send("state_2", 0, "state", 0);
+            var superseded = assertThrows(ExecutionException.class, () -> supersededFuture.get(1000, TimeUnit.MILLISECONDS));
+            assertInstanceOf(IllegalStateException.class, superseded.getCause());
+            var latestFuture = bufferedMessageSender.sendAsync("state_3", 0, "state", 0, 0);
+            assertEquals(2, bufferedMessageSender.getNumMessagesReplaced());
+
+            try(MessageReceiver messageReceiver = new MessageReceiver(9000)) {
+                var connected = executor.submit(() -> {
+                    messageReceiver.connect();
+                    return null;
+                });
+                assertTrue(connectionEstablishedCountDownLatch.await(2000, TimeUnit.MILLISECONDS), "Message sender didn't connect to the other side");
+                connected.get(1000, TimeUnit.MILLISECONDS);
+                latestFuture.get(2000, TimeUnit.MILLISECONDS);
+
+                assertEquals(List.of("state_3", "bulk_0", "bulk_1", "bulk_2", "bulk_3", "bulk_4", "bulk_5"), receive(messageReceiver, 7, 2000));
+                assertEquals(0, bufferedMessageSender.getNumMessagesExpired());
+                assertEquals(0, bufferedMessageSender.getNumMessagesDropped());
+            }
+        }
+    }
+
+    private static List<String> receive(MessageReceiver messageReceiver, int howMany, long timeout) throws Exception {
+        var received = new ArrayList<String>();
+        long giveUpAt = System.currentTimeMillis() + timeout;
+        while(received.size() < howMany && System.currentTimeMillis() < giveUpAt) {
+            received.addAll(messageReceiver.getReceivedMessages());
+            Thread.sleep(10);
+        }
+        return received;
+    }
+
+    private static void waitForAcknowledgement(BufferedMessageSender bufferedMessageSender, long sequence, long timeout) throws InterruptedException {
+        long giveUpAt = System.currentTimeMillis() + timeout;
+        while(bufferedMessageSender.getLastAcknowledgedSequence() < sequence && System.currentTimeMillis() < giveUpAt) {
+            Thread.sleep(10);
+        }
+        assertEquals(sequence, bufferedMessageSender.getLastAcknowledgedSequence());
+    }
+
     private static void sendTestMessages(
             BufferedMessageSender bufferedMessageSender,
             int howMany, int waitEveryXMessage,
@@ -239,6 +1053,28 @@ public class BufferedMessageSenderTest {
             return new String(Arrays.copyOfRange(c, 0, numCharsRead));
         }
 
+        //Reads until the given number of messages have been received or the timeout passes
+        private String getReceived(int howMany, long timeout) throws IOException {
+            var received = new StringBuilder();
+            var reader = new InputStreamReader(socket.getInputStream());
+            var c = new char[8192];
+            int numMessages = 0;
+            long giveUpAt = System.currentTimeMillis() + timeout;
+            while(numMessages < howMany && System.currentTimeMillis() < giveUpAt) {
+                int numCharsRead = reader.read(c);
+                if(numCharsRead < 0) {
+                    break;
+                }
+                for(int i = 0; i < numCharsRead; i++) {
+                    if(c[i] == Constants.MSG_SEPARATOR_CHAR) {
+                        numMessages++;
+                    }
+                }
+                received.append(c, 0, numCharsRead);
+            }
+            return received.toString();
+        }
+
         @Override
         public void close() throws IOException {
             socket.close();
@@ -0,0 +1,280 @@
+package hoogas_client.messaging;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CaptureLogTest {
+
+
+    /**
+     * Capture enough messages, from arrays and from direct buffers, including empty ones, multi-byte ones and one bigger than a segment,
+     * to fill several small segments.  Make sure they're read back in order with their connection ids and timestamps, and that a second
+     * capture with the same name carries on after the first rather than overwriting it.
+     */
+    @Test
+    public void test1() throws Exception {
+        var directory = Files.createTempDirectory("hoogas_capture_test");
+        try {
+            var expected = new ArrayList<String>();
+            for(int i = 0; i < 50; i++) {
+                expected.add(i % 10 == 0 ? "" : "message_£€_" + i);
+            }
+            expected.add("x".repeat(200));
+            long startedAt = System.currentTimeMillis();
+            try(var captureLog = new CaptureLog(directory, "test", 64)) {
+                var direct = ByteBuffer.allocateDirect(256);
+                for(int i = 0; i < expected.size(); i++) {
+                    var bytes = ("padding" + expected.get(i)).getBytes(StandardCharsets.UTF_8);
+                    if(i % 2 == 0) {
+                        captureLog.append(i, bytes, 7, bytes.length - 7);
+                    }
+                    else {
+                        direct.clear().put(bytes);
+                        captureLog.append(i, direct, 7, bytes.length - 7);
+                        assertEquals(bytes.length, direct.position());
+                    }
+                }
+            }
+            assertTrue(CaptureLog.listSegments(directory, "test").size() > 1, "Expected the messages to be spread across several segments");
+            try(var captureLog = new CaptureLog(directory, "test", 64)) {
+                captureLog.append(99, "again".getBytes(StandardCharsets.UTF_8), 0, 5);
+            }
+            try(var captureLog = new CaptureLog(directory, "other", 64)) {
+                captureLog.append(0, "other".getBytes(StandardCharsets.UTF_8), 0, 5);
+            }
+
+            expected.add("again");
+            var read = new ArrayList<CaptureReader.CapturedMessage>();
+            try(var captureReader = new CaptureReader(directory, "test")) {
+                CaptureReader.CapturedMessage capturedMessage;
+                while((capturedMessage = captureReader.next()) != null) {
+                    read.add(capturedMessage);
+                }
+            }
+            assertEquals(expected, read.stream().map(CaptureReader.CapturedMessage::message).toList());
+            for(int i = 0; i < read.size(); i++) {
+                assertEquals(i == read.size() - 1 ? 99 : i, read.get(i).connectionId());
+                var timestampMillis = TimeUnit.NANOSECONDS.toMillis(read.get(i).timestampNanos());
+                assertTrue(timestampMillis >= startedAt - 1000 && timestampMillis <= System.currentTimeMillis() + 1000, "Unexpected timestamp: " + timestampMillis);
+                if(i > 0) {
+                    assertTrue(read.get(i).timestampNanos() >= read.get(i - 1).timestampNanos() || i == read.size() - 1);
+                }
+            }
+        }
+        finally {
+            deleteDirectory(directory);
+        }
+    }
+
+    /**
+     * Capture what a {@link BufferedMessageSender} sends and what a {@link MessageReceiver} receives, then replay the receiver's capture
+     * through a {@link MessageSender} to another receiver, as fast as possible and then at twice the captured speed, and make sure the
+     * same messages arrive with the timing kept.
+     */
+    @Test
+    public void test2() throws Exception {
+        var directory = Files.createTempDirectory("hoogas_capture_test");
+        var testConnectionListener = new TestConnectionListener();
+        var options = new BufferedMessageSenderOptions().withFramingMode(FramingMode.LENGTH_PREFIXED).withCaptureDirectory(directory);
+        var expected = List.of("first", "second_£€", "third");
+        try(var executor = Executors.newSingleThreadExecutor()) {
+            try(var messageReceiver = new MessageReceiver(9000);
+                var bufferedMessageSender = new BufferedMessageSender("localhost", 9000, 10000, 1234, testConnectionListener, options)) {
+                messageReceiver.captureTo(directory, "receiver");
+                var connected = executor.submit(() -> {
+                    messageReceiver.connect();
+                    return null;
+                });
+                bufferedMessageSender.start();
+                assertTrue(testConnectionListener.connectedLatch.await(2000, TimeUnit.MILLISECONDS), "Message sender didn't connect to the other side");
+                connected.get(1000, TimeUnit.MILLISECONDS);
+                assertThrows(IllegalArgumentException.class, () -> messageReceiver.captureTo(directory, "again"));
+
+                bufferedMessageSender.send(expected.get(0));
+                bufferedMessageSender.send(expected.get(1));
+                assertEquals(expected.subList(0, 2), receive(messageReceiver, 2));
+                Thread.sleep(300);
+                bufferedMessageSender.send(expected.get(2));
+                assertEquals(expected.subList(2, 3), receive(messageReceiver, 1));
+            }
+
+            for(String name : List.of("sender_1234", "receiver")) {
+                var captured = new ArrayList<String>();
+                try(var captureReader = new CaptureReader(directory, name)) {
+                    CaptureReader.CapturedMessage capturedMessage;
+                    while((capturedMessage = captureReader.next()) != null) {
+                        captured.add(capturedMessage.message());
+                        assertEquals(name.equals("receiver") ? 0 : 1234, capturedMessage.connectionId());
+                    }
+                }
+                assertEquals(expected, captured, "Unexpected capture for " + name);
+            }
+
+            for(double speed : new double[]{CaptureReplayer.AS_FAST_AS_POSSIBLE, 2}) {
+                try(var messageReceiver = new MessageReceiver(9000);
+                    var messageSender = new MessageSender("localhost", 9000)) {
+                    var connected = executor.submit(() -> {
+                        messageReceiver.connect();
+                        return null;
+                    });
+                    Thread.sleep(100);
+                    messageSender.connect();
+                    connected.get(1000, TimeUnit.MILLISECONDS);
+
+                    long startedAt = System.nanoTime();
+                    assertEquals(3, new CaptureReplayer(directory, "receiver", speed).replay(messageSender));
+                    var replayMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+                    if(speed == CaptureReplayer.AS_FAST_AS_POSSIBLE) {
+                        assertTrue(replayMillis < 150, "Took " + replayMillis + "ms to replay as fast as possible");
+                    }
+                    else {
+                        assertTrue(replayMillis >= 140, "Took " + replayMillis + "ms to replay at twice the speed");
+                    }
+                    assertEquals(expected, receive(messageReceiver, 3));
+                }
+            }
+            assertThrows(IllegalArgumentException.class, () -> new CaptureReplayer(directory, "receiver", -1));
+        }
+        finally {
+            deleteDirectory(directory);
+        }
+    }
+
+    /**
+     * Capture to "a" and "a_b" in the same directory, so the segment files of "a_b" start with the prefix of those of "a", and make sure
+     * each capture only sees its own segments, both when carrying on after the existing ones and when they're read back.
+     */
+    @Test
+    public void test3() throws Exception {
+        var directory = Files.createTempDirectory("hoogas_capture_test");
+        try {
+            for(String name : new String[]{"a", "a_b", "a", "a_b"}) {
+                try(var captureLog = new CaptureLog(directory, name, 64)) {
+                    captureLog.append(0, name.getBytes(StandardCharsets.UTF_8), 0, name.length());
+                }
+            }
+            Files.createFile(directory.resolve("a_notes" + CaptureLog.SEGMENT_FILE_SUFFIX));
+
+            for(String name : new String[]{"a", "a_b"}) {
+                assertEquals(2, CaptureLog.listSegments(directory, name).size());
+                var read = new ArrayList<String>();
+                try(var captureReader = new CaptureReader(directory, name)) {
+                    CaptureReader.CapturedMessage capturedMessage;
+                    while((capturedMessage = captureReader.next()) != null) {
+                        read.add(capturedMessage.message());
+                    }
+                }
+                assertEquals(List.of(name, name), read);
+            }
+        }
+        finally {
+            deleteDirectory(directory);
+        }
+    }
+
+    /**
+     * Capture what a {@link HoogasMessageWriter} writes to a stream that fails some writes.  Make sure nothing in a failed write is
+     * recorded, that the messages are recorded once they're appended again and written, and that messages re-sent after being written
+     * aren't recorded again.
+     */
+    @Test
+    public void test4() throws Exception {
+        var directory = Files.createTempDirectory("hoogas_capture_test");
+        try {
+            var outputStream = new FailingOutputStream();
+            try(var captureLog = new CaptureLog(directory, "writer", 64)) {
+                var writer = new HoogasMessageWriter(outputStream, FramingMode.LENGTH_PREFIXED);
+                writer.captureTo(captureLog, 1);
+                writer.appendSequenced(1, "first");
+                writer.flush();
+
+                outputStream.failing = true;
+                writer.appendSequenced(2, "second");
+                writer.append("third");
+                assertThrows(IOException.class, writer::flush);
+
+                outputStream.failing = false;
+                writer.appendResent(1, "first");
+                writer.appendSequenced(2, "second");
+                writer.append("third");
+                writer.flush();
+                writer.appendResent(2, "second");
+                writer.flush();
+            }
+
+            var read = new ArrayList<String>();
+            try(var captureReader = new CaptureReader(directory, "writer")) {
+                CaptureReader.CapturedMessage capturedMessage;
+                while((capturedMessage = captureReader.next()) != null) {
+                    read.add(capturedMessage.message());
+                }
+            }
+            assertEquals(List.of("first", "second", "third"), read);
+        }
+        finally {
+            deleteDirectory(directory);
+        }
+    }
+
+    private static List<String> receive(MessageReceiver messageReceiver, int howMany) throws Exception {
+        var received = new ArrayList<String>();
+        long giveUpAt = System.currentTimeMillis() + 2000;
+        while(received.size() < howMany && System.currentTimeMillis() < giveUpAt) {
+            received.addAll(messageReceiver.getReceivedMessages());
+            Thread.sleep(10);
+        }
+        return received;
+    }
+
+    private static void deleteDirectory(Path directory) throws Exception {
+        try(var files = Files.list(directory)) {
+            for(Path file : files.toList()) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    private static class FailingOutputStream extends OutputStream {
+
+
+        private boolean failing;
+
+        @Override
+        public void write(int b) throws IOException {
+            if(failing) {
+                throw new IOException("Write failed");
+            }
+        }
+    }
+
+    private static class TestConnectionListener implements ConnectionListener {
+
+
+        private final CountDownLatch connectedLatch = new CountDownLatch(1);
+
+        @Override
+        public void onConnectionEstablished(int connectionId) {
+            connectedLatch.countDown();
+        }
+
+        @Override
+        public void onConnectionLost(int connectionId) {}
+
+        @Override
+        public void onConnectionTimedOut(int connectionId) {}
+    }
+}
@@ -0,0 +1,438 @@
+package hoogas_client.messaging;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static hoogas_client.Constants.MSG_SEPARATOR_CHAR;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HoogasFrameParserTest {
+
+
+    /**
+     * Feed the parser a stream of messages containing multi-byte characters one byte at a time, so the separator and the
+     * other characters are split across writes, and make sure the messages come out intact.
+     */
+    @Test
+    public void test1() throws Exception {
+        for(boolean direct : new boolean[]{false, true}) {
+            var frameParser = new HoogasFrameParser(4, direct);
+            var stream = ("abc" + MSG_SEPARATOR_CHAR + "£€" + MSG_SEPARATOR_CHAR + MSG_SEPARATOR_CHAR + "x" + MSG_SEPARATOR_CHAR).getBytes(StandardCharsets.UTF_8);
+            var messages = new ArrayList<String>();
+            for(byte b : stream) {
+                frameParser.getWritableBuffer(1).put(b);
+                frameParser.parse(messages);
+            }
+            assertEquals(List.of("abc", "£€", "", "x"), messages);
+        }
+    }
+
+    /**
+     * Write messages much larger than the initial buffer size and make sure the buffer grows to fit them, and that any
+     * messages written in the same chunk either side of them are returned too.
+     */
+    @Test
+    public void test2() throws Exception {
+        for(boolean direct : new boolean[]{false, true}) {
+            var frameParser = new HoogasFrameParser(8, direct);
+            var largeMessage = "0123456789".repeat(100);
+            var stream = ("a" + MSG_SEPARATOR_CHAR + largeMessage + MSG_SEPARATOR_CHAR + largeMessage + MSG_SEPARATOR_CHAR + "b").getBytes(StandardCharsets.UTF_8);
+
+            var messages = new ArrayList<String>();
+            for(int i = 0; i < stream.length; i += 7) {
+                var length = Math.min(7, stream.length - i);
+                frameParser.getWritableBuffer(length).put(stream, i, length);
+                frameParser.parse(messages);
+            }
+            assertEquals(List.of("a", largeMessage, largeMessage), messages);
+
+            //The partly read message should be completed by the next write
+            frameParser.getWritableBuffer(2).put(String.valueOf(MSG_SEPARATOR_CHAR).getBytes(StandardCharsets.UTF_8));
+            messages.clear();
+            assertEquals(1, frameParser.parse(messages));
+            assertEquals(List.of("b"), messages);
+        }
+    }
+
+    /**
+     * Feed the parser a length-prefixed stream, including messages containing the separator character and a frame of an unknown
+     * type, in uneven pieces and make sure the messages come out intact and the frame of the unknown type is skipped.
+     */
+    @Test
+    public void test3() throws Exception {
+        for(boolean direct : new boolean[]{false, true}) {
+            var frameParser = new HoogasFrameParser(8, direct);
+            var largeMessage = "0123456789".repeat(100);
+            var stream = ByteBuffer.allocate(2000);
+            stream.put(FramingMode.LENGTH_PREFIXED_PREAMBLE);
+            putFrame(stream, FrameType.MESSAGE.getCode(), "a" + MSG_SEPARATOR_CHAR + "b");
+            putFrame(stream, (byte)99, "unknown");
+            putFrame(stream, FrameType.MESSAGE.getCode(), "");
+            putFrame(stream, FrameType.MESSAGE.getCode(), largeMessage);
+            putFrame(stream, FrameType.MESSAGE.getCode(), "£€");
+            stream.flip();
+
+            var messages = new ArrayList<String>();
+            while(stream.hasRemaining()) {
+                var length = Math.min(3, stream.remaining());
+                var bytes = new byte[length];
+                stream.get(bytes);
+                frameParser.getWritableBuffer(length).put(bytes);
+                frameParser.parse(messages);
+            }
+            assertEquals(FramingMode.LENGTH_PREFIXED, frameParser.getFramingMode());
+            assertEquals(List.of("a" + MSG_SEPARATOR_CHAR + "b", "", largeMessage, "£€"), messages);
+        }
+    }
+
+    /**
+     * Feed two parsers sharing the same delivery state the frames written by a sender using acknowledged delivery, the second
+     * as if the sender had reconnected and re-sent messages that hadn't been acknowledged.  Make sure messages that were already
+     * delivered aren't delivered again, that the right acknowledgements are asked for, and that acknowledgements are read.
+     */
+    @Test
+    public void test4() throws Exception {
+        var deliveredSequences = new HashMap<Long, AtomicLong>();
+
+        var firstConnection = new ByteArrayOutputStream();
+        var writer = new HoogasMessageWriter(firstConnection, FramingMode.LENGTH_PREFIXED);
+        writer.appendHello(42);
+        for(int i = 1; i <= 3; i++) {
+            writer.appendSequenced(i, "message_" + i);
+        }
+        writer.flush();
+        var frameParser = new HoogasFrameParser(8, false, deliveredSequences);
+        var messages = new ArrayList<String>();
+        frameParser.getWritableBuffer(firstConnection.size()).put(firstConnection.toByteArray());
+        frameParser.parse(messages);
+        assertEquals(List.of("message_1", "message_2", "message_3"), messages);
+        assertEquals(3, frameParser.takePendingAcknowledgement());
+        assertEquals(-1, frameParser.takePendingAcknowledgement());
+
+        var secondConnection = new ByteArrayOutputStream();
+        writer = new HoogasMessageWriter(secondConnection, FramingMode.LENGTH_PREFIXED);
+        writer.appendHello(42);
+        for(int i = 2; i <= 5; i++) {
+            writer.appendSequenced(i, "message_" + i);
+        }
+        writer.flush();
+        frameParser = new HoogasFrameParser(8, true, deliveredSequences);
+        messages.clear();
+        frameParser.getWritableBuffer(secondConnection.size()).put(secondConnection.toByteArray());
+        frameParser.parse(messages);
+        assertEquals(List.of("message_4", "message_5"), messages);
+        assertEquals(5, frameParser.takePendingAcknowledgement());
+
+        //A different session starts from scratch
+        var otherSession = new ByteArrayOutputStream();
+        writer = new HoogasMessageWriter(otherSession, FramingMode.LENGTH_PREFIXED);
+        writer.appendHello(43);
+        writer.appendSequenced(1, "other");
+        writer.flush();
+        frameParser = new HoogasFrameParser(8, false, deliveredSequences);
+        messages.clear();
+        frameParser.getWritableBuffer(otherSession.size()).put(otherSession.toByteArray());
+        frameParser.parse(messages);
+        assertEquals(List.of("other"), messages);
+
+        //The acknowledgements going back the other way
+        var acknowledgements = new ByteArrayOutputStream();
+        writer = new HoogasMessageWriter(acknowledgements, FramingMode.LENGTH_PREFIXED);
+        writer.appendAcknowledgement(3);
+        writer.appendAcknowledgement(5);
+        writer.doSend("reply");
+        frameParser = new HoogasFrameParser(8, false);
+        messages.clear();
+        frameParser.getWritableBuffer(acknowledgements.size()).put(acknowledgements.toByteArray());
+        frameParser.parse(messages);
+        assertEquals(5, frameParser.getLastAcknowledgementReceived());
+        assertEquals(List.of("reply"), messages);
+
+        //A sequenced message without a session is a protocol error
+        var noHello = new ByteArrayOutputStream();
+        writer = new HoogasMessageWriter(noHello, FramingMode.LENGTH_PREFIXED);
+        writer.appendSequenced(1, "orphan");
+        writer.flush();
+        var orphanParser = new HoogasFrameParser(8, false);
+        orphanParser.getWritableBuffer(noHello.size()).put(noHello.toByteArray());
+        assertThrows(IOException.class, () -> orphanParser.parse(new ArrayList<>()));
+    }
+
+    /**
+     * Parse the same messages, in both framing modes, as views rather than Strings and make sure the views give the same bytes and
+     * characters, that they can't be used once the handler has returned, and that nothing is allocated per message once the buffer
+     * has grown to fit them.
+     */
+    @Test
+    public void test5() throws Exception {
+        var expected = List.of("abc", "£€" + "x".repeat(100), "", "0123456789".repeat(50));
+        for(boolean direct : new boolean[]{false, true}) {
+            for(FramingMode framingMode : FramingMode.values()) {
+                var stream = new ByteArrayOutputStream();
+                var writer = new HoogasMessageWriter(stream, framingMode);
+                for(String message : expected) {
+                    writer.doSend(message);
+                }
+                var frameParser = new HoogasFrameParser(8, direct);
+                var messages = new ArrayList<String>();
+                var views = new ArrayList<MessageView>();
+                MessageViewHandler messageViewHandler = (connectionId, message) -> {
+                    assertEquals(7, connectionId);
+                    var expectedMessage = expected.get(messages.size());
+                    assertEquals(expectedMessage.length(), message.length());
+                    assertTrue(message.contentEquals(expectedMessage));
+                    assertFalse(message.contentEquals(expectedMessage + "y"));
+                    var expectedBytes = expectedMessage.getBytes(StandardCharsets.UTF_8);
+                    assertEquals(expectedBytes.length, message.byteLength());
+                    for(int i = 0; i < expectedBytes.length; i++) {
+                        assertEquals(expectedBytes[i], message.byteAt(i));
+                    }
+                    messages.add(message.toString());
+                    views.add(message);
+                };
+                var bytes = stream.toByteArray();
+                for(int i = 0; i < bytes.length; i += 7) {
+                    var length = Math.min(7, bytes.length - i);
+                    frameParser.getWritableBuffer(length).put(bytes, i, length);
+                    frameParser.parse(messageViewHandler, 7);
+                }
+                assertEquals(expected, messages);
+                assertThrows(IllegalStateException.class, () -> views.getFirst().length());
+
+                //Once the buffer's big enough for the messages then parsing them as views shouldn't allocate anything
+                var threadMXBean = (com.sun.management.ThreadMXBean)java.lang.management.ManagementFactory.getThreadMXBean();
+                var lengths = new long[1];
+                MessageViewHandler countingHandler = (connectionId, message) -> lengths[0] += message.length() + message.byteLength();
+                var payload = Arrays.copyOfRange(bytes, framingMode == FramingMode.LENGTH_PREFIXED ? FramingMode.LENGTH_PREFIXED_PREAMBLE.length : 0, bytes.length);
+                int numRepeats = 5000;
+                long allocatedBefore = 0;
+                for(int i = 0; i < numRepeats * 2; i++) {
+                    if(i == numRepeats) {
+                        allocatedBefore = threadMXBean.getCurrentThreadAllocatedBytes();
+                    }
+                    frameParser.getWritableBuffer(payload.length).put(payload);
+                    frameParser.parse(countingHandler, 7);
+                }
+                var allocatedPerMessage = (threadMXBean.getCurrentThreadAllocatedBytes() - allocatedBefore) / (double)(numRepeats * expected.size());
+                assertTrue(allocatedPerMessage < 1, "Allocated " + allocatedPerMessage + " bytes per message");
+            }
+        }
+    }
+
+    /**
+     * Write messages that are all ASCII, partly ASCII, not ASCII at all and have invalid characters, in both framing modes, and make
+     * sure the bytes are exactly the UTF-8 of each message framed as expected.  Then make sure that once the writer's buffer has grown
+     * to fit them nothing is allocated per message when they're all ASCII.
+     */
+    @Test
+    public void test6() throws Exception {
+        var expected = List.of("abc", "", "ab" + MSG_SEPARATOR_CHAR, "£€", "x£" + "y".repeat(300) + "\uD83D\uDE00", "bad\uD83D", "z".repeat(1000));
+        for(FramingMode framingMode : FramingMode.values()) {
+            var stream = new ByteArrayOutputStream();
+            var writer = new HoogasMessageWriter(stream, framingMode);
+            var expectedStream = new ByteArrayOutputStream();
+            if(framingMode == FramingMode.LENGTH_PREFIXED) {
+                expectedStream.write(FramingMode.LENGTH_PREFIXED_PREAMBLE);
+            }
+            long sequence = 0;
+            for(String message : expected) {
+                writer.append(message);
+                var payload = message.getBytes(StandardCharsets.UTF_8);
+                if(framingMode == FramingMode.SEPARATOR) {
+                    expectedStream.write(payload);
+                    expectedStream.write(HoogasFrameParser.SEPARATOR_BYTES);
+                }
+                else {
+                    var frame = ByteBuffer.allocate(FramingMode.FRAME_HEADER_LENGTH + payload.length);
+                    putFrame(frame, FrameType.MESSAGE.getCode(), message);
+                    expectedStream.write(frame.array());
+                    writer.appendSequenced(++sequence, message);
+                    frame = ByteBuffer.allocate(FramingMode.FRAME_HEADER_LENGTH + FrameType.SEQUENCE_LENGTH + payload.length);
+                    frame.putInt(FrameType.SEQUENCE_LENGTH + payload.length).put(FrameType.SEQUENCED_MESSAGE.getCode()).putLong(sequence).put(payload);
+                    expectedStream.write(frame.array());
+                }
+            }
+            assertEquals(expectedStream.size() - stream.size(), writer.flush());
+            assertArrayEquals(expectedStream.toByteArray(), stream.toByteArray());
+
+            writer = new HoogasMessageWriter(OutputStream.nullOutputStream(), framingMode);
+            var threadMXBean = (com.sun.management.ThreadMXBean)java.lang.management.ManagementFactory.getThreadMXBean();
+            var message = "0123456789".repeat(50);
+            int numRepeats = 5000;
+            long allocatedBefore = 0;
+            for(int i = 0; i < numRepeats * 2; i++) {
+                if(i == numRepeats) {
+                    allocatedBefore = threadMXBean.getCurrentThreadAllocatedBytes();
+                }
+                writer.append(message);
+                if(writer.getNumPendingBytes() > 100_000) {
+                    writer.flush();
+                }
+            }
+            var allocatedPerMessage = (threadMXBean.getCurrentThreadAllocatedBytes() - allocatedBefore) / (double)numRepeats;
+            assertTrue(allocatedPerMessage < 1, "Allocated " + allocatedPerMessage + " bytes per message");
+        }
+    }
+
+    /**
+     * Parse messages that are bigger than the maximum frame size amongst ones that aren't, in both framing modes, with the bytes
+     * arriving a few at a time and all at once.  Make sure the big ones are thrown away without the buffer growing to hold them and
+     * that the messages after them are still parsed.
+     */
+    @Test
+    public void test7() throws Exception {
+        var sent = List.of("short", "x".repeat(100), "after", "y".repeat(16), "z".repeat(17), "1", "end");
+        var expected = List.of("short", "after", "y".repeat(16), "1", "end");
+        for(FramingMode framingMode : FramingMode.values()) {
+            var stream = new ByteArrayOutputStream();
+            var writer = new HoogasMessageWriter(stream, framingMode);
+            for(String message : sent) {
+                writer.doSend(message);
+            }
+            var bytes = stream.toByteArray();
+            for(int chunkSize : new int[]{1, 7, bytes.length}) {
+                var frameParser = new HoogasFrameParser(8, false, new HashMap<>(), 16);
+                var messages = new ArrayList<String>();
+                for(int i = 0; i < bytes.length; i += chunkSize) {
+                    var length = Math.min(chunkSize, bytes.length - i);
+                    frameParser.getWritableBuffer(length).put(bytes, i, length);
+                    frameParser.parse(messages);
+                    if(chunkSize < bytes.length) {
+                        assertTrue(frameParser.getWritableBuffer(0).capacity() <= 64);
+                    }
+                }
+                assertEquals(expected, messages);
+                assertEquals(2, frameParser.getNumFramesRejected());
+            }
+        }
+        assertThrows(IllegalArgumentException.class, () -> new HoogasFrameParser(8, false, new HashMap<>(), FrameType.SEQUENCE_LENGTH - 1));
+    }
+
+    /**
+     * Connect more sender sessions than the receiver remembers and make sure the ones that connected least recently are forgotten,
+     * so the map doesn't keep growing, while a session that has just reconnected is still remembered.
+     */
+    @Test
+    public void test8() throws Exception {
+        var deliveredSequences = HoogasFrameParser.newDeliveredSequences(3);
+        for(long session = 1; session <= 5; session++) {
+            parseSession(deliveredSequences, session, List.of(1L), List.of("message_1"));
+            //Session 1 keeps reconnecting, so it's never the one that connected least recently
+            parseSession(deliveredSequences, 1, List.of(1L), List.of());
+        }
+        assertEquals(3, deliveredSequences.size());
+        assertTrue(deliveredSequences.keySet().containsAll(List.of(1L, 4L, 5L)));
+        //A forgotten session starts from scratch
+        parseSession(deliveredSequences, 2, List.of(1L), List.of("message_1"));
+    }
+
+    /**
+     * Write a stream of messages into the parser in fixed-size chunks of bytes, so the 2 byte separator is split across chunks, and make sure each
+     * parse returns just the messages that have been completed by that chunk.
+     */
+    @Test
+    public void test9() throws Exception {
+        for(boolean direct : new boolean[]{false, true}) {
+            var frameParser = new HoogasFrameParser(5, direct);
+            var stream = ("abcd" + MSG_SEPARATOR_CHAR + "abcd" + MSG_SEPARATOR_CHAR + "abcdefghij" + MSG_SEPARATOR_CHAR + "abc" + MSG_SEPARATOR_CHAR + "abcdefghi" + MSG_SEPARATOR_CHAR +
+                    "abcd" + MSG_SEPARATOR_CHAR + "abcdefghij" + MSG_SEPARATOR_CHAR + "k" + MSG_SEPARATOR_CHAR).getBytes(StandardCharsets.UTF_8);
+
+            var expectedMsgs = new String[][]{{}, {"abcd"}, {"abcd"}, {}, {"abcdefghij"}, {"abc"}, {}, {"abcdefghi"}, {},
+                    {"abcd"}, {}, {"abcdefghij"}, {"k"}};
+            for(int i = 0; i < expectedMsgs.length; i++) {
+                var length = Math.min(5, stream.length - i * 5);
+                frameParser.getWritableBuffer(length).put(stream, i * 5, length);
+                var messages = new ArrayList<String>();
+                frameParser.parse(messages);
+                assertEquals(List.of(expectedMsgs[i]), messages);
+            }
+        }
+    }
+
+    /**
+     * Send a message too big for the writer to keep room for, then a batch that it can, and make sure the room made for the large
+     * message is given up once it's been written, even if the write fails, while the room for the batch is kept.  Check the messages
+     * still arrive intact.
+     */
+    @Test
+    public void test10() throws Exception {
+        for(FramingMode framingMode : FramingMode.values()) {
+            var connection = new ByteArrayOutputStream();
+            var writer = new HoogasMessageWriter(connection, framingMode);
+            var largeMessage = "x".repeat(HoogasMessageWriter.MAX_RETAINED_CAPACITY * 2);
+            writer.doSend(largeMessage);
+            assertEquals(HoogasMessageWriter.INITIAL_CAPACITY, writer.getCapacity());
+
+            var batch = new ArrayList<String>();
+            for(int i = 0; i < 1000; i++) {
+                batch.add("message_" + i);
+                writer.append("message_" + i);
+            }
+            writer.flush();
+            var batchCapacity = writer.getCapacity();
+            assertTrue(batchCapacity > HoogasMessageWriter.INITIAL_CAPACITY && batchCapacity <= HoogasMessageWriter.MAX_RETAINED_CAPACITY);
+            writer.doSend("small");
+            assertEquals(batchCapacity, writer.getCapacity());
+
+            var frameParser = new HoogasFrameParser(8, false);
+            var messages = new ArrayList<String>();
+            frameParser.getWritableBuffer(connection.size()).put(connection.toByteArray());
+            frameParser.parse(messages);
+            var expected = new ArrayList<String>();
+            expected.add(largeMessage);
+            expected.addAll(batch);
+            expected.add("small");
+            assertEquals(expected, messages);
+
+            var brokenConnection = new BreakableOutputStream();
+            var brokenWriter = new HoogasMessageWriter(brokenConnection, framingMode);
+            brokenConnection.broken = true;
+            assertThrows(IOException.class, () -> brokenWriter.doSend(largeMessage));
+            assertEquals(HoogasMessageWriter.INITIAL_CAPACITY, brokenWriter.getCapacity());
+        }
+    }
+
+    //Parses a connection from the given session that sends the given sequence numbers, and checks which messages are delivered
+    private static void parseSession(Map<Long, AtomicLong> deliveredSequences, long session, List<Long> sequences, List<String> expected) throws Exception {
+        var connection = new ByteArrayOutputStream();
+        var writer = new HoogasMessageWriter(connection, FramingMode.LENGTH_PREFIXED);
+        writer.appendHello(session);
+        for(long sequence : sequences) {
+            writer.appendSequenced(sequence, "message_" + sequence);
+        }
+        writer.flush();
+        var frameParser = new HoogasFrameParser(8, false, deliveredSequences);
+        var messages = new ArrayList<String>();
+        frameParser.getWritableBuffer(connection.size()).put(connection.toByteArray());
+        frameParser.parse(messages);
+        assertEquals(expected, messages);
+    }
+
+    private static void putFrame(ByteBuffer stream, byte type, String message) {
+        var payload = message.getBytes(StandardCharsets.UTF_8);
+        stream.putInt(payload.length).put(type).put(payload);
+    }
+
+    private static class BreakableOutputStream extends OutputStream {
+
+        private boolean broken;
+
+        @Override
+        public void write(int b) throws IOException {
+            if(broken) {
+                throw new IOException("The connection is broken");
+            }
+        }
+    }
+}
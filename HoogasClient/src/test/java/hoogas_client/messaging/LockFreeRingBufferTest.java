@@ -0,0 +1,90 @@
+package hoogas_client.messaging;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LockFreeRingBufferTest {
+
+
+    /**
+     * Test the basics.  Make sure the capacity is rounded up, that elements come out in the order they went in, and that
+     * the buffer refuses new elements when full and accepts them again once there's room.
+     */
+    @Test
+    public void test1() {
+        assertEquals(1, new LockFreeRingBuffer<String>(1).capacity());
+        assertEquals(8, new LockFreeRingBuffer<String>(8).capacity());
+        assertEquals(1024, new LockFreeRingBuffer<String>(1000).capacity());
+        assertThrows(IllegalArgumentException.class, () -> new LockFreeRingBuffer<String>(0));
+
+        var ringBuffer = new LockFreeRingBuffer<Integer>(4);
+        assertNull(ringBuffer.poll());
+        //Go round the ring a few times to make sure the slots are re-used properly
+        for(int round = 0; round < 3; round++) {
+            for(int i = 0; i < 4; i++) {
+                assertTrue(ringBuffer.offer(i));
+            }
+            assertFalse(ringBuffer.offer(4));
+            assertEquals(4, ringBuffer.size());
+            assertEquals(Integer.valueOf(0), ringBuffer.poll());
+            assertTrue(ringBuffer.offer(4));
+
+            var drained = new ArrayList<Integer>();
+            assertEquals(3, ringBuffer.drainTo(drained, 3));
+            assertEquals(List.of(1, 2, 3), drained);
+            assertEquals(Integer.valueOf(4), ringBuffer.poll());
+            assertTrue(ringBuffer.isEmpty());
+        }
+    }
+
+    /**
+     * Have several threads add to a small buffer at the same time while another empties it, and make sure nothing is lost
+     * or duplicated and that each thread's elements come out in the order that thread added them.
+     */
+    @Test
+    public void test2() throws Exception {
+        var ringBuffer = new LockFreeRingBuffer<int[]>(16);
+        int numProducers = 4;
+        int numPerProducer = 50_000;
+        var startLatch = new CountDownLatch(1);
+        try(var executor = Executors.newFixedThreadPool(numProducers)) {
+            for(int p = 0; p < numProducers; p++) {
+                var producer = p;
+                executor.submit(() -> {
+                    startLatch.await();
+                    for(int i = 0; i < numPerProducer; i++) {
+                        while(!ringBuffer.offer(new int[]{producer, i})) {
+                            Thread.yield();
+                        }
+                    }
+                    return null;
+                });
+            }
+            startLatch.countDown();
+
+            var nextExpected = new int[numProducers];
+            var drained = new ArrayList<int[]>();
+            int numReceived = 0;
+            long giveUpAt = System.currentTimeMillis() + 20000;
+            while(numReceived < numProducers * numPerProducer && System.currentTimeMillis() < giveUpAt) {
+                drained.clear();
+                if(ringBuffer.drainTo(drained, 16) == 0) {
+                    ringBuffer.awaitNotEmpty(TimeUnit.MILLISECONDS.toNanos(1));
+                }
+                for(int[] element : drained) {
+                    assertEquals(nextExpected[element[0]]++, element[1], "Out of order for producer " + element[0]);
+                }
+                numReceived += drained.size();
+            }
+            assertEquals(numProducers * numPerProducer, numReceived);
+            assertNull(ringBuffer.poll());
+        }
+    }
+}
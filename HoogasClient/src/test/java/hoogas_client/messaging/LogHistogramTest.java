@@ -0,0 +1,72 @@
+package hoogas_client.messaging;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LogHistogramTest {
+
+
+    /**
+     * Make sure every value goes in a bucket whose range includes it, that the buckets are in order and don't overlap, and that
+     * they're never wider than 1/16th of the values in them, right up to the largest value there is.
+     */
+    @Test
+    public void test1() {
+        var random = new Random(1);
+        for(int i = 0; i < 100_000; i++) {
+            long value = i < 1000 ? i : (random.nextLong() >>> 1) >>> random.nextInt(63);
+            int index = LogHistogram.bucketIndex(value);
+            assertTrue(LogHistogram.bucketUpperBound(index) >= value);
+            assertTrue(index == 0 || LogHistogram.bucketUpperBound(index - 1) < value);
+        }
+        assertEquals(LogHistogram.NUM_BUCKETS - 1, LogHistogram.bucketIndex(Long.MAX_VALUE));
+        assertEquals(Long.MAX_VALUE, LogHistogram.bucketUpperBound(LogHistogram.NUM_BUCKETS - 1));
+        for(int index = 1; index < LogHistogram.NUM_BUCKETS; index++) {
+            long lowerBound = LogHistogram.bucketUpperBound(index - 1) + 1;
+            assertEquals(index, LogHistogram.bucketIndex(lowerBound));
+            assertTrue(LogHistogram.bucketUpperBound(index) - lowerBound <= Math.max(0, lowerBound / LogHistogram.SUB_BUCKETS));
+        }
+    }
+
+    /**
+     * Record a spread of values and make sure the percentiles, mean and max in the snapshot are within the accuracy of the buckets,
+     * and that a snapshot taken with a reset clears the histogram without affecting the snapshot.
+     */
+    @Test
+    public void test2() {
+        var histogram = new LogHistogram();
+        var random = new Random(2);
+        var values = new long[10_000];
+        for(int i = 0; i < values.length; i++) {
+            values[i] = 1000 + random.nextInt(1_000_000);
+            histogram.record(values[i]);
+        }
+        histogram.record(-5);
+        Arrays.sort(values);
+
+        var snapshot = histogram.snapshot(true);
+        assertEquals(values.length + 1, snapshot.getCount());
+        assertEquals(values[values.length - 1], snapshot.getMax());
+        assertEquals(0, snapshot.getValueAtPercentile(0));
+        assertEquals(Arrays.stream(values).sum() / (double)(values.length + 1), snapshot.getMean(), 0.001);
+        for(double percentile : new double[]{50, 90, 99, 99.9}) {
+            long actual = values[(int)Math.ceil(percentile / 100 * (values.length + 1)) - 2];
+            long reported = snapshot.getValueAtPercentile(percentile);
+            assertTrue(reported >= actual && reported <= actual + actual / LogHistogram.SUB_BUCKETS,
+                    "p" + percentile + " reported as " + reported + " but was " + actual);
+        }
+        assertEquals(snapshot.getMax(), snapshot.getValueAtPercentile(100));
+        assertThrows(IllegalArgumentException.class, () -> snapshot.getValueAtPercentile(101));
+
+        var emptySnapshot = histogram.snapshot(false);
+        assertEquals(0, emptySnapshot.getCount());
+        assertEquals(0, emptySnapshot.getMax());
+        assertEquals(0, emptySnapshot.getValueAtPercentile(50));
+        histogram.record(7);
+        assertEquals(7, histogram.snapshot(false).getValueAtPercentile(50));
+    }
+}
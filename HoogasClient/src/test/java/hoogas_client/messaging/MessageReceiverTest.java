@@ -5,7 +5,16 @@ import org.junit.jupiter.api.Test;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static hoogas_client.Constants.MSG_SEPARATOR_CHAR;
@@ -200,6 +209,179 @@ public class MessageReceiverTest {
     }
 
 
+    /**
+     * Register a handler using each of the wait strategies, on both platform and virtual threads, and make sure the messages
+     * are pushed to it, and that polling isn't allowed at the same time.
+     */
+    @Test
+    public void test5() throws Exception {
+        for(WaitStrategy waitStrategy : WaitStrategy.values()) {
+            for(boolean useVirtualThread : new boolean[]{false, true}) {
+                try(TestMessageSender messageSender = new TestMessageSender("localhost", 9000);
+                    MessageReceiver messageReceiver = new MessageReceiver(9000, 5);) {
+
+                    Thread t = new Thread(() -> {
+                        try {
+                            messageReceiver.connect();
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                        }
+                    });
+                    t.start();
+                    Thread.sleep(200);
+                    messageSender.connect();
+                    t.join(1000);
+
+                    var received = new LinkedBlockingQueue<String>();
+                    messageReceiver.startReceiving((connectionId, message) -> received.add(message), waitStrategy, useVirtualThread);
+                    checkExceptionThrown(() -> messageReceiver.getReceivedMessages(), true);
+
+                    messageSender.send("abcdefghij" + MSG_SEPARATOR_CHAR + "k" + MSG_SEPARATOR_CHAR);
+                    assertEquals("abcdefghij", received.poll(1000, TimeUnit.MILLISECONDS));
+                    assertEquals("k", received.poll(1000, TimeUnit.MILLISECONDS));
+                    messageSender.send("lmn" + MSG_SEPARATOR_CHAR);
+                    assertEquals("lmn", received.poll(1000, TimeUnit.MILLISECONDS));
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Connect a sender and receiver over a Unix domain socket and make sure messages go both ways, and that the socket file is
+     * deleted when the receiver is closed.
+     */
+    @Test
+    public void test6() throws Exception {
+        var directory = Files.createTempDirectory("hoogas_uds");
+        var address = UnixDomainSocketAddress.of(directory.resolve("receiver.sock"));
+        try(MessageSender messageSender = new MessageSender(address, FramingMode.SEPARATOR);
+            MessageReceiver messageReceiver = new MessageReceiver(address, 5);) {
+
+            Thread t = new Thread(() -> {
+                try {
+                    messageReceiver.connect();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            });
+            t.start();
+            Thread.sleep(200);
+            messageSender.connect();
+            t.join(1000);
+
+            var received = new LinkedBlockingQueue<String>();
+            messageReceiver.startReceiving((connectionId, message) -> received.add(message), WaitStrategy.BLOCKING, false);
+            messageSender.send("abcdefghij");
+            messageSender.send("k");
+            assertEquals("abcdefghij", received.poll(1000, TimeUnit.MILLISECONDS));
+            assertEquals("k", received.poll(1000, TimeUnit.MILLISECONDS));
+
+            messageReceiver.sendMessage("reply" + MSG_SEPARATOR_CHAR);
+            var reader = new HoogasMessageReader(Channels.newInputStream(messageSender.getSocketChannel()), 100);
+            var replies = List.<String>of();
+            var startedAt = System.currentTimeMillis();
+            while(replies.isEmpty() && System.currentTimeMillis() - startedAt < 1000) {
+                replies = reader.getReceivedMessages();
+            }
+            assertEquals(List.of("reply"), replies);
+        }
+        assertFalse(Files.exists(address.getPath()));
+        Files.delete(directory);
+    }
+
+
+    /**
+     * Send the same messages as {@link #test1()} to a receiver that drains everything available, with the same chunk size, and make sure
+     * one call to {@link MessageReceiver#getReceivedMessages()} fetches all of them.  Then send a message bigger than the maximum frame size
+     * followed by a normal one and make sure the big one is thrown away and the normal one still comes through.
+     */
+    @Test
+    public void test7() throws Exception {
+
+        try(TestMessageSender messageSender = new TestMessageSender("localhost", 9000);
+            MessageReceiver messageReceiver = new MessageReceiver(new InetSocketAddress(9000), 5, 20, true);) {
+
+            Thread t = new Thread(() -> {
+                try {
+                    messageReceiver.connect();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            });
+            t.start();
+            Thread.sleep(200);
+            messageSender.connect();
+            t.join(1000);
+
+            messageSender.send("abcd" + MSG_SEPARATOR_CHAR + "abcd" + MSG_SEPARATOR_CHAR + "abcdefghij" + MSG_SEPARATOR_CHAR + "abc" + MSG_SEPARATOR_CHAR + "abcdefghi" + MSG_SEPARATOR_CHAR +
+                    "abcd" + MSG_SEPARATOR_CHAR + "abcdefghij" + MSG_SEPARATOR_CHAR + "k" + MSG_SEPARATOR_CHAR);
+            Thread.sleep(200);
+            assertEquals(List.of("abcd", "abcd", "abcdefghij", "abc", "abcdefghi", "abcd", "abcdefghij", "k"), messageReceiver.getReceivedMessages());
+            assertEquals(List.of(), messageReceiver.getReceivedMessages());
+
+            messageSender.send("x".repeat(1000) + MSG_SEPARATOR_CHAR + "y".repeat(20) + MSG_SEPARATOR_CHAR);
+            Thread.sleep(200);
+            assertEquals(List.of("y".repeat(20)), messageReceiver.getReceivedMessages());
+            assertEquals(1, messageReceiver.getNumFramesRejected());
+        }
+    }
+
+    /**
+     * Send a message back to a sender using acknowledged delivery before anything has been received from it, and then again once its
+     * messages have been acknowledged, and make sure it gets both replies and all its acknowledgements, i.e. the replies are framed the
+     * same way throughout.  Then make sure a receiver left with the default reply framing refuses to acknowledge after replying first,
+     * rather than switching framing on the sender.
+     */
+    @Test
+    public void test8() throws Exception {
+        var options = new BufferedMessageSenderOptions().withFramingMode(FramingMode.LENGTH_PREFIXED).withAcknowledgedDelivery(true);
+        for(FramingMode replyFramingMode : FramingMode.values()) {
+            var replies = new LinkedBlockingQueue<String>();
+            var connectedLatch = new CountDownLatch(1);
+            var connectionListener = new ConnectionListener() {
+                public void onConnectionEstablished(int connectionId) {
+                    connectedLatch.countDown();
+                }
+                public void onConnectionLost(int connectionId) {}
+                public void onConnectionTimedOut(int connectionId) {}
+            };
+            try(var executor = Executors.newSingleThreadExecutor();
+                var messageReceiver = new MessageReceiver(9000);
+                var bufferedMessageSenderReceiver = new BufferedMessageSenderReceiver("localhost", 9000, 2000, 1, connectionListener, options, 100,
+                        (connectionId, message) -> replies.add(message), WaitStrategy.BLOCKING, false)) {
+                messageReceiver.setReplyFramingMode(replyFramingMode);
+                var connected = executor.submit(() -> {
+                    messageReceiver.connect();
+                    return null;
+                });
+                bufferedMessageSenderReceiver.start();
+                assertTrue(connectedLatch.await(2000, TimeUnit.MILLISECONDS), "Connection to the other side failed");
+                connected.get(1000, TimeUnit.MILLISECONDS);
+                assertThrows(IllegalArgumentException.class, () -> messageReceiver.setReplyFramingMode(FramingMode.SEPARATOR));
+
+                messageReceiver.sendMessage("first reply" + MSG_SEPARATOR_CHAR);
+                bufferedMessageSenderReceiver.send("message");
+                Thread.sleep(200);
+                if(replyFramingMode == FramingMode.SEPARATOR) {
+                    assertThrows(IOException.class, messageReceiver::getReceivedMessages);
+                    continue;
+                }
+                assertEquals(List.of("message"), messageReceiver.getReceivedMessages());
+                messageReceiver.sendMessage("second reply" + MSG_SEPARATOR_CHAR);
+
+                assertEquals("first reply", replies.poll(1000, TimeUnit.MILLISECONDS));
+                assertEquals("second reply", replies.poll(1000, TimeUnit.MILLISECONDS));
+                var startedAt = System.currentTimeMillis();
+                while(bufferedMessageSenderReceiver.getLastAcknowledgedSequence() < 1 && System.currentTimeMillis() - startedAt < 1000) {
+                    Thread.sleep(1);
+                }
+                assertEquals(1, bufferedMessageSenderReceiver.getLastAcknowledgedSequence());
+            }
+        }
+    }
+
+
     private interface IOExceptionChucker {
         void run() throws IOException;
     }
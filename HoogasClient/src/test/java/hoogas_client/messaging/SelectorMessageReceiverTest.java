@@ -0,0 +1,452 @@
+package hoogas_client.messaging;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static hoogas_client.Constants.MSG_SEPARATOR_CHAR;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SelectorMessageReceiverTest {
+
+
+    /**
+     * Connect lots of senders to the same receiver, send messages from each of them and make sure that every message
+     * comes out of the other side, in order for each connection, and tagged with the connection it came in on.
+     */
+    @Test
+    public void test1() throws Exception {
+
+        var numSenders = 200;
+        var numMessagesPerSender = 20;
+        var senders = new ArrayList<MessageSender>();
+        var received = new ArrayList<ReceivedMessage>();
+        try(var messageReceiver = new SelectorMessageReceiver(9000, 64, null)) {
+            messageReceiver.connect();
+            try {
+                for(int i = 0; i < numSenders; i++) {
+                    var messageSender = new MessageSender("localhost", 9000);
+                    messageSender.connect();
+                    senders.add(messageSender);
+                    received.addAll(messageReceiver.getReceivedMessages());
+                }
+
+                for(int i = 0; i < numMessagesPerSender; i++) {
+                    for(int j = 0; j < numSenders; j++) {
+                        senders.get(j).send("sender_" + j + "_message_" + i);
+                    }
+                }
+
+                received.addAll(receive(messageReceiver, numSenders * numMessagesPerSender, 5000));
+                assertEquals(numSenders * numMessagesPerSender, received.size());
+
+                //Each connection should have got the messages of exactly one sender, in order
+                var messagesByConnection = new HashMap<Integer, List<String>>();
+                for(ReceivedMessage receivedMessage : received) {
+                    messagesByConnection.computeIfAbsent(receivedMessage.connectionId(), k -> new ArrayList<>()).add(receivedMessage.text());
+                }
+                assertEquals(numSenders, messagesByConnection.size());
+                for(List<String> messages : messagesByConnection.values()) {
+                    assertEquals(numMessagesPerSender, messages.size());
+                    var prefix = messages.getFirst().substring(0, messages.getFirst().indexOf("_message_"));
+                    for(int i = 0; i < numMessagesPerSender; i++) {
+                        assertEquals(prefix + "_message_" + i, messages.get(i));
+                    }
+                }
+            }
+            finally {
+                for(MessageSender messageSender : senders) {
+                    messageSender.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Send messages in pieces on two connections at the same time and make sure that a message that is only partly
+     * received on one connection doesn't get mixed up with the messages on the other.
+     */
+    @Test
+    public void test2() throws Exception {
+        try(var messageReceiver = new SelectorMessageReceiver(9000, 5, null);
+            var testMessageSender1 = new TestMessageSender("localhost", 9000);
+            var testMessageSender2 = new TestMessageSender("localhost", 9000)) {
+
+            messageReceiver.connect();
+            testMessageSender1.connect();
+            testMessageSender2.connect();
+
+            testMessageSender1.send("abcdefg");
+            testMessageSender2.send("1234" + MSG_SEPARATOR_CHAR + "56");
+            var received = receive(messageReceiver, 1, 1000);
+            assertEquals(1, received.size());
+            assertEquals("1234", received.getFirst().text());
+            var connection2Id = received.getFirst().connectionId();
+
+            testMessageSender1.send("hij" + MSG_SEPARATOR_CHAR);
+            testMessageSender2.send("78" + MSG_SEPARATOR_CHAR);
+            received = receive(messageReceiver, 2, 1000);
+            assertEquals(2, received.size());
+            var receivedByConnection = new HashMap<Integer, String>();
+            for(ReceivedMessage receivedMessage : received) {
+                receivedByConnection.put(receivedMessage.connectionId(), receivedMessage.text());
+            }
+            assertEquals("5678", receivedByConnection.remove(connection2Id));
+            assertEquals("abcdefghij", receivedByConnection.values().iterator().next());
+        }
+    }
+
+    /**
+     * Check that messages can be sent back to a particular connection and that the listener receives the connection events.
+     */
+    @Test
+    public void test3() throws Exception {
+        var testConnectionListener = new TestConnectionListener();
+        try(var messageReceiver = new SelectorMessageReceiver(9000, 100, testConnectionListener);
+            var testMessageSender1 = new TestMessageSender("localhost", 9000);
+            var testMessageSender2 = new TestMessageSender("localhost", 9000)) {
+
+            messageReceiver.connect();
+            testMessageSender1.connect();
+            testMessageSender2.connect();
+            testMessageSender2.send("Hello from 2" + MSG_SEPARATOR_CHAR);
+
+            var received = receive(messageReceiver, 1, 1000);
+            assertEquals(1, received.size());
+            assertEquals(2, testConnectionListener.established.size());
+            assertEquals(2, messageReceiver.getConnectionIds().size());
+
+            var connection2Id = received.getFirst().connectionId();
+            messageReceiver.sendMessage(connection2Id, "Hello back" + MSG_SEPARATOR_CHAR);
+            assertEquals("Hello back" + MSG_SEPARATOR_CHAR, testMessageSender2.getReceivedMessage());
+
+            testMessageSender2.disconnect();
+            receive(messageReceiver, 0, 500);
+            assertEquals(List.of(connection2Id), testConnectionListener.lost);
+            assertEquals(1, messageReceiver.getConnectionIds().size());
+            assertFalse(messageReceiver.getConnectionIds().contains(connection2Id));
+
+            boolean exceptionCaught = false;
+            try {
+                messageReceiver.sendMessage(connection2Id, "Shouldn't work");
+            }
+            catch(IOException e) {
+                exceptionCaught = true;
+            }
+            assertTrue(exceptionCaught);
+        }
+    }
+
+    /**
+     * Register a handler using each of the wait strategies and make sure that connections are accepted and their messages pushed to it
+     * without any polling, and that polling isn't allowed at the same time.
+     */
+    @Test
+    public void test4() throws Exception {
+        for(WaitStrategy waitStrategy : WaitStrategy.values()) {
+            try(var messageReceiver = new SelectorMessageReceiver(9000, 100, null);
+                var testMessageSender1 = new TestMessageSender("localhost", 9000);
+                var testMessageSender2 = new TestMessageSender("localhost", 9000)) {
+
+                messageReceiver.connect();
+                var received = new LinkedBlockingQueue<ReceivedMessage>();
+                messageReceiver.startReceiving((connectionId, message) -> received.add(new ReceivedMessage(connectionId, message)), waitStrategy, false);
+
+                boolean exceptionCaught = false;
+                try {
+                    messageReceiver.getReceivedMessages();
+                }
+                catch(IllegalStateException e) {
+                    exceptionCaught = true;
+                }
+                assertTrue(exceptionCaught);
+
+                testMessageSender1.connect();
+                testMessageSender1.send("Hello from 1" + MSG_SEPARATOR_CHAR);
+                var receivedMessage1 = received.poll(1000, TimeUnit.MILLISECONDS);
+                assertNotNull(receivedMessage1);
+                assertEquals("Hello from 1", receivedMessage1.text());
+
+                testMessageSender2.connect();
+                testMessageSender2.send("Hello from 2" + MSG_SEPARATOR_CHAR);
+                var receivedMessage2 = received.poll(1000, TimeUnit.MILLISECONDS);
+                assertNotNull(receivedMessage2);
+                assertEquals("Hello from 2", receivedMessage2.text());
+                assertNotEquals(receivedMessage1.connectionId(), receivedMessage2.connectionId());
+            }
+        }
+    }
+
+    /**
+     * Connect senders using both framing modes to the same receiver and make sure the messages from each come out intact,
+     * including ones that contain the separator character when they're sent length-prefixed.
+     */
+    @Test
+    public void test5() throws Exception {
+        try(var messageReceiver = new SelectorMessageReceiver(9000, 16, null);
+            var separatorSender = new MessageSender("localhost", 9000, FramingMode.SEPARATOR);
+            var lengthPrefixedSender = new MessageSender("localhost", 9000, FramingMode.LENGTH_PREFIXED)) {
+
+            messageReceiver.connect();
+            separatorSender.connect();
+            lengthPrefixedSender.connect();
+
+            var largeMessage = "0123456789".repeat(50);
+            separatorSender.send("plain");
+            lengthPrefixedSender.send("contains" + MSG_SEPARATOR_CHAR + "separator");
+            separatorSender.send(largeMessage);
+            lengthPrefixedSender.send(largeMessage);
+
+            var received = receive(messageReceiver, 4, 2000);
+            assertEquals(4, received.size());
+            var messagesByConnection = new HashMap<Integer, List<String>>();
+            for(ReceivedMessage receivedMessage : received) {
+                messagesByConnection.computeIfAbsent(receivedMessage.connectionId(), k -> new ArrayList<>()).add(receivedMessage.text());
+            }
+            assertTrue(messagesByConnection.containsValue(List.of("plain", largeMessage)));
+            assertTrue(messagesByConnection.containsValue(List.of("contains" + MSG_SEPARATOR_CHAR + "separator", largeMessage)));
+        }
+    }
+
+    /**
+     * Send messages over a Unix domain socket from a plain sender and from a buffered sender using acknowledged delivery, and make sure
+     * they all come out intact and the buffered sender's messages are acknowledged.  A socket file left behind at the address
+     * shouldn't stop the receiver from binding to it, and the file should be gone once the receiver is closed.
+     */
+    @Test
+    public void test6() throws Exception {
+        var directory = Files.createTempDirectory("hoogas_uds");
+        var socketFile = directory.resolve("receiver.sock");
+        Files.createFile(socketFile);
+        var address = UnixDomainSocketAddress.of(socketFile);
+        var options = new BufferedMessageSenderOptions().withFramingMode(FramingMode.LENGTH_PREFIXED).withAcknowledgedDelivery(true);
+        try(var messageReceiver = new SelectorMessageReceiver(address, 16, null);
+            var messageSender = new MessageSender(address, FramingMode.SEPARATOR)) {
+
+            messageReceiver.connect();
+            messageSender.connect();
+            var bufferedMessageSender = new BufferedMessageSender(address, 2000, 1, new TestConnectionListener(), options);
+            try {
+                bufferedMessageSender.start();
+                var largeMessage = "0123456789".repeat(50);
+                messageSender.send("plain");
+                messageSender.send(largeMessage);
+                for(int i = 0; i < 100; i++) {
+                    bufferedMessageSender.send("buffered" + i);
+                }
+
+                var received = receive(messageReceiver, 102, 2000);
+                var messagesByConnection = new HashMap<Integer, List<String>>();
+                for(ReceivedMessage receivedMessage : received) {
+                    messagesByConnection.computeIfAbsent(receivedMessage.connectionId(), k -> new ArrayList<>()).add(receivedMessage.text());
+                }
+                var expectedBuffered = new ArrayList<String>();
+                for(int i = 0; i < 100; i++) {
+                    expectedBuffered.add("buffered" + i);
+                }
+                assertTrue(messagesByConnection.containsValue(List.of("plain", largeMessage)));
+                assertTrue(messagesByConnection.containsValue(expectedBuffered));
+
+                var startedAt = System.currentTimeMillis();
+                while(bufferedMessageSender.getLastAcknowledgedSequence() < 100 && System.currentTimeMillis() - startedAt < 2000) {
+                    Thread.sleep(1);
+                }
+                assertEquals(100, bufferedMessageSender.getLastAcknowledgedSequence());
+            }
+            finally {
+                bufferedMessageSender.close();
+            }
+        }
+        assertFalse(Files.exists(socketFile));
+        Files.delete(directory);
+    }
+
+    /**
+     * Push the messages from a separated and a length-prefixed sender to a view handler, using both a sender with acknowledged delivery
+     * and one without, and make sure the copies taken in the handler are intact and the acknowledgements are still sent.  An exception
+     * thrown by the handler shouldn't stop the rest of the messages from being delivered.
+     */
+    @Test
+    public void test7() throws Exception {
+        var options = new BufferedMessageSenderOptions().withFramingMode(FramingMode.LENGTH_PREFIXED).withAcknowledgedDelivery(true);
+        try(var messageReceiver = new SelectorMessageReceiver(9000, 16, null);
+            var messageSender = new MessageSender("localhost", 9000, FramingMode.SEPARATOR)) {
+
+            messageReceiver.connect();
+            var received = new LinkedBlockingQueue<ReceivedMessage>();
+            messageReceiver.startReceivingViews((connectionId, message) -> {
+                if(message.contentEquals("throw")) {
+                    throw new RuntimeException("Thrown by the test");
+                }
+                received.add(new ReceivedMessage(connectionId, message.toString()));
+            }, WaitStrategy.BLOCKING, false);
+            assertThrows(IllegalArgumentException.class, () -> messageReceiver.startReceiving((connectionId, message) -> {}, WaitStrategy.BLOCKING, false));
+
+            messageSender.connect();
+            var bufferedMessageSender = new BufferedMessageSender("localhost", 9000, 2000, 1, new TestConnectionListener(), options);
+            try {
+                bufferedMessageSender.start();
+                var largeMessage = "£€".repeat(100);
+                messageSender.send("throw");
+                messageSender.send("plain");
+                messageSender.send(largeMessage);
+                for(int i = 0; i < 100; i++) {
+                    bufferedMessageSender.send("buffered" + i);
+                }
+
+                var messagesByConnection = new HashMap<Integer, List<String>>();
+                for(int i = 0; i < 102; i++) {
+                    var receivedMessage = received.poll(2000, TimeUnit.MILLISECONDS);
+                    assertNotNull(receivedMessage);
+                    messagesByConnection.computeIfAbsent(receivedMessage.connectionId(), k -> new ArrayList<>()).add(receivedMessage.text());
+                }
+                var expectedBuffered = new ArrayList<String>();
+                for(int i = 0; i < 100; i++) {
+                    expectedBuffered.add("buffered" + i);
+                }
+                assertTrue(messagesByConnection.containsValue(List.of("plain", largeMessage)));
+                assertTrue(messagesByConnection.containsValue(expectedBuffered));
+
+                var startedAt = System.currentTimeMillis();
+                while(bufferedMessageSender.getLastAcknowledgedSequence() < 100 && System.currentTimeMillis() - startedAt < 2000) {
+                    Thread.sleep(1);
+                }
+                assertEquals(100, bufferedMessageSender.getLastAcknowledgedSequence());
+            }
+            finally {
+                bufferedMessageSender.close();
+            }
+        }
+    }
+
+    /**
+     * Send a lot to a connection whose other side isn't reading, and make sure that doesn't hold up receiving from another connection,
+     * that everything sent arrives intact once the other side does read, and that a connection that stops reading altogether is closed
+     * rather than having more and more kept for it.
+     */
+    @Test
+    public void test8() throws Exception {
+        var testConnectionListener = new TestConnectionListener();
+        try(var messageReceiver = new SelectorMessageReceiver(9000, 100, testConnectionListener);
+            var stuckConnection = SocketChannel.open();
+            var testMessageSender = new TestMessageSender("localhost", 9000)) {
+
+            messageReceiver.connect();
+            stuckConnection.setOption(StandardSocketOptions.SO_RCVBUF, 4096);
+            stuckConnection.connect(new InetSocketAddress("localhost", 9000));
+            stuckConnection.write(ByteBuffer.wrap(("stuck" + MSG_SEPARATOR_CHAR).getBytes(StandardCharsets.UTF_8)));
+            var stuckConnectionId = receive(messageReceiver, 1, 1000).getFirst().connectionId();
+
+            var message = "0123456789".repeat(100_000) + MSG_SEPARATOR_CHAR;
+            var startedAt = System.currentTimeMillis();
+            for(int i = 0; i < 8; i++) {
+                messageReceiver.sendMessage(stuckConnectionId, message);
+            }
+            assertTrue(System.currentTimeMillis() - startedAt < 1000, "Sending was held up by the other side not reading");
+            testMessageSender.connect();
+            testMessageSender.send("not held up" + MSG_SEPARATOR_CHAR);
+            assertEquals("not held up", receive(messageReceiver, 1, 1000).getFirst().text());
+
+            var expected = message.repeat(8).getBytes(StandardCharsets.UTF_8);
+            var read = ByteBuffer.allocate(expected.length);
+            stuckConnection.configureBlocking(false);
+            startedAt = System.currentTimeMillis();
+            while(read.hasRemaining() && System.currentTimeMillis() - startedAt < 5000) {
+                messageReceiver.getReceivedMessages();
+                stuckConnection.read(read);
+            }
+            assertArrayEquals(expected, read.array());
+
+            assertThrows(IOException.class, () -> {
+                for(int i = 0; i < 100; i++) {
+                    messageReceiver.sendMessage(stuckConnectionId, message);
+                }
+            });
+        }
+    }
+
+    //Keeps calling the receiver until the expected number of messages have been received or the timeout is reached
+    private static List<ReceivedMessage> receive(SelectorMessageReceiver messageReceiver, int howMany, long timeout) throws Exception {
+        var received = new ArrayList<ReceivedMessage>();
+        var startedAt = System.currentTimeMillis();
+        do {
+            received.addAll(messageReceiver.getReceivedMessages());
+            Thread.sleep(1);
+        }
+        while((howMany == 0 || received.size() < howMany) && System.currentTimeMillis() - startedAt < timeout);
+        return received;
+    }
+
+    private static class TestConnectionListener implements ConnectionListener {
+
+        private final List<Integer> established = new ArrayList<>();
+        private final List<Integer> lost = new ArrayList<>();
+
+        @Override
+        public void onConnectionLost(int connectionId) {
+            lost.add(connectionId);
+        }
+
+        @Override
+        public void onConnectionEstablished(int connectionId) {
+            established.add(connectionId);
+        }
+
+        @Override
+        public void onConnectionTimedOut(int connectionId) {
+        }
+    }
+
+    private static class TestMessageSender implements AutoCloseable {
+        private final String host;
+        private final int port;
+        private Socket socket;
+
+        public TestMessageSender(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        private void connect() throws IOException {
+            socket = new Socket(host, port);
+        }
+
+        private void send(String msg) throws IOException {
+            socket.getOutputStream().write(msg.getBytes());
+            socket.getOutputStream().flush();
+        }
+
+        private String getReceivedMessage() throws IOException {
+            char[] c = new char[100];
+            int numCharsRead = new BufferedReader(new InputStreamReader(socket.getInputStream())).read(c);
+            return new String(c, 0, numCharsRead);
+        }
+
+        //Closes the connection part way through a test, which close() can't be used for when the sender is a try-with-resources resource
+        private void disconnect() throws IOException {
+            if(socket != null) {
+                socket.close();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            disconnect();
+        }
+    }
+}
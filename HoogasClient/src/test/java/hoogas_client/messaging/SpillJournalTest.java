@@ -0,0 +1,102 @@
+package hoogas_client.messaging;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SpillJournalTest {
+
+
+    /**
+     * Append enough messages, including empty ones, multi-byte ones and one bigger than a segment, to fill several small segments
+     * and make sure they are read back in order, in batches, and that the segment files are deleted once they've been read.
+     */
+    @Test
+    public void test1() throws Exception {
+        var directory = Files.createTempDirectory("hoogas_spill_test");
+        try(var spillJournal = new SpillJournal(directory, 1234, 64)) {
+            var expected = new ArrayList<String>();
+            for(int i = 0; i < 50; i++) {
+                expected.add(i % 10 == 0 ? "" : "message_£€_" + i);
+            }
+            expected.add("x".repeat(200));
+            for(String message : expected) {
+                spillJournal.append(message);
+            }
+            assertEquals(expected.size(), spillJournal.size());
+            assertTrue(countFiles(directory) > 1, "Expected the messages to be spread across several segments");
+
+            var read = new ArrayList<String>();
+            while(spillJournal.drainTo(read, 7) > 0) {
+                assertTrue(read.size() % 7 == 0 || read.size() == expected.size());
+            }
+            assertEquals(expected, read);
+            assertTrue(spillJournal.isEmpty());
+            assertEquals(0, countFiles(directory));
+
+            //Make sure it carries on working once it's been emptied
+            spillJournal.append("again");
+            read.clear();
+            assertEquals(1, spillJournal.drainTo(read, 10));
+            assertEquals(List.of("again"), read);
+        }
+        finally {
+            Files.delete(directory);
+        }
+    }
+
+    /**
+     * Append some messages, read a few of them and then open a new journal on the same directory as if the application had been
+     * restarted.  Make sure it picks up the unread segments, ignores those for other connections, and appends after what's there.
+     */
+    @Test
+    public void test2() throws Exception {
+        var directory = Files.createTempDirectory("hoogas_spill_test");
+        try {
+            try(var spillJournal = new SpillJournal(directory, 1234, 64)) {
+                for(int i = 0; i < 20; i++) {
+                    spillJournal.append("message_" + i);
+                }
+                //Reading the first segment fully means it gets deleted
+                spillJournal.drainTo(new ArrayList<>(), 5);
+            }
+            try(var otherJournal = new SpillJournal(directory, 5678, 64)) {
+                assertTrue(otherJournal.isEmpty());
+                otherJournal.append("other");
+            }
+
+            var read = new ArrayList<String>();
+            try(var spillJournal = new SpillJournal(directory, 1234, 64)) {
+                spillJournal.append("message_20");
+                spillJournal.drainTo(read, 100);
+            }
+            //The segment that was partly read is read again from the start
+            assertEquals("message_20", read.getLast());
+            var firstRead = Integer.parseInt(read.getFirst().substring("message_".length()));
+            assertTrue(firstRead > 0 && firstRead <= 5, "Unexpected first message: " + read.getFirst());
+            for(int i = 0; i < read.size(); i++) {
+                assertEquals("message_" + (firstRead + i), read.get(i));
+            }
+            assertEquals(1, countFiles(directory));
+        }
+        finally {
+            try(var files = Files.list(directory)) {
+                for(Path file : files.toList()) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(directory);
+        }
+    }
+
+    private static long countFiles(Path directory) throws Exception {
+        try(var files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package hoogas_client.messaging;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StripedRingBufferTest {
+
+
+    /**
+     * Test the basics.  Make sure the number of stripes is rounded up and the capacity is shared between them, that a thread only
+     * fills and takes from its own stripe, and that draining takes from every stripe, keeping the order within each one, starting
+     * from a different stripe each time.
+     */
+    @Test
+    public void test1() throws Exception {
+        assertEquals(1, new StripedRingBuffer<String>(8, 1).getNumStripes());
+        assertEquals(4, new StripedRingBuffer<String>(8, 3).getNumStripes());
+        assertEquals(8, new StripedRingBuffer<String>(8, 3).capacity());
+        assertEquals(1024, new StripedRingBuffer<String>(1000, 4).capacity());
+        assertThrows(IllegalArgumentException.class, () -> new StripedRingBuffer<String>(8, 0));
+
+        var stripedRingBuffer = new StripedRingBuffer<String>(4, 2);
+        assertTrue(stripedRingBuffer.offer("a1", 1));
+        assertTrue(stripedRingBuffer.offer("a2", 2));
+        assertFalse(stripedRingBuffer.offer("a3", 3), "The thread's stripe should be full");
+        runOnOtherStripe(() -> {
+            assertNull(stripedRingBuffer.poll());
+            assertTrue(stripedRingBuffer.offer("b1", 11));
+            assertTrue(stripedRingBuffer.offer("b2", 12));
+        });
+        assertEquals(4, stripedRingBuffer.size());
+        assertEquals("a1", stripedRingBuffer.poll());
+        assertTrue(stripedRingBuffer.offer("a3", 3));
+
+        var drained = new ArrayList<String>();
+        var timestamps = new long[4];
+        assertEquals(4, stripedRingBuffer.drainTo(drained, timestamps, 4));
+        var expected = drained.getFirst().startsWith("a") ? List.of("a2", "a3", "b1", "b2") : List.of("b1", "b2", "a2", "a3");
+        assertEquals(expected, drained);
+        for(int i = 0; i < 4; i++) {
+            assertEquals(Long.parseLong(drained.get(i).substring(1)) + (drained.get(i).startsWith("b") ? 10 : 0), timestamps[i]);
+        }
+        assertTrue(stripedRingBuffer.isEmpty());
+
+        //The next drain starts from the other stripe
+        assertTrue(stripedRingBuffer.offer("a4", 4));
+        runOnOtherStripe(() -> assertTrue(stripedRingBuffer.offer("b3", 13)));
+        drained.clear();
+        assertEquals(2, stripedRingBuffer.drainTo(drained, 2));
+        assertEquals(expected.getFirst().startsWith("a") ? List.of("b3", "a4") : List.of("a4", "b3"), drained);
+    }
+
+    /**
+     * Have several threads add to a striped buffer at the same time while another empties it, waiting when it's empty, and make sure
+     * nothing is lost or duplicated and that each thread's elements come out in the order that thread added them.
+     */
+    @Test
+    public void test2() throws Exception {
+        var stripedRingBuffer = new StripedRingBuffer<int[]>(64, 4);
+        int numProducers = 8;
+        int numPerProducer = 50_000;
+        var startLatch = new CountDownLatch(1);
+        try(var executor = Executors.newFixedThreadPool(numProducers)) {
+            for(int p = 0; p < numProducers; p++) {
+                var producer = p;
+                executor.submit(() -> {
+                    startLatch.await();
+                    for(int i = 0; i < numPerProducer; i++) {
+                        while(!stripedRingBuffer.offer(new int[]{producer, i}, 0)) {
+                            Thread.yield();
+                        }
+                    }
+                    return null;
+                });
+            }
+            startLatch.countDown();
+
+            var nextExpected = new int[numProducers];
+            var drained = new ArrayList<int[]>();
+            int numReceived = 0;
+            long giveUpAt = System.currentTimeMillis() + 20000;
+            while(numReceived < numProducers * numPerProducer && System.currentTimeMillis() < giveUpAt) {
+                drained.clear();
+                if(stripedRingBuffer.drainTo(drained, 16) == 0) {
+                    stripedRingBuffer.awaitNotEmpty(TimeUnit.MILLISECONDS.toNanos(1));
+                }
+                for(int[] element : drained) {
+                    assertEquals(nextExpected[element[0]]++, element[1], "Out of order for producer " + element[0]);
+                    numReceived++;
+                }
+            }
+            assertEquals(numProducers * numPerProducer, numReceived);
+            assertTrue(stripedRingBuffer.isEmpty());
+        }
+    }
+
+    //Runs the task on a thread that adds to the other one of 2 stripes to the current thread
+    private static void runOnOtherStripe(Runnable task) throws InterruptedException {
+        var errors = new ArrayList<Throwable>();
+        Thread thread;
+        do {
+            thread = Thread.ofPlatform().unstarted(() -> {
+                try {
+                    task.run();
+                }
+                catch(Throwable t) {
+                    errors.add(t);
+                }
+            });
+        } while((thread.threadId() & 1) == (Thread.currentThread().threadId() & 1));
+        thread.start();
+        thread.join();
+        assertEquals(List.of(), errors);
+    }
+}
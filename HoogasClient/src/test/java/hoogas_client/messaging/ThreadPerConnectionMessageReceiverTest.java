@@ -0,0 +1,167 @@
+package hoogas_client.messaging;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static hoogas_client.Constants.MSG_SEPARATOR_CHAR;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ThreadPerConnectionMessageReceiverTest {
+
+
+    /**
+     * Connect lots of senders to the same receiver, on both virtual and platform threads, send messages from each of them and make sure
+     * that every message comes out of the other side, in order for each connection, and tagged with the connection it came in on.
+     * Then send a message back to one of the connections, and make sure the listener hears about the connections as they come and go.
+     */
+    @Test
+    public void test1() throws Exception {
+        for(boolean useVirtualThreads : new boolean[]{true, false}) {
+            var received = new ConcurrentHashMap<Integer, List<String>>();
+            var connectionListener = new TestConnectionListener();
+            int numSenders = 50;
+            int numMessagesEach = 20;
+            try(var messageReceiver = new ThreadPerConnectionMessageReceiver(new InetSocketAddress(9000), 7,
+                    (connectionId, message) -> received.computeIfAbsent(connectionId, k -> new CopyOnWriteArrayList<>()).add(message),
+                    connectionListener, useVirtualThreads)) {
+
+                messageReceiver.connect();
+                var senders = new ArrayList<MessageSender>();
+                for(int i = 0; i < numSenders; i++) {
+                    var sender = new MessageSender("localhost", 9000, i % 2 == 0 ? FramingMode.SEPARATOR : FramingMode.LENGTH_PREFIXED);
+                    sender.connect();
+                    senders.add(sender);
+                }
+                var expected = new HashMap<String, List<String>>();
+                for(int i = 0; i < numMessagesEach; i++) {
+                    for(int j = 0; j < numSenders; j++) {
+                        var message = "sender" + j + "_message" + i;
+                        senders.get(j).send(message);
+                        expected.computeIfAbsent("sender" + j, k -> new ArrayList<>()).add(message);
+                    }
+                }
+
+                var startedAt = System.currentTimeMillis();
+                while(received.values().stream().mapToInt(List::size).sum() < numSenders * numMessagesEach &&
+                        System.currentTimeMillis() - startedAt < 5000) {
+                    Thread.sleep(5);
+                }
+                assertEquals(numSenders, received.size());
+                assertEquals(numSenders, messageReceiver.getConnectionIds().size());
+                for(List<String> messages : received.values()) {
+                    var sender = messages.getFirst().substring(0, messages.getFirst().indexOf('_'));
+                    assertEquals(expected.get(sender), messages);
+                }
+
+                var firstSenderConnection = received.entrySet().stream().filter(e -> e.getValue().getFirst().startsWith("sender0_"))
+                        .findFirst().orElseThrow().getKey();
+                messageReceiver.sendMessage(firstSenderConnection, "reply" + MSG_SEPARATOR_CHAR);
+                var reply = new char[6];
+                var numCharsRead = new InputStreamReader(Channels.newInputStream(senders.getFirst().getSocketChannel())).read(reply);
+                assertEquals("reply" + MSG_SEPARATOR_CHAR, new String(reply, 0, numCharsRead));
+
+                for(MessageSender sender : senders) {
+                    sender.close();
+                }
+                startedAt = System.currentTimeMillis();
+                while(connectionListener.lost.size() < numSenders && System.currentTimeMillis() - startedAt < 5000) {
+                    Thread.sleep(5);
+                }
+                assertEquals(numSenders, connectionListener.established.size());
+                assertEquals(numSenders, connectionListener.lost.size());
+                assertTrue(messageReceiver.getConnectionIds().isEmpty());
+                assertThrows(IOException.class, () -> messageReceiver.sendMessage(firstSenderConnection, "too late"));
+            }
+        }
+    }
+
+    /**
+     * Send messages with acknowledged delivery and make sure they're delivered once each, in order, and acknowledged, including after
+     * the receiver has been restarted.
+     */
+    @Test
+    public void test2() throws Exception {
+        var received = new LinkedBlockingQueue<String>();
+        var options = new BufferedMessageSenderOptions().withFramingMode(FramingMode.LENGTH_PREFIXED).withAcknowledgedDelivery(true);
+        var connectionListener = new TestConnectionListener();
+        var bufferedMessageSender = new BufferedMessageSender("localhost", 9000, 5000, 1, connectionListener, options);
+        try {
+            try(var messageReceiver = new ThreadPerConnectionMessageReceiver(9000, (connectionId, message) -> received.add(message))) {
+                messageReceiver.connect();
+                bufferedMessageSender.start();
+                for(int i = 0; i < 100; i++) {
+                    bufferedMessageSender.send("message" + i);
+                }
+                for(int i = 0; i < 100; i++) {
+                    assertEquals("message" + i, received.poll(2000, TimeUnit.MILLISECONDS));
+                }
+                waitForAcknowledgement(bufferedMessageSender, 100);
+            }
+            //Keep sending until the sender notices the receiver has gone, so some of these will have to be re-sent
+            var connectionLostCountDownLatch = new CountDownLatch(1);
+            connectionListener.connectionLostLatches.add(connectionLostCountDownLatch);
+            for(int i = 100; i < 150; i++) {
+                bufferedMessageSender.send("message" + i);
+                if(i % 5 == 0) {
+                    Thread.sleep(20);
+                }
+            }
+            assertTrue(connectionLostCountDownLatch.await(2000, TimeUnit.MILLISECONDS), "Message sender didn't notice the connection had gone");
+            try(var messageReceiver = new ThreadPerConnectionMessageReceiver(9000, (connectionId, message) -> received.add(message))) {
+                messageReceiver.connect();
+                for(int i = 100; i < 150; i++) {
+                    assertEquals("message" + i, received.poll(5000, TimeUnit.MILLISECONDS));
+                }
+                waitForAcknowledgement(bufferedMessageSender, 150);
+                assertNull(received.poll(200, TimeUnit.MILLISECONDS));
+            }
+        }
+        finally {
+            bufferedMessageSender.close();
+        }
+    }
+
+    private static void waitForAcknowledgement(BufferedMessageSender bufferedMessageSender, long sequence) throws Exception {
+        var startedAt = System.currentTimeMillis();
+        while(bufferedMessageSender.getLastAcknowledgedSequence() < sequence && System.currentTimeMillis() - startedAt < 5000) {
+            Thread.sleep(1);
+        }
+        assertEquals(sequence, bufferedMessageSender.getLastAcknowledgedSequence());
+    }
+
+    private static class TestConnectionListener implements ConnectionListener {
+
+        private final List<Integer> established = new CopyOnWriteArrayList<>();
+        private final List<Integer> lost = new CopyOnWriteArrayList<>();
+        private final List<CountDownLatch> connectionLostLatches = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void onConnectionLost(int connectionId) {
+            lost.add(connectionId);
+            for(CountDownLatch connectionLostLatch : connectionLostLatches) {
+                connectionLostLatch.countDown();
+            }
+        }
+
+        @Override
+        public void onConnectionEstablished(int connectionId) {
+            established.add(connectionId);
+        }
+
+        @Override
+        public void onConnectionTimedOut(int connectionId) {
+        }
+    }
+}
@@ -68,6 +68,23 @@ public class DeployedApplicationsHolder {
      * after a deployment
      */
     public static void addApplicationUpdatedListener(DeployedApplicationsUpdatedListener deployedApplicationsUpdatedListener) {
-        LISTENERS.add(deployedApplicationsUpdatedListener);
+        //The listeners are notified under the lock on the deployment thread, and can be added and removed from any thread
+        try {
+            LOCK.writeLock().lock();
+            LISTENERS.add(deployedApplicationsUpdatedListener);
+        }
+        finally {
+            LOCK.writeLock().unlock();
+        }
+    }
+
+    public static void removeApplicationUpdatedListener(DeployedApplicationsUpdatedListener deployedApplicationsUpdatedListener) {
+        try {
+            LOCK.writeLock().lock();
+            LISTENERS.remove(deployedApplicationsUpdatedListener);
+        }
+        finally {
+            LOCK.writeLock().unlock();
+        }
     }
 }
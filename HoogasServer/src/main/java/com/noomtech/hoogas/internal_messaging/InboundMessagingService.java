@@ -4,10 +4,20 @@ package com.noomtech.hoogas.internal_messaging;
 import com.noomtech.hoogas.constants.Constants;
 import com.noomtech.hoogas.datamodels.InternalMessageInbound;
 import com.noomtech.hoogas.deployment.DeployedApplicationsHolder;
+import com.noomtech.hoogas.deployment.DeployedApplicationsUpdatedListener;
 import com.noomtech.hoogas.deployment.PeriodicChecker;
+import com.noomtech.hoogas_shared.constants.SharedConstants;
 import com.noomtech.hoogas_shared.internal_messaging.MessageTypeFromApplications;
+import com.noomtech.hoogas_shared.internal_messaging.SharedMemoryMessageQueue;
 
 import java.io.*;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.*;
 
 /**
@@ -17,14 +27,41 @@ import java.util.*;
  * The files have the same name as the type of the message.  The payload is in the file.
  * The files are picked up by this class which subsequently deletes them once they are processed.
  * Existing messages of the same type in an application's outbound message folder are overwritten by the new messages.
+ * If {@link SharedConstants#isSharedMemoryMessaging()} is set then the messages are read from the memory-mapped queue file in each
+ * application's directory instead, see {@link SharedMemoryMessageQueue}, in which case every message is received, not just the latest of each type.
+ * Otherwise each application's message folder is watched with a {@link WatchService} and the files are picked up as soon as they're moved
+ * into it, every time {@link #doCheck()} is called, rather than waiting for the checking interval.  The applications write each message under
+ * a temporary name, see {@link SharedConstants#IN_PROGRESS_MESSAGE_FILE_SUFFIX}, and then move it to its real name, so a message file is always complete
+ * when it's picked up.  Only files that the watch service has seen being written under the temporary name first are picked up this way.
+ * Applications using an older client write the message file in place, so it's seen as soon as it's created, before anything has been
+ * written to it.  Those files are left for the scan, which skips a file that's empty until it's {@link #IN_PLACE_WRITE_SETTLE_MILLIS} old,
+ * as a message written in place is empty until its text is written in one go.  All the folders are still scanned
+ * every checking interval, and straight away if the watch service loses track of any events, so nothing is missed.  The folders being watched
+ * are updated whenever the deployed applications change, see {@link #onApplicationsUpdated()}, and the watch service is released by {@link #close()}.
  * @author Joshua Newman, December 2024
  */
-public class InboundMessagingService implements PeriodicChecker {
+public final class InboundMessagingService implements PeriodicChecker, DeployedApplicationsUpdatedListener, AutoCloseable {
 
 
+    //How long an empty message file is left before it's taken to be an empty message rather than one that's still being written in place
+    static final long IN_PLACE_WRITE_SETTLE_MILLIS = 1000;
+
     private Map<String, MessageProcessor> messageProcessors = new HashMap<>();
+    //Keyed by application directory.  Each queue is mapped the first time it's read from, and mapped again if its file is replaced.  The queues of
+    //applications that are no longer deployed are let go of.
+    private final Map<String, SharedMemoryMessageQueue> messageQueues = new HashMap<>();
     private final long checkingInterval;
     private long whenLastRunFinished;
+    //Created the first time the message folders are watched, and left null if the file system doesn't support it so they're only scanned
+    private WatchService watchService;
+    private boolean watchServiceUnavailable;
+    private boolean allApplicationsWatched;
+    //The name of the application each watched message folder belongs to
+    private final Map<WatchKey, String> watchedApplications = new HashMap<>();
+    //The message files in each watched folder that have been seen being written under their in-progress name and not yet moved into place
+    private final Map<WatchKey, Set<Path>> messagesInProgress = new HashMap<>();
+    //Set when the deployed applications change, which happens on the deployment thread, so the folders being watched are updated on the next check
+    private volatile boolean applicationsUpdated = true;
 
 
     public InboundMessagingService(long checkingInterval) {
@@ -33,11 +70,25 @@ public class InboundMessagingService implements PeriodicChecker {
         for(MessageTypeFromApplications type : MessageTypeFromApplications.values()) {
             messageProcessors.put(type.name(), new MessageProcessor());
         }
+        DeployedApplicationsHolder.addApplicationUpdatedListener(this);
     }
 
     @Override
     public void doCheck() throws Exception {
-        if(checkShouldRun(whenLastRunFinished)) {
+        var scanDue = checkShouldRun(whenLastRunFinished);
+        if(!SharedConstants.isSharedMemoryMessaging()) {
+            //Folders that couldn't be watched are tried again each time they're due to be scanned
+            if(applicationsUpdated || (scanDue && !allApplicationsWatched)) {
+                applicationsUpdated = false;
+                allApplicationsWatched = watchApplications();
+                //Anything written before the folders were being watched is picked up by the scan
+                scanDue = true;
+            }
+            if(!collectWatched()) {
+                scanDue = true;
+            }
+        }
+        if(scanDue) {
             try {
                 collect();
             }
@@ -47,49 +98,57 @@ public class InboundMessagingService implements PeriodicChecker {
         }
     }
 
+    @Override
+    public void onApplicationsUpdated() {
+        applicationsUpdated = true;
+    }
+
     @Override
     public long getInterval() {
         return checkingInterval;
     }
 
+    /**
+     * Stops watching the message folders and stops listening for changes to the deployed applications.  Nothing should be collected after this.
+     */
+    @Override
+    public void close() throws IOException {
+        DeployedApplicationsHolder.removeApplicationUpdatedListener(this);
+        watchedApplications.clear();
+        messagesInProgress.clear();
+        if(watchService != null) {
+            watchService.close();
+            watchService = null;
+        }
+        watchServiceUnavailable = true;
+    }
+
     /**
      * Scans each application's message directory for inbound messages and fires the listeners added to this class.
      */
     void collect() throws Exception {
         var messageProcessorsToInvoke = new HashSet<MessageProcessor>();
         var apps = DeployedApplicationsHolder.getDeployedApplications();
+        var applicationDirs = new HashSet<String>();
         //Messages are collected first during the scanning routine and then sent in bulk.  It's more efficient
         //than firing all the listeners for each message from each application.
         for(Map.Entry<String,String> entry : apps.entrySet()) {
             try {
-                var internalMessagesDir = new File(Constants.HoogasDirectory.APPLICATIONS.getDirFile().getPath() +
-                        File.separator + entry.getKey() + Constants.NAME_VERSION_SEPARATOR + entry.getValue() +
-                        File.separator + Constants.HoogasDirectory.INTERNAL_MSGS_TO_HOOGAS.getDirName());
+                var applicationDir = Constants.HoogasDirectory.APPLICATIONS.getDirFile().getPath() +
+                        File.separator + entry.getKey() + Constants.NAME_VERSION_SEPARATOR + entry.getValue();
+                applicationDirs.add(applicationDir);
+                if(SharedConstants.isSharedMemoryMessaging()) {
+                    collectFromQueue(applicationDir, entry.getKey(), messageProcessorsToInvoke);
+                    continue;
+                }
+                var internalMessagesDir = new File(applicationDir + File.separator + Constants.HoogasDirectory.INTERNAL_MSGS_TO_HOOGAS.getDirName());
                 var msgFiles = internalMessagesDir.listFiles();
                 for (File msgFile : msgFiles) {
-                    try {
-                        if(!msgFile.isDirectory()) {
-                            var messageProcessor = Objects.requireNonNull(messageProcessors.get(msgFile.getName()));
-                            try (var reader = new BufferedReader(new FileReader(msgFile))) {
-                                InternalMessageInbound message = new InternalMessageInbound(reader.readLine(), entry.getKey());
-                                messageProcessor.addReceivedMessage(message);
-                                messageProcessorsToInvoke.add(messageProcessor);
-                            }
-                            if (!msgFile.delete()) {
-                                throw new IllegalStateException("Could not delete message file: " + msgFile.getPath());
-                            }
-                        }
-                        else {
-                            System.out.println("Found a directory in " + internalMessagesDir.getPath() + ": '" + msgFile.getPath() + "'.  Ignoring this.");
-                        }
-                    }
-                    catch (IllegalArgumentException e) {
-                        //todo - add proper logging
-                       System.out.println("Invalid inbound message file in " + internalMessagesDir.getPath() + ": " + msgFile.getPath() + "  " + e);
-                    }
-                    catch(Exception e) {
-                        System.out.println("Problem with message file : " + msgFile.getPath() + "  " + e);
+                    //May still be being written in place by an application using an older client, see the class doc
+                    if(msgFile.length() == 0 && System.currentTimeMillis() - msgFile.lastModified() < IN_PLACE_WRITE_SETTLE_MILLIS) {
+                        continue;
                     }
+                    collectFile(msgFile, entry.getKey(), messageProcessorsToInvoke);
                 }
             }
             catch(Exception e) {
@@ -97,9 +156,164 @@ public class InboundMessagingService implements PeriodicChecker {
                 e.printStackTrace();
             }
         }
+        messageQueues.keySet().retainAll(applicationDirs);
+        for(MessageProcessor messageProcessor : messageProcessorsToInvoke) {
+            messageProcessor.processMessagesReceived();
+        }
+    }
+
+    //Reads the message in the file, adds it to the processor for its type and deletes the file
+    private void collectFile(File msgFile, String appName, Set<MessageProcessor> messageProcessorsToInvoke) {
+        var internalMessagesDir = msgFile.getParentFile();
+        //Still being written by the application.  It's picked up once it's been moved to its real name.
+        if(msgFile.getName().endsWith(SharedConstants.IN_PROGRESS_MESSAGE_FILE_SUFFIX)) {
+            return;
+        }
+        try {
+            if(!msgFile.isDirectory()) {
+                var messageProcessor = Objects.requireNonNull(messageProcessors.get(msgFile.getName()));
+                try (var reader = new BufferedReader(new FileReader(msgFile))) {
+                    InternalMessageInbound message = new InternalMessageInbound(reader.readLine(), appName);
+                    messageProcessor.addReceivedMessage(message);
+                    messageProcessorsToInvoke.add(messageProcessor);
+                }
+                if (!msgFile.delete()) {
+                    throw new IllegalStateException("Could not delete message file: " + msgFile.getPath());
+                }
+            }
+            else {
+                System.out.println("Found a directory in " + internalMessagesDir.getPath() + ": '" + msgFile.getPath() + "'.  Ignoring this.");
+            }
+        }
+        catch (IllegalArgumentException e) {
+            //todo - add proper logging
+           System.out.println("Invalid inbound message file in " + internalMessagesDir.getPath() + ": " + msgFile.getPath() + "  " + e);
+        }
+        catch(Exception e) {
+            System.out.println("Problem with message file : " + msgFile.getPath() + "  " + e);
+        }
+    }
+
+    /**
+     * Stops watching the message folders of the applications that were deployed before and starts watching the ones of those deployed now.
+     * @return false if any of the folders couldn't be watched, in which case their messages are only picked up by the scan
+     */
+    private boolean watchApplications() {
+        if(watchServiceUnavailable) {
+            return false;
+        }
+        try {
+            if(watchService == null) {
+                watchService = FileSystems.getDefault().newWatchService();
+            }
+        }
+        catch(IOException | UnsupportedOperationException e) {
+            //todo - add proper logging
+            System.out.println("Could not watch the inbound message folders, they will only be scanned: " + e);
+            watchServiceUnavailable = true;
+            return false;
+        }
+        for(WatchKey watchKey : watchedApplications.keySet()) {
+            watchKey.cancel();
+        }
+        watchedApplications.clear();
+        messagesInProgress.clear();
+        var allWatched = true;
+        for(Map.Entry<String,String> entry : DeployedApplicationsHolder.getDeployedApplications().entrySet()) {
+            var internalMessagesDir = Paths.get(Constants.HoogasDirectory.APPLICATIONS.getDirFile().getPath(),
+                    entry.getKey() + Constants.NAME_VERSION_SEPARATOR + entry.getValue(), Constants.HoogasDirectory.INTERNAL_MSGS_TO_HOOGAS.getDirName());
+            try {
+                //Moving a finished message file into the folder is seen as it being created there, after its in-progress file was
+                var watchKey = internalMessagesDir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE);
+                watchedApplications.put(watchKey, entry.getKey());
+            }
+            catch(Exception e) {
+                //todo - add proper logging
+                System.out.println("Could not watch inbound message folder " + internalMessagesDir + ": " + e);
+                allWatched = false;
+            }
+        }
+        return allWatched;
+    }
+
+    /**
+     * Picks up the message files that the watch service has seen moved into the folders since the last call, and fires the listeners added to this class.
+     * Message files that weren't written under their in-progress name first are left for the scan, see the class doc.
+     * @return false if the watch service lost track of any events, or stopped watching a folder, so the folders need to be scanned
+     */
+    private boolean collectWatched() {
+        if(watchService == null) {
+            return true;
+        }
+        var messageProcessorsToInvoke = new HashSet<MessageProcessor>();
+        var nothingMissed = true;
+        WatchKey watchKey;
+        while((watchKey = watchService.poll()) != null) {
+            var appName = watchedApplications.get(watchKey);
+            var internalMessagesDir = (Path)watchKey.watchable();
+            var inProgress = messagesInProgress.computeIfAbsent(watchKey, k -> new HashSet<>());
+            //A message of the same type can be replaced more than once before it's picked up, so each file is only read once
+            var msgFileNames = new LinkedHashSet<Path>();
+            for(WatchEvent<?> event : watchKey.pollEvents()) {
+                if(event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    nothingMissed = false;
+                    //Whatever was missed is picked up by the scan
+                    inProgress.clear();
+                    continue;
+                }
+                var msgFileName = (Path)event.context();
+                var name = msgFileName.toString();
+                if(name.endsWith(SharedConstants.IN_PROGRESS_MESSAGE_FILE_SUFFIX)) {
+                    inProgress.add(Paths.get(name.substring(0, name.length() - SharedConstants.IN_PROGRESS_MESSAGE_FILE_SUFFIX.length())));
+                }
+                //Otherwise it's been written in place and may not be complete yet
+                else if(inProgress.remove(msgFileName)) {
+                    msgFileNames.add(msgFileName);
+                }
+            }
+            if(appName != null) {
+                for(Path msgFileName : msgFileNames) {
+                    var msgFile = internalMessagesDir.resolve(msgFileName).toFile();
+                    //Unless it's already been picked up by a scan.  Messages can be empty, e.g. a request for the public config.
+                    if(msgFile.exists()) {
+                        collectFile(msgFile, appName, messageProcessorsToInvoke);
+                    }
+                }
+            }
+            //The key is no longer valid if the folder has gone, in which case the application's been removed or replaced by another version
+            if(!watchKey.reset()) {
+                watchedApplications.remove(watchKey);
+                messagesInProgress.remove(watchKey);
+                allApplicationsWatched = false;
+                nothingMissed = false;
+            }
+        }
         for(MessageProcessor messageProcessor : messageProcessorsToInvoke) {
             messageProcessor.processMessagesReceived();
         }
+        return nothingMissed;
+    }
+
+    //Takes everything waiting in the application's queue and adds it to the processors for the message types
+    private void collectFromQueue(String applicationDir, String appName, Set<MessageProcessor> messageProcessorsToInvoke) throws IOException {
+        var messageQueue = messageQueues.get(applicationDir);
+        //The application's directory may have been deleted and created again since, e.g. by a redeployment
+        if(messageQueue == null || messageQueue.isFileReplaced()) {
+            messageQueue = SharedMemoryMessageQueue.open(Paths.get(applicationDir, SharedConstants.INTERNAL_MSGS_TO_HOOGAS_QUEUE_FILE_NAME),
+                    SharedMemoryMessageQueue.DEFAULT_CAPACITY);
+            messageQueues.put(applicationDir, messageQueue);
+        }
+        var messageQueueFile = messageQueue.getFile();
+        messageQueue.drain((type, text) -> {
+            var messageProcessor = messageProcessors.get(type);
+            if(messageProcessor == null) {
+                //todo - add proper logging
+                System.out.println("Invalid inbound message type in " + messageQueueFile + ": " + type);
+                return;
+            }
+            messageProcessor.addReceivedMessage(new InternalMessageInbound(text, appName));
+            messageProcessorsToInvoke.add(messageProcessor);
+        });
     }
 
     private static class MessageProcessor {
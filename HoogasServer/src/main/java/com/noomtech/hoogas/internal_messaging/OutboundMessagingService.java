@@ -3,9 +3,15 @@ package com.noomtech.hoogas.internal_messaging;
 
 import com.noomtech.hoogas.constants.Constants;
 import com.noomtech.hoogas.datamodels.InternalMessageOutbound;
+import com.noomtech.hoogas.deployment.DeployedApplicationsHolder;
+import com.noomtech.hoogas_shared.constants.SharedConstants;
+import com.noomtech.hoogas_shared.internal_messaging.SharedMemoryMessageQueue;
 
 import java.io.*;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 
@@ -16,11 +22,18 @@ import java.util.Map;
  * Messages are placed in the application's message folder as files with the same same as the message type.  The payload is in the file.
  * They are read by the hoogas client functionality which subsequently deletes them once they are processed.
  * Any existing messages in the application's message folders are overwritten if the new message is of the same type.
+ * If {@link SharedConstants#isSharedMemoryMessaging()} is set then the messages are added to the memory-mapped queue file in each
+ * application's directory instead, see {@link SharedMemoryMessageQueue}.  Nothing is overwritten, the application receives every message in order.
  * @author Joshua Newman, December 2024
  */
 public class OutboundMessagingService {
 
 
+    //Keyed by application directory.  Each queue is mapped the first time it's sent to, and mapped again if its file is replaced.  The queues of
+    //applications that are no longer deployed are let go of.
+    private final Map<String, SharedMemoryMessageQueue> messageQueues = new HashMap<>();
+
+
     private static final class INSTANCE_HOLDER {
         private static final OutboundMessagingService INSTANCE = new OutboundMessagingService();
     }
@@ -39,10 +52,17 @@ public class OutboundMessagingService {
      */
     public List<String> send(InternalMessageOutbound internalMessageOutbound, Map<String,String> destinationApps) {
         var couldntSendTo = new ArrayList<String>();
+        if(SharedConstants.isSharedMemoryMessaging()) {
+            releaseUndeployedQueues();
+        }
         for(Map.Entry<String,String> entry : destinationApps.entrySet()) {
             try {
-                var file = new File(Constants.HoogasDirectory.APPLICATIONS.getDirFile().getPath() +
-                        File.separator + entry.getKey() + Constants.NAME_VERSION_SEPARATOR + entry.getValue() + File.separator +
+                var applicationDir = getApplicationDir(entry);
+                if(SharedConstants.isSharedMemoryMessaging()) {
+                    sendToQueue(internalMessageOutbound, applicationDir);
+                    continue;
+                }
+                var file = new File(applicationDir + File.separator +
                         Constants.HoogasDirectory.INTERNAL_MSGS_FROM_HOOGAS.getDirName() + File.separator + internalMessageOutbound.type().name());
 
                 if (file.exists()) {
@@ -70,4 +90,31 @@ public class OutboundMessagingService {
 
         return couldntSendTo.isEmpty() ? null : couldntSendTo;
     }
+
+    private synchronized void releaseUndeployedQueues() {
+        var applicationDirs = new HashSet<String>();
+        for(Map.Entry<String,String> entry : DeployedApplicationsHolder.getDeployedApplications().entrySet()) {
+            applicationDirs.add(getApplicationDir(entry));
+        }
+        messageQueues.keySet().retainAll(applicationDirs);
+    }
+
+    private static String getApplicationDir(Map.Entry<String,String> application) {
+        return Constants.HoogasDirectory.APPLICATIONS.getDirFile().getPath() +
+                File.separator + application.getKey() + Constants.NAME_VERSION_SEPARATOR + application.getValue();
+    }
+
+    //Each queue can only have one writer at a time, and this can be called from more than one thread
+    private synchronized void sendToQueue(InternalMessageOutbound internalMessageOutbound, String applicationDir) throws IOException {
+        var messageQueue = messageQueues.get(applicationDir);
+        //The application's directory may have been deleted and created again since, e.g. by a redeployment
+        if(messageQueue == null || messageQueue.isFileReplaced()) {
+            messageQueue = SharedMemoryMessageQueue.open(Paths.get(applicationDir, SharedConstants.INTERNAL_MSGS_FROM_HOOGAS_QUEUE_FILE_NAME),
+                    SharedMemoryMessageQueue.DEFAULT_CAPACITY);
+            messageQueues.put(applicationDir, messageQueue);
+        }
+        if(!messageQueue.offer(internalMessageOutbound.type().name(), internalMessageOutbound.text())) {
+            throw new IllegalStateException("No room for message in queue: " + messageQueue.getFile());
+        }
+    }
 }
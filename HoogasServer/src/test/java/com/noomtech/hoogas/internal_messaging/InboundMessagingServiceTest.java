@@ -3,7 +3,9 @@ package com.noomtech.hoogas.internal_messaging;
 import com.noomtech.hoogas.constants.Constants;
 import com.noomtech.hoogas.datamodels.InternalMessageInbound;
 import com.noomtech.hoogas.deployment.DeployedApplicationsHolder;
+import com.noomtech.hoogas_shared.constants.SharedConstants;
 import com.noomtech.hoogas_shared.internal_messaging.MessageTypeFromApplications;
+import com.noomtech.hoogas_shared.internal_messaging.SharedMemoryMessageQueue;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
@@ -14,6 +16,9 @@ import static org.junit.jupiter.api.Assertions.*;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
 
 import org.apache.commons.io.FileUtils;
@@ -26,11 +31,12 @@ public class InboundMessagingServiceTest {
     private static MockedStatic<DeployedApplicationsHolder> mockedDeploymentApplicationsHolderHandle;
     private static String messageDirectory;
     private static String applicationDirectory;
+    private static Map<String,String> mockedDeployment;
 
     @BeforeAll
     public static void beforeAll() throws Exception {
         mockedDeploymentApplicationsHolderHandle = Mockito.mockStatic(DeployedApplicationsHolder.class);
-        var mockedDeployment = new HashMap<String,String>();
+        mockedDeployment = new HashMap<>();
         mockedDeployment.put("TestApp1", "1234");
         mockedDeploymentApplicationsHolderHandle.when(DeployedApplicationsHolder::getDeployedApplications).thenReturn(mockedDeployment);
         workingDir = System.getProperty("user.dir");
@@ -138,13 +144,201 @@ public class InboundMessagingServiceTest {
         checkMessageDirectory(expectedContent);
     }
 
+    //Check that messages are picked up as soon as they're moved into the message directory when it's being watched, well before the checking
+    //interval is up, including empty ones and the messages of an application that's deployed once the service is running.  Also make sure
+    //a message that's still being written is left alone.
+    @Test
+    public void test3() throws Exception {
+        try(var inboundMessagingService = new InboundMessagingService(60000)) {
+            var statsMessagesReceived = new ArrayList<InternalMessageInbound>();
+            var statsListener = new StatsListener() {
+                public void onStatsMessageReceived(List<InternalMessageInbound> messages) {
+                    statsMessagesReceived.addAll(messages);
+                }
+            };
+            var configRequestsReceived = new ArrayList<InternalMessageInbound>();
+            var configRequestListener = new ConfigRequestListener() {
+                public void onConfigRequestMessageReceived(List<InternalMessageInbound> messages) {
+                    configRequestsReceived.addAll(messages);
+                }
+            };
+            inboundMessagingService.addStatsListener(statsListener);
+            inboundMessagingService.addConfigRequestListener(configRequestListener);
+            //The first check watches the message directories and scans them
+            inboundMessagingService.doCheck();
+
+            sendInboundMessage(new InternalMessageInbound("stats 1", "TestApp1"), MessageTypeFromApplications.STATS);
+            waitForMessages(inboundMessagingService, statsMessagesReceived, 1);
+            assertEquals("stats 1", statsMessagesReceived.getFirst().text());
+            assertEquals("TestApp1", statsMessagesReceived.getFirst().from());
+            //Created once the stats message has gone, so it's seen by the watch service along with the config request below
+            var inProgress = new File(messageDirectory + File.separator + MessageTypeFromApplications.STATS + SharedConstants.IN_PROGRESS_MESSAGE_FILE_SUFFIX);
+            createFile(inProgress);
+            sendInboundMessage(new InternalMessageInbound("", "TestApp1"), MessageTypeFromApplications.PUBLIC_CFG_REQUEST);
+            waitForMessages(inboundMessagingService, configRequestsReceived, 1);
+            assertEquals("TestApp1", configRequestsReceived.getFirst().from());
+            checkMessageFiles(inProgress);
+            //And it's left alone by a scan too
+            inboundMessagingService.collect();
+            assertEquals(1, statsMessagesReceived.size());
+            checkMessageFiles(inProgress);
+            if(!inProgress.delete()) {
+                throw new IllegalStateException("Cannot delete file " + inProgress.getPath());
+            }
+
+            var app2MessageDirectory = applicationDirectory + File.separator + "TestApp2" +
+                    Constants.NAME_VERSION_SEPARATOR + "5678" + File.separator + Constants.HoogasDirectory.INTERNAL_MSGS_TO_HOOGAS.getDirName();
+            createDir(new File(app2MessageDirectory).getParentFile());
+            createDir(new File(app2MessageDirectory));
+            mockedDeployment.put("TestApp2", "5678");
+            try {
+                inboundMessagingService.onApplicationsUpdated();
+                inboundMessagingService.doCheck();
+                sendInboundMessage(app2MessageDirectory, new InternalMessageInbound("stats 2", "TestApp2"), MessageTypeFromApplications.STATS);
+                waitForMessages(inboundMessagingService, statsMessagesReceived, 2);
+                assertEquals("stats 2", statsMessagesReceived.get(1).text());
+                assertEquals("TestApp2", statsMessagesReceived.get(1).from());
+                assertEquals(0, new File(app2MessageDirectory).listFiles().length);
+            }
+            finally {
+                mockedDeployment.remove("TestApp2");
+                FileUtils.deleteDirectory(new File(app2MessageDirectory).getParentFile());
+            }
+        }
+    }
+
+    //Write messages in place, the way applications using an older client do, while the message directory is being watched.  Check that a
+    //message isn't picked up while its file is still empty, that it's picked up by the scan once it's been written, and that it's only
+    //delivered once.  Also check that a message that really is empty is picked up once it's had time to be written.
+    @Test
+    public void test4() throws Exception {
+        try(var inboundMessagingService = new InboundMessagingService(100)) {
+            var statsMessagesReceived = new ArrayList<InternalMessageInbound>();
+            var statsListener = new StatsListener() {
+                public void onStatsMessageReceived(List<InternalMessageInbound> messages) {
+                    statsMessagesReceived.addAll(messages);
+                }
+            };
+            var configRequestsReceived = new ArrayList<InternalMessageInbound>();
+            var configRequestListener = new ConfigRequestListener() {
+                public void onConfigRequestMessageReceived(List<InternalMessageInbound> messages) {
+                    configRequestsReceived.addAll(messages);
+                }
+            };
+            inboundMessagingService.addStatsListener(statsListener);
+            inboundMessagingService.addConfigRequestListener(configRequestListener);
+            inboundMessagingService.doCheck();
+
+            var statsFile = new File(messageDirectory + File.separator + MessageTypeFromApplications.STATS);
+            createFile(statsFile);
+            keepChecking(inboundMessagingService, InboundMessagingService.IN_PLACE_WRITE_SETTLE_MILLIS / 2);
+            assertTrue(statsMessagesReceived.isEmpty(), "Message picked up before it was written");
+            assertTrue(statsFile.exists());
+            try(BufferedWriter writer = new BufferedWriter(new FileWriter(statsFile))) {
+                writer.write("stats 1");
+            }
+            waitForMessages(inboundMessagingService, statsMessagesReceived, 1);
+            assertEquals("stats 1", statsMessagesReceived.getFirst().text());
+            keepChecking(inboundMessagingService, 300);
+            assertEquals(1, statsMessagesReceived.size());
+            assertFalse(statsFile.exists());
+
+            createFile(new File(messageDirectory + File.separator + MessageTypeFromApplications.PUBLIC_CFG_REQUEST));
+            waitForMessages(inboundMessagingService, configRequestsReceived, 1);
+            assertEquals("TestApp1", configRequestsReceived.getFirst().from());
+            checkMessageFiles();
+        }
+    }
+
+    //With shared memory messaging turned on, send messages through the application's queue the way the applications do, including more than one
+    //of the same type and one of a type that doesn't exist.  Check that every valid one is received, in order, and that nothing is read from the
+    //message directory.  Then delete the queue file and create it again, as a redeployment would, and check that messages sent through the new
+    //file are received.
+    @Test
+    public void test5() throws Exception {
+        System.setProperty(SharedConstants.SHARED_MEMORY_MESSAGING_PROPERTY, "true");
+        var queueFile = Paths.get(new File(messageDirectory).getParent(), SharedConstants.INTERNAL_MSGS_TO_HOOGAS_QUEUE_FILE_NAME);
+        try(var inboundMessagingService = new InboundMessagingService(-1)) {
+            var statsMessagesReceived = new ArrayList<InternalMessageInbound>();
+            var statsListener = new StatsListener() {
+                public void onStatsMessageReceived(List<InternalMessageInbound> messages) {
+                    statsMessagesReceived.addAll(messages);
+                }
+            };
+            var configRequestsReceived = new ArrayList<InternalMessageInbound>();
+            var configRequestListener = new ConfigRequestListener() {
+                public void onConfigRequestMessageReceived(List<InternalMessageInbound> messages) {
+                    configRequestsReceived.addAll(messages);
+                }
+            };
+            inboundMessagingService.addStatsListener(statsListener);
+            inboundMessagingService.addConfigRequestListener(configRequestListener);
+            var messageFile = new File(messageDirectory + File.separator + MessageTypeFromApplications.STATS);
+            createFile(messageFile);
+
+            var messageQueue = SharedMemoryMessageQueue.open(queueFile, SharedMemoryMessageQueue.DEFAULT_CAPACITY);
+            assertTrue(messageQueue.offer(MessageTypeFromApplications.STATS.name(), "stats 1"));
+            assertTrue(messageQueue.offer("NOT_A_TYPE", "ignore me"));
+            assertTrue(messageQueue.offer(MessageTypeFromApplications.PUBLIC_CFG_REQUEST.name(), ""));
+            assertTrue(messageQueue.offer(MessageTypeFromApplications.STATS.name(), "stats 2"));
+            inboundMessagingService.collect();
+
+            assertEquals(List.of("stats 1", "stats 2"), statsMessagesReceived.stream().map(InternalMessageInbound::text).toList());
+            assertEquals(List.of("TestApp1", "TestApp1"), statsMessagesReceived.stream().map(InternalMessageInbound::from).toList());
+            assertEquals(1, configRequestsReceived.size());
+            assertEquals("", configRequestsReceived.getFirst().text());
+            assertTrue(messageQueue.isEmpty());
+            assertTrue(messageFile.exists(), "Message file was read when messages go through the queue");
+            if(!messageFile.delete()) {
+                throw new IllegalStateException("Cannot delete file " + messageFile.getPath());
+            }
+
+            Files.delete(queueFile);
+            messageQueue = SharedMemoryMessageQueue.open(queueFile, SharedMemoryMessageQueue.DEFAULT_CAPACITY);
+            assertTrue(messageQueue.offer(MessageTypeFromApplications.STATS.name(), "stats 3"));
+            inboundMessagingService.collect();
+            assertEquals(3, statsMessagesReceived.size());
+            assertEquals("stats 3", statsMessagesReceived.getLast().text());
+            assertTrue(messageQueue.isEmpty());
+        }
+        finally {
+            System.clearProperty(SharedConstants.SHARED_MEMORY_MESSAGING_PROPERTY);
+            Files.deleteIfExists(queueFile);
+        }
+    }
+
+
+    private void keepChecking(InboundMessagingService inboundMessagingService, long forMillis) throws Exception {
+        var stopAt = System.currentTimeMillis() + forMillis;
+        while(System.currentTimeMillis() < stopAt) {
+            inboundMessagingService.doCheck();
+            Thread.sleep(10);
+        }
+    }
+
+    private void waitForMessages(InboundMessagingService inboundMessagingService, List<InternalMessageInbound> messagesReceived, int howMany) throws Exception {
+        //Some platforms poll for changes rather than being told about them, so this has to allow for a polling interval
+        var giveUpAt = System.currentTimeMillis() + 15000;
+        while(messagesReceived.size() < howMany && System.currentTimeMillis() < giveUpAt) {
+            inboundMessagingService.doCheck();
+            Thread.sleep(10);
+        }
+        assertEquals(howMany, messagesReceived.size());
+    }
 
     private void sendInboundMessage(InternalMessageInbound messageInbound, MessageTypeFromApplications type) throws Exception {
+        sendInboundMessage(messageDirectory, messageInbound, type);
+    }
+
+    //Sends it the way the applications do, by writing it under a temporary name and then moving it into place
+    private void sendInboundMessage(String messageDirectory, InternalMessageInbound messageInbound, MessageTypeFromApplications type) throws Exception {
         var messageFile = new File(messageDirectory + File.separator + type);
-        createFile(messageFile);
-        try(BufferedWriter writer = new BufferedWriter(new FileWriter(messageFile))) {
+        var inProgressMessageFile = new File(messageFile.getPath() + SharedConstants.IN_PROGRESS_MESSAGE_FILE_SUFFIX);
+        createFile(inProgressMessageFile);
+        try(BufferedWriter writer = new BufferedWriter(new FileWriter(inProgressMessageFile))) {
             writer.write(messageInbound.text());
         }
+        Files.move(inProgressMessageFile.toPath(), messageFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
     }
 
     private void createFile(File file) throws Exception {
@@ -159,6 +353,18 @@ public class InboundMessagingServiceTest {
         }
     }
 
+    //Checks that the in-progress file is still there and that there are no message files left, ignoring anything else left behind by other tests
+    private void checkMessageFiles(File inProgress) {
+        assertTrue(inProgress.isFile(), "In-progress file was picked up: " + inProgress.getPath());
+        checkMessageFiles();
+    }
+
+    private void checkMessageFiles() {
+        for(MessageTypeFromApplications type : MessageTypeFromApplications.values()) {
+            assertFalse(new File(messageDirectory + File.separator + type).exists(), "Message of type " + type + " wasn't picked up");
+        }
+    }
+
     private void checkMessageDirectory(Map<String,Boolean> expectedContent) {
         var filesInMessageDirectory = new File(messageDirectory).listFiles();
         assertEquals(filesInMessageDirectory.length, expectedContent.size());
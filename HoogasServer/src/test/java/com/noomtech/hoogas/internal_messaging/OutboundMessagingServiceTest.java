@@ -3,7 +3,9 @@ package com.noomtech.hoogas.internal_messaging;
 import com.noomtech.hoogas.constants.Constants;
 import com.noomtech.hoogas.datamodels.InternalMessageOutbound;
 import com.noomtech.hoogas.deployment.DeployedApplicationsHolder;
+import com.noomtech.hoogas_shared.constants.SharedConstants;
 import com.noomtech.hoogas_shared.internal_messaging.MessageTypeToApplications;
+import com.noomtech.hoogas_shared.internal_messaging.SharedMemoryMessageQueue;
 import org.apache.commons.io.FileUtils;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
@@ -16,7 +18,11 @@ import static org.junit.jupiter.api.Assertions.*;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
 
@@ -177,6 +183,49 @@ public class OutboundMessagingServiceTest {
         checkMessagingDir(messageDirectoryApp1, expectedContent);
     }
 
+    //With shared memory messaging turned on, send messages of the same type more than once to both apps and check that each app receives
+    //every one of them through its queue, in order, and that nothing is written to the messaging directories.  Then delete one app's queue
+    //file and create it again, as a redeployment would, and check that the next message goes to the new file.
+    @Test
+    public void test5() throws Exception {
+        System.setProperty(SharedConstants.SHARED_MEMORY_MESSAGING_PROPERTY, "true");
+        try {
+            var queueFileApp1 = Paths.get(messageDirectoryApp1.getParent(), SharedConstants.INTERNAL_MSGS_FROM_HOOGAS_QUEUE_FILE_NAME);
+            var queueFileApp2 = Paths.get(messageDirectoryApp2.getParent(), SharedConstants.INTERNAL_MSGS_FROM_HOOGAS_QUEUE_FILE_NAME);
+            var messageQueueApp1 = SharedMemoryMessageQueue.open(queueFileApp1, SharedMemoryMessageQueue.DEFAULT_CAPACITY);
+            var messageQueueApp2 = SharedMemoryMessageQueue.open(queueFileApp2, SharedMemoryMessageQueue.DEFAULT_CAPACITY);
+
+            OutboundMessagingService outboundMessagingService = OutboundMessagingService.getInstance();
+            var msg1 = new InternalMessageOutbound("test - 1", MessageTypeToApplications.PUBLIC_CFG_RESPONSE);
+            var msg2 = new InternalMessageOutbound("test - 2", MessageTypeToApplications.PUBLIC_CFG_RESPONSE);
+            var msg3 = new InternalMessageOutbound("test - 3", MessageTypeToApplications.STOP);
+            for(InternalMessageOutbound msg : List.of(msg1, msg2, msg3)) {
+                assertNull(outboundMessagingService.send(msg, DeployedApplicationsHolder.getDeployedApplications()));
+            }
+
+            var expected = List.of("PUBLIC_CFG_RESPONSE:test - 1", "PUBLIC_CFG_RESPONSE:test - 2", "STOP:test - 3");
+            assertEquals(expected, drain(messageQueueApp1));
+            assertEquals(expected, drain(messageQueueApp2));
+            checkMessagingDir(messageDirectoryApp1, Map.of());
+            checkMessagingDir(messageDirectoryApp2, Map.of());
+
+            Files.delete(queueFileApp1);
+            messageQueueApp1 = SharedMemoryMessageQueue.open(queueFileApp1, SharedMemoryMessageQueue.DEFAULT_CAPACITY);
+            assertNull(outboundMessagingService.send(msg3, DeployedApplicationsHolder.getDeployedApplications()));
+            assertEquals(List.of("STOP:test - 3"), drain(messageQueueApp1));
+            assertEquals(List.of("STOP:test - 3"), drain(messageQueueApp2));
+        }
+        finally {
+            System.clearProperty(SharedConstants.SHARED_MEMORY_MESSAGING_PROPERTY);
+        }
+    }
+
+
+    private static List<String> drain(SharedMemoryMessageQueue messageQueue) {
+        var received = new ArrayList<String>();
+        messageQueue.drain((type, text) -> received.add(type + ":" + text));
+        return received;
+    }
 
     private static void deleteFile(File file) {
         if(!file.delete()) {
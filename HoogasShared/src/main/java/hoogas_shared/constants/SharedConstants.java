@@ -15,6 +15,22 @@ public class SharedConstants {
     public static final String APPLICATIONS_DIR_NAME = "applications";
     public static final String INTERNAL_MSGS_TO_HOOGAS_DIR_NAME = "to_hoogas_messages";
     public static final String INTERNAL_MSGS_FROM_HOOGAS_DIR_NAME = "from_hoogas_messages";
+    public static final String INTERNAL_MSGS_TO_HOOGAS_QUEUE_FILE_NAME = "to_hoogas_messages.queue";
+    public static final String INTERNAL_MSGS_FROM_HOOGAS_QUEUE_FILE_NAME = "from_hoogas_messages.queue";
+    public static final String SHARED_MEMORY_MESSAGING_PROPERTY = "shared_memory_messaging";
+    /**
+     * Message files are written under their name with this added and then moved to their name, so they're never seen half-written
+     */
+    public static final String IN_PROGRESS_MESSAGE_FILE_SUFFIX = ".writing";
+
+    /**
+     * @return Whether the internal messages between Hoogas and its applications go through the memory-mapped queue files in the
+     * application's directory, rather than through the message directories.  Both sides need to have the same setting.
+     * @see hoogas_shared.internal_messaging.SharedMemoryMessageQueue
+     */
+    public static boolean isSharedMemoryMessaging() {
+        return Boolean.getBoolean(SHARED_MEMORY_MESSAGING_PROPERTY);
+    }
 
     public enum APPLICATION_STATE {
         STARTING,
@@ -0,0 +1,185 @@
+package hoogas_shared.internal_messaging;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.function.BiConsumer;
+
+
+/**
+ * A queue of internal messages held in a memory-mapped file, which can be used instead of the message directories to pass messages
+ * between Hoogas and an application.  There's one file for each direction.  Both processes map the same file, so a message written by
+ * one is visible to the other straight away, and checking for messages is just a read of a counter in memory rather than a
+ * directory listing.
+ * The file starts with a header holding the capacity, the position that's been written up to and the position that's been read up to.
+ * The positions only ever go up, and are turned into offsets in the ring of message data that follows the header.  Each is on its own
+ * cache line as they're updated by different processes.  The writer only moves the write position on once the message has been
+ * written, and the reader only moves the read position on once it's finished with the messages, so neither ever sees a partial message.
+ * Each message is stored as a 4 byte length of the rest of the record, a 4 byte length of the type name, the UTF-8 type name and
+ * then the UTF-8 text.  A message that won't fit in the space left before the end of the ring goes at the start, with a length of
+ * {@link #PADDING} marking the space it skipped.  So that a message can always be added once the queue has been emptied, including the
+ * space it may have to skip, a message can take up at most half the capacity.
+ * Unlike the message directories, every message is delivered, in the order it was sent, rather than just the latest of each type.
+ * There must only be one process writing to and one process reading from each file, each using a single thread.
+ * The mapping is of the file as it was when it was opened.  If the file is deleted, e.g. along with the application's directory when it's
+ * redeployed, then anything written to the mapping is lost, so a queue that's kept open should be checked with {@link #isFileReplaced()}.
+ * @see hoogas_shared.constants.SharedConstants#isSharedMemoryMessaging()
+ * @author Joshua Newman, February 2025
+ */
+public class SharedMemoryMessageQueue {
+
+
+    public static final int DEFAULT_CAPACITY = 1024 * 1024;
+    private static final int CAPACITY_OFFSET = 0;
+    private static final int WRITE_POSITION_OFFSET = 64;
+    private static final int READ_POSITION_OFFSET = 128;
+    private static final int DATA_OFFSET = 192;
+    private static final int RECORD_HEADER_LENGTH = 2 * Integer.BYTES;
+    private static final int PADDING = -1;
+    //Used to read and write the positions with the ordering needed for the other process to see them correctly
+    private static final VarHandle LONG_VIEW = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private final Path file;
+    private final Object fileIdentity;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+
+
+    private SharedMemoryMessageQueue(Path file, Object fileIdentity, MappedByteBuffer buffer, int capacity) {
+        this.file = file;
+        this.fileIdentity = fileIdentity;
+        this.buffer = buffer;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Maps the queue file, creating it if it doesn't exist yet.  Either side can be the first to open it.
+     * @param capacity The number of bytes of message data the queue can hold.  Ignored if the file already exists.
+     * @throws IllegalArgumentException If the capacity isn't valid
+     */
+    public static SharedMemoryMessageQueue open(Path file, int capacity) throws IOException {
+        if(capacity < 2 * RECORD_HEADER_LENGTH || capacity > Integer.MAX_VALUE - DATA_OFFSET) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        try(var fileChannel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            var existingCapacity = fileChannel.size() >= DATA_OFFSET ? (int)(fileChannel.size() - DATA_OFFSET) : 0;
+            var mappedCapacity = existingCapacity > 0 ? existingCapacity : capacity;
+            //The mapping stays valid after the channel is closed
+            var buffer = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, DATA_OFFSET + (long)mappedCapacity);
+            buffer.order(ByteOrder.nativeOrder());
+            //A new file is all zeros.  If both sides create it at the same time they write the same value.
+            buffer.putInt(CAPACITY_OFFSET, mappedCapacity);
+            return new SharedMemoryMessageQueue(file, getFileIdentity(file), buffer, mappedCapacity);
+        }
+    }
+
+    /**
+     * @return Whether the file this queue was opened from has been deleted or replaced by another file since, in which case the other side
+     * won't see anything written to this queue, or write anything to it, and it should be opened again
+     */
+    public boolean isFileReplaced() {
+        try {
+            return !fileIdentity.equals(getFileIdentity(file));
+        }
+        catch(IOException e) {
+            return true;
+        }
+    }
+
+    //The inode on the platforms that have them, otherwise the time the file was created
+    private static Object getFileIdentity(Path file) throws IOException {
+        var attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        return attributes.fileKey() != null ? attributes.fileKey() : attributes.creationTime();
+    }
+
+    /**
+     * Adds the message to the end of the queue.  Never blocks.
+     * @param text Can be null, in which case it's read as an empty string
+     * @return false if there isn't room for the message
+     * @throws IllegalArgumentException If the message is too big for the queue i.e. it takes up more than half the capacity
+     */
+    public boolean offer(String type, String text) {
+        var typeBytes = type.getBytes(StandardCharsets.UTF_8);
+        var textBytes = text == null ? new byte[0] : text.getBytes(StandardCharsets.UTF_8);
+        var recordLength = RECORD_HEADER_LENGTH + typeBytes.length + textBytes.length;
+        if(recordLength > capacity / 2) {
+            throw new IllegalArgumentException("Message of type " + type + " is too big for the queue: " + recordLength + " > " + capacity / 2);
+        }
+        var writePosition = (long)LONG_VIEW.getOpaque(buffer, WRITE_POSITION_OFFSET);
+        var readPosition = (long)LONG_VIEW.getAcquire(buffer, READ_POSITION_OFFSET);
+        var offset = (int)(writePosition % capacity);
+        var roomBeforeEnd = capacity - offset;
+        var skipped = roomBeforeEnd < recordLength ? roomBeforeEnd : 0;
+        if(capacity - (writePosition - readPosition) < skipped + recordLength) {
+            return false;
+        }
+        if(skipped > 0) {
+            if(skipped >= Integer.BYTES) {
+                buffer.putInt(DATA_OFFSET + offset, PADDING);
+            }
+            offset = 0;
+        }
+        buffer.putInt(DATA_OFFSET + offset, recordLength - Integer.BYTES);
+        buffer.putInt(DATA_OFFSET + offset + Integer.BYTES, typeBytes.length);
+        buffer.put(DATA_OFFSET + offset + RECORD_HEADER_LENGTH, typeBytes);
+        buffer.put(DATA_OFFSET + offset + RECORD_HEADER_LENGTH + typeBytes.length, textBytes);
+        LONG_VIEW.setRelease(buffer, WRITE_POSITION_OFFSET, writePosition + skipped + recordLength);
+        return true;
+    }
+
+    /**
+     * Passes every message waiting in the queue to the consumer, oldest first, along with its type, and then removes them.
+     * @return The number of messages passed to the consumer
+     */
+    public int drain(BiConsumer<String,String> consumer) {
+        var readPosition = (long)LONG_VIEW.getOpaque(buffer, READ_POSITION_OFFSET);
+        var writePosition = (long)LONG_VIEW.getAcquire(buffer, WRITE_POSITION_OFFSET);
+        int numMessages = 0;
+        while(readPosition < writePosition) {
+            var offset = (int)(readPosition % capacity);
+            var roomBeforeEnd = capacity - offset;
+            if(roomBeforeEnd < RECORD_HEADER_LENGTH || buffer.getInt(DATA_OFFSET + offset) == PADDING) {
+                readPosition += roomBeforeEnd;
+                continue;
+            }
+            var length = buffer.getInt(DATA_OFFSET + offset);
+            var typeLength = buffer.getInt(DATA_OFFSET + offset + Integer.BYTES);
+            var typeBytes = new byte[typeLength];
+            buffer.get(DATA_OFFSET + offset + RECORD_HEADER_LENGTH, typeBytes);
+            var textBytes = new byte[length - Integer.BYTES - typeLength];
+            buffer.get(DATA_OFFSET + offset + RECORD_HEADER_LENGTH + typeLength, textBytes);
+            consumer.accept(new String(typeBytes, StandardCharsets.UTF_8), new String(textBytes, StandardCharsets.UTF_8));
+            readPosition += Integer.BYTES + length;
+            numMessages++;
+        }
+        LONG_VIEW.setRelease(buffer, READ_POSITION_OFFSET, readPosition);
+        return numMessages;
+    }
+
+    /**
+     * Discards everything waiting in the queue.  Should only be called by the reading side.
+     */
+    public void clear() {
+        LONG_VIEW.setRelease(buffer, READ_POSITION_OFFSET, (long)LONG_VIEW.getAcquire(buffer, WRITE_POSITION_OFFSET));
+    }
+
+    public boolean isEmpty() {
+        return (long)LONG_VIEW.getAcquire(buffer, READ_POSITION_OFFSET) == (long)LONG_VIEW.getAcquire(buffer, WRITE_POSITION_OFFSET);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+}
@@ -0,0 +1,91 @@
+package hoogas_shared.internal_messaging;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SharedMemoryMessageQueueTest {
+
+
+    /**
+     * Write messages through one mapping of a queue file and read them through another, as the two processes would, going round the
+     * ring several times with messages of different sizes, and make sure they all come out in order and intact.  Then check that a
+     * full queue refuses messages until it's been read from, and that messages taking up more than half the queue are rejected.
+     */
+    @Test
+    public void test1() throws Exception {
+        var directory = Files.createTempDirectory("hoogas_queue");
+        var file = directory.resolve("test.queue");
+        try {
+            var writer = SharedMemoryMessageQueue.open(file, 200);
+            //The capacity of an existing file is kept
+            var reader = SharedMemoryMessageQueue.open(file, 5000);
+            assertEquals(200, reader.getCapacity());
+            assertTrue(reader.isEmpty());
+
+            var received = new ArrayList<String>();
+            for(int i = 0; i < 50; i++) {
+                var text = "x".repeat(i % 40) + "¬" + i;
+                assertTrue(writer.offer(MessageTypeToApplications.PUBLIC_CFG_RESPONSE.name(), text));
+                assertEquals(1, reader.drain((type, message) -> received.add(type + ":" + message)));
+                assertEquals(MessageTypeToApplications.PUBLIC_CFG_RESPONSE.name() + ":" + text, received.getLast());
+            }
+            assertTrue(reader.isEmpty());
+
+            received.clear();
+            int numOffered = 0;
+            while(writer.offer(MessageTypeToApplications.STOP.name(), null)) {
+                numOffered++;
+            }
+            assertTrue(numOffered > 0);
+            assertEquals(numOffered, reader.drain((type, message) -> received.add(type + ":" + message)));
+            assertEquals(List.of(MessageTypeToApplications.STOP.name() + ":"), received.stream().distinct().toList());
+            assertTrue(writer.offer(MessageTypeToApplications.STOP.name(), "after"));
+            reader.clear();
+            assertTrue(reader.isEmpty());
+
+            var exceptionThrown = false;
+            try {
+                writer.offer(MessageTypeToApplications.STOP.name(), "x".repeat(100));
+            }
+            catch(IllegalArgumentException e) {
+                exceptionThrown = true;
+            }
+            assertTrue(exceptionThrown);
+        }
+        finally {
+            Files.deleteIfExists(file);
+            Files.delete(directory);
+        }
+    }
+
+    /**
+     * Check that a queue can tell when its file has been deleted, and when it's been deleted and created again, and that a queue opened on
+     * the new file can't.
+     */
+    @Test
+    public void test2() throws Exception {
+        var directory = Files.createTempDirectory("hoogas_queue");
+        var file = directory.resolve("test.queue");
+        try {
+            var queue = SharedMemoryMessageQueue.open(file, 200);
+            assertFalse(queue.isFileReplaced());
+            Files.delete(file);
+            assertTrue(queue.isFileReplaced());
+
+            var reopened = SharedMemoryMessageQueue.open(file, 200);
+            assertTrue(queue.isFileReplaced());
+            assertFalse(reopened.isFileReplaced());
+            assertTrue(reopened.offer(MessageTypeToApplications.STOP.name(), "stop"));
+            assertTrue(queue.isEmpty());
+        }
+        finally {
+            Files.deleteIfExists(file);
+            Files.delete(directory);
+        }
+    }
+}